@@ -0,0 +1,256 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ * This class writes the lines of a log file in the background so that the threads which log don't wait for the disk.
+ *
+ * The lines are put in a ring buffer of BUFFER_SIZE lines without taking a lock: each slot has a sequence number which
+ * tells whether it is free or written, and the threads only compete for the position of the next slot. A single thread
+ * takes the lines out of the buffer in batches, adds their time, writes each batch with one system call and forces the
+ * file to the disk at most every SYNC_INTERVAL. When the buffer is full the lines are dropped and counted rather than
+ * slowing down the requests; the number of dropped lines is written in the log.
+ *
+ * When the file is bigger than MAX_FILE_SIZE it is renamed to file.1 (file.1 to file.2, and so on) and a new file is
+ * started. At most MAX_FILES files are kept.
+ */
+public class AsyncLogger extends Thread {
+	public static final int BUFFER_SIZE = 64 * 1024; // Lines, a power of 2
+	public static final int BATCH_SIZE = 1024; // Lines written with one system call
+	public static final long SYNC_INTERVAL = 1000; // 1 second
+	public static final long MAX_FILE_SIZE = 10 * 1024 * 1024; // 10 MegaBytes
+	public static final int MAX_FILES = 5;
+	private static final long IDLE_WAIT = 1000 * 1000; // 1 millisecond, in nanoseconds
+
+	// One logger per log file
+	private static HashMap<String, AsyncLogger> loggers = new HashMap<String, AsyncLogger>();
+
+	private final File file;
+	private final String newline = System.getProperty("line.separator");
+
+	// Ring buffer: slot i can be written at position p when sequences[i] == p and read when sequences[i] == p + 1
+	private final String[] lines = new String[BUFFER_SIZE];
+	private final long[] times = new long[BUFFER_SIZE];
+	private final AtomicLongArray sequences = new AtomicLongArray(BUFFER_SIZE);
+	private final AtomicLong tail = new AtomicLong(); // Next position to be written
+	private long head = 0; // Next position to be read, only used by the writer thread
+	private volatile long flushed = 0; // Positions written to the file
+	private final AtomicLong dropped = new AtomicLong();
+
+	private FileOutputStream stream = null;
+	private BufferedWriter writer = null;
+	private long size = 0;
+	private long lastSync = 0;
+	private boolean synced = true;
+
+	// Time of the lines, formatted again only when the second changes
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss");
+	private long lastSecond = -1;
+	private String lastTime = null;
+
+	private AsyncLogger(File file) {
+		super("AsyncLogger-" + file.getName());
+		this.file = file;
+		for (int i = 0; i < BUFFER_SIZE; i++) {
+			sequences.set(i, i);
+		}
+		setDaemon(true);
+	}
+
+	/***
+	 * This method returns the logger of a log file and starts it the first time.
+	 * @param fileName	Path of the log file
+	 * @return			Returns the logger which writes the file.
+	 */
+	public static synchronized AsyncLogger get(String fileName) {
+		AsyncLogger logger = loggers.get(fileName);
+		if (logger == null) {
+			if (loggers.isEmpty()) {
+				// Write the lines which are still in the buffers before the program exits
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						flushAll();
+					}
+				});
+			}
+			logger = new AsyncLogger(new File(fileName));
+			loggers.put(fileName, logger);
+			logger.start();
+		}
+		return logger;
+	}
+
+	/***
+	 * This method adds a line to the buffer. It doesn't wait: if the buffer is full the line is dropped.
+	 * @param line	Text of the line, without its time
+	 * @return		Returns true if the line will be written.
+	 */
+	public boolean append(String line) {
+		long time = System.currentTimeMillis();
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & (BUFFER_SIZE - 1);
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					lines[index] = line;
+					times[index] = time;
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (sequence < position) {
+				// The writer thread didn't read this slot yet
+				dropped.incrementAndGet();
+				return false;
+			} else {
+				// Another thread took this position
+				position = tail.get();
+			}
+		}
+	}
+
+	/***
+	 * This method waits until the lines added so far are written to the file.
+	 * @param timeout	Maximum time to wait in milliseconds
+	 * @return			Returns true if the lines are written.
+	 */
+	public boolean flush(long timeout) {
+		long target = tail.get();
+		long deadline = System.currentTimeMillis() + timeout;
+		while (flushed < target && isAlive()) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			LockSupport.parkNanos(IDLE_WAIT);
+		}
+		return flushed >= target;
+	}
+
+	// Writes the lines of all the logs, when the program exits
+	private static synchronized void flushAll() {
+		for (AsyncLogger logger : loggers.values()) {
+			logger.flush(SYNC_INTERVAL);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				int count = writeBatch();
+				if (count > 0) {
+					writer.flush();
+					flushed = head;
+					synced = false;
+				}
+				long now = System.currentTimeMillis();
+				if (!synced && stream != null && now - lastSync >= SYNC_INTERVAL) {
+					// One fsync for all the lines written since the previous one
+					stream.getFD().sync();
+					lastSync = now;
+					synced = true;
+				}
+				if (count == 0) {
+					LockSupport.parkNanos(IDLE_WAIT);
+				}
+			} catch (IOException e) {
+				// The lines of this batch are lost, the file is opened again for the next ones
+				e.printStackTrace();
+				closeFile();
+				flushed = head;
+				LockSupport.parkNanos(SYNC_INTERVAL * 1000 * 1000);
+			}
+		}
+	}
+
+	// Takes up to BATCH_SIZE lines out of the buffer and writes them, returns the number of lines
+	private int writeBatch() throws IOException {
+		int count = 0;
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			write(System.currentTimeMillis(), lost + " lines were dropped because the log buffer was full.");
+			count++;
+		}
+		while (count < BATCH_SIZE) {
+			int index = (int) head & (BUFFER_SIZE - 1);
+			if (sequences.get(index) != head + 1) {
+				break;
+			}
+			String line = lines[index];
+			long time = times[index];
+			lines[index] = null;
+			sequences.lazySet(index, head + BUFFER_SIZE);
+			head++;
+			write(time, line);
+			count++;
+		}
+		return count;
+	}
+
+	private void write(long time, String line) throws IOException {
+		if (writer == null || size >= MAX_FILE_SIZE) {
+			rotate();
+		}
+		long second = time / 1000;
+		if (second != lastSecond) {
+			lastSecond = second;
+			lastTime = dateFormat.format(new Date(time));
+		}
+		writer.write(lastTime);
+		writer.write(" => ");
+		writer.write(line);
+		writer.write(newline);
+		size += lastTime.length() + line.length() + 4 + newline.length();
+	}
+
+	// Opens the log file, after renaming it if it is too big
+	private void rotate() throws IOException {
+		if (writer != null || file.length() >= MAX_FILE_SIZE) {
+			closeFile();
+			for (int i = MAX_FILES - 1; i > 0; i--) {
+				File older = new File(file.getPath() + "." + i);
+				File newer = (i == 1) ? file : new File(file.getPath() + "." + (i - 1));
+				if (newer.exists()) {
+					older.delete();
+					newer.renameTo(older);
+				}
+			}
+		}
+
+		// Create the folder of the logs if it doesn't exist
+		if (file.getParentFile() != null && !file.getParentFile().exists()) {
+			file.getParentFile().mkdirs();
+		}
+		stream = new FileOutputStream(file, true);
+		writer = new BufferedWriter(new OutputStreamWriter(stream), 64 * 1024);
+		size = file.length();
+	}
+
+	private void closeFile() {
+		try {
+			if (writer != null) {
+				writer.close();
+			}
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+		writer = null;
+		stream = null;
+	}
+
+	/***
+	 * This method returns the number of lines which are waiting to be written.
+	 * @return	Returns the number of lines in the buffer.
+	 */
+	public long getPending() {
+		return tail.get() - flushed;
+	}
+}
@@ -1,9 +1,11 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Random;
@@ -11,6 +13,7 @@ import java.util.Random;
 public class CompareTest {
 
 	private final static int TEST_COUNT = 1000;
+	private final static int[] CATALOG_SIZES = {1000, 10000, 100000, 1000000};
 	
 	public static void main(String[] args) {
 		BufferedReader input = null;
@@ -73,8 +76,8 @@ public class CompareTest {
 
 	private static void testRegister(String serverAddress) {		
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		long startTime, endTime, totalTime = 0;
@@ -89,9 +92,9 @@ public class CompareTest {
 		
 		try {
 			socket = new Socket(serverAddress, 10000);
-	        out = new ObjectOutputStream(socket.getOutputStream());
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        out.flush();
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 	        startTime = System.currentTimeMillis();
 	        
 	        for (long i = startKey; i <= endKey; i++) {
@@ -102,9 +105,9 @@ public class CompareTest {
 				peerRequest = new Request();
 				peerRequest.setRequestType("REGISTER");
 				peerRequest.setRequestData(files);
-				out.writeObject(peerRequest);
+				MessageUtility.writeMessage(out, peerRequest);
 				
-				serverResponse = (Response) in.readObject();
+				serverResponse = (Response) MessageUtility.readMessage(in);
 			}
 	        endTime = System.currentTimeMillis();
 	        totalTime = endTime - startTime;
@@ -134,43 +137,86 @@ public class CompareTest {
 	
 	private static void testLookup(String serverAddress) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		long startTime, endTime, totalTime = 0;
 		double avgTime;
+		int registeredFiles = 0;
+		int found;
+		Random random = new Random();
 		
-		int clientId =  (new Random()).nextInt(50);
-		long startKey = clientId * TEST_COUNT;
-		long endKey = (clientId * TEST_COUNT) +  TEST_COUNT - 1;
-		
-		System.out.println("startKey = " + startKey);
-		System.out.println("endKey = " + endKey);
+		System.out.println("Measuring lookup latency as the catalog grows.");
+		System.out.println("CATALOG SIZE\tTOTAL TIME (ms)\tAVERAGE LOOKUP TIME (microseconds)\tFOUND");
 		
 		try {
 			socket = new Socket(serverAddress, 10000);
-			BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-	        out = new ObjectOutputStream(socket.getOutputStream());
+			socket.setTcpNoDelay(true);
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        out.flush();
-	        in = new ObjectInputStream(socket.getInputStream());
-	        startTime = System.currentTimeMillis();
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 	        
-	        for (long i = startKey; i <= endKey; i++) {
-				peerRequest = new Request();
-				peerRequest.setRequestType("LOOKUP");
-				peerRequest.setRequestData(Long.toString(i));
-				out.writeObject(peerRequest);
-				
-				serverResponse = (Response) in.readObject();
-			}
-	        endTime = System.currentTimeMillis();
-	        totalTime = endTime - startTime;
-			avgTime = (double) Math.round(totalTime / (double) TEST_COUNT) / 1000;
-
-			System.out.println("TOTAL TESTS : " + TEST_COUNT);
-			System.out.println("TOTAL TIME : " + totalTime + " seconds");
-			System.out.println("AVERAGE SEARCH TIME : " + avgTime + " seconds");
+	        // Consume the welcome handshake and decline to act as a replication node
+	        MessageUtility.readMessage(in);
+	        peerRequest = new Request();
+	        peerRequest.setRequestType("REPLICATION");
+	        peerRequest.setRequestData("N");
+	        MessageUtility.writeMessage(out, peerRequest);
+	        MessageUtility.readMessage(in);
+	        
+	        for (int catalogSize : CATALOG_SIZES) {
+	        	// Grow the catalog of the indexing server up to catalogSize files
+	        	ArrayList<String> files = new ArrayList<String>();
+	        	files.add(0, "files/");
+	        	for (int i = registeredFiles; i < catalogSize; i++) {
+	        		files.add("catalog-" + i);
+	        	}
+	        	registeredFiles = catalogSize;
+	        	
+	        	peerRequest = new Request();
+	        	peerRequest.setRequestType("REGISTER");
+	        	peerRequest.setRequestData(files);
+	        	MessageUtility.writeMessage(out, peerRequest);
+	        	serverResponse = (Response) MessageUtility.readMessage(in);
+	        	if (serverResponse.getResponseCode() != 200) {
+	        		System.out.println("Registering the catalog failed: " + serverResponse.getResponseData());
+	        		break;
+	        	}
+	        	
+	        	// Lookup random files from the catalog, every one of them must be found
+	        	found = 0;
+	        	startTime = System.nanoTime();
+	        	for (int i = 0; i < TEST_COUNT; i++) {
+	        		peerRequest = new Request();
+	        		peerRequest.setRequestType("LOOKUP");
+	        		peerRequest.setRequestData("catalog-" + random.nextInt(registeredFiles));
+	        		MessageUtility.writeMessage(out, peerRequest);
+	        		
+	        		serverResponse = (Response) MessageUtility.readMessage(in);
+	        		if (serverResponse.getResponseCode() == 200) {
+	        			found++;
+	        		}
+	        	}
+	        	endTime = System.nanoTime();
+	        	totalTime = endTime - startTime;
+	        	avgTime = (double) Math.round(totalTime / (double) TEST_COUNT) / 1000;
+	        	
+	        	System.out.println(catalogSize + "\t\t" + (totalTime / 1000000) + "\t\t" + avgTime + "\t\t\t\t" + found + "/" + TEST_COUNT);
+	        	if (found != TEST_COUNT) {
+	        		System.out.println("Some files of the catalog were not found, the index is inconsistent.");
+	        		break;
+	        	}
+	        }
+	        
+	        // Remove the benchmark files from the indexing server
+	        peerRequest = new Request();
+	        peerRequest.setRequestType("UNREGISTER");
+	        peerRequest.setRequestData("Un-register all files from index server.");
+	        MessageUtility.writeMessage(out, peerRequest);
+	        serverResponse = (Response) MessageUtility.readMessage(in);
+	        
+	        System.out.println("TOTAL TESTS PER CATALOG SIZE : " + TEST_COUNT);
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -0,0 +1,37 @@
+import java.io.Serializable;
+
+/***
+ * Request data of a DOWNLOAD_CHUNK request. Identifies a byte range of a shared file.
+ */
+public class FileChunk implements Serializable {
+	
+	private String fileName;
+	private long offset;
+	private long length;
+	
+	public FileChunk(String fileName, long offset, long length) {
+		this.fileName = fileName;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	public String getFileName() {
+		return fileName;
+	}
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+	public long getOffset() {
+		return offset;
+	}
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	public long getLength() {
+		return length;
+	}
+	public void setLength(long length) {
+		this.length = length;
+	}
+	
+}
@@ -1,16 +1,29 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /***
  * This class provides various file related methods like downloading file,
@@ -21,6 +34,11 @@ public class FileUtility {
 	private static final String downloadLocation = "downloads/";
 	private static final String replicaLocation = "replica/";
 	private static final int BUFFER_SIZE = 1024 * 64; // 64 KiloBytes
+	private static final int CHUNK_SIZE = 1024 * 1024 * 4; // 4 MegaBytes
+	private static final int MAX_CHUNK_RETRIES = 3;
+	
+	// Checksums of the chunks of the shared files. The key contains the path, length and last modified time of the file.
+	private static ConcurrentHashMap<String, long[]> chunkChecksums = new ConcurrentHashMap<String, long[]>();
 	
 	/***
 	 * This method retrieves all the files from the given path.
@@ -86,8 +104,7 @@ public class FileUtility {
 	 */
 	public static boolean downloadFile(String hostAddress, int port, String fileName) {
 		InputStream in = null;
-		BufferedOutputStream fileOutput = null;
-		ObjectOutputStream out = null;
+		DataOutputStream out = null;
 		Socket socket = null;
 		boolean isDownloaded = false;
 		
@@ -102,34 +119,21 @@ public class FileUtility {
 				file.mkdir();
 
 			// Create an output stream using the socket's output stream.
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
 			System.out.println("Requesting file.........");
 			// Setup a Request object with Request Type = DOWNLOAD and Request Data = name of the file to be downloaded
 			Request request = new Request();
 			request.setRequestType("DOWNLOAD");
 			request.setRequestData(fileName);
-			out.writeObject(request);
+			MessageUtility.writeMessage(out, request);
 
-			// Download file from the output stream
+			// Download file from the input stream
 			System.out.println("Downloading file........");
-			byte[] mybytearray = new byte[BUFFER_SIZE];
 			in = socket.getInputStream();
-			fileOutput = new BufferedOutputStream(new FileOutputStream(downloadLocation + fileName));
-			
-			// Reading incoming stream in chunks
-			int bytesRead;
-			while ((bytesRead = in.read(mybytearray, 0, mybytearray.length)) > 0)
-			{
-				fileOutput.write(mybytearray, 0, bytesRead);
-			}
-			
-			if((new File(downloadLocation + fileName)).length() == 0) {
-				isDownloaded = false;
-				(new File(downloadLocation + fileName)).delete();
-			} else {
-				isDownloaded = true;
+			isDownloaded = receiveFile(in, downloadLocation + fileName, true) >= 0;
+			if (!isDownloaded) {
+				System.out.println("File not found on the peer.");
 			}
 		} catch(SocketException e) {
 			//System.out.println("Unable to connect to the host. Unable to  download file. Try using a different peer if available.");
@@ -150,9 +154,6 @@ public class FileUtility {
 				if (in != null)
 					in.close();
 				
-				if (fileOutput != null)
-					fileOutput.close();
-				
 				if (socket != null)
 					socket.close();
 			} catch (Exception ex) {
@@ -162,6 +163,297 @@ public class FileUtility {
 		return isDownloaded;
 	}
 	
+	/***
+	 * This method downloads the specified file in chunks from all the specified hosts (peers) in parallel.
+	 * The first host which has the file provides its length and the checksum of every chunk. Each host then
+	 * downloads chunks from a shared queue, so faster hosts download more chunks. A chunk whose checksum doesn't
+	 * match, or whose host fails, is put back in the queue for the other hosts.
+	 * The downloaded chunks are recorded next to the partial file, so if the download doesn't complete
+	 * calling this method again only downloads the missing chunks.
+	 * @param hostAddresses	IP Addresses of the peers from which the file can be downloaded
+	 * @param port			Port of the peers from which the file has to be downloaded
+	 * @param fileName		Name of the file to be downloaded
+	 * @return				Returns true if the file is completely downloaded else returns false
+	 */
+	public static boolean downloadFile(List<String> hostAddresses, int port, String fileName) {
+		RandomAccessFile partFile = null;
+		DataOutputStream stateOutput = null;
+		boolean isDownloaded = false;
+		
+		try {
+			// Retrieve the length of the file and the chunk checksums from the first peer which has the file
+			long[] fileInfo = null;
+			for (String host : hostAddresses) {
+				fileInfo = requestFileInfo(host, port, fileName);
+				if (fileInfo != null)
+					break;
+			}
+			if (fileInfo == null) {
+				System.out.println("File not found on any peer.");
+				return false;
+			}
+			long fileSize = fileInfo[0];
+			long[] checksums = Arrays.copyOfRange(fileInfo, 1, fileInfo.length);
+			
+			// Create a download folder if it doesn't exist
+			File folder = new File(downloadLocation);
+			if (!folder.exists())
+				folder.mkdir();
+			
+			File part = new File(downloadLocation + fileName + ".part");
+			File state = new File(downloadLocation + fileName + ".chunks");
+			boolean[] completed = loadCompletedChunks(part, state, fileSize, checksums);
+			
+			ConcurrentLinkedQueue<Integer> pendingChunks = new ConcurrentLinkedQueue<Integer>();
+			for (int i = 0; i < completed.length; i++) {
+				if (!completed[i])
+					pendingChunks.add(i);
+			}
+			if (pendingChunks.size() < completed.length) {
+				System.out.println("Resuming download. " + (completed.length - pendingChunks.size()) + " of " + completed.length + " chunks already downloaded.");
+			}
+			
+			partFile = new RandomAccessFile(part, "rw");
+			partFile.setLength(fileSize);
+			stateOutput = new DataOutputStream(new FileOutputStream(state, true));
+			AtomicInteger remainingChunks = new AtomicInteger(pendingChunks.size());
+			
+			System.out.println("\nDownloading file " + fileName + " in " + completed.length + " chunks from " + hostAddresses.size() + " peer(s).");
+			List<ChunkDownloader> downloaders = new ArrayList<ChunkDownloader>();
+			for (String host : hostAddresses) {
+				ChunkDownloader downloader = new ChunkDownloader(host, port, fileName, fileSize, checksums, pendingChunks,
+						remainingChunks, partFile.getChannel(), stateOutput);
+				downloaders.add(downloader);
+				downloader.start();
+			}
+			for (ChunkDownloader downloader : downloaders) {
+				downloader.join();
+			}
+			System.out.println();
+			
+			if (remainingChunks.get() == 0) {
+				partFile.close();
+				partFile = null;
+				stateOutput.close();
+				stateOutput = null;
+				
+				File file = new File(downloadLocation + fileName);
+				file.delete();
+				isDownloaded = part.renameTo(file);
+				state.delete();
+			}
+		} catch (Exception e) {
+			isDownloaded = false;
+		} finally {
+			try {
+				// Closing all streams. Close the stream only if it is initialized
+				if (partFile != null)
+					partFile.close();
+				
+				if (stateOutput != null)
+					stateOutput.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		return isDownloaded;
+	}
+	
+	/***
+	 * This method requests the length of the file and the checksums of its chunks from the specified host (peer).
+	 * @param hostAddress	IP Address of the peer
+	 * @param port			Port of the peer
+	 * @param fileName		Name of the file
+	 * @return				Returns the length of the file followed by the chunk checksums, or null if the peer doesn't have the file
+	 */
+	private static long[] requestFileInfo(String hostAddress, int port, String fileName) {
+		Socket socket = null;
+		try {
+			socket = new Socket(hostAddress, port);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			Request request = new Request();
+			request.setRequestType("FILE_INFO");
+			request.setRequestData(fileName);
+			MessageUtility.writeMessage(out, request);
+			
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			long fileSize = in.readLong();
+			if (fileSize < 0)
+				return null;
+			
+			int chunkCount = in.readInt();
+			long[] fileInfo = new long[chunkCount + 1];
+			fileInfo[0] = fileSize;
+			for (int i = 1; i <= chunkCount; i++) {
+				fileInfo[i] = in.readLong();
+			}
+			return fileInfo;
+		} catch (Exception e) {
+			return null;
+		} finally {
+			try {
+				if (socket != null)
+					socket.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+	
+	/***
+	 * This method reads the chunks already downloaded by an earlier attempt to download the file.
+	 * The state file contains the length and chunk checksums of the file followed by the index of every downloaded chunk.
+	 * If the file has changed on the peers since then, the partial download is discarded and a new state file is started.
+	 * @param part		Partial file being downloaded
+	 * @param state		State file of the partial download
+	 * @param fileSize	Length of the file
+	 * @param checksums	Checksums of the chunks of the file
+	 * @return			Returns an array which is true for each chunk that has already been downloaded
+	 */
+	private static boolean[] loadCompletedChunks(File part, File state, long fileSize, long[] checksums) throws IOException {
+		boolean[] completed = new boolean[checksums.length];
+		
+		if (part.exists() && state.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(state)));
+			try {
+				boolean sameFile = in.readLong() == fileSize && in.readInt() == checksums.length;
+				for (int i = 0; sameFile && i < checksums.length; i++) {
+					sameFile = in.readLong() == checksums[i];
+				}
+				if (sameFile) {
+					while (true) {
+						int chunk = in.readInt();
+						if (chunk >= 0 && chunk < completed.length)
+							completed[chunk] = true;
+					}
+				}
+			} catch (EOFException e) {
+				// Reached the last chunk recorded
+			} finally {
+				in.close();
+			}
+			
+			for (boolean isCompleted : completed) {
+				if (isCompleted)
+					return completed;
+			}
+		}
+		
+		// Start a new download
+		part.delete();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(state)));
+		out.writeLong(fileSize);
+		out.writeInt(checksums.length);
+		for (long checksum : checksums) {
+			out.writeLong(checksum);
+		}
+		out.close();
+		return completed;
+	}
+	
+	/***
+	 * This class downloads chunks of a file from a single peer. Every peer holding the file gets its own
+	 * downloader thread and all of them take chunks from the same queue until every chunk is downloaded.
+	 * A downloader stops using its peer after MAX_CHUNK_RETRIES failures.
+	 */
+	private static class ChunkDownloader extends Thread {
+		private String hostAddress;
+		private int port;
+		private String fileName;
+		private long fileSize;
+		private long[] checksums;
+		private ConcurrentLinkedQueue<Integer> pendingChunks;
+		private AtomicInteger remainingChunks;
+		private FileChannel partFile;
+		private DataOutputStream stateOutput;
+		
+		public ChunkDownloader(String hostAddress, int port, String fileName, long fileSize, long[] checksums,
+				ConcurrentLinkedQueue<Integer> pendingChunks, AtomicInteger remainingChunks, FileChannel partFile, DataOutputStream stateOutput) {
+			this.hostAddress = hostAddress;
+			this.port = port;
+			this.fileName = fileName;
+			this.fileSize = fileSize;
+			this.checksums = checksums;
+			this.pendingChunks = pendingChunks;
+			this.remainingChunks = remainingChunks;
+			this.partFile = partFile;
+			this.stateOutput = stateOutput;
+		}
+		
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			int failures = 0;
+			
+			while (remainingChunks.get() > 0 && failures < MAX_CHUNK_RETRIES) {
+				Integer chunk = pendingChunks.poll();
+				if (chunk == null) {
+					// Other peers are downloading the last chunks. Wait in case one of them fails.
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+				
+				try {
+					long offset = (long) chunk * CHUNK_SIZE;
+					int length = (int) Math.min(CHUNK_SIZE, fileSize - offset);
+					downloadChunk(offset, length, buffer);
+					
+					CRC32 crc = new CRC32();
+					crc.update(buffer.array(), 0, length);
+					if (crc.getValue() != checksums[chunk]) {
+						throw new IOException("Checksum mismatch in chunk " + chunk + " from " + hostAddress);
+					}
+					
+					while (buffer.hasRemaining()) {
+						partFile.write(buffer, offset + buffer.position());
+					}
+					
+					// Record the chunk so that an interrupted download can be resumed
+					synchronized (stateOutput) {
+						stateOutput.writeInt(chunk);
+						stateOutput.flush();
+						int remaining = remainingChunks.decrementAndGet();
+						System.out.print("\rDownloaded " + (checksums.length - remaining) + " of " + checksums.length + " chunks");
+					}
+				} catch (IOException e) {
+					// Give the chunk back so that another peer can download it
+					pendingChunks.add(chunk);
+					failures++;
+				}
+			}
+		}
+		
+		/***
+		 * This method downloads a range of the file from the peer.
+		 * @param offset	Position of the first byte of the chunk in the file
+		 * @param length	Length of the chunk
+		 * @param buffer	Buffer in which the chunk is read
+		 */
+		private void downloadChunk(long offset, int length, ByteBuffer buffer) throws IOException {
+			Socket socket = new Socket(hostAddress, port);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				Request request = new Request();
+				request.setRequestType("DOWNLOAD_CHUNK");
+				request.setRequestData(new FileChunk(fileName, offset, length));
+				MessageUtility.writeMessage(out, request);
+				
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				if (in.readLong() != length) {
+					throw new IOException("Chunk at " + offset + " is not available on " + hostAddress);
+				}
+				buffer.clear();
+				in.readFully(buffer.array(), 0, length);
+				buffer.limit(length);
+			} finally {
+				socket.close();
+			}
+		}
+	}
+	
 	/***
 	 * This method replicates the specified file from the specified host (peer) to the self node.
 	 * This method is same as downloadFile(...) with minor modifications
@@ -172,8 +464,7 @@ public class FileUtility {
 	 */
 	public static boolean replicateFile(String hostAddress, int port, String fileName) {
 		InputStream in = null;
-		BufferedOutputStream fileOutput = null;
-		ObjectOutputStream out = null;
+		DataOutputStream out = null;
 		Socket socket = null;
 		boolean isReplicated = false;
 		LogUtility log = new LogUtility("replication");
@@ -190,27 +481,21 @@ public class FileUtility {
 				file.mkdir();
 
 			// Create an output stream using the socket's output stream.
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
 			log.write("Requesting file ... " + fileName);
 			// Setup a Request object with Request Type = DOWNLOAD and Request Data = name of the file to be downloaded
 			Request request = new Request();
 			request.setRequestType("DOWNLOAD");
 			request.setRequestData(fileName);
-			out.writeObject(request);
+			MessageUtility.writeMessage(out, request);
 
-			// Download file from the output stream
+			// Download file from the input stream
 			log.write("Downloading file ... " + fileName);
-			byte[] mybytearray = new byte[BUFFER_SIZE];
 			in = socket.getInputStream();
-			fileOutput = new BufferedOutputStream(new FileOutputStream(replicaLocation + fileName));
-			
-			int bytesRead;
-			while ((bytesRead = in.read(mybytearray, 0, mybytearray.length)) > 0)
-			{
-				fileOutput.write(mybytearray, 0, bytesRead);
-			}			
+			if (receiveFile(in, replicaLocation + fileName, false) < 0) {
+				throw new FileNotFoundException(fileName + " not found on " + hostAddress);
+			}
 			
 			long endTime = System.currentTimeMillis();
 			double time = (double) Math.round(endTime - startTime) / 1000;
@@ -233,9 +518,6 @@ public class FileUtility {
 				if (in != null)
 					in.close();
 				
-				if (fileOutput != null)
-					fileOutput.close();
-				
 				if (socket != null)
 					socket.close();
 				
@@ -248,6 +530,142 @@ public class FileUtility {
 		return isReplicated;
 	}
 
+	/***
+	 * This method receives a file sent by a peer in response to a DOWNLOAD request and writes it to the given path.
+	 * The peer first sends the length of the file (-1 if it doesn't have the file) followed by the file contents,
+	 * which are copied to the disk in chunks of BUFFER_SIZE so that the file is never held in memory.
+	 * @param in			Input stream of the socket connected to the peer
+	 * @param filePath		Path where the file has to be written
+	 * @param showProgress	Prints the download progress on the console if true
+	 * @return				Returns the number of bytes received or -1 if the peer doesn't have the file
+	 */
+	private static long receiveFile(InputStream in, String filePath, boolean showProgress) throws IOException {
+		DataInputStream dataInput = new DataInputStream(in);
+		long fileSize = dataInput.readLong();
+		if (fileSize < 0) {
+			return -1;
+		}
+		
+		FileOutputStream fileOutput = new FileOutputStream(filePath);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long received = 0;
+		int lastProgress = -1;
+		
+		try {
+			// Reading incoming stream in chunks
+			while (received < fileSize) {
+				int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - received));
+				if (bytesRead < 0) {
+					throw new EOFException("Connection closed after " + received + " of " + fileSize + " bytes.");
+				}
+				fileOutput.write(buffer, 0, bytesRead);
+				received += bytesRead;
+				
+				int progress = (int) (received * 100 / fileSize);
+				if (showProgress && progress != lastProgress) {
+					System.out.print("\rDownloaded " + progress + "% (" + received + " of " + fileSize + " bytes)");
+					lastProgress = progress;
+				}
+			}
+			if (showProgress && fileSize > 0) {
+				System.out.println();
+			}
+		} catch (IOException e) {
+			fileOutput.close();
+			new File(filePath).delete();
+			throw e;
+		}
+		fileOutput.close();
+		return received;
+	}
+	
+	/***
+	 * This method creates the header sent before a file, which contains the length of the file.
+	 * @param fileSize	Length of the file or -1 if the file is not available
+	 * @return			Buffer containing the header ready to be written
+	 */
+	public static ByteBuffer fileHeader(long fileSize) {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putLong(fileSize);
+		header.flip();
+		return header;
+	}
+	
+	/***
+	 * This method creates the response to a FILE_INFO request: the length of the file (-1 if the file is not available),
+	 * the number of chunks and the CRC32 checksum of every chunk.
+	 * @param file	File requested by the peer
+	 * @return		Buffer containing the response ready to be written
+	 */
+	public static ByteBuffer fileInfo(File file) throws IOException {
+		if (!file.isFile()) {
+			return fileHeader(-1);
+		}
+		
+		long[] checksums = getChunkChecksums(file);
+		ByteBuffer info = ByteBuffer.allocate(8 + 4 + 8 * checksums.length);
+		info.putLong(file.length());
+		info.putInt(checksums.length);
+		for (long checksum : checksums) {
+			info.putLong(checksum);
+		}
+		info.flip();
+		return info;
+	}
+	
+	/***
+	 * This method returns the CRC32 checksum of every chunk of the file. The checksums are computed
+	 * once and cached until the file changes.
+	 * @param file	File whose chunk checksums are to be returned
+	 * @return		Checksums of the chunks of the file
+	 */
+	private static long[] getChunkChecksums(File file) throws IOException {
+		String key = file.getAbsolutePath() + "#" + file.length() + "#" + file.lastModified();
+		long[] checksums = chunkChecksums.get(key);
+		if (checksums != null) {
+			return checksums;
+		}
+		
+		long fileSize = file.length();
+		checksums = new long[(int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+		FileChannel fileInput = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			for (int i = 0; i < checksums.length; i++) {
+				CRC32 crc = new CRC32();
+				long position = (long) i * CHUNK_SIZE;
+				long end = Math.min(position + CHUNK_SIZE, fileSize);
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), end - position));
+					int bytesRead = fileInput.read(buffer, position);
+					if (bytesRead < 0) {
+						throw new EOFException("File " + file + " changed while computing checksums.");
+					}
+					buffer.flip();
+					crc.update(buffer);
+					position += bytesRead;
+				}
+				checksums[i] = crc.getValue();
+			}
+		} finally {
+			fileInput.close();
+		}
+		chunkChecksums.put(key, checksums);
+		return checksums;
+	}
+	
+	/***
+	 * This method writes the whole buffer to the channel.
+	 * @param channel	Channel to write to
+	 * @param buffer	Buffer to be written
+	 */
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
 	/***
 	 * This method prints the content of the text file after downloading it from the specified host (peer).
 	 * @param hostAddress	IP Address of the peer from which the file has to be printed after downloading
@@ -1,17 +1,31 @@
-import java.io.EOFException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The indexing server program accepts request from peers to register/unregister
@@ -26,193 +40,440 @@ public class IndexingServer {
 	 * The value of the indexDB contains an ArrayList of String which contains the list of files.
 	 */
 	private static ConcurrentHashMap<String, ArrayList<String>> indexDatabase = new ConcurrentHashMap<String, ArrayList<String>>();
+	/***
+	 * fileIndex is the inverted index of indexDatabase used by LOOKUP so that a search does not scan every registered file.
+	 * The key is the normalized (lower case) file name and the value maps Peer ID to Peer IP Address of every peer holding that file.
+	 * Both maps are only modified while holding indexLock so that they always describe the same set of files.
+	 */
+	private static ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> fileIndex = new ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>>();
+	private static final Object indexLock = new Object();
 	private static ConcurrentHashMap<String, ArrayList<String>> peerIndexedLocations = new ConcurrentHashMap<String, ArrayList<String>>();
 	private static List<String> replicationNodes = Collections.synchronizedList(new ArrayList<String>());
 	private static final int SERVER_SOCKET_PORT = 10000; 
 	private static final int PEER_SERVER_PORT = 20000;
 	private static final String REPLICA_LOCATION = "replica/";
 	
+	private static final int IO_THREADS = 2;
+	private static final int WORKER_THREADS = 8;
+	private static final int WORKER_QUEUE_SIZE = 1024;
+	
 	// totalPeers stores the count of peers connected to the indexing server
-	private static int totalPeers = 0;
+	private static AtomicInteger totalPeers = new AtomicInteger();
+	// registrations numbers the REGISTER requests so that every registration has its own key in indexDatabase
+	private static AtomicInteger registrations = new AtomicInteger();
+	// Log of the server, written in the background
+	private static LogUtility serverLog = new LogUtility("server");
+	
+	/***
+	 * workers is the bounded pool which processes the peer requests (REGISTER/LOOKUP/UNREGISTER/GET_BACKUP_NODES).
+	 * The I/O threads only move bytes, so they never block on indexing, logging or replication.
+	 */
+	private static ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_SIZE));
 	
 	/**
-	 * Indexing Server's main method to run the server. It runs in an infinite
-	 * loop listening on port 10000. When a connection is requested, it spawns a
-	 * new thread to do the servicing and immediately returns to listening. The
-	 * server keeps a unique peer id for each peer that connects to the server
-	 * for file sharing.
+	 * Indexing Server's main method to run the server. It listens on port 10000
+	 * using a non-blocking server socket channel. When a connection is accepted,
+	 * it hands the connection over to one of the I/O threads and immediately
+	 * returns to listening. The server keeps a unique peer id for each peer that
+	 * connects to the server for file sharing.
 	 */
     public static void main(String[] args) throws Exception {
         System.out.println("********** INDEXING SERVER STARTED **********");
         int peerId = 1;
         
-        ServerSocket listener = new ServerSocket(SERVER_SOCKET_PORT);
+        SelectorLoop[] loops = new SelectorLoop[IO_THREADS];
+        for (int i = 0; i < IO_THREADS; i++) {
+        	loops[i] = new SelectorLoop(i + 1);
+        	loops[i].start();
+        }
+        
+        Selector selector = Selector.open();
+        ServerSocketChannel listener = ServerSocketChannel.open();
         try {
+        	listener.bind(new InetSocketAddress(SERVER_SOCKET_PORT));
+        	listener.configureBlocking(false);
+        	listener.register(selector, SelectionKey.OP_ACCEPT);
+        	
             while (true) {
-                new Indexer(listener.accept(), peerId++).start();
+            	selector.select();
+            	selector.selectedKeys().clear();
+            	
+            	SocketChannel channel;
+            	while ((channel = listener.accept()) != null) {
+            		SelectorLoop loop = loops[peerId % IO_THREADS];
+            		loop.register(new Indexer(channel, peerId++, loop));
+            	}
             }
         } finally {
             listener.close();
+            selector.close();
+            workers.shutdown();
         }
     }
+    
+    /***
+     * An I/O thread which multiplexes the connections of many peers on a single selector.
+     * Sessions and interest changes requested by other threads are queued and applied by this thread.
+     */
+    private static class SelectorLoop extends Thread {
+    	private Selector selector;
+    	private ConcurrentLinkedQueue<Indexer> newSessions = new ConcurrentLinkedQueue<Indexer>();
+    	private ConcurrentLinkedQueue<Indexer> updatedSessions = new ConcurrentLinkedQueue<Indexer>();
+    	
+    	public SelectorLoop(int loopNumber) throws IOException {
+    		super("indexer-io-" + loopNumber);
+    		this.selector = Selector.open();
+    	}
+    	
+    	// Hands over a new peer connection to this I/O thread.
+    	public void register(Indexer indexer) {
+    		newSessions.add(indexer);
+    		selector.wakeup();
+    	}
+    	
+    	// Asks this I/O thread to recompute the interest set of the peer connection.
+    	public void update(Indexer indexer) {
+    		updatedSessions.add(indexer);
+    		selector.wakeup();
+    	}
+    	
+    	public void run() {
+    		while (true) {
+    			try {
+    				selector.select();
+    				
+    				Indexer indexer;
+    				while ((indexer = newSessions.poll()) != null) {
+    					try {
+    						indexer.key = indexer.channel.register(selector, indexer.interestOps(), indexer);
+    					} catch (IOException e) {
+    						indexer.close();
+    					}
+    				}
+    				while ((indexer = updatedSessions.poll()) != null) {
+    					indexer.updateInterest();
+    				}
+    				
+    				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    				while (keys.hasNext()) {
+    					SelectionKey key = keys.next();
+    					keys.remove();
+    					indexer = (Indexer) key.attachment();
+    					try {
+    						if (key.isValid() && key.isWritable()) {
+    							indexer.write();
+    						}
+    						if (key.isValid() && key.isReadable()) {
+    							indexer.read();
+    						}
+    					} catch (IOException e) {
+    						indexer.close();
+    					}
+    				}
+    			} catch (Exception e) {
+    				Indexer.print("Error in I/O thread " + getName() + ": " + e);
+    			}
+    		}
+    	}
+    }
 
-    // A private thread to handle peer's file sharing requests on a particular socket.
-    private static class Indexer extends Thread {
-        private Socket socket;
+    /***
+     * The session of a peer connected to the indexing server.
+     * Requests are read by the I/O thread and processed one at a time on the worker pool;
+     * reading from the peer is paused until the response to its current request has been queued.
+     */
+    private static class Indexer {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SelectorLoop loop;
         private int clientNumber;
+        private String clientIp;
+        private ByteBuffer header = ByteBuffer.allocate(MessageUtility.HEADER_SIZE);
+        private ByteBuffer body = null;
+        private ConcurrentLinkedQueue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+        private volatile boolean busy = false;
+        private volatile boolean disconnecting = false;
+        private volatile boolean replicaChoiceReceived = false;
+        private AtomicBoolean closed = new AtomicBoolean(false);
         
-        public Indexer(Socket socket, int clientNumber) {
-            this.socket = socket;
+        public Indexer(SocketChannel channel, int clientNumber, SelectorLoop loop) throws IOException {
+            this.channel = channel;
             this.clientNumber = clientNumber;
-            print("\nNew connection with Peer # " + clientNumber + " at " + socket.getInetAddress());
-            totalPeers++;
-            print("Total number of peers connected:" + totalPeers);
+            this.loop = loop;
+            this.clientIp = channel.socket().getInetAddress().getHostAddress();
+            
+            channel.configureBlocking(false);
+            // Responses are small request/reply messages, so don't let Nagle's algorithm delay them
+            channel.socket().setTcpNoDelay(true);
+            
+            print("\nNew connection with Peer # " + clientNumber + " at " + channel.socket().getInetAddress());
+            print("Total number of peers connected:" + totalPeers.incrementAndGet());
+            
+            // Send a welcome message to the client
+            Response response = new Response();
+            response.setResponseCode(200);
+            response.setResponseData("Hello, you are Peer #" + clientNumber + ".\nDo you want your node to act as a replication node? This requires your disk space to be large. (Y/N):");
+            send(response);
         }
-
-		/**
-		 * Services this thread's client by first sending the client a welcome
-		 * message then repeatedly reading requests from the peer.
-		 */
-        public void run() {
-            try {
-            	// Initializing output stream using the socket's output stream
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                out.flush();
-                
-                // Initializing input stream using the socket's input stream
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                String clientIp = socket.getInetAddress().getHostAddress();
-
-                // Send a welcome message to the client
-                Response response = new Response();
-                response.setResponseCode(200);
-                response.setResponseData("Hello, you are Peer #" + clientNumber + ".\nDo you want your node to act as a replication node? This requires your disk space to be large. (Y/N):");
-                out.writeObject(response);
-                
-                Request peerRequest = (Request) in.readObject();
-                String requestType = peerRequest.getRequestType();
-                String replicaChoice = (String) peerRequest.getRequestData();
-                
-                if (replicaChoice.equalsIgnoreCase("Y")) {
-                	System.out.println("Replication with this node accepted.");
-                	
-                	if (!replicationNodes.contains(clientIp)) {
-                		replicationNodes.add(clientIp);
-					}
-                	
-                	// Just to remind peer if he is acting as a replication node
-                	if (peerIndexedLocations.containsKey(clientIp)) {
-        				peerIndexedLocations.get(clientIp).add(REPLICA_LOCATION);
-        			} else {
-        				ArrayList<String> paths = new ArrayList<String>();
-        	        	paths.add(REPLICA_LOCATION);
-        	        	peerIndexedLocations.put(clientIp, paths);
+        
+        // Interest set of the connection. Must be called by the I/O thread.
+        private int interestOps() {
+        	int ops = 0;
+        	if (!busy && !disconnecting) {
+        		ops |= SelectionKey.OP_READ;
+        	}
+        	if (!pendingWrites.isEmpty()) {
+        		ops |= SelectionKey.OP_WRITE;
+        	}
+        	return ops;
+        }
+        
+        // Applies the interest set of the connection, closing it once a disconnecting peer has nothing left to receive.
+        private void updateInterest() {
+        	if (key == null || !key.isValid()) {
+        		return;
+        	}
+        	if (disconnecting && pendingWrites.isEmpty()) {
+        		close();
+        	} else {
+        		key.interestOps(interestOps());
+        	}
+        }
+        
+        /***
+         * This method reads the next request frame from the peer without blocking.
+         * Once a complete frame has been read, it is handed to the worker pool.
+         */
+        private void read() throws IOException {
+        	if (body == null) {
+        		if (channel.read(header) < 0) {
+        			close();
+        			return;
+        		}
+        		if (header.hasRemaining()) {
+        			return;
+        		}
+        		header.flip();
+        		int length = header.getInt();
+        		header.clear();
+        		MessageUtility.checkLength(length);
+        		body = ByteBuffer.allocate(length);
+        	}
+        	
+        	if (channel.read(body) < 0) {
+        		close();
+        		return;
+        	}
+        	if (body.hasRemaining()) {
+        		return;
+        	}
+        	
+        	final byte[] data = body.array();
+        	body = null;
+        	busy = true;
+        	key.interestOps(interestOps());
+        	
+        	try {
+        		workers.execute(new Runnable() {
+        			public void run() {
+        				process(data);
         			}
-                	
-                	response = new Response();
-                	response.setResponseCode(200);
-                    response.setResponseData(indexDatabase);
-                    out.writeObject(response);
-				}
-                
-                response = new Response();
-                response.setResponseCode(200);
-                response.setResponseData(peerIndexedLocations.get(clientIp));
-                out.writeObject(response);
-                
-                while(true) {
-                	// Read the request object received from the Peer
-                	peerRequest = (Request) in.readObject();
-                    requestType = peerRequest.getRequestType();
-                    
-                    if (requestType.equalsIgnoreCase("REGISTER")) {
-                    	// If Request Type = REGISTER, then call register(...) method to register the peer's files
-                    	ArrayList<String> indexedLocations = register(clientNumber, clientIp, (ArrayList<String>) peerRequest.getRequestData(), out);
-                    	response = new Response();
-                    	response.setResponseCode(200);
-                        response.setResponseData(indexedLocations);
-                        out.writeObject(response);
-    				} else if (requestType.equalsIgnoreCase("LOOKUP")) {
-    					print("\nLooking up a file.");
-    					String fileName = (String) peerRequest.getRequestData();
-    					
-    					// If Request Type = LOOKUP, then call search(...) method to search for the specified file
-    					print("Request from Peer # " + clientNumber + " (" + clientIp + ") to look for file " + fileName);
-    					HashMap<Integer, String> searchResults = search(fileName);
-    					
-    					// If file found then respond with all the peer locations that contain the file or else send File Not Found message
-    					if (searchResults.size() > 0) {
-    						response = new Response();
-    						response.setResponseCode(200);
-    						response.setResponseData(searchResults);
-    						out.writeObject(response);
-    						print("File Found.");
-    					} else {
-    						response = new Response();
-    						response.setResponseCode(404);
-    						response.setResponseData("File Not Found.");
-    						out.writeObject(response);
-    						print("File Not Found.");
-    					}
-    				} else if(requestType.equalsIgnoreCase("UNREGISTER")) {
-    					// If Request Type = UNREGISTER, then call unregister(...) method to remove all the files of the requested 
-    					// peer from the indexing server's database
-    					response = new Response();
-    					if (unregister(clientIp)) {
-    						response.setResponseCode(200);
-    						response.setResponseData("Your files have been un-registered from the indexing server.");
-    						print("Peer # " + clientNumber + " (" + clientIp + ") has un-registered all its files.");
-						} else {
-							response.setResponseCode(400);
-							response.setResponseData("Error in un-registering files from the indexing server.");
-						}
-						out.writeObject(response);
-    				} else if(requestType.equalsIgnoreCase("GET_BACKUP_NODES")) {
-    					// Sends replication peers/nodes to the peer who is not able to download a file from its original peer.
-    					System.out.println("\n" + clientIp + " requested backup nodes info. Sending backup nodes info.");
-    					response = new Response();
-    					response.setResponseCode(200);
-						response.setResponseData(replicationNodes);
-						out.writeObject(response);
-						System.out.println("Backup nodoes information sent.");
-    				} else if(requestType.equalsIgnoreCase("DISCONNECT")) {
-    					print("\nPeer # " + clientNumber + " disconnecting...");
-    					try {
-    						// Close the connection and then stop the thread.
-    	                    socket.close();
-    	                } catch (IOException e) {
-    	                    print("Couldn't close a socket.");
-    	                }
-    	                Thread.currentThread().interrupt();
-    	                break;
-    				}
-                }
-            } catch(EOFException e) {
-            	Thread.currentThread().interrupt();
-            } catch (Exception e) {
-                print("Error handling Peer # " + clientNumber + ": " + e);
-                Thread.currentThread().interrupt();
-            }
+        		});
+        	} catch (RejectedExecutionException e) {
+        		// All the workers are busy and the queue is full, so ask the peer to try again later
+        		Response response = new Response();
+        		response.setResponseCode(503);
+        		response.setResponseData("Indexing server is busy. Please try again later.");
+        		send(response);
+        		busy = false;
+        		key.interestOps(interestOps());
+        	}
+        }
+        
+        /***
+         * This method writes the queued responses to the peer without blocking.
+         */
+        private void write() throws IOException {
+        	ByteBuffer buffer;
+        	while ((buffer = pendingWrites.peek()) != null) {
+        		channel.write(buffer);
+        		if (buffer.hasRemaining()) {
+        			return;
+        		}
+        		pendingWrites.poll();
+        	}
+        	updateInterest();
+        }
+        
+        /***
+         * This method queues a response to be written to the peer by the I/O thread.
+         * @param response	Response to be sent to the peer
+         */
+        private void send(Response response) {
+        	try {
+        		byte[] data = MessageUtility.encode(response);
+        		ByteBuffer buffer = ByteBuffer.allocate(MessageUtility.HEADER_SIZE + data.length);
+        		buffer.putInt(data.length).put(data);
+        		buffer.flip();
+        		pendingWrites.add(buffer);
+        	} catch (IOException e) {
+        		print("Error handling Peer # " + clientNumber + ": " + e);
+        	}
+        }
+        
+        /***
+         * This method runs on the worker pool. It decodes a request, services it and
+         * queues its responses, then lets the I/O thread resume reading from the peer.
+         * @param data	Serialized request received from the peer
+         */
+        private void process(byte[] data) {
+        	try {
+        		Request peerRequest = (Request) MessageUtility.decode(data, 0, data.length);
+        		if (replicaChoiceReceived) {
+        			handle(peerRequest);
+        		} else {
+        			handleReplicaChoice(peerRequest);
+        			replicaChoiceReceived = true;
+        		}
+        	} catch (Exception e) {
+        		print("Error handling Peer # " + clientNumber + ": " + e);
+        		disconnecting = true;
+        	} finally {
+        		busy = false;
+        		loop.update(this);
+        	}
+        }
+        
+        /***
+         * This method services the first request of the peer which tells whether it acts as a replication node.
+         * @param peerRequest	Request containing the replication choice (Y/N) of the peer
+         */
+        private void handleReplicaChoice(Request peerRequest) {
+        	Response response;
+        	String replicaChoice = (String) peerRequest.getRequestData();
+        	
+        	if (replicaChoice.equalsIgnoreCase("Y")) {
+        		System.out.println("Replication with this node accepted.");
+        		
+        		if (!replicationNodes.contains(clientIp)) {
+        			replicationNodes.add(clientIp);
+        		}
+        		
+        		// Just to remind peer if he is acting as a replication node
+        		if (peerIndexedLocations.containsKey(clientIp)) {
+        			peerIndexedLocations.get(clientIp).add(REPLICA_LOCATION);
+        		} else {
+        			ArrayList<String> paths = new ArrayList<String>();
+        			paths.add(REPLICA_LOCATION);
+        			peerIndexedLocations.put(clientIp, paths);
+        		}
+        		
+        		response = new Response();
+        		response.setResponseCode(200);
+        		response.setResponseData(indexDatabase);
+        		send(response);
+        	}
+        	
+        	response = new Response();
+        	response.setResponseCode(200);
+        	response.setResponseData(peerIndexedLocations.get(clientIp));
+        	send(response);
+        }
+        
+        /***
+         * This method services a REGISTER/LOOKUP/UNREGISTER/GET_BACKUP_NODES/DISCONNECT request of the peer.
+         * @param peerRequest	Request received from the peer
+         */
+        private void handle(Request peerRequest) throws IOException {
+        	Response response;
+        	String requestType = peerRequest.getRequestType();
+        	
+        	if (requestType.equalsIgnoreCase("REGISTER")) {
+        		// If Request Type = REGISTER, then call register(...) method to register the peer's files
+        		ArrayList<String> indexedLocations = register(clientNumber, clientIp, (ArrayList<String>) peerRequest.getRequestData());
+        		response = new Response();
+        		response.setResponseCode(200);
+        		response.setResponseData(indexedLocations);
+        		send(response);
+        	} else if (requestType.equalsIgnoreCase("LOOKUP")) {
+        		print("\nLooking up a file.");
+        		String fileName = (String) peerRequest.getRequestData();
+        		
+        		// If Request Type = LOOKUP, then call search(...) method to search for the specified file
+        		print("Request from Peer # " + clientNumber + " (" + clientIp + ") to look for file " + fileName);
+        		HashMap<Integer, String> searchResults = search(fileName);
+        		
+        		// If file found then respond with all the peer locations that contain the file or else send File Not Found message
+        		if (searchResults.size() > 0) {
+        			response = new Response();
+        			response.setResponseCode(200);
+        			response.setResponseData(searchResults);
+        			send(response);
+        			print("File Found.");
+        		} else {
+        			response = new Response();
+        			response.setResponseCode(404);
+        			response.setResponseData("File Not Found.");
+        			send(response);
+        			print("File Not Found.");
+        		}
+        	} else if (requestType.equalsIgnoreCase("UNREGISTER")) {
+        		// If Request Type = UNREGISTER, then call unregister(...) method to remove all the files of the requested 
+        		// peer from the indexing server's database
+        		response = new Response();
+        		if (unregister(clientIp)) {
+        			response.setResponseCode(200);
+        			response.setResponseData("Your files have been un-registered from the indexing server.");
+        			print("Peer # " + clientNumber + " (" + clientIp + ") has un-registered all its files.");
+        		} else {
+        			response.setResponseCode(400);
+        			response.setResponseData("Error in un-registering files from the indexing server.");
+        		}
+        		send(response);
+        	} else if (requestType.equalsIgnoreCase("GET_BACKUP_NODES")) {
+        		// Sends replication peers/nodes to the peer who is not able to download a file from its original peer.
+        		System.out.println("\n" + clientIp + " requested backup nodes info. Sending backup nodes info.");
+        		response = new Response();
+        		response.setResponseCode(200);
+        		response.setResponseData(replicationNodes);
+        		send(response);
+        		System.out.println("Backup nodoes information sent.");
+        	} else if (requestType.equalsIgnoreCase("DISCONNECT")) {
+        		// Close the connection once the pending responses have been sent.
+        		print("\nPeer # " + clientNumber + " disconnecting...");
+        		disconnecting = true;
+        	}
         }
         
-        // Stop thread once the peer has disconnected or some error has occurred in serving the peer.
-        public void interrupt() {
+        // Close the connection once the peer has disconnected or some error has occurred in serving the peer.
+        private void close() {
+        	if (!closed.compareAndSet(false, true)) {
+        		return;
+        	}
+        	if (key != null) {
+        		key.cancel();
+        	}
+        	try {
+        		channel.close();
+        	} catch (IOException e) {
+        		print("Couldn't close a socket.");
+        	}
+        	
         	print("\nConnection with Peer # " + clientNumber + " closed");
-        	totalPeers--;
-        	print("Total number of peers connected:" + totalPeers);
-        	if (totalPeers == 0) {
+        	int peers = totalPeers.decrementAndGet();
+        	print("Total number of peers connected:" + peers);
+        	if (peers == 0) {
         		print("No more peers connected.");
-			}
+        	}
         }
 
         /***
          * This method prints the message.
          * @param message Message to be printed on the console screen
          */
-        private void print(String message) {
-        	LogUtility log = new LogUtility("server");
-        	log.write(message);
-        	log.close();
+        private static void print(String message) {
+        	serverLog.write(message);
             System.out.println(message);
         }
         
@@ -222,10 +483,11 @@ public class IndexingServer {
          * @param peerAddress	IP Address of the Peer who wants to register its files with the indexing server
          * @param files			List of files to be registered with the indexing server
          */
-        private ArrayList<String> register(int peerId, String peerAddress, ArrayList<String> files, ObjectOutputStream out) throws IOException {
+        private ArrayList<String> register(int peerId, String peerAddress, ArrayList<String> files) throws IOException {
         	print("\nRegistering files from Peer " + peerAddress);
         	
-        	// Appending HHmmss just to make the key unique because a single peer may register multiple times. We aren't using the last appended data.
+        	// Appending HHmmss and the registration number to make the key unique because a single peer may register multiple
+        	// times, even within the same second. We aren't using the last appended data.
         	String time = new SimpleDateFormat("HHmmss").format(Calendar.getInstance().getTime());
         	
         	// Retrieving path and storing them separately
@@ -240,8 +502,20 @@ public class IndexingServer {
         	
         	// Using StringBuffer to avoid creation of multiple string objects while appending
         	StringBuffer sb = new StringBuffer();
-        	sb.append(clientNumber).append("#").append(peerAddress).append("#").append(time);
-            indexDatabase.put(sb.toString(), files);
+        	sb.append(clientNumber).append("#").append(peerAddress).append("#").append(time).append("-").append(registrations.incrementAndGet());
+        	
+        	// Update the index database and the inverted file index together
+        	synchronized (indexLock) {
+        		indexDatabase.put(sb.toString(), files);
+        		for (String file : files) {
+        			ConcurrentHashMap<Integer, String> holders = fileIndex.get(normalize(file));
+        			if (holders == null) {
+        				holders = new ConcurrentHashMap<Integer, String>();
+        				fileIndex.put(normalize(file), holders);
+        			}
+        			holders.put(clientNumber, peerAddress);
+        		}
+        	}
             
             print(files.size() + " files synced with Peer " + clientNumber + " and added to index database");
             
@@ -258,19 +532,22 @@ public class IndexingServer {
          * @return				Returns true if operation is successful else false
          */
         private boolean unregister(String peerAddress) throws IOException {
-        	int oldSize = indexDatabase.size();
+        	int oldSize, newSize;
         	ArrayList<String> deleteFiles = null;
         	
-        	for (Map.Entry e : indexDatabase.entrySet()) {
-				String key = e.getKey().toString();
-				ArrayList<String> value = (ArrayList<String>) e.getValue();
-				
-				if (key.contains(peerAddress)) {
-					deleteFiles = indexDatabase.get(key);
-					indexDatabase.remove(key);
+        	synchronized (indexLock) {
+        		oldSize = indexDatabase.size();
+	        	for (Map.Entry e : indexDatabase.entrySet()) {
+					String key = e.getKey().toString();
+					
+					if (key.contains(peerAddress)) {
+						deleteFiles = indexDatabase.remove(key);
+						int peerId = Integer.parseInt(key.split("#")[0].trim());
+						removeFromFileIndex(peerId, key.split("#")[1].trim(), deleteFiles);
+					}
 				}
-			}
-        	int newSize = indexDatabase.size();
+	        	newSize = indexDatabase.size();
+        	}
         	
         	
         	// Send request to delete the unregistered files from the replication node
@@ -281,9 +558,9 @@ public class IndexingServer {
             		serverRequest.setRequestType("DELETE_DATA");
                 	for (String node : replicationNodes) {
                 		socket = new Socket(node, PEER_SERVER_PORT);
-                		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
         				serverRequest.setRequestData(deleteFiles);
-        				out.writeObject(serverRequest);
+        				MessageUtility.writeMessage(out, serverRequest);
         				out.close();
         				socket.close();
         			}
@@ -308,21 +585,55 @@ public class IndexingServer {
          */
         private HashMap<Integer, String> search(String fileName) {
         	HashMap<Integer, String> searchResults = new HashMap<Integer, String>();
-			for (Map.Entry e : indexDatabase.entrySet()) {
-				String key = e.getKey().toString();
-				ArrayList<String> value = (ArrayList<String>) e.getValue();
-				
-				for (String file : value) {
-					if (file.equalsIgnoreCase(fileName)) {
-						int peerId = Integer.parseInt(key.split("#")[0].trim());
-						String hostAddress = key.split("#")[1].trim();
-						searchResults.put(peerId, hostAddress);
-					}
-				}
-			}
+        	ConcurrentHashMap<Integer, String> holders = fileIndex.get(normalize(fileName));
+        	if (holders != null) {
+        		searchResults.putAll(holders);
+        	}
 			return searchResults;
         }
         
+        /***
+         * This method removes a peer from the inverted file index entries of the given files.
+         * A file stays indexed for the peer if another of its registrations in indexDatabase still lists it.
+         * Must be called while holding indexLock, after the registration of the files is removed from indexDatabase.
+         * @param peerId		ID of the Peer whose files are removed
+         * @param peerAddress	IP Address of the Peer whose files are removed
+         * @param files			List of files to be removed from the inverted file index
+         */
+        private void removeFromFileIndex(int peerId, String peerAddress, ArrayList<String> files) {
+        	// Files of the other registrations of the same peer
+        	String peerKey = peerId + "#" + peerAddress + "#";
+        	HashSet<String> stillRegistered = new HashSet<String>();
+        	for (Map.Entry<String, ArrayList<String>> e : indexDatabase.entrySet()) {
+        		if (e.getKey().startsWith(peerKey)) {
+        			for (String file : e.getValue()) {
+        				stillRegistered.add(normalize(file));
+        			}
+        		}
+        	}
+        	
+        	for (String file : files) {
+        		String name = normalize(file);
+        		if (stillRegistered.contains(name)) {
+        			continue;
+        		}
+        		ConcurrentHashMap<Integer, String> holders = fileIndex.get(name);
+        		if (holders != null && holders.remove(peerId, peerAddress) && holders.isEmpty()) {
+        			fileIndex.remove(name);
+        		}
+        	}
+        }
+        
+        /***
+         * This method returns the key used for a file name in the inverted file index.
+         * Lookups are case insensitive, so all the names are stored in lower case.
+         * @param fileName	Name of the file
+         * @return			Normalized file name
+         */
+        private static String normalize(String fileName) {
+        	return fileName.toLowerCase(Locale.ROOT);
+        }
+        
         /***
          * This method is called whenever a peer registers its files.
          * The Indexing server sends a REPLICATE_DATA to the replication nodes to update its replication data.
@@ -335,9 +646,9 @@ public class IndexingServer {
         		serverRequest.setRequestType("REPLICATE_DATA");
             	for (String node : replicationNodes) {
             		socket = new Socket(node, PEER_SERVER_PORT);
-            		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     				serverRequest.setRequestData(newFiles);
-    				out.writeObject(serverRequest);
+    				MessageUtility.writeMessage(out, serverRequest);
     				out.close();
     				socket.close();
     			}
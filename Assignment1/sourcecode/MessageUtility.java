@@ -0,0 +1,400 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class provides the wire protocol used to exchange Request/Response messages with the
+ * indexing server and the other peers. Every message is sent as a frame: a 4 byte length followed
+ * by a 1 byte version and the message. The length prefix lets the indexing server read messages
+ * with non-blocking channels.
+ *
+ * VERSION (binary) frames are encoded by hand:
+ * 		Request		= REQUEST (1 byte), opcode (1 byte), request data
+ * 		Response	= RESPONSE (1 byte), response code (4 bytes), response data
+ * where the data is a 1 byte type followed by a string, a list of strings, the search results,
+ * the index database or a file chunk. Strings are sent as a 4 byte length followed by their UTF-8 bytes.
+ *
+ * SERIALIZED frames contain the Request/Response written with Java serialization. They are sent
+ * when the program is started with -Dprotocol=java, or when the data has no binary encoding.
+ * Both kinds of frames are always accepted when reading.
+ */
+public class MessageUtility {
+
+	public static final int HEADER_SIZE = 4;
+	public static final int MAX_MESSAGE_SIZE = 1024 * 1024 * 128; // 128 MegaBytes
+	public static final byte SERIALIZED = 0;
+	public static final byte VERSION = 1;
+	public static final boolean JAVA_SERIALIZATION = "java".equalsIgnoreCase(System.getProperty("protocol"));
+
+	// Request types indexed by their opcode
+	private static final String[] REQUEST_TYPES = { null, "REPLICATION", "REGISTER", "LOOKUP", "UNREGISTER", "GET_BACKUP_NODES",
+			"DISCONNECT", "DOWNLOAD", "FILE_INFO", "DOWNLOAD_CHUNK", "REPLICATE_DATA", "DELETE_DATA" };
+	private static final HashMap<String, Byte> OPCODES = new HashMap<String, Byte>();
+
+	// Kinds of messages
+	private static final byte REQUEST = 1;
+	private static final byte RESPONSE = 2;
+
+	// Types of the data of a Request/Response
+	private static final byte NO_DATA = 0;
+	private static final byte STRING = 1;
+	private static final byte STRING_LIST = 2;
+	private static final byte SEARCH_RESULTS = 3;
+	private static final byte INDEX_DATABASE = 4;
+	private static final byte FILE_CHUNK = 5;
+
+	// Buffers reused by each thread to encode frames and decode strings
+	private static final ThreadLocal<FrameBuffer> frameBuffers = new ThreadLocal<FrameBuffer>() {
+		protected FrameBuffer initialValue() {
+			return new FrameBuffer();
+		}
+	};
+	private static final ThreadLocal<byte[][]> stringBuffers = new ThreadLocal<byte[][]>() {
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[1024] };
+		}
+	};
+
+	static {
+		for (byte i = 1; i < REQUEST_TYPES.length; i++) {
+			OPCODES.put(REQUEST_TYPES[i], i);
+		}
+	}
+
+	/***
+	 * This method encodes the given Request/Response into a byte array.
+	 * @param message	Request/Response to be encoded
+	 * @return			Encoded bytes of the message, without the length
+	 */
+	public static byte[] encode(Object message) throws IOException {
+		FrameBuffer frame = frameBuffers.get();
+		encode(frame, message);
+		return frame.toByteArray();
+	}
+
+	/***
+	 * This method decodes a Request/Response from the given bytes.
+	 * @param data		Array containing the encoded message
+	 * @param offset	Position of the first byte of the message
+	 * @param length	Number of bytes of the message
+	 * @return			Decoded Request/Response
+	 */
+	public static Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+		return decode(new DataInputStream(new ByteArrayInputStream(data, offset, length)), length);
+	}
+
+	/***
+	 * This method writes the given Request/Response as a single frame and flushes the stream.
+	 * @param out		Output stream of the socket
+	 * @param message	Request/Response object to be sent
+	 */
+	public static void writeMessage(DataOutputStream out, Object message) throws IOException {
+		FrameBuffer frame = frameBuffers.get();
+		encode(frame, message);
+		frame.writeTo(out);
+	}
+
+	/***
+	 * This method reads a single frame and returns the Request/Response it contains.
+	 * @param in	Input stream of the socket
+	 * @return		Request/Response object received
+	 */
+	public static Object readMessage(DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		checkLength(length);
+		return decode(in, length);
+	}
+
+	/***
+	 * This method validates the length read from a frame header.
+	 * @param length	Length of the frame body
+	 */
+	public static void checkLength(int length) throws IOException {
+		if (length < 1 || length > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid message length: " + length);
+		}
+	}
+
+	// Encodes the message into the frame, falling back to Java serialization if the message has no binary encoding
+	private static void encode(FrameBuffer frame, Object message) throws IOException {
+		frame.reset();
+		if (!JAVA_SERIALIZATION) {
+			DataOutputStream body = frame.data;
+			boolean encoded = false;
+			if (message instanceof Request) {
+				Request request = (Request) message;
+				Byte opcode = OPCODES.get(request.getRequestType());
+				if (opcode != null) {
+					body.writeByte(VERSION);
+					body.writeByte(REQUEST);
+					body.writeByte(opcode);
+					encoded = writeData(body, request.getRequestData());
+				}
+			} else if (message instanceof Response) {
+				Response response = (Response) message;
+				body.writeByte(VERSION);
+				body.writeByte(RESPONSE);
+				body.writeInt(response.getResponseCode());
+				encoded = writeData(body, response.getResponseData());
+			}
+			if (encoded) {
+				return;
+			}
+			frame.reset();
+		}
+
+		frame.data.writeByte(SERIALIZED);
+		ObjectOutputStream objectOut = new ObjectOutputStream(frame);
+		objectOut.writeObject(message);
+		objectOut.flush();
+	}
+
+	// Decodes a message of the given length from the stream
+	private static Object decode(DataInputStream in, int length) throws IOException, ClassNotFoundException {
+		byte version = in.readByte();
+		if (version == SERIALIZED) {
+			byte[] data = new byte[length - 1];
+			in.readFully(data);
+			ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(data));
+			return objectIn.readObject();
+		} else if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+
+		byte kind = in.readByte();
+		if (kind == REQUEST) {
+			int opcode = in.readUnsignedByte();
+			if (opcode == 0 || opcode >= REQUEST_TYPES.length) {
+				throw new StreamCorruptedException("Unknown opcode: " + opcode);
+			}
+			Request request = new Request();
+			request.setRequestType(REQUEST_TYPES[opcode]);
+			request.setRequestData(readData(in));
+			return request;
+		} else if (kind == RESPONSE) {
+			Response response = new Response();
+			response.setResponseCode(in.readInt());
+			response.setResponseData(readData(in));
+			return response;
+		}
+		throw new StreamCorruptedException("Unknown message kind: " + kind);
+	}
+
+	/***
+	 * This method writes the data of a Request/Response preceded by its type.
+	 * @param out	Stream to write to
+	 * @param data	Data to be written
+	 * @return		Returns false if the data has no binary encoding
+	 */
+	private static boolean writeData(DataOutputStream out, Object data) throws IOException {
+		if (data == null) {
+			out.writeByte(NO_DATA);
+		} else if (data instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) data);
+		} else if (data instanceof List) {
+			out.writeByte(STRING_LIST);
+			return writeList(out, (List<?>) data);
+		} else if (data instanceof HashMap) {
+			out.writeByte(SEARCH_RESULTS);
+			HashMap<?, ?> results = (HashMap<?, ?>) data;
+			out.writeInt(results.size());
+			for (Map.Entry<?, ?> entry : results.entrySet()) {
+				if (!(entry.getKey() instanceof Integer && entry.getValue() instanceof String))
+					return false;
+				out.writeInt((Integer) entry.getKey());
+				writeString(out, (String) entry.getValue());
+			}
+		} else if (data instanceof ConcurrentHashMap) {
+			out.writeByte(INDEX_DATABASE);
+			// Entries are collected first because the index may be changed while it is being written
+			Object[] entries = ((ConcurrentHashMap<?, ?>) data).entrySet().toArray();
+			out.writeInt(entries.length);
+			for (Object entry : entries) {
+				Map.Entry<?, ?> mapEntry = (Map.Entry<?, ?>) entry;
+				if (!(mapEntry.getKey() instanceof String && mapEntry.getValue() instanceof List))
+					return false;
+				writeString(out, (String) mapEntry.getKey());
+				if (!writeList(out, (List<?>) mapEntry.getValue()))
+					return false;
+			}
+		} else if (data instanceof FileChunk) {
+			FileChunk chunk = (FileChunk) data;
+			out.writeByte(FILE_CHUNK);
+			writeString(out, chunk.getFileName());
+			out.writeLong(chunk.getOffset());
+			out.writeLong(chunk.getLength());
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	// Reads the data of a Request/Response written by writeData(...)
+	private static Object readData(DataInputStream in) throws IOException {
+		byte dataType = in.readByte();
+		if (dataType == NO_DATA) {
+			return null;
+		} else if (dataType == STRING) {
+			return readString(in);
+		} else if (dataType == STRING_LIST) {
+			return readList(in);
+		} else if (dataType == SEARCH_RESULTS) {
+			int size = in.readInt();
+			HashMap<Integer, String> results = new HashMap<Integer, String>(Math.max(16, size * 2));
+			for (int i = 0; i < size; i++) {
+				int peerId = in.readInt();
+				results.put(peerId, readString(in));
+			}
+			return results;
+		} else if (dataType == INDEX_DATABASE) {
+			int size = in.readInt();
+			ConcurrentHashMap<String, ArrayList<String>> database = new ConcurrentHashMap<String, ArrayList<String>>(Math.max(16, size * 2));
+			for (int i = 0; i < size; i++) {
+				String key = readString(in);
+				database.put(key, readList(in));
+			}
+			return database;
+		} else if (dataType == FILE_CHUNK) {
+			String fileName = readString(in);
+			long offset = in.readLong();
+			return new FileChunk(fileName, offset, in.readLong());
+		}
+		throw new StreamCorruptedException("Unknown data type: " + dataType);
+	}
+
+	// Writes a list of strings. toArray() takes a consistent copy of synchronized lists.
+	private static boolean writeList(DataOutputStream out, List<?> list) throws IOException {
+		Object[] values = list.toArray();
+		out.writeInt(values.length);
+		for (Object value : values) {
+			if (value != null && !(value instanceof String))
+				return false;
+			writeString(out, (String) value);
+		}
+		return true;
+	}
+
+	// Reads a list of strings
+	private static ArrayList<String> readList(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0 || size > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid list length: " + size);
+		}
+		ArrayList<String> list = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(readString(in));
+		}
+		return list;
+	}
+
+	/***
+	 * This method writes a string as its UTF-8 length followed by its UTF-8 bytes.
+	 * The bytes are written one by one so that no byte array is created for the string.
+	 * @param out		Stream to write to
+	 * @param value		String to be written or null
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		int length = value.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				utfLength++;
+			} else if (c < 0x800) {
+				utfLength += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				utfLength += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				utfLength++;
+			} else {
+				utfLength += 3;
+			}
+		}
+		out.writeInt(utfLength);
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				out.write(c);
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				out.write(0xF0 | (codePoint >> 18));
+				out.write(0x80 | ((codePoint >> 12) & 0x3F));
+				out.write(0x80 | ((codePoint >> 6) & 0x3F));
+				out.write(0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates are replaced with '?' like String.getBytes(...) does
+				out.write('?');
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/***
+	 * This method reads a string written by writeString(...).
+	 * @param in	Stream to read from
+	 * @return		String read or null
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		} else if (length > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid string length: " + length);
+		}
+
+		byte[][] holder = stringBuffers.get();
+		if (holder[0].length < length) {
+			holder[0] = new byte[Math.max(length, holder[0].length * 2)];
+		}
+		in.readFully(holder[0], 0, length);
+		return new String(holder[0], 0, length, StandardCharsets.UTF_8);
+	}
+
+	/***
+	 * A growable buffer in which a frame is encoded before its length is known.
+	 * Each thread reuses its own buffer, so encoding a frame doesn't create any buffer.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+		private DataOutputStream data = new DataOutputStream(this);
+
+		public FrameBuffer() {
+			super(1024);
+		}
+
+		// Writes the length of the frame followed by the frame and flushes the stream
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(count);
+			out.write(buf, 0, count);
+			out.flush();
+			if (buf.length > MAX_RETAINED_SIZE) {
+				buf = new byte[1024];
+			}
+		}
+	}
+}
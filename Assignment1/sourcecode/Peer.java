@@ -1,14 +1,17 @@
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -34,10 +37,12 @@ public class Peer {
 		 * thread to do the servicing and immediately returns to listening.
 		 */
 		System.out.println("********** PEER SERVER STARTED **********");
-		ServerSocket listener = new ServerSocket(PEER_SERVER_PORT);
+		// A server socket channel is used so that every accepted socket has a channel to send files with transferTo(...)
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(PEER_SERVER_PORT));
         try {
             while (true) {
-                new PeerServer(listener.accept()).start();
+                new PeerServer(listener.accept().socket()).start();
             }
         } finally {
             listener.close();
@@ -55,16 +60,16 @@ public class Peer {
         
         // Services this thread's peer client by sending the requested file.
 		public void run() {
-			OutputStream out = null;
-			ObjectInputStream in = null;
-			BufferedInputStream fileInput = null;
+			DataInputStream in = null;
+			FileChannel fileInput = null;
 			
 			try {
 				String clientIp = socket.getInetAddress().getHostAddress();
 				log.write("Serving download request for " + clientIp);
 				
-				in = new ObjectInputStream(socket.getInputStream());
-				Request request = (Request) in.readObject();
+				// The stream is not buffered so that no bytes after the request are consumed
+				in = new DataInputStream(socket.getInputStream());
+				Request request = (Request) MessageUtility.readMessage(in);
 				
 				if (request.getRequestType().equalsIgnoreCase("DOWNLOAD")) {
 					String fileName = (String) request.getRequestData();
@@ -72,13 +77,47 @@ public class Peer {
 					log.write("Uploding/Sending file " + fileName);
 					
 					File file = new File(fileLocation + fileName);
-					byte[] mybytearray = new byte[(int) file.length()];
-					fileInput = new BufferedInputStream(new FileInputStream(file));
-					fileInput.read(mybytearray, 0, mybytearray.length);
-					out = socket.getOutputStream();
-					out.write(mybytearray, 0, mybytearray.length);
-					out.flush();
-					log.write("File sent successfully.");
+					SocketChannel out = socket.getChannel();
+					if (!file.isFile()) {
+						// Length -1 tells the peer that the file is not available on this node
+						FileUtility.writeFully(out, FileUtility.fileHeader(-1));
+						log.write("File " + fileName + " not found.");
+					} else {
+						// Send the length of the file followed by its contents. transferTo(...) lets the
+						// kernel copy the file straight to the socket without reading it into the heap.
+						fileInput = new FileInputStream(file).getChannel();
+						long fileSize = fileInput.size();
+						FileUtility.writeFully(out, FileUtility.fileHeader(fileSize));
+						
+						long position = 0;
+						while (position < fileSize) {
+							position += fileInput.transferTo(position, fileSize - position, out);
+						}
+						log.write("File sent successfully.");
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("FILE_INFO")) {
+					// Send the length of the file and the checksums of its chunks so that the peer can download the chunks from many peers
+					String fileName = (String) request.getRequestData();
+					File file = new File(FileUtility.getFileLocation(fileName, myIndexedLoc) + fileName);
+					FileUtility.writeFully(socket.getChannel(), FileUtility.fileInfo(file));
+				} else if (request.getRequestType().equalsIgnoreCase("DOWNLOAD_CHUNK")) {
+					FileChunk chunk = (FileChunk) request.getRequestData();
+					File file = new File(FileUtility.getFileLocation(chunk.getFileName(), myIndexedLoc) + chunk.getFileName());
+					SocketChannel out = socket.getChannel();
+					
+					if (!file.isFile() || chunk.getOffset() < 0 || chunk.getLength() < 0 || chunk.getOffset() + chunk.getLength() > file.length()) {
+						FileUtility.writeFully(out, FileUtility.fileHeader(-1));
+					} else {
+						// Send the length of the chunk followed by the requested range of the file
+						fileInput = new FileInputStream(file).getChannel();
+						FileUtility.writeFully(out, FileUtility.fileHeader(chunk.getLength()));
+						
+						long position = chunk.getOffset();
+						long end = chunk.getOffset() + chunk.getLength();
+						while (position < end) {
+							position += fileInput.transferTo(position, end - position, out);
+						}
+					}
 				} else if (request.getRequestType().equalsIgnoreCase("REPLICATE_DATA")) {
 					ConcurrentHashMap<String, ArrayList<String>> data = (ConcurrentHashMap<String, ArrayList<String>>) request.getRequestData();
 					new ReplicationService(data).start();
@@ -98,9 +137,6 @@ public class Peer {
 			} finally {
 				try {
 					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-					
 					if (in != null)
 						in.close();
 					
@@ -128,9 +164,9 @@ public class Peer {
 		// Thread implementation for Peer to serve as CLient
 		public void run() {
 			Socket socket = null;
-			ObjectInputStream in = null;
+			DataInputStream in = null;
 			BufferedReader input = null;
-			ObjectOutputStream out = null;
+			DataOutputStream out = null;
 			Request peerRequest = null;
 			Response serverResponse	= null;
 			
@@ -150,14 +186,14 @@ public class Peer {
 		        socket = new Socket(serverAddress, 10000);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        out.flush();
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 		        // Read the initial welcome message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = (Response) MessageUtility.readMessage(in);
 		        System.out.print((String) serverResponse.getResponseData());
 		        String replicaChoice = input.readLine();
 		        
@@ -165,18 +201,18 @@ public class Peer {
 				peerRequest = new Request();
 				peerRequest.setRequestType("REPLICATION");
 				peerRequest.setRequestData(replicaChoice);
-				out.writeObject(peerRequest);
+				MessageUtility.writeMessage(out, peerRequest);
 				
 				if (replicaChoice.equalsIgnoreCase("Y")) {
 					// Read the Replication response from the server
 					myIndexedLoc.add(REPLICATION_PATH);
-					serverResponse = (Response) in.readObject();
+					serverResponse = (Response) MessageUtility.readMessage(in);
 					ConcurrentHashMap<String, ArrayList<String>> data = (ConcurrentHashMap<String, ArrayList<String>>) serverResponse.getResponseData();
 					new ReplicationService(data).start();
 				}
 				
 				// Previously indexed locations if any
-				serverResponse = (Response) in.readObject();
+				serverResponse = (Response) MessageUtility.readMessage(in);
 				ArrayList<String> indexedLocations =  (ArrayList<String>) serverResponse.getResponseData();
 				if (indexedLocations != null) {
 					for (String x : indexedLocations) {
@@ -240,10 +276,10 @@ public class Peer {
 							peerRequest = new Request();
 							peerRequest.setRequestType("REGISTER");
 							peerRequest.setRequestData(files);
-							out.writeObject(peerRequest);
+							MessageUtility.writeMessage(out, peerRequest);
 							
 							// Retrieve response from the server
-							serverResponse = (Response) in.readObject();
+							serverResponse = (Response) MessageUtility.readMessage(in);
 							endTime = System.currentTimeMillis();
 							time = (double) Math.round(endTime - startTime) / 1000;
 							
@@ -275,9 +311,9 @@ public class Peer {
 						peerRequest = new Request();
 						peerRequest.setRequestType("LOOKUP");
 						peerRequest.setRequestData(fileName);
-						out.writeObject(peerRequest);
+						MessageUtility.writeMessage(out, peerRequest);
 						
-						serverResponse = (Response) in.readObject();
+						serverResponse = (Response) MessageUtility.readMessage(in);
 						endTime = System.currentTimeMillis();
 						time = (double) Math.round(endTime - startTime) / 1000;
 						
@@ -314,10 +350,10 @@ public class Peer {
 								if (download.equalsIgnoreCase("D")) {
 									System.out.println("The file will be downloaded in the 'downloads' folder in the current location.");
 									// Obtain the searched file from the specified Peer
-									obtain(hostAddress, 20000, fileName, out, in);
+									obtain(hostAddress, lookupResults, 20000, fileName, out, in);
 								} else if (download.equalsIgnoreCase("P")) {
 									// Obtain the searched file from the specified Peer and print its contents
-									obtain(hostAddress, 20000, fileName, out, in);
+									obtain(hostAddress, lookupResults, 20000, fileName, out, in);
 									FileUtility.printFile(fileName);
 								}
 							} else {
@@ -333,7 +369,7 @@ public class Peer {
 										hostAddress = entry.getValue();
 									}
 									// Obtain the searched file from the specified Peer
-									obtain(hostAddress, 20000, fileName, out, in);
+									obtain(hostAddress, lookupResults, 20000, fileName, out, in);
 								}	
 							}					
 						} else {
@@ -354,11 +390,11 @@ public class Peer {
 							peerRequest = new Request();
 							peerRequest.setRequestType("UNREGISTER");
 							peerRequest.setRequestData("Un-register all files from index server.");
-							out.writeObject(peerRequest);
+							MessageUtility.writeMessage(out, peerRequest);
 							endTime = System.currentTimeMillis();
 							time = (double) Math.round(endTime - startTime) / 1000;
 							
-							serverResponse = (Response) in.readObject();
+							serverResponse = (Response) MessageUtility.readMessage(in);
 							System.out.println((String) serverResponse.getResponseData());
 							System.out.println("Time taken:" + time + " seconds.");
 						}
@@ -375,7 +411,7 @@ public class Peer {
 						peerRequest = new Request();
 						peerRequest.setRequestType("DISCONNECT");
 						peerRequest.setRequestData("Disconnecting from server.");
-						out.writeObject(peerRequest);
+						MessageUtility.writeMessage(out, peerRequest);
 						System.out.println("Thanks for using this system.");
 						System.exit(0);
 						break;
@@ -407,46 +443,54 @@ public class Peer {
 		}
 		
 		/***
-		 * This method is used to download the file from the requested Peer.
-		 * @param hostAddress 	IP Address of the peer used to download the file
+		 * This method is used to download the file from the peers which have it.
+		 * The file is downloaded in chunks from the selected peer, the other peers having the file
+		 * and the replication nodes in parallel. If the download is interrupted, calling this method
+		 * again resumes it from the chunks already downloaded.
+		 * @param hostAddress 	IP Address of the peer selected to download the file
+		 * @param lookupResults	All the peers which have the file
 		 * @param port			Port of the per used to download the file
 		 * @param fileName		Name of the file to be downloaded
 		 */
-		private void obtain(String hostAddress, int port, String fileName, ObjectOutputStream out, ObjectInputStream in) {
+		private void obtain(String hostAddress, HashMap<Integer, String> lookupResults, int port, String fileName, DataOutputStream out, DataInputStream in) {
 			boolean isDownloaded = false;
 			long startTime = System.currentTimeMillis();
 			
-			if (!FileUtility.downloadFile(hostAddress, port, fileName)) {
-				try {
-					Request peerRequest = new Request();
-					peerRequest.setRequestType("GET_BACKUP_NODES");
-					peerRequest.setRequestData("Send list of backup nodes.");
-					out.writeObject(peerRequest);
-				
-					Response serverResponse = (Response) in.readObject();
-					List<String> backupNodes = (List<String>) serverResponse.getResponseData();
-					
-					//System.out.println(backupNodes);
-					for (String node : backupNodes) {
-						if(FileUtility.downloadFile(node, port, fileName)) {
-							isDownloaded = true;
-							break;
-						}
+			// The selected peer goes first as it provides the chunk checksums
+			List<String> sources = new ArrayList<String>();
+			sources.add(hostAddress);
+			for (String host : lookupResults.values()) {
+				if (!sources.contains(host)) {
+					sources.add(host);
+				}
+			}
+			
+			try {
+				Request peerRequest = new Request();
+				peerRequest.setRequestType("GET_BACKUP_NODES");
+				peerRequest.setRequestData("Send list of backup nodes.");
+				MessageUtility.writeMessage(out, peerRequest);
+			
+				Response serverResponse = (Response) MessageUtility.readMessage(in);
+				List<String> backupNodes = (List<String>) serverResponse.getResponseData();
+				for (String node : backupNodes) {
+					if (!sources.contains(node)) {
+						sources.add(node);
 					}
-				} catch (Exception e) {
-					e.printStackTrace();
 				}
-			} else {
-				isDownloaded = true;
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
 			
+			isDownloaded = FileUtility.downloadFile(sources, port, fileName);
+			
 			long endTime = System.currentTimeMillis();
 			double time = (double) Math.round(endTime - startTime) / 1000;
 
 			if (isDownloaded) {
 				System.out.println("File downloaded successfully in " + time + " seconds.");
 			} else {
-				System.out.println("Unable to connect to the host. Unable to  download file. Try using a different peer if available.");
+				System.out.println("Unable to download all the chunks of the file. Download it again to resume, or try later when more peers are available.");
 			}
 		}
 	}
@@ -1,9 +1,11 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.List;
 
@@ -80,8 +82,8 @@ public class Test {
 		
 		public void run() {
 			Socket socket = null;
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
+			DataInputStream in = null;
+			DataOutputStream out = null;
 			Request peerRequest = null;
 			Response serverResponse	= null;
 			long startTime, endTime, totalTime = 0;
@@ -90,9 +92,9 @@ public class Test {
 			try {
 				socket = new Socket(serverAddress, 10000);
 				BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
-		        out = new ObjectOutputStream(socket.getOutputStream());
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        out.flush();
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 		        
 				for (int i = 0; i < TEST_COUNT; i++) {
 					startTime = System.currentTimeMillis();
@@ -100,9 +102,9 @@ public class Test {
 					peerRequest = new Request();
 					peerRequest.setRequestType("LOOKUP");
 					peerRequest.setRequestData(fileName);
-					out.writeObject(peerRequest);
+					MessageUtility.writeMessage(out, peerRequest);
 					
-					serverResponse = (Response) in.readObject();
+					serverResponse = (Response) MessageUtility.readMessage(in);
 					endTime = System.currentTimeMillis();
 					totalTime += (endTime - startTime);
 				}
@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * This class repairs the replicas of the hashTable of this peer which missed some changes, for example the changes dropped
+ * while a replication queue was full or the replicas lost when a replication node restarted.
+ *
+ * Every ANTI_ENTROPY_INTERVAL seconds this peer compares the Merkle tree of its versions with the Merkle tree of its replicas
+ * on each replication node (AE_HASHES), level by level from the root, so only the ranges of KEYS which differ are
+ * looked at. Then it gets the versions of the replicas in these ranges (AE_KEYS) and replicates again the KEYS whose replica
+ * is older or missing. A replica of a KEY which this peer doesn't know is deleted if it is older than the tombstones, as
+ * the delete of the KEY was forgotten. A replica newer than this peer is left alone: it is a hint which is not delivered yet.
+ */
+public class AntiEntropyService extends Thread {
+	public static final int MAX_NODES_PER_REQUEST = 1024; // Hashes per AE_HASHES request
+	public static final int MAX_LEAVES_PER_REQUEST = 64; // Ranges of KEYS per AE_KEYS request
+
+	private static AntiEntropyService service = null;
+	private static ConnectionPool connectionPool = new ConnectionPool(DistributedHashTable.getPeerServerPort());
+
+	private long interval = 0;
+
+	// Metrics
+	private volatile long rounds = 0;
+	private volatile long rangesRepaired = 0;
+	private volatile long keysRepaired = 0;
+	private volatile long keysDeleted = 0;
+	private volatile long failures = 0;
+	private volatile long lastRound = 0;
+
+	private AntiEntropyService(long interval) {
+		super("AntiEntropyService");
+		this.interval = interval;
+		setDaemon(true);
+	}
+
+	/***
+	 * This method starts comparing the replicas of this peer with its hashTable.
+	 * @param interval	Seconds between two comparisons, 0 to never compare them.
+	 */
+	public static synchronized void start(long interval) {
+		if (interval <= 0 || service != null) {
+			return;
+		}
+		service = new AntiEntropyService(interval * 1000);
+		service.start();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			for (String nodeAddress : DistributedHashTable.getReplicationNodes()) {
+				if (nodeAddress.equalsIgnoreCase(DistributedHashTable.getLocalAddress())) {
+					continue;
+				}
+				try {
+					repair(nodeAddress);
+				} catch (Exception e) {
+					// The replication node is down, it is compared again in the next round
+					failures++;
+				}
+			}
+			rounds++;
+			lastRound = System.currentTimeMillis();
+		}
+	}
+
+	/***
+	 * This method compares the replicas of this peer on a replication node with its hashTable and repairs them.
+	 * @param nodeAddress	IP address of the replication node
+	 * @return				Returns the number of KEYS replicated again or deleted.
+	 */
+	public int repair(String nodeAddress) throws Exception {
+		BitSet leaves = findDifferences(nodeAddress);
+		if (leaves.isEmpty()) {
+			return 0;
+		}
+		rangesRepaired += leaves.cardinality();
+
+		// KEYS of this peer in the ranges which differ
+		HashMap<Integer, ArrayList<String>> localKeys = new HashMap<Integer, ArrayList<String>>();
+		for (Map.Entry<String, Long> entry : DistributedHashTable.getVersions()) {
+			String key = entry.getKey();
+			int leaf = MerkleTree.leafOf(key);
+			if (leaves.get(leaf)) {
+				ArrayList<String> keys = localKeys.get(leaf);
+				if (keys == null) {
+					keys = new ArrayList<String>();
+					localKeys.put(leaf, keys);
+				}
+				keys.add(key);
+			}
+		}
+
+		int repaired = 0;
+		int[] batch = new int[MAX_LEAVES_PER_REQUEST];
+		int size = 0;
+		for (int leaf = leaves.nextSetBit(0); leaf >= 0; leaf = leaves.nextSetBit(leaf + 1)) {
+			batch[size++] = leaf;
+			if (size == batch.length) {
+				repaired += repair(nodeAddress, batch, size, localKeys);
+				size = 0;
+			}
+		}
+		if (size > 0) {
+			repaired += repair(nodeAddress, batch, size, localKeys);
+		}
+		return repaired;
+	}
+
+	// Walks down the two Merkle trees from the root and returns the leaves which differ
+	private BitSet findDifferences(String nodeAddress) throws Exception {
+		long[] localHashes = DistributedHashTable.getMerkleTree().getHashes();
+		BitSet leaves = new BitSet(2 * MerkleTree.LEAVES);
+
+		ArrayList<Integer> level = new ArrayList<Integer>();
+		level.add(1);
+		while (!level.isEmpty()) {
+			ArrayList<Integer> nextLevel = new ArrayList<Integer>();
+			for (int start = 0; start < level.size(); start += MAX_NODES_PER_REQUEST) {
+				int end = Math.min(level.size(), start + MAX_NODES_PER_REQUEST);
+				long[] nodes = new long[end - start];
+				for (int i = start; i < end; i++) {
+					nodes[i - start] = level.get(i);
+				}
+				long[] remoteHashes = getHashes(nodeAddress, nodes);
+
+				for (int i = 0; i < nodes.length; i++) {
+					int node = (int) nodes[i];
+					if (localHashes[node] == remoteHashes[i]) {
+						continue;
+					}
+					if (node >= MerkleTree.LEAVES) {
+						leaves.set(node);
+					} else {
+						nextLevel.add(2 * node);
+						nextLevel.add(2 * node + 1);
+					}
+				}
+			}
+			level = nextLevel;
+		}
+		return leaves;
+	}
+
+	// Gets the hashes of some nodes of the Merkle tree of the replicas of this peer
+	private long[] getHashes(String nodeAddress, long[] nodes) throws Exception {
+		Request request = new Request();
+		request.setRequestType("AE_HASHES");
+		request.setVersions(nodes);
+
+		Response response = connectionPool.send(nodeAddress, request);
+		if (response.getResponseCode() != 200 || response.getVersions() == null || response.getVersions().length != nodes.length) {
+			throw new Exception("Merkle tree comparison with " + nodeAddress + " failed with code " + response.getResponseCode());
+		}
+		return response.getVersions();
+	}
+
+	// Compares the versions of the KEYS of some ranges and replicates again the KEYS which differ
+	private int repair(String nodeAddress, int[] batch, int size, HashMap<Integer, ArrayList<String>> localKeys) throws Exception {
+		long[] leaves = new long[size];
+		for (int i = 0; i < size; i++) {
+			leaves[i] = batch[i];
+		}
+
+		Request request = new Request();
+		request.setRequestType("AE_KEYS");
+		request.setVersions(leaves);
+
+		Response response = connectionPool.send(nodeAddress, request);
+		if (response.getResponseCode() != 200) {
+			throw new Exception("Merkle tree repair with " + nodeAddress + " failed with code " + response.getResponseCode());
+		}
+		HashMap<String, Long> remoteVersions = new HashMap<String, Long>();
+		ArrayList<String> remoteKeys = response.getValues();
+		for (int i = 0; remoteKeys != null && i < remoteKeys.size(); i++) {
+			remoteVersions.put(remoteKeys.get(i), response.getVersions()[i]);
+		}
+
+		ArrayList<String> keys = new ArrayList<String>();
+		ArrayList<String> values = new ArrayList<String>();
+		ArrayList<Long> versions = new ArrayList<Long>();
+		long[] version = new long[1];
+
+		// Replicas which are older or missing
+		for (int i = 0; i < size; i++) {
+			ArrayList<String> leafKeys = localKeys.get(batch[i]);
+			if (leafKeys == null) {
+				continue;
+			}
+			for (String key : leafKeys) {
+				String value = DistributedHashTable.getFromHashTable(key, version);
+				Long remoteVersion = remoteVersions.remove(key);
+				if (version[0] != 0 && (remoteVersion == null || remoteVersion < version[0])) {
+					keys.add(key);
+					values.add(value);
+					versions.add(version[0]);
+				}
+			}
+		}
+		int replicated = keys.size();
+
+		// Replicas of KEYS which this peer forgot, unless they may be a hint or a write which is not applied here yet
+		long oldestVersion = (System.currentTimeMillis() - DistributedHashTable.TOMBSTONE_TIMEOUT) * 1000;
+		for (Map.Entry<String, Long> entry : remoteVersions.entrySet()) {
+			if (entry.getValue() < oldestVersion && DistributedHashTable.getVersion(entry.getKey()) == 0
+					&& DistributedHashTable.getFromHashTable(entry.getKey()) == null) {
+				keys.add(entry.getKey());
+				values.add(null);
+				versions.add(0L);
+			}
+		}
+
+		if (!keys.isEmpty()) {
+			long[] changeVersions = new long[versions.size()];
+			for (int i = 0; i < changeVersions.length; i++) {
+				changeVersions[i] = versions.get(i);
+			}
+			ReplicationService.replicateTo(nodeAddress, keys, values, changeVersions);
+		}
+		keysRepaired += replicated;
+		keysDeleted += keys.size() - replicated;
+		return keys.size();
+	}
+
+	/***
+	 * This method returns the anti-entropy status: the number of comparisons and of ranges and KEYS repaired.
+	 * @return	Returns one line, or an empty string if the replicas are not compared.
+	 */
+	public static String getStatus() {
+		AntiEntropyService current = service;
+		if (current == null) {
+			return "";
+		}
+		return String.format("Anti-entropy: %d rounds, %d ranges repaired, %d keys replicated again, %d replicas deleted, %d failures, last round %s%n",
+				current.rounds, current.rangesRepaired, current.keysRepaired, current.keysDeleted, current.failures,
+				current.lastRound == 0 ? "never" : (System.currentTimeMillis() - current.lastRound) + " ms ago");
+	}
+}
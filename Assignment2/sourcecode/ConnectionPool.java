@@ -0,0 +1,397 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * This class keeps long-lived connections to the peers of the Distributed Hash Table so that every
+ * operation doesn't pay for a TCP handshake. Idle connections are kept per node address, checked
+ * before they are reused if they have been idle for a while and closed by a background thread once
+ * they have been idle for longer than IDLE_TIMEOUT.
+ */
+public class ConnectionPool {
+
+	public static final int MAX_IDLE_CONNECTIONS = 16; // Per node
+	public static final long IDLE_TIMEOUT = 60 * 1000; // 1 minute
+	public static final long HEALTH_CHECK_INTERVAL = 5 * 1000; // 5 seconds
+	public static final int CONNECT_TIMEOUT = 5 * 1000; // 5 seconds
+	public static final int READ_TIMEOUT = 30 * 1000; // 30 seconds
+	public static final int BATCH_SIZE = 100; // Keys per batch request
+	public static final int MAX_IN_FLIGHT = 4; // Batch requests sent on a connection before waiting for a response
+
+	// Requests which only read, so that sending them twice can't change the data or their response
+	private static final HashSet<String> READ_ONLY_REQUESTS = new HashSet<String>(Arrays.asList("GET", "R_GET", "Q_GET", "GET_HASHTABLE", "GET_R_HASHTABLE", "MGET", "AE_HASHES", "AE_KEYS", "SCAN", "R_SCAN"));
+
+	private int port;
+	private ConcurrentHashMap<String, ConcurrentLinkedDeque<Connection>> idleConnections = new ConcurrentHashMap<String, ConcurrentLinkedDeque<Connection>>();
+	private volatile boolean closed = false;
+	private Thread evictor = null;
+
+	private AtomicLong connectionsCreated = new AtomicLong();
+	private AtomicLong connectionsReused = new AtomicLong();
+
+	// Initializes the pool and starts the thread which closes idle connections
+	public ConnectionPool(int port) {
+		this.port = port;
+
+		evictor = new Thread("ConnectionPool-evictor") {
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(IDLE_TIMEOUT / 2);
+					} catch (InterruptedException e) {
+						break;
+					}
+					evictIdleConnections();
+				}
+			}
+		};
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/***
+	 * This method sends the request to the specified node on a pooled connection and returns its response.
+	 * If a reused connection turns out to be closed by the peer, the request is sent again on a new connection:
+	 * always if the request could not be written, and only for the requests which read if it was written but no
+	 * response came back, because the node may have applied it before closing the connection.
+	 * @param nodeAddress	IP Address of the node
+	 * @param request		Request to be sent
+	 * @return				Response of the node
+	 */
+	public Response send(String nodeAddress, Request request) throws IOException, ClassNotFoundException {
+		while (true) {
+			Connection connection = borrow(nodeAddress);
+			try {
+				MessageUtility.writeRequest(connection.out, request);
+			} catch (IOException e) {
+				connection.close();
+				// Only a reused connection may have been closed by the peer while it was idle
+				if (!connection.reused)
+					throw e;
+				continue;
+			}
+
+			try {
+				// Wait for the first byte of the response, a failure after it is never retried
+				connection.in.mark(1);
+				if (connection.in.read() < 0)
+					throw new EOFException("Connection closed by " + nodeAddress);
+				connection.in.reset();
+			} catch (IOException e) {
+				connection.close();
+				if (!connection.reused || e instanceof SocketTimeoutException || !READ_ONLY_REQUESTS.contains(request.getRequestType()))
+					throw e;
+				continue;
+			}
+
+			try {
+				Response response = MessageUtility.readResponse(connection.in);
+				release(connection);
+				return response;
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+	}
+
+	/***
+	 * This method performs a batch operation (MPUT, MGET or MDELETE) on keys which may belong to different nodes.
+	 * The keys are grouped by node and split into batches of BATCH_SIZE keys. The batches of all the nodes are
+	 * pipelined: up to MAX_IN_FLIGHT batches are sent on each connection before the first response is read, and a
+	 * new batch is sent whenever a response arrives. Limiting the batches in flight keeps both peers from blocking
+	 * on full socket buffers.
+	 * @param requestType	MPUT, MGET or MDELETE
+	 * @param keys			Keys of the operation
+	 * @param values		Values of the keys for MPUT, otherwise null
+	 * @param nodeAddresses	IP Address of the node of each key
+	 * @return				Response whose response codes and values are in the same order as the keys
+	 */
+	public Response sendBatch(String requestType, ArrayList<String> keys, ArrayList<String> values, String[] nodeAddresses) throws IOException, ClassNotFoundException {
+		// Group the positions of the keys by node
+		HashMap<String, ArrayList<Integer>> positionsByNode = new HashMap<String, ArrayList<Integer>>();
+		for (int i = 0; i < keys.size(); i++) {
+			ArrayList<Integer> positions = positionsByNode.get(nodeAddresses[i]);
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				positionsByNode.put(nodeAddresses[i], positions);
+			}
+			positions.add(i);
+		}
+
+		int[] responseCodes = new int[keys.size()];
+		ArrayList<String> responseValues = new ArrayList<String>(Collections.nCopies(keys.size(), (String) null));
+		ArrayList<Pipeline> pipelines = new ArrayList<Pipeline>();
+		boolean completed = false;
+
+		try {
+			for (Map.Entry<String, ArrayList<Integer>> entry : positionsByNode.entrySet()) {
+				pipelines.add(new Pipeline(borrow(entry.getKey()), requestType, entry.getValue(), keys, values));
+			}
+			for (Pipeline pipeline : pipelines) {
+				while (pipeline.sent < pipeline.batches.size() && pipeline.sent < MAX_IN_FLIGHT) {
+					pipeline.sendNext();
+				}
+			}
+
+			// Read one response from each node in turn so that all the nodes work in parallel
+			boolean pending = true;
+			while (pending) {
+				pending = false;
+				for (Pipeline pipeline : pipelines) {
+					if (pipeline.received < pipeline.batches.size()) {
+						pipeline.receiveNext(responseCodes, responseValues);
+						if (pipeline.sent < pipeline.batches.size()) {
+							pipeline.sendNext();
+						}
+						pending = true;
+					}
+				}
+			}
+			completed = true;
+		} finally {
+			// A connection with responses left unread can't be reused
+			for (Pipeline pipeline : pipelines) {
+				if (completed)
+					release(pipeline.connection);
+				else
+					pipeline.connection.close();
+			}
+		}
+
+		Response response = new Response();
+		response.setResponseCode(200);
+		response.setResponseCodes(responseCodes);
+		response.setValues(responseValues);
+		return response;
+	}
+
+	/***
+	 * This method returns an idle connection to the specified node or opens a new one.
+	 * The connection must be given back using release(...) or closed if it is no longer usable.
+	 * @param nodeAddress	IP Address of the node
+	 * @return				Connection to the node
+	 */
+	public Connection borrow(String nodeAddress) throws IOException {
+		if (closed)
+			throw new IOException("Connection pool is closed.");
+
+		ConcurrentLinkedDeque<Connection> connections = idleConnections.get(nodeAddress);
+		if (connections != null) {
+			Connection connection;
+			while ((connection = connections.pollFirst()) != null) {
+				long idleTime = System.currentTimeMillis() - connection.lastUsed;
+				if (idleTime < IDLE_TIMEOUT && (idleTime < HEALTH_CHECK_INTERVAL || connection.isHealthy())) {
+					connection.reused = true;
+					connectionsReused.incrementAndGet();
+					return connection;
+				}
+				connection.close();
+			}
+		}
+
+		connectionsCreated.incrementAndGet();
+		return new Connection(nodeAddress, port);
+	}
+
+	/***
+	 * This method gives back a connection to the pool so that it can be reused.
+	 * @param connection	Connection which was returned by borrow(...)
+	 */
+	public void release(Connection connection) {
+		ConcurrentLinkedDeque<Connection> connections = idleConnections.get(connection.nodeAddress);
+		if (connections == null) {
+			idleConnections.putIfAbsent(connection.nodeAddress, new ConcurrentLinkedDeque<Connection>());
+			connections = idleConnections.get(connection.nodeAddress);
+		}
+
+		if (closed || connections.size() >= MAX_IDLE_CONNECTIONS) {
+			connection.close();
+		} else {
+			connection.lastUsed = System.currentTimeMillis();
+			// The most recently used connection is reused first so that the others can expire
+			connections.offerFirst(connection);
+		}
+	}
+
+	// Closes all the connections which have been idle for longer than IDLE_TIMEOUT
+	private void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (ConcurrentLinkedDeque<Connection> connections : idleConnections.values()) {
+			Iterator<Connection> iterator = connections.iterator();
+			while (iterator.hasNext()) {
+				Connection connection = iterator.next();
+				if (now - connection.lastUsed >= IDLE_TIMEOUT && connections.remove(connection)) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	// Closes all the idle connections and stops the pool
+	public void close() {
+		closed = true;
+		evictor.interrupt();
+		for (Map.Entry<String, ConcurrentLinkedDeque<Connection>> entry : idleConnections.entrySet()) {
+			Connection connection;
+			while ((connection = entry.getValue().pollFirst()) != null) {
+				connection.close();
+			}
+		}
+	}
+
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+
+	/***
+	 * The batches of a batch operation which are sent to one node on one connection.
+	 */
+	private static class Pipeline {
+		private Connection connection;
+		private String requestType;
+		private ArrayList<ArrayList<Integer>> batches = new ArrayList<ArrayList<Integer>>();
+		private ArrayList<String> keys;
+		private ArrayList<String> values;
+		private int sent = 0;
+		private int received = 0;
+
+		public Pipeline(Connection connection, String requestType, ArrayList<Integer> positions, ArrayList<String> keys, ArrayList<String> values) {
+			this.connection = connection;
+			this.requestType = requestType;
+			this.keys = keys;
+			this.values = values;
+
+			for (int i = 0; i < positions.size(); i += BATCH_SIZE) {
+				batches.add(new ArrayList<Integer>(positions.subList(i, Math.min(i + BATCH_SIZE, positions.size()))));
+			}
+		}
+
+		// Sends the next batch. The request id is the number of the batch.
+		public void sendNext() throws IOException {
+			ArrayList<Integer> batch = batches.get(sent);
+			ArrayList<String> batchKeys = new ArrayList<String>(batch.size());
+			ArrayList<String> batchValues = values == null ? null : new ArrayList<String>(batch.size());
+			for (int position : batch) {
+				batchKeys.add(keys.get(position));
+				if (batchValues != null)
+					batchValues.add(values.get(position));
+			}
+
+			Request request = new Request();
+			request.setRequestType(requestType);
+			request.setRequestId(sent);
+			request.setKeys(batchKeys);
+			request.setValues(batchValues);
+			MessageUtility.writeRequest(connection.out, request);
+			sent++;
+		}
+
+		// Reads the response of the oldest batch in flight and copies its results to the positions of its keys
+		public void receiveNext(int[] responseCodes, ArrayList<String> responseValues) throws IOException, ClassNotFoundException {
+			Response response = MessageUtility.readResponse(connection.in);
+			ArrayList<Integer> batch = batches.get(received);
+			if (response.getRequestId() != received || response.getResponseCodes() == null || response.getResponseCodes().length != batch.size()) {
+				throw new StreamCorruptedException("Unexpected response to batch " + received + " from " + connection.nodeAddress);
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				responseCodes[batch.get(i)] = response.getResponseCodes()[i];
+				if (response.getValues() != null)
+					responseValues.set(batch.get(i), response.getValues().get(i));
+			}
+			received++;
+		}
+	}
+
+	/***
+	 * A connection to a node along with its streams.
+	 */
+	public static class Connection {
+		private String nodeAddress;
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+		private long lastUsed;
+		private boolean reused = false;
+
+		public Connection(String nodeAddress, int port) throws IOException {
+			this.nodeAddress = nodeAddress;
+
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				socket.connect(new InetSocketAddress(nodeAddress, port), CONNECT_TIMEOUT);
+				socket.setSoTimeout(READ_TIMEOUT);
+
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			lastUsed = System.currentTimeMillis();
+		}
+
+		public DataInputStream getInputStream() {
+			return in;
+		}
+
+		public DataOutputStream getOutputStream() {
+			return out;
+		}
+
+		/***
+		 * This method checks whether the peer has closed the connection while it was idle.
+		 * It waits 1 millisecond for data: end of stream or unexpected data means that the connection can't be used.
+		 * @return	Returns true if the connection can be reused else returns false
+		 */
+		public boolean isHealthy() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+				return false;
+
+			try {
+				socket.setSoTimeout(1);
+				in.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				try {
+					socket.setSoTimeout(READ_TIMEOUT);
+				} catch (IOException e) { }
+			}
+		}
+
+		// Closing the socket also closes its streams
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) { }
+		}
+	}
+}
@@ -1,17 +1,23 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
 
 public class DHTTest {
 	
 	private static HashMap<Integer, String> networkMap = new HashMap<>();
+	private static HashRing hashRing = null;
 	private static int portNumber;
+	private static final int MAX_CLIENTS = 256;
 	
 	public static void main(String[] args) throws IOException {
 		//networkMap = DistributedHashTable.getNetworkMap();
@@ -37,19 +43,21 @@ public class DHTTest {
 		}
 
 		System.out.println(networkMap);	      
+		hashRing = new HashRing(networkMap, HashRing.parseVirtualNodes(configuration.getProperty("VIRTUAL_NODES")));
 		
 		if (!networkMap.isEmpty()) {
 			BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
 	        
-	        System.out.print("Enter the operation you want to test? (PUT, GET, DEL): ");
+	        System.out.print("Enter the operation you want to test? (PUT, GET, DEL, MPUT, MGET, MDEL): ");
 	        String operation = input.readLine();
-	        System.out.print("Enter the number of clients you want to test on? (1-8): ");
+	        System.out.print("Enter the number of clients you want to test on? (1-" + MAX_CLIENTS + "): ");
 	        int numClients = Integer.parseInt(input.readLine());
 	        System.out.print("Enter the number of operations you want to perform? (Example, 100000): ");
 	        long opCount = Long.parseLong(input.readLine());
 	        
-	        if ((operation.trim().equalsIgnoreCase("PUT") || operation.trim().equalsIgnoreCase("GET") || operation.trim().equalsIgnoreCase("DEL"))
-	        	&& numClients >= 1 && numClients <= 8 && opCount >= 0) {
+	        String[] operations = { "PUT", "GET", "DEL", "MPUT", "MGET", "MDEL" };
+	        if (Arrays.asList(operations).contains(operation.trim().toUpperCase())
+	        	&& numClients >= 1 && numClients <= MAX_CLIENTS && opCount >= 0) {
 				
 				System.out.println(String.format("******* %s OPERATION TEST STARTED *******", operation.trim().toUpperCase()));
 				for (int i = 1; i <= numClients; i++) {
@@ -66,14 +74,19 @@ public class DHTTest {
 	}
 	
 	private static class TestClient extends Thread {
+		// Number of keys sent with each call of a batch operation
+		private static final int BATCH_KEYS = 1000;
+		
 		private String testFunction = null;
 		private int clientId = 0;
 		private long testCount = 0;
+		private ConnectionPool connectionPool = null;
 		
 		public TestClient(int clientId, String testFunction, long testCount) {
 			this.testFunction = testFunction;
 			this.testCount = testCount;
 			this.clientId = clientId;
+			this.connectionPool = new ConnectionPool(portNumber);
 		}
 		
 		// Thread implementation for Peer to serve as CLient
@@ -157,9 +170,64 @@ public class DHTTest {
 				System.out.println("TOTAL TIME : " + time + " seconds");
 				System.out.println("AVERAGE TIME : " + avgTime + " seconds");
 				
+			} else if (testFunction.startsWith("M")) {
+				// Batch operations send BATCH_KEYS keys with each call. The keys are pipelined in batches on pooled connections.
+				for (long i = startKey; i <= endKey; i += BATCH_KEYS) {
+					ArrayList<String> keys = new ArrayList<String>();
+					for (long j = i; j <= endKey && j < i + BATCH_KEYS; j++) {
+						keys.add(Long.toString(j));
+					}
+					
+					int[] responseCodes = batch(testFunction, keys);
+					for (int responseCode : responseCodes) {
+						if (responseCode == 200) {
+							successCount++;
+						} else {
+							errorCount++;
+						}
+					}
+				}
+				connectionPool.close();
+				
+				endTime = System.currentTimeMillis();
+				time = (endTime - startTime) / 1000.0;
+				avgTime = time / (double) testCount;
+				
+				System.out.println("\n" + testFunction + " Operation at Client " + clientId);
+				System.out.println("TOTAL TESTS : " + testCount + " SUCCESS : " + successCount + " ERROR : " + errorCount);
+				System.out.println("TOTAL TIME : " + time + " seconds");
+				System.out.println("AVERAGE TIME : " + avgTime + " seconds");
+				
 			}
 		}
 		
+		/***
+		 * This method performs a batch operation on the keys. The value of each key is the key itself.
+		 * @param operation	MPUT, MGET or MDEL
+		 * @param keys		KEYS of the operation
+		 * @return			Returns the response code of each KEY
+		 */
+		private int[] batch(String operation, ArrayList<String> keys) {
+			String[] nodeAddresses = new String[keys.size()];
+			for (int i = 0; i < nodeAddresses.length; i++) {
+				nodeAddresses[i] = networkMap.get(hash(keys.get(i)));
+			}
+			
+			try {
+				if (operation.equalsIgnoreCase("MPUT")) {
+					return connectionPool.sendBatch("MPUT", keys, keys, nodeAddresses).getResponseCodes();
+				} else if (operation.equalsIgnoreCase("MGET")) {
+					return connectionPool.sendBatch("MGET", keys, null, nodeAddresses).getResponseCodes();
+				} else {
+					return connectionPool.sendBatch("MDELETE", keys, null, nodeAddresses).getResponseCodes();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			
+			return new int[keys.size()];
+		}
+		
 		/***
 		 * This methods adds a (KEY,VALUE) pair in the Distributed Hash Table (DHT).
 		 * @param key	KEY should be 24 bytes (12 characters) maximum.
@@ -168,11 +236,10 @@ public class DHTTest {
 		 */
 		private boolean put(String key, String value) {
 			Socket socket = null;
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
+			DataInputStream in = null;
+			DataOutputStream out = null;
 			Request peerRequest = null;
 			Response serverResponse	= null;
-			String data = key + "," + value;
 			
 			try {
 				int node = hash(key);
@@ -184,20 +251,20 @@ public class DHTTest {
 		        socket = new Socket(nodeAddress, portNumber);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("PUT");
-				peerRequest.setRequestData(data);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				peerRequest.setValue(value);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
 					return true;
@@ -233,8 +300,8 @@ public class DHTTest {
 		 */
 		private String get(String key) {
 			Socket socket = null;
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
+			DataInputStream in = null;
+			DataOutputStream out = null;
 			Request peerRequest = null;
 			Response serverResponse	= null;
 			String value = null;
@@ -248,23 +315,22 @@ public class DHTTest {
 		        socket = new Socket(nodeAddress, portNumber);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("GET");
-				peerRequest.setRequestData(key);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
-					value = serverResponse.getResponseData().split(",")[1].trim();
+					value = serverResponse.getResponseData();
 				}
 			} catch(Exception e) {
 				e.printStackTrace();
@@ -294,8 +360,8 @@ public class DHTTest {
 		 */
 		private boolean delete(String key) {
 			Socket socket = null;
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
+			DataInputStream in = null;
+			DataOutputStream out = null;
 			Request peerRequest = null;
 			Response serverResponse	= null;
 			
@@ -307,20 +373,19 @@ public class DHTTest {
 		        socket = new Socket(nodeAddress, portNumber);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("DELETE");
-				peerRequest.setRequestData(key);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        //System.out.print((String) serverResponse.getResponseData());
 		        
 		        if (serverResponse.getResponseCode() == 200) {
@@ -351,25 +416,13 @@ public class DHTTest {
 		}
 		
 		/***
-		 * This method performs a hash on the key and returns the node id where the key is located.
-		 * We get the hashCode of the input KEY string which is a number and then we perform MOD operation on that hashCode.
-		 * The hashCode for a given string will always be same for that string.
+		 * This method returns the node id where the key is located.
+		 * The key is placed on the consistent hash ring of the network, so adding or removing a node only moves the keys next to its tokens.
 		 * @param key	Key on which hash to be performed i.e. whose node has to be found.
 		 * @return		Returns a node id (integer) where the key is located.
 		 */
 		private int hash(String key) {
-			// Total number of servers = Total number of entries in networkMap
-			int totalServers = networkMap.size();
-			
-			// Get hash value of string using JAVA's hashCode() method
-			long hashCode = key.hashCode();
-			
-			// hashCode may be negative. So, make it positive in case it's negative
-			hashCode = (hashCode < 0) ? -hashCode : hashCode;
-			
-			// Add 1 because MOD of hashCode and totalServers may be 0
-			int hash = (int) (hashCode % totalServers) + 1;
-			return hash;
+			return hashRing.getNode(key);
 		}
 	}
 }
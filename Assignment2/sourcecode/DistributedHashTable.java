@@ -2,25 +2,71 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /***
  * The class DistributedHashTable defines the methods and structures (variables) which maintains the Hash Table in the network.
  */
 public class DistributedHashTable {
-	// <KEY, VALUE> Hash Table
-	private static ConcurrentHashMap<String, String> hashTable = new ConcurrentHashMap<String, String>();
-	// <PEER_IP, <KEY, VALUE>> Hash Table
-	private static ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable = new ConcurrentHashMap<String, HashMap<String, String>>();
+	// <KEY, VALUE> Hash Table, kept on the heap or in direct memory depending on STORAGE_ENGINE. The version of the VALUE of
+	// each KEY is kept next to it. The version of a deleted KEY (and of a deleted replica) is kept for TOMBSTONE_TIMEOUT so
+	// that an older VALUE on another node doesn't bring the KEY back when the replicas are reconciled
+	private static StorageEngine hashTable = new HeapStorageEngine();
+	// <KEY, (PEER_IP, VALUE)> Replicas of the Hash Tables of the other peers, indexed by KEY
+	private static ReplicaStore replicaStore = new ReplicaStore();
 	
-	private static HashMap<Integer, String> networkMap = new HashMap<Integer, String>();
+	public static final long TOMBSTONE_TIMEOUT = 60 * 60 * 1000; // 1 hour
+	// Merkle tree of the versions, compared with the replicas by the AntiEntropyService
+	private static MerkleTree merkleTree = new MerkleTree();
+	// Versions are the time in microseconds, incremented if needed so that the versions given by this peer always increase
+	private static AtomicLong clock = new AtomicLong();
+	
+	// Number of copies of each KEY (the node of the KEY and REPLICATION_FACTOR - 1 other replication nodes) and default quorums
+	private static int replicationFactor = 1;
+	private static int readQuorum = 1;
+	private static int writeQuorum = 1;
+	
+	// The network map and the ring are replaced (never modified) when a node joins or leaves the network
+	private static volatile HashMap<Integer, String> networkMap = new HashMap<Integer, String>();
+	private static volatile HashRing hashRing = null;
+	private static volatile long networkVersion = 0;
 	private static ArrayList<String> replicationNodes = new ArrayList<String>();
 	
+	// Placement before the last change of the network, kept until all the nodes have moved their keys
+	private static HashMap<Integer, String> previousNetworkMap = null;
+	private static HashRing previousHashRing = null;
+	// Nodes which are still moving their keys, nodes which finished before this node heard of the change and keys deleted meanwhile
+	private static Set<String> rebalancingNodes = new HashSet<String>();
+	private static Set<String> rebalancedNodes = new HashSet<String>();
+	private static Set<String> rebalanceDeletes = ConcurrentHashMap.newKeySet();
+	
 	private static final int PEER_SERVER_PORT = 20000;
 	private static final String LOCAL_ADDRESS = NetworkUtility.getLocalAddress();
+	// Write-ahead log of the hashTable, null if DATA_LOCATION is not configured
+	private static WriteAheadLog writeAheadLog = null;
+	private static boolean recovered = false;
+	// A change of the hashTable and its log record are done under the lock of the KEY so that they are logged in the order they are done
+	private static final Object[] keyLocks = new Object[64];
+	static {
+		for (int i = 0; i < keyLocks.length; i++) {
+			keyLocks[i] = new Object();
+		}
+	}
+	
+	private static final int DEFAULT_REBALANCE_RATE = 1024; // KiloBytes per second
+	private static int rebalanceRate = DEFAULT_REBALANCE_RATE * 1024;
+	private static final int DEFAULT_ANTI_ENTROPY_INTERVAL = 60; // Seconds
+	private static int antiEntropyInterval = DEFAULT_ANTI_ENTROPY_INTERVAL;
+	// How the connections of the peers are served: thread (one thread per connection) or virtual (one virtual thread per connection)
+	private static String serverMode = "thread";
+	private static int maxConnections = ServerExecutor.DEFAULT_MAX_CONNECTIONS;
 	
 	/**
 	 * This methods adds a (KEY,VALUE) pair in the Distributed Hash Table (hashTable) if the KEY is not already present.
@@ -31,12 +77,80 @@ public class DistributedHashTable {
 	 * @return			Returns true if KEY is added in the hashTable successfully else returns false if a VALUE with the KEY already exists.
 	 */
 	public static boolean putInHashTable(String key, String value, boolean confirm) {
-		if (confirm || !hashTable.containsKey(key)) {
-			hashTable.put(key, value);
+		return putVersionInHashTable(key, value, confirm) != 0;
+	}
+	
+	/**
+	 * This methods adds a (KEY,VALUE) pair in the hashTable like putInHashTable and gives a new version to the VALUE.
+	 * @param key		KEY should be 24 bytes (12 characters) maximum.
+	 * @param value		VALUE should be 1000 bytes (500 characters) maximum.
+	 * @param confirm	If confirm = true, the old value of the KEY is replaced by the new VALUE.
+	 * @return			Returns the version of the VALUE if it is added, or 0 if a VALUE with the KEY already exists.
+	 */
+	public static long putVersionInHashTable(String key, String value, boolean confirm) {
+		synchronized (lockOf(key)) {
+			if (!confirm && hashTable.containsKey(key)) {
+				return 0;
+			}
+			
+			long version = nextVersion();
+			setVersion(key, value, version);
+			if (writeAheadLog != null) {
+				writeAheadLog.logPut(key, value, version);
+			}
+			return version;
+		}
+	}
+	
+	/***
+	 * This methods writes a VALUE with the version it got on another node, e.g. when a stale replica is repaired.
+	 * The VALUE is written only if its version is newer than the version of the KEY on this peer.
+	 * @param key		KEY of the (KEY,VALUE) pair
+	 * @param value		VALUE of the KEY, or null if the KEY was deleted
+	 * @param version	Version of the VALUE
+	 * @return			Returns true if the VALUE is written.
+	 */
+	public static boolean putVersionInHashTable(String key, String value, long version) {
+		synchronized (lockOf(key)) {
+			long current = hashTable.getVersion(key);
+			if (current != 0 && current >= version) {
+				return false;
+			}
+			
+			observeVersion(version);
+			setVersion(key, value, version);
+			if (value != null) {
+				if (writeAheadLog != null) {
+					writeAheadLog.logPut(key, value, version);
+				}
+			} else {
+				if (writeAheadLog != null) {
+					writeAheadLog.logDelete(key, version);
+				}
+			}
 			return true;
-		} else {
+		}
+	}
+	
+	/***
+	 * This methods adds a (KEY,VALUE) pair moved from another node when the network changed.
+	 * The pair is not added if the KEY was written or deleted on this node after the change, as the moved VALUE is older.
+	 * @param key		KEY of the (KEY,VALUE) pair
+	 * @param value		VALUE of the KEY on the node which had the KEY before the change
+	 * @param version	Version of the VALUE
+	 * @return			Returns true if the (KEY,VALUE) pair is added in the hashTable.
+	 */
+	public static boolean putMovedInHashTable(String key, String value, long version) {
+		if (rebalanceDeletes.contains(key)) {
 			return false;
 		}
+		
+		synchronized (lockOf(key)) {
+			if (hashTable.containsKey(key)) {
+				return false;
+			}
+			return putVersionInHashTable(key, value, version);
+		}
 	}
 	
 	/***
@@ -48,75 +162,290 @@ public class DistributedHashTable {
 		return hashTable.get(key);
 	}
 	
+	/***
+	 * This methods retrieves the VALUE of the KEY from the hashTable together with its version.
+	 * @param key		KEY which is to be searched in the hashTable.
+	 * @param version	Array where the version of the VALUE (or of the delete of the KEY) is stored at index 0, 0 if the KEY is unknown.
+	 * @return			Returns VALUE for the KEY specified if the KEY exist in the hashTable else returns NULL.
+	 */
+	public static String getFromHashTable(String key, long[] version) {
+		return hashTable.get(key, version);
+	}
+	
 	/***
 	 * This methods deletes a (KEY,VALUE) pair from the Distributed Hash Table (hashTable) using KEY. It does nothing if the KEY doesn't exist in the hashTable.
 	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the hashTable.
+	 * @return		Returns the version of the delete.
+	 */
+	public static long removeFromHashTable(String key) {
+		// Remember the deletes while keys are moving so that an older VALUE moved from another node doesn't bring the KEY back
+		if (previousHashRing != null) {
+			rebalanceDeletes.add(key);
+		}
+		
+		synchronized (lockOf(key)) {
+			long version = nextVersion();
+			setVersion(key, null, version);
+			if (writeAheadLog != null) {
+				writeAheadLog.logDelete(key, version);
+			}
+			return version;
+		}
+	}
+	
+	/***
+	 * This methods deletes a (KEY,VALUE) pair which has been moved to another node. The pair is kept if the VALUE was changed meanwhile,
+	 * so that the new VALUE is moved too.
+	 * @param key	KEY of the (KEY,VALUE) pair which has been moved.
+	 * @param value	VALUE of the KEY which has been moved.
+	 * @return		Returns true if the (KEY,VALUE) pair is deleted from the hashTable.
 	 */
-	public static void removeFromHashTable(String key) {
-		hashTable.remove(key);
+	public static boolean removeMovedFromHashTable(String key, String value) {
+		synchronized (lockOf(key)) {
+			// The KEY is on another node now, so this peer doesn't keep its version
+			long version = hashTable.getVersion(key);
+			if (!hashTable.remove(key, value)) {
+				return false;
+			}
+			if (version != 0) {
+				merkleTree.remove(key, version);
+			}
+			if (writeAheadLog != null) {
+				writeAheadLog.logDelete(key, 0);
+			}
+			return true;
+		}
+	}
+	
+	/***
+	 * This method waits until the changes of the hashTable done by the calling thread are written to the disk.
+	 * PeerServer calls it before replying, so a reply is sent only once the change is durable. The changes of
+	 * concurrent requests are written together, so waiting costs one disk flush for all of them.
+	 */
+	public static void awaitDurable() throws IOException {
+		if (writeAheadLog != null) {
+			writeAheadLog.awaitDurable();
+		}
+	}
+	
+	/***
+	 * This method tells whether the hashTable was recovered from the local disk when the peer started.
+	 * @return	Returns true if a snapshot or a write-ahead log was found in DATA_LOCATION.
+	 */
+	public static boolean isRecovered() {
+		return recovered;
+	}
+	
+	// Lock of the stripe of the KEY
+	private static Object lockOf(String key) {
+		return keyLocks[(key.hashCode() & 0x7FFFFFFF) % keyLocks.length];
+	}
+	
+	/***
+	 * This method returns a new version, greater than all the versions given or seen by this peer.
+	 * @return	Returns the current time in microseconds, or the last version + 1 if it is not greater.
+	 */
+	public static long nextVersion() {
+		while (true) {
+			long last = clock.get();
+			long version = Math.max(last + 1, System.currentTimeMillis() * 1000);
+			if (clock.compareAndSet(last, version)) {
+				return version;
+			}
+		}
+	}
+	
+	/***
+	 * This method moves the clock forward so that the next versions of this peer are newer than a version given by another peer.
+	 * @param version	Version given by another peer or recovered from the disk
+	 */
+	public static void observeVersion(long version) {
+		long last;
+		while ((last = clock.get()) < version && !clock.compareAndSet(last, version));
+	}
+	
+	// Forgets the versions of the KEYS deleted more than TOMBSTONE_TIMEOUT ago
+	private static void purgeTombstones() {
+		long oldest = (System.currentTimeMillis() - TOMBSTONE_TIMEOUT) * 1000;
+		long[] version = new long[1];
+		for (Map.Entry<String, Long> entry : hashTable.versions()) {
+			if (entry.getValue() < oldest && !hashTable.containsKey(entry.getKey())) {
+				synchronized (lockOf(entry.getKey())) {
+					if (hashTable.get(entry.getKey(), version) == null && version[0] == entry.getValue()) {
+						hashTable.remove(entry.getKey());
+						merkleTree.remove(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+		}
+		replicaStore.purgeTombstones(oldest);
+	}
+	
+	// Writes the VALUE (null for a deleted KEY) with its version and updates the Merkle tree. Called with the lock of the KEY held
+	private static void setVersion(String key, String value, long version) {
+		long previous = hashTable.getVersion(key);
+		hashTable.put(key, value, version);
+		if (previous != 0) {
+			merkleTree.remove(key, previous);
+		}
+		merkleTree.add(key, version);
+	}
+	
+	/***
+	 * This method returns the Merkle tree of the versions of the KEYS of the hashTable, including the deleted KEYS.
+	 * @return	Returns the tree of this peer.
+	 */
+	public static MerkleTree getMerkleTree() {
+		return merkleTree;
+	}
+	
+	/***
+	 * This method returns the Merkle tree of the replicas of the hashTable of a peer.
+	 * @param nodeAddress	IP address of the peer
+	 * @return				Returns the tree of the replicas of the peer.
+	 */
+	public static MerkleTree getReplicaTree(String nodeAddress) {
+		return replicaStore.getTree(nodeAddress);
+	}
+	
+	/***
+	 * This method returns the versions of the replicas of a peer whose KEYS are in some ranges of its Merkle tree.
+	 * @param nodeAddress	IP address of the peer
+	 * @param leaves		Leaves of the Merkle tree whose KEYS are returned
+	 * @param keys			List where the KEYS are added
+	 * @param versions		List where the version of each KEY (or of its delete) is added
+	 */
+	public static void getReplicaVersions(String nodeAddress, BitSet leaves, ArrayList<String> keys, ArrayList<Long> versions) {
+		replicaStore.getVersions(nodeAddress, leaves, keys, versions);
+	}
+	
+	/***
+	 * This method returns the version of the KEY in the hashTable.
+	 * @param key	KEY whose version is returned
+	 * @return		Returns the version of the VALUE (or of the delete) of the KEY, or 0 if the KEY is unknown.
+	 */
+	public static long getVersion(String key) {
+		return hashTable.getVersion(key);
+	}
+	
+	/***
+	 * This method returns the versions of the KEYS of the hashTable, including the deleted KEYS.
+	 * @return	Returns the (KEY, version) pairs.
+	 */
+	public static Iterable<Map.Entry<String, Long>> getVersions() {
+		return hashTable.versions();
 	}
 	
 	/**
-	 * This methods adds a (KEY,VALUE) pair in the Replication Hash Table (replicatedHashTable).
-	 * @param nodeAddress	IP address of the peer(node) whose hashTable has to be replicated and kept the (KEY, VALUE) pairs in replicatedHashTable.
+	 * This methods adds a (KEY,VALUE) pair in the Replication Hash Table (replicaStore).
+	 * @param nodeAddress	IP address of the peer(node) whose hashTable has to be replicated and kept the (KEY, VALUE) pairs in replicaStore.
 	 * @param key		KEY should be 24 bytes (12 characters) maximum.
 	 * @param value		VALUE should be 1000 bytes (500 characters) maximum.
 	 */
 	public static void putInReplicaHashTable(String nodeAddress, String key, String value) {
-		if (replicatedHashTable.containsKey(nodeAddress)) {
-			HashMap<String, String> innerMap = replicatedHashTable.get(nodeAddress);
-			innerMap.put(key, value);
-		} else {
-			HashMap<String, String> innerMap = new HashMap<String, String>();
-			innerMap.put(key, value);
-			replicatedHashTable.put(nodeAddress, innerMap);
+		replicaStore.put(nodeAddress, key, value, 0);
+	}
+	
+	/**
+	 * This methods adds a (KEY,VALUE) pair in the Replication Hash Table (replicaStore) if its version is newer than the version of the replica.
+	 * @param nodeAddress	IP address of the peer(node) whose hashTable has to be replicated and kept the (KEY, VALUE) pairs in replicaStore.
+	 * @param key		KEY should be 24 bytes (12 characters) maximum.
+	 * @param value		VALUE should be 1000 bytes (500 characters) maximum.
+	 * @param version	Version of the VALUE, or 0 if the VALUE has no version and always replaces the replica.
+	 * @return			Returns true if the replica is written.
+	 */
+	public static boolean putInReplicaHashTable(String nodeAddress, String key, String value, long version) {
+		if (!replicaStore.put(nodeAddress, key, value, version)) {
+			return false;
 		}
+		observeVersion(version);
+		return true;
 	}
 	
 	/***
-	 * This methods retrieves the VALUE of the KEY from the Replication Hash Table (replicatedHashTable).
-	 * @param key	KEY which is to be searched in the replicatedHashTable.
-	 * @return		Returns VALUE for the KEY specified if the KEY exist in the replicatedHashTable else returns NULL.
+	 * This methods retrieves the VALUE of the KEY from the Replication Hash Table (replicaStore).
+	 * @param key	KEY which is to be searched in the replicaStore.
+	 * @return		Returns VALUE for the KEY specified if the KEY exist in the replicaStore else returns NULL.
 	 */
 	public static String getFromReplicaHashTable(String key) {
-		String value = null;
-		
-		for (Map.Entry<String, HashMap<String, String>> record : replicatedHashTable.entrySet()) {
-			HashMap<String, String> innerMap = replicatedHashTable.get(record.getKey().toString());
-			value = innerMap.get(key);
-			if (value != null) {
-				break;
-			}
-		}
-		return value;
+		return replicaStore.get(key);
+	}
+	
+	/***
+	 * This methods retrieves the replica of the KEY from the Replication Hash Table (replicaStore) together with its version.
+	 * @param key		KEY which is to be searched in the replicaStore.
+	 * @param version	Array where the version of the replica (or of its delete) is stored at index 0, 0 if the KEY is unknown.
+	 * @return			Returns VALUE for the KEY specified if the KEY exist in the replicaStore else returns NULL.
+	 */
+	public static String getFromReplicaHashTable(String key, long[] version) {
+		return replicaStore.get(key, version);
+	}
+	
+	/***
+	 * This methods retrieves the replica of the KEY of a peer from the Replication Hash Table (replicaStore) together with its version.
+	 * @param nodeAddress	IP address of the peer(node) whose replica is searched.
+	 * @param key			KEY which is to be searched in the replicaStore.
+	 * @param version		Array where the version of the replica (or of its delete) is stored at index 0, 0 if the peer has no replica of the KEY.
+	 * @return				Returns VALUE for the KEY specified if the peer has a replica of the KEY else returns NULL.
+	 */
+	public static String getFromReplicaHashTable(String nodeAddress, String key, long[] version) {
+		return replicaStore.get(nodeAddress, key, version);
+	}
+	
+	/***
+	 * This method returns the KEYS of the replicas of a peer, including the deleted KEYS.
+	 * @param nodeAddress	IP address of the peer
+	 * @return				Returns the list of the KEYS.
+	 */
+	public static ArrayList<String> getReplicaKeys(String nodeAddress) {
+		return replicaStore.getKeys(nodeAddress);
 	}
 	
 	/***
-	 * This methods deletes a (KEY,VALUE) pair from the Replication Hash Table (replicatedHashTable) using KEY. It does nothing if the KEY doesn't exist in the replicatedHashTable.
-	 * @nodeAddress	IP address of the peer(node) whose (KEY, VALUE) pair is to be deleted from the replicatedHashTable.
-	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the replicatedHashTable.
+	 * This methods deletes a (KEY,VALUE) pair from the Replication Hash Table (replicaStore) using KEY. It does nothing if the KEY doesn't exist in the replicaStore.
+	 * @nodeAddress	IP address of the peer(node) whose (KEY, VALUE) pair is to be deleted from the replicaStore.
+	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the replicaStore.
 	 */
 	public static void removeFromReplicaHashTable(String nodeAddress, String key) {
-		HashMap<String, String> innerMap = replicatedHashTable.get(nodeAddress);
-		if (innerMap != null) {
-			innerMap.remove(key);
+		replicaStore.remove(nodeAddress, key, 0);
+	}
+	
+	/***
+	 * This methods deletes a (KEY,VALUE) pair from the Replication Hash Table (replicaStore) if the version of the delete is newer than the version of the replica.
+	 * @param nodeAddress	IP address of the peer(node) whose (KEY, VALUE) pair is to be deleted from the replicaStore.
+	 * @param key		KEY of the (KEY,VALUE) pair which has to be deleted from the replicaStore.
+	 * @param version	Version of the delete, or 0 if the delete has no version and only deletes the replica of the peer.
+	 */
+	public static void removeFromReplicaHashTable(String nodeAddress, String key, long version) {
+		if (replicaStore.remove(nodeAddress, key, version)) {
+			observeVersion(version);
 		}
 	}
 
 	/***
-	 * This method returns the replicatedHashTable which has the replica of the Hash Tables of all the peers in the network.
-	 * @return	Returns replicatedHashTable of type ConcurrentHashMap
+	 * This method returns the replica of the Hash Table of one peer.
+	 * @param nodeAddress	IP address of the peer
+	 * @return				Returns the (KEY, VALUE) pairs of the peer, or NULL if there is no replica of the peer.
+	 */
+	public static HashMap<String, String> getReplicatedHashTable(String nodeAddress) {
+		return replicaStore.getAll(nodeAddress);
+	}
+
+	/***
+	 * This method returns a copy of the replica of the Hash Tables of all the peers in the network.
+	 * @return	Returns the (KEY, VALUE) pairs of each peer
 	 */
 	public static ConcurrentHashMap<String, HashMap<String, String>> getReplicatedHashTable() {
-		return replicatedHashTable;
+		return replicaStore.getAll();
 	}
 
 	/***
-	 * This method sets the replicatedHashTable which has the replica of the Hash Tables of all the peers in the network.
+	 * This method replaces the replica of the Hash Tables of all the peers in the network.
 	 * @param replicatedHashTable	ConcurrentHashMap structure containing IP address and hash table of all the peers in the network.
 	 */
 	public static void setReplicatedHashTable(ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable) {
-		DistributedHashTable.replicatedHashTable = replicatedHashTable;
+		replicaStore.clear();
+		replicaStore.putAll(replicatedHashTable);
 	}
 
 	/***
@@ -129,17 +458,17 @@ public class DistributedHashTable {
 
 	/***
 	 * This method returns the hashTable which stores the (KEY, VALUE) pairs of the calling Peer.
-	 * @return	Returns hashTable of type ConcurrentHashMap
+	 * @return	Returns hashTable of type StorageEngine
 	 */
-	public static ConcurrentHashMap<String, String> getHashTable() {
+	public static StorageEngine getHashTable() {
 		return hashTable;
 	}
 
 	/***
 	 * This method sets the hashTable which has the (KEY, VALUE) pairs of the calling Peer.
-	 * @param hashTable ConcurrentHashMap containing (KEY, VALUE) pairs of the calling Peer. 
+	 * @param hashTable StorageEngine containing (KEY, VALUE) pairs of the calling Peer. 
 	 */
-	public static void setHashTable(ConcurrentHashMap<String, String> hashTable) {
+	public static void setHashTable(StorageEngine hashTable) {
 		DistributedHashTable.hashTable = hashTable;
 	}
 	
@@ -150,6 +479,134 @@ public class DistributedHashTable {
 	public static HashMap<Integer, String> getNetworkMap() {
 		return networkMap;
 	}
+	
+	/***
+	 * This method returns the consistent hash ring which places the keys on the nodes of the network.
+	 * @return	Returns the HashRing built from the nodes of the configuration file.
+	 */
+	public static HashRing getHashRing() {
+		return hashRing;
+	}
+
+	/***
+	 * This method returns the version of the network map. It is incremented every time a node joins or leaves the network.
+	 * @return	Returns the version of the network map.
+	 */
+	public static long getNetworkVersion() {
+		return networkVersion;
+	}
+	
+	/***
+	 * This method replaces the network map when a node joins or leaves the network. Older versions of the network map are ignored.
+	 * The previous placement is kept until all the nodes of the previous network map have moved their keys, so that the keys
+	 * which are not moved yet can be found on the node which had them before the change.
+	 * @param newNetworkMap	ID and IP address of all the peers of the new network.
+	 * @param version		Version of the new network map.
+	 * @return				Returns true if the network map is replaced.
+	 */
+	public static synchronized boolean updateNetworkMap(HashMap<Integer, String> newNetworkMap, long version) {
+		if (version <= networkVersion) {
+			return false;
+		}
+		
+		previousNetworkMap = networkMap;
+		previousHashRing = hashRing;
+		rebalanceDeletes.clear();
+		
+		rebalancingNodes = new HashSet<String>(previousNetworkMap.values());
+		rebalancingNodes.remove(LOCAL_ADDRESS);
+		for (String nodeAddress : previousNetworkMap.values()) {
+			if (rebalancedNodes.remove(nodeAddress + "#" + version)) {
+				rebalancingNodes.remove(nodeAddress);
+			}
+		}
+		
+		// Readers may look up a node id of the new ring in the old map, so a joining node is added to the map first
+		HashRing newHashRing = new HashRing(newNetworkMap, hashRing.getVirtualNodes());
+		if (newNetworkMap.size() >= networkMap.size()) {
+			networkMap = newNetworkMap;
+			hashRing = newHashRing;
+		} else {
+			hashRing = newHashRing;
+			networkMap = newNetworkMap;
+		}
+		networkVersion = version;
+		
+		if (rebalancingNodes.isEmpty()) {
+			finishRebalance();
+		}
+		return true;
+	}
+	
+	/***
+	 * This method records that a node has moved all its keys which belong to other nodes after the network changed.
+	 * @param nodeAddress	IP address of the node which has moved its keys.
+	 * @param version		Version of the network map the node has moved its keys for.
+	 */
+	public static synchronized void rebalanceCompleted(String nodeAddress, long version) {
+		if (version > networkVersion) {
+			// The node has heard of the change before this node
+			rebalancedNodes.add(nodeAddress + "#" + version);
+		} else if (version == networkVersion && rebalancingNodes.remove(nodeAddress) && rebalancingNodes.isEmpty()) {
+			finishRebalance();
+		}
+	}
+	
+	// All the keys are on their new nodes, so the previous placement is not needed any more
+	private static void finishRebalance() {
+		previousNetworkMap = null;
+		previousHashRing = null;
+		rebalanceDeletes.clear();
+	}
+	
+	/***
+	 * This method returns the node which had the KEY before the network changed, if that node may not have moved the KEY yet.
+	 * @param key	KEY which is to be searched.
+	 * @return		Returns the IP address of the node which had the KEY, or NULL if the KEY is not moving to this node.
+	 */
+	public static synchronized String getPreviousNode(String key) {
+		if (previousHashRing == null) {
+			return null;
+		}
+		
+		String nodeAddress = previousNetworkMap.get(previousHashRing.getNode(key));
+		if (nodeAddress == null || nodeAddress.equals(LOCAL_ADDRESS) || !rebalancingNodes.contains(nodeAddress)) {
+			return null;
+		}
+		return nodeAddress;
+	}
+	
+	/***
+	 * This method returns the number of copies of each KEY: the node of the KEY and REPLICATION_FACTOR - 1 other replication nodes.
+	 * @return	Returns the REPLICATION_FACTOR (N) of the configuration file.
+	 */
+	public static int getReplicationFactor() {
+		return replicationFactor;
+	}
+	
+	/***
+	 * This method returns the number of copies which answer a read before its result is returned when the client doesn't specify it.
+	 * @return	Returns the READ_QUORUM (R) of the configuration file.
+	 */
+	public static int getReadQuorum() {
+		return readQuorum;
+	}
+	
+	/***
+	 * This method returns the number of copies which acknowledge a write before it succeeds when the client doesn't specify it.
+	 * @return	Returns the WRITE_QUORUM (W) of the configuration file.
+	 */
+	public static int getWriteQuorum() {
+		return writeQuorum;
+	}
+	
+	/***
+	 * This method returns the maximum rate at which keys are moved to other nodes when the network changes.
+	 * @return	Returns the REBALANCE_RATE of the configuration file in bytes per second.
+	 */
+	public static int getRebalanceRate() {
+		return rebalanceRate;
+	}
 
 	/***
 	 * This method returns the PORT number on which this application runs.
@@ -167,6 +624,17 @@ public class DistributedHashTable {
 		return LOCAL_ADDRESS;
 	}
 	
+	// Reads a quorum size (or the number of copies) of the configuration file, the node doesn't start if it's not between 1 and max
+	private static int parseQuorum(Properties configuration, String name, int defaultValue, int max, String maxName) {
+		String value = configuration.getProperty(name);
+		int quorum = (value != null) ? Integer.parseInt(value.trim()) : defaultValue;
+		if (quorum < 1 || quorum > max) {
+			System.out.println(String.format("%s must be between 1 and %s (%d). Cannot run program. Bye...", name, maxName, max));
+			System.exit(0);
+		}
+		return quorum;
+	}
+	
 	public static void main(String[] args) throws IOException {
 		FileInputStream fileStream = null;
 		
@@ -202,6 +670,67 @@ public class DistributedHashTable {
 				System.exit(0);
 			}
 			
+			// Place the keys on the nodes using a consistent hash ring with VIRTUAL_NODES tokens per node
+			hashRing = new HashRing(networkMap, HashRing.parseVirtualNodes(configuration.getProperty("VIRTUAL_NODES")));
+			
+			// Throttle the keys moved when a node joins or leaves so that the requests of the clients are not slowed down
+			String rate = configuration.getProperty("REBALANCE_RATE");
+			if (rate != null && Integer.parseInt(rate.trim()) > 0) {
+				rebalanceRate = Integer.parseInt(rate.trim()) * 1024;
+			}
+			
+			// Compare the Merkle trees of the replicas with the hashTable every ANTI_ENTROPY_INTERVAL seconds
+			String interval = configuration.getProperty("ANTI_ENTROPY_INTERVAL");
+			if (interval != null) {
+				antiEntropyInterval = Math.max(0, Integer.parseInt(interval.trim()));
+			}
+			
+			// Serve the connections of the peers with one thread (default) or one virtual thread each, MAX_CONNECTIONS at a time
+			String mode = configuration.getProperty("SERVER_MODE");
+			if (mode != null) {
+				serverMode = mode.trim();
+			}
+			String connections = configuration.getProperty("MAX_CONNECTIONS");
+			if (connections != null && Integer.parseInt(connections.trim()) > 0) {
+				maxConnections = Integer.parseInt(connections.trim());
+			}
+			
+			// Write the lines of the logs from LOG_LEVEL up, DEBUG writes a line for every request
+			String logLevel = configuration.getProperty("LOG_LEVEL");
+			if (logLevel != null && !LogUtility.setLevel(logLevel)) {
+				System.out.println("LOG_LEVEL must be DEBUG, INFO, WARN or ERROR. Cannot run program. Bye...");
+				System.exit(0);
+			}
+			
+			// Keep the (KEY, VALUE) pairs on the heap (default) or in direct memory
+			String storageEngine = configuration.getProperty("STORAGE_ENGINE");
+			if (storageEngine != null && storageEngine.trim().equalsIgnoreCase("offheap")) {
+				hashTable = new OffHeapStorageEngine();
+			} else if (storageEngine != null && !storageEngine.trim().equalsIgnoreCase("heap")) {
+				System.out.println("STORAGE_ENGINE must be heap or offheap. Cannot run program. Bye...");
+				System.exit(0);
+			}
+			
+			// Recover the hashTable from the local disk and log its changes from now on
+			String dataLocation = configuration.getProperty("DATA_LOCATION");
+			if (dataLocation != null && dataLocation.trim().length() > 0) {
+				long startTime = System.currentTimeMillis();
+				writeAheadLog = new WriteAheadLog(dataLocation.trim());
+				recovered = writeAheadLog.recover(hashTable);
+				for (Map.Entry<String, Long> entry : hashTable.versions()) {
+					observeVersion(entry.getValue());
+					merkleTree.add(entry.getKey(), entry.getValue());
+				}
+				writeAheadLog.start();
+				
+				if (recovered) {
+					System.out.println(String.format("Recovered %d (KEY, VALUE) pairs from %s in %.3f seconds.", hashTable.size(), dataLocation.trim(), (System.currentTimeMillis() - startTime) / 1000.0));
+				}
+			}
+			
+			// Keep the writes for the nodes which are down in the same directory and deliver the ones left from the last run
+			HintedHandoff.open((dataLocation != null && dataLocation.trim().length() > 0) ? dataLocation.trim() : null);
+			
 			// Loading replication nodes IP addresses from configuration file
 			peerList = configuration.getProperty("REPLICATION_NODES");
 			
@@ -218,6 +747,13 @@ public class DistributedHashTable {
 				}
 			}
 			
+			// Number of copies of each KEY and number of copies which answer reads and writes (N, R and W). The copies are on
+			// different machines, so a replica on this node is not one of them.
+			int copies = 1 + replicationNodes.size() - (replicationNodes.contains(LOCAL_ADDRESS) ? 1 : 0);
+			replicationFactor = parseQuorum(configuration, "REPLICATION_FACTOR", copies, copies, "1 + the number of the other replication nodes");
+			readQuorum = parseQuorum(configuration, "READ_QUORUM", 1, replicationFactor, "REPLICATION_FACTOR");
+			writeQuorum = parseQuorum(configuration, "WRITE_QUORUM", 1, replicationFactor, "REPLICATION_FACTOR");
+			
 			//System.out.println(networkMap);
 			//System.out.println(replicationNodes);
 		} catch (Exception e) {
@@ -231,9 +767,31 @@ public class DistributedHashTable {
 			} catch (Exception e2) { }
 		}
 		
+		// Forget the old deletes
+		Thread tombstonePurger = new Thread("DistributedHashTable-tombstones") {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(60 * 1000);
+					} catch (InterruptedException e) {
+						break;
+					}
+					purgeTombstones();
+				}
+			}
+		};
+		tombstonePurger.setDaemon(true);
+		tombstonePurger.start();
+		
+		// Repair the replicas which missed some changes
+		AntiEntropyService.start(antiEntropyInterval);
+		
+		// Listen before the client starts so that this node can receive the keys moved to it when it joins the network
+		ServerSocket listener = new ServerSocket(PEER_SERVER_PORT);
+		
 		// Start a new Thread which acts as Client on Peer side
 		System.out.println("********** PEER CLIENT STARTED **********");
-		PeerClient peerClient = new PeerClient();
+		PeerClient peerClient = new PeerClient(args.length > 0 && args[0].equalsIgnoreCase("join"));
 		peerClient.start();
 		
 		/**
@@ -241,15 +799,14 @@ public class DistributedHashTable {
 		 * on port 20000. When a a file download is requested, it spawns a new
 		 * thread to do the servicing and immediately returns to listening.
 		 */
+		final ServerExecutor serverExecutor = new ServerExecutor(serverMode, maxConnections);
+		// Let the requests being served complete when the peer is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				serverExecutor.shutdown();
+			}
+		});
 		System.out.println("********** PEER SERVER STARTED **********");
-		ServerSocket listener = new ServerSocket(PEER_SERVER_PORT);
-        try {
-            while (true) {
-            	PeerServer peerServer = new PeerServer(listener.accept());
-               peerServer.start();
-            }
-        } finally {
-            listener.close();
-        }
+		serverExecutor.serve(listener);
 	}
 }
@@ -3,6 +3,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -13,6 +14,9 @@ public class HashTest {
 	public static void main(String[] args) {
 		// Testing Hash Function
 		testHash("rawtext.txt", 10);
+		
+		// Comparing the keys moved and the bucket skew of hashCode() % N and the consistent hash ring
+		testMovement("rawtext.txt", 10, HashRing.DEFAULT_VIRTUAL_NODES);
 	}
 	
 	/***
@@ -89,4 +93,94 @@ public class HashTest {
 		}
 
 	}
+
+	/***
+	 * This method compares hashCode() % N with the consistent hash ring when a node joins and when a node leaves the network.
+	 * For each placement it reports the percentage of keys which moved to another node and the skew of the buckets
+	 * i.e. the size of the largest bucket divided by the mean size and the standard deviation of the sizes.
+	 * @param fileName		File whose words are used as keys
+	 * @param networkSize	Number of nodes before the change
+	 * @param virtualNodes	Number of tokens of each node on the ring
+	 */
+	private static void testMovement(String fileName, int networkSize, int virtualNodes) {
+		BufferedReader br = null;
+		LinkedHashSet<String> words = new LinkedHashSet<String>();
+		
+		try {
+			br = new BufferedReader(new FileReader(fileName));
+			String line = null;
+			while((line = br.readLine()) != null) {
+				for (String word: line.split(" ")) {
+					words.add(word);
+				}
+			}
+			
+			System.out.println("**** KEY MOVEMENT (" + words.size() + " keys, " + virtualNodes + " virtual nodes) ****");
+			int[] sizes = { networkSize + 1, networkSize - 1 };
+			for (int newSize : sizes) {
+				HashRing oldRing = new HashRing(testNetwork(networkSize), virtualNodes);
+				HashRing newRing = new HashRing(testNetwork(newSize), virtualNodes);
+				
+				int[] modBuckets = new int[newSize + 1];
+				int[] ringBuckets = new int[newSize + 1];
+				int modMoved = 0, ringMoved = 0;
+				for (String word : words) {
+					int node = hash(word, newSize);
+					modBuckets[node]++;
+					if (node != hash(word, networkSize))
+						modMoved++;
+					
+					node = newRing.getNode(word);
+					ringBuckets[node]++;
+					if (node != oldRing.getNode(word))
+						ringMoved++;
+				}
+				
+				System.out.println(String.format("%d -> %d NODES", networkSize, newSize));
+				System.out.println(String.format("  hashCode %% N : %6.2f%% keys moved, %s", 100.0 * modMoved / words.size(), skew(modBuckets)));
+				System.out.println(String.format("  Hash ring    : %6.2f%% keys moved, %s", 100.0 * ringMoved / words.size(), skew(ringBuckets)));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if(br != null) 
+					br.close();
+			} catch (Exception e2) {
+				e2.printStackTrace();
+			}
+		}
+	}
+	
+	/***
+	 * This method builds a network map of the given size with one IP address for each node id, as read from the configuration file.
+	 * @param networkSize	Number of nodes
+	 * @return				Node ids and IP addresses of the nodes
+	 */
+	private static HashMap<Integer, String> testNetwork(int networkSize) {
+		HashMap<Integer, String> networkMap = new HashMap<Integer, String>();
+		for (int i = 1; i <= networkSize; i++) {
+			networkMap.put(i, "10.0.0." + i);
+		}
+		return networkMap;
+	}
+	
+	/***
+	 * This method describes the balance of the buckets. Bucket 0 is not used as node ids start from 1.
+	 * @param buckets	Number of keys of each node
+	 * @return			Largest bucket / mean bucket and standard deviation of the buckets
+	 */
+	private static String skew(int[] buckets) {
+		int nodes = buckets.length - 1;
+		double total = 0, max = 0;
+		for (int i = 1; i <= nodes; i++) {
+			total += buckets[i];
+			max = Math.max(max, buckets[i]);
+		}
+		double mean = total / nodes, variance = 0;
+		for (int i = 1; i <= nodes; i++) {
+			variance += (buckets[i] - mean) * (buckets[i] - mean);
+		}
+		return String.format("max/mean %.3f, stddev %.1f", max / mean, Math.sqrt(variance / nodes));
+	}
 }
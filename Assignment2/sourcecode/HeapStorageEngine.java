@@ -0,0 +1,149 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * This class keeps the (KEY,VALUE) pairs of the hashTable in a ConcurrentHashMap on the Java heap, each VALUE with its
+ * version in the same entry.
+ */
+public class HeapStorageEngine implements StorageEngine {
+
+	private ConcurrentHashMap<String, Versioned> hashTable = new ConcurrentHashMap<String, Versioned>();
+	// Number of deleted KEYS kept with their version
+	private AtomicInteger tombstones = new AtomicInteger();
+
+	public String get(String key) {
+		Versioned current = hashTable.get(key);
+		return (current != null) ? current.value : null;
+	}
+
+	public String get(String key, long[] version) {
+		Versioned current = hashTable.get(key);
+		version[0] = (current != null) ? current.version : 0;
+		return (current != null) ? current.value : null;
+	}
+
+	public long getVersion(String key) {
+		Versioned current = hashTable.get(key);
+		return (current != null) ? current.version : 0;
+	}
+
+	public boolean containsKey(String key) {
+		return get(key) != null;
+	}
+
+	public void put(String key, String value, long version) {
+		Versioned previous = hashTable.put(key, new Versioned(value, version));
+		forget(previous);
+		if (value == null) {
+			tombstones.incrementAndGet();
+		}
+	}
+
+	public boolean remove(String key) {
+		Versioned previous = hashTable.remove(key);
+		forget(previous);
+		return previous != null;
+	}
+
+	public boolean remove(String key, String value) {
+		while (true) {
+			Versioned current = hashTable.get(key);
+			if (current == null || current.value == null || !current.value.equals(value)) {
+				return false;
+			}
+			if (hashTable.remove(key, current)) {
+				return true;
+			}
+		}
+	}
+
+	public int size() {
+		return Math.max(0, hashTable.size() - tombstones.get());
+	}
+
+	/***
+	 * @return	Returns true if there is no KEY, not even a deleted one.
+	 */
+	public boolean isEmpty() {
+		return hashTable.isEmpty();
+	}
+
+	public Iterable<Map.Entry<String, String>> entries() {
+		return new Iterable<Map.Entry<String, String>>() {
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new EntryIterator<String>() {
+					Map.Entry<String, String> convert(String key, Versioned current) {
+						return (current.value != null) ? new AbstractMap.SimpleImmutableEntry<String, String>(key, current.value) : null;
+					}
+				};
+			}
+		};
+	}
+
+	public Iterable<Map.Entry<String, Long>> versions() {
+		return new Iterable<Map.Entry<String, Long>>() {
+			public Iterator<Map.Entry<String, Long>> iterator() {
+				return new EntryIterator<Long>() {
+					Map.Entry<String, Long> convert(String key, Versioned current) {
+						return new AbstractMap.SimpleImmutableEntry<String, Long>(key, current.version);
+					}
+				};
+			}
+		};
+	}
+
+	public long offHeapSize() {
+		return 0;
+	}
+
+	// Updates the number of deleted KEYS when an entry is replaced or removed
+	private void forget(Versioned previous) {
+		if (previous != null && previous.value == null) {
+			tombstones.decrementAndGet();
+		}
+	}
+
+	// VALUE of a KEY, null if the KEY is deleted, and its version
+	private static class Versioned {
+		final String value;
+		final long version;
+
+		Versioned(String value, long version) {
+			this.value = value;
+			this.version = version;
+		}
+	}
+
+	// Iterates over the entries of the map, skipping the ones which convert(...) returns null for
+	private abstract class EntryIterator<T> implements Iterator<Map.Entry<String, T>> {
+		private Iterator<Map.Entry<String, Versioned>> entries = hashTable.entrySet().iterator();
+		private Map.Entry<String, T> next = null;
+
+		abstract Map.Entry<String, T> convert(String key, Versioned current);
+
+		public boolean hasNext() {
+			while (next == null && entries.hasNext()) {
+				Map.Entry<String, Versioned> entry = entries.next();
+				next = convert(entry.getKey(), entry.getValue());
+			}
+			return next != null;
+		}
+
+		public Map.Entry<String, T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, T> entry = next;
+			next = null;
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
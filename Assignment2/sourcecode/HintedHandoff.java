@@ -0,0 +1,443 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class provides hinted handoff in the Distributed Hash Table.
+ * When the node of a KEY is down, the client sends the write (H_PUT, H_PUT_FORCE or H_DELETE) to the next healthy node,
+ * which gives it a version, keeps it as a hint for the node and, if it is a replication node, in its replicas so that the
+ * reads which fall back to the replicas see it. The hints are appended to a hint log in DATA_LOCATION (a RecordLog) before
+ * the write is acknowledged, so they survive a restart of this peer.
+ *
+ * Each node with hints has one HintedHandoff thread which sends them in HANDOFF batches as soon as the node answers again,
+ * throttled to REBALANCE_RATE. The node applies a hint only if it is newer than its VALUE, so a hint delivered twice or
+ * after a newer write is harmless. Once all the hints are delivered the hint log is emptied.
+ *
+ * Hint log record:	[int length][int CRC32 of the payload][int node length][node][int key length][key][int value length or -1][value][long version]
+ */
+public class HintedHandoff extends Thread {
+	public static final int BATCH_SIZE = 500; // Hints per HANDOFF request
+	public static final long MIN_RETRY_DELAY = 1000; // 1 second
+	public static final long MAX_RETRY_DELAY = 30 * 1000; // 30 seconds
+	public static final long MAX_LOG_SIZE = 16 * 1024 * 1024; // 16 MegaBytes, the delivered hints are removed from a bigger log
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static ConcurrentHashMap<String, HintedHandoff> services = new ConcurrentHashMap<String, HintedHandoff>();
+	private static ConnectionPool connectionPool = new ConnectionPool(DistributedHashTable.getPeerServerPort());
+
+	// Hint log, null if DATA_LOCATION is not configured. The threads which append hints and the thread which compacts the
+	// log synchronize on logLock
+	private static final Object logLock = new Object();
+	private static File logFile = null;
+	private static volatile RecordLog log = null;
+	private static long logRecords = 0;
+
+	private String nodeAddress = null;
+
+	// Hints which are not delivered yet, in the order of their first write. The VALUE of a deleted KEY is null
+	private LinkedHashMap<String, Hint> pending = new LinkedHashMap<String, Hint>();
+
+	// Metrics
+	private volatile long hintsStored = 0;
+	private volatile long hintsDelivered = 0;
+	private volatile long failures = 0;
+	private volatile long lastDelivered = 0;
+
+	private HintedHandoff(String nodeAddress) {
+		super("HintedHandoff-" + nodeAddress);
+		this.nodeAddress = nodeAddress;
+		setDaemon(true);
+	}
+
+	/***
+	 * This method loads the hints which were not delivered before the peer stopped and starts delivering them.
+	 * The hints written from now on are appended to the hint log.
+	 * @param location	Directory of the hint log, or null to keep the hints only in memory.
+	 */
+	public static void open(String location) throws IOException {
+		if (location == null) {
+			return;
+		}
+
+		File directory = new File(location);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the directory " + location);
+		}
+		logFile = new File(directory, "hints.log");
+
+		// Drop the incomplete record written when the peer stopped, if any
+		long validSize = logFile.exists() ? readLog(logFile) : 0;
+		if (logRecords > 0) {
+			System.out.println(String.format("Recovered %d hints for the nodes which were down.", logRecords));
+		}
+		synchronized (logLock) {
+			FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			channel.truncate(validSize);
+			log = new RecordLog(channel, validSize, BUFFER_SIZE);
+		}
+	}
+
+	/***
+	 * This method keeps a write for a node which is down until it can be delivered. awaitDurable() waits until it is on the disk.
+	 * @param nodeAddress	IP address of the node of the KEY
+	 * @param key			KEY which was written
+	 * @param value			New VALUE of the KEY, or null if the KEY was deleted
+	 * @param version		Version of the write
+	 */
+	public static void hint(String nodeAddress, String key, String value, long version) {
+		byte[] payload = encode(nodeAddress, key, value, version);
+
+		// The hint is queued and logged together so that the log can be rewritten from the queued hints
+		synchronized (logLock) {
+			if (log != null) {
+				log.append(payload);
+				logRecords++;
+			}
+			serviceOf(nodeAddress).add(key, value, version);
+		}
+	}
+
+	/***
+	 * This method returns the hint which is not delivered yet for a KEY of a node.
+	 * @param nodeAddress	IP address of the node of the KEY
+	 * @param key			KEY which is to be searched.
+	 * @param version		Array where the version of the hint is stored at index 0, 0 if there is no hint for the KEY.
+	 * @return				Returns the VALUE of the hint, or NULL if there is no hint or the hint is a delete.
+	 */
+	public static String getHint(String nodeAddress, String key, long[] version) {
+		version[0] = 0;
+		HintedHandoff service = services.get(nodeAddress);
+		if (service == null) {
+			return null;
+		}
+		synchronized (service) {
+			Hint hint = service.pending.get(key);
+			if (hint == null) {
+				return null;
+			}
+			version[0] = hint.version;
+			return hint.value;
+		}
+	}
+
+	/***
+	 * This method waits until the hints written by the calling thread are forced to the disk.
+	 */
+	public static void awaitDurable() throws IOException {
+		RecordLog hintLog = log;
+		if (hintLog != null) {
+			hintLog.awaitDurable();
+		}
+	}
+
+	/***
+	 * This method applies the hints handed off by another node to the hashTable of this peer and replicates the hints which
+	 * are newer than the VALUES of this peer.
+	 * @param keys		KEYS of the hints
+	 * @param values	VALUE of each KEY, null if the KEY was deleted
+	 * @param versions	Version of each hint
+	 * @return			Returns the number of hints applied.
+	 */
+	public static int apply(ArrayList<String> keys, ArrayList<String> values, long[] versions) {
+		ArrayList<String> appliedKeys = new ArrayList<String>();
+		ArrayList<String> appliedValues = new ArrayList<String>();
+		long[] appliedVersions = new long[keys.size()];
+
+		for (int i = 0; i < keys.size(); i++) {
+			if (DistributedHashTable.putVersionInHashTable(keys.get(i), values.get(i), versions[i])) {
+				appliedVersions[appliedKeys.size()] = versions[i];
+				appliedKeys.add(keys.get(i));
+				appliedValues.add(values.get(i));
+			}
+		}
+
+		if (!appliedKeys.isEmpty()) {
+			ReplicationService.replicate(appliedKeys, appliedValues, appliedVersions);
+		}
+		return appliedKeys.size();
+	}
+
+	// Returns the thread delivering the hints of the node, starting it if needed
+	private static HintedHandoff serviceOf(String nodeAddress) {
+		HintedHandoff service = services.get(nodeAddress);
+		if (service == null) {
+			synchronized (services) {
+				service = services.get(nodeAddress);
+				if (service == null) {
+					service = new HintedHandoff(nodeAddress);
+					service.start();
+					services.put(nodeAddress, service);
+				}
+			}
+		}
+		return service;
+	}
+
+	// Queues a hint. Only the newest write of a KEY has to be delivered
+	private synchronized void add(String key, String value, long version) {
+		Hint hint = pending.get(key);
+		if (hint == null || version > hint.version) {
+			pending.put(key, new Hint(value, version));
+		}
+		hintsStored++;
+		notifyAll();
+	}
+
+	public void run() {
+		long retryDelay = MIN_RETRY_DELAY;
+
+		while (true) {
+			ArrayList<String> keys = new ArrayList<String>();
+			ArrayList<String> values = new ArrayList<String>();
+			ArrayList<Hint> hints = new ArrayList<Hint>();
+			int bytes = 0;
+
+			// The hints stay queued until the node acknowledges them
+			synchronized (this) {
+				while (pending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				Iterator<Map.Entry<String, Hint>> iterator = pending.entrySet().iterator();
+				while (iterator.hasNext() && keys.size() < BATCH_SIZE) {
+					Map.Entry<String, Hint> entry = iterator.next();
+					keys.add(entry.getKey());
+					values.add(entry.getValue().value);
+					hints.add(entry.getValue());
+					bytes += entry.getKey().length() + (entry.getValue().value != null ? entry.getValue().value.length() : 0) + 8;
+				}
+			}
+
+			long[] versions = new long[hints.size()];
+			for (int i = 0; i < versions.length; i++) {
+				versions[i] = hints.get(i).version;
+			}
+
+			try {
+				long startTime = System.currentTimeMillis();
+				deliver(keys, values, versions);
+
+				synchronized (this) {
+					// A hint written again meanwhile is a new Hint and stays queued
+					for (int i = 0; i < keys.size(); i++) {
+						pending.remove(keys.get(i), hints.get(i));
+					}
+					hintsDelivered += keys.size();
+					lastDelivered = System.currentTimeMillis();
+				}
+				retryDelay = MIN_RETRY_DELAY;
+				compactLog();
+
+				// Don't slow down the node which is catching up with its requests
+				long delay = (long) bytes * 1000 / DistributedHashTable.getRebalanceRate() - (System.currentTimeMillis() - startTime);
+				if (delay > 0) {
+					Thread.sleep(delay);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				// The node is still down
+				failures++;
+				try {
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+			}
+		}
+	}
+
+	// Sends the hints to the node, or to the nodes which have the KEYS now if the node left the network
+	private void deliver(ArrayList<String> keys, ArrayList<String> values, long[] versions) throws Exception {
+		HashMap<Integer, String> networkMap = DistributedHashTable.getNetworkMap();
+		if (networkMap.containsValue(nodeAddress)) {
+			send(nodeAddress, keys, values, versions);
+			return;
+		}
+
+		HashMap<String, ArrayList<Integer>> positions = new HashMap<String, ArrayList<Integer>>();
+		for (int i = 0; i < keys.size(); i++) {
+			String target = networkMap.get(DistributedHashTable.getHashRing().getNode(keys.get(i)));
+			ArrayList<Integer> list = positions.get(target);
+			if (list == null) {
+				list = new ArrayList<Integer>();
+				positions.put(target, list);
+			}
+			list.add(i);
+		}
+
+		for (Map.Entry<String, ArrayList<Integer>> entry : positions.entrySet()) {
+			ArrayList<String> targetKeys = new ArrayList<String>();
+			ArrayList<String> targetValues = new ArrayList<String>();
+			long[] targetVersions = new long[entry.getValue().size()];
+			for (int i : entry.getValue()) {
+				targetVersions[targetKeys.size()] = versions[i];
+				targetKeys.add(keys.get(i));
+				targetValues.add(values.get(i));
+			}
+
+			if (entry.getKey().equalsIgnoreCase(DistributedHashTable.getLocalAddress())) {
+				apply(targetKeys, targetValues, targetVersions);
+				DistributedHashTable.awaitDurable();
+			} else {
+				send(entry.getKey(), targetKeys, targetValues, targetVersions);
+			}
+		}
+	}
+
+	// Sends a batch of hints and checks that the node applied it
+	private void send(String target, ArrayList<String> keys, ArrayList<String> values, long[] versions) throws Exception {
+		Request request = new Request();
+		request.setRequestType("HANDOFF");
+		request.setKeys(keys);
+		request.setValues(values);
+		request.setVersions(versions);
+
+		Response response = connectionPool.send(target, request);
+		if (response.getResponseCode() != 200) {
+			throw new Exception("Hinted handoff to " + target + " failed with code " + response.getResponseCode());
+		}
+	}
+
+	// Empties the hint log when all the hints are delivered, or rewrites it with the remaining hints when it is mostly delivered hints
+	private static void compactLog() throws IOException {
+		synchronized (logLock) {
+			if (log == null) {
+				return;
+			}
+
+			long remaining = 0;
+			for (HintedHandoff service : services.values()) {
+				synchronized (service) {
+					remaining += service.pending.size();
+				}
+			}
+
+			// The records which were not written yet are dropped, their hints are delivered or in the new log
+			if (remaining == 0) {
+				if (logRecords > 0) {
+					log.truncate();
+				}
+			} else if (log.size() > MAX_LOG_SIZE && logRecords > 2 * remaining) {
+				rewriteLog();
+			} else {
+				return;
+			}
+			logRecords = remaining;
+		}
+	}
+
+	// Writes the queued hints to a new hint log which replaces the current one. Called with logLock held
+	private static void rewriteLog() throws IOException {
+		File newFile = new File(logFile.getPath() + ".tmp");
+		FileChannel newChannel = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+		long size = 0;
+		try {
+			for (HintedHandoff service : services.values()) {
+				synchronized (service) {
+					for (Map.Entry<String, Hint> entry : service.pending.entrySet()) {
+						RecordLog.writeRecord(buffer, encode(service.nodeAddress, entry.getKey(), entry.getValue().value, entry.getValue().version));
+						if (buffer.size() >= BUFFER_SIZE) {
+							size += write(newChannel, buffer);
+						}
+					}
+				}
+			}
+			size += write(newChannel, buffer);
+			newChannel.force(false);
+		} finally {
+			newChannel.close();
+		}
+
+		Files.move(newFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		log.discard();
+		log.setChannel(FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND), size);
+	}
+
+	private static int write(FileChannel target, ByteArrayOutputStream buffer) throws IOException {
+		ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+		while (bytes.hasRemaining()) {
+			target.write(bytes);
+		}
+		int size = buffer.size();
+		buffer.reset();
+		return size;
+	}
+
+	// Queues the hints of the log and returns the size of its valid records, stopping at the first incomplete or corrupted record
+	private static long readLog(File file) throws IOException {
+		return RecordLog.read(file, new RecordLog.Reader() {
+			public void read(DataInputStream record) throws IOException {
+				String nodeAddress = RecordLog.readString(record);
+				String key = RecordLog.readString(record);
+				String value = RecordLog.readString(record);
+				long version = record.readLong();
+				DistributedHashTable.observeVersion(version);
+				serviceOf(nodeAddress).add(key, value, version);
+				logRecords++;
+			}
+		}, BUFFER_SIZE);
+	}
+
+	private static byte[] encode(String nodeAddress, String key, String value, long version) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream(64 + key.length() + (value != null ? 3 * value.length() : 0));
+		try {
+			DataOutputStream out = new DataOutputStream(record);
+			RecordLog.writeString(out, nodeAddress);
+			RecordLog.writeString(out, key);
+			RecordLog.writeString(out, value);
+			out.writeLong(version);
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+		}
+		return record.toByteArray();
+	}
+
+	/***
+	 * This method returns the hinted handoff status of each node which had hints: the number of hints waiting to be delivered
+	 * and the counts of stored and delivered hints.
+	 * @return	Returns one line per node.
+	 */
+	public static String getStatus() {
+		StringBuilder status = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (HintedHandoff service : services.values()) {
+			synchronized (service) {
+				status.append(String.format("Hints for %s: %d pending, %d stored, %d delivered, %d failures, last delivered %s%n",
+						service.nodeAddress, service.pending.size(), service.hintsStored, service.hintsDelivered, service.failures,
+						service.lastDelivered == 0 ? "never" : (now - service.lastDelivered) + " ms ago"));
+			}
+		}
+		return status.toString();
+	}
+
+	// A write which is not delivered yet and its version
+	private static class Hint {
+		final String value;
+		final long version;
+
+		Hint(String value, long version) {
+			this.value = value;
+			this.version = version;
+		}
+	}
+}
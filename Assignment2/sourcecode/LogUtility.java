@@ -1,20 +1,27 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 
 /***
  * This class provides various methods to create and manage logs.
  * Example: Peer download logs and Server logs
+ *
+ * The lines are written to the log file in the background by an AsyncLogger, so write(...) only adds the line to a buffer.
+ * Each line has a level, and the lines below the level of the logs (LOG_LEVEL) are neither formatted nor written.
  */
 public class LogUtility {
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int WARN = 2;
+	public static final int ERROR = 3;
+	private static final String[] LEVELS = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+	// Lines below this level are not written
+	private static volatile int level = INFO;
 
 	private String logFile = "";
-	private BufferedWriter writer = null;
+	private AsyncLogger logger = null;
 	private final String logLocation = "logs/";
 
 	/***
@@ -22,45 +29,67 @@ public class LogUtility {
 	 * @param logType	Type of log to be worked on. Peer/Server log
 	 */
 	public LogUtility(String logType) {
-		try {
-			if (logType.equalsIgnoreCase("Peer")) {
-				logFile = "peer.server.log";
-			} else if (logType.equalsIgnoreCase("Server")) {
-				logFile = "server.log";
-			} else if (logType.equalsIgnoreCase("Replication")) {
-				logFile = "replication.log";
+		if (logType.equalsIgnoreCase("Peer")) {
+			logFile = "peer.server.log";
+		} else if (logType.equalsIgnoreCase("Server")) {
+			logFile = "server.log";
+		} else if (logType.equalsIgnoreCase("Replication")) {
+			logFile = "replication.log";
+		}
+		// The file is opened once by the logger of the file, not by every LogUtility
+		logger = AsyncLogger.get(logLocation + logFile);
+	}
+
+	/***
+	 * This method sets the level below which the lines are not written.
+	 * @param levelName	DEBUG, INFO, WARN or ERROR
+	 * @return			Returns true if the level is valid.
+	 */
+	public static boolean setLevel(String levelName) {
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (LEVELS[i].equalsIgnoreCase(levelName.trim())) {
+				level = i;
+				return true;
 			}
-			// Create a logs folder if it doesn't exist
-			File file = new File(logLocation);
-			if (!file.exists())
-				file.mkdir();
-			
-			writer = new BufferedWriter(new FileWriter(logLocation + logFile, true));
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
+		return false;
 	}
 
 	/***
-	 * This method is used to write a text to the log file.
+	 * This method tells whether the lines of a level are written, to skip building a line which is not written.
+	 * @param lineLevel	DEBUG, INFO, WARN or ERROR
+	 * @return			Returns true if the lines of this level are written.
+	 */
+	public static boolean isEnabled(int lineLevel) {
+		return lineLevel >= level;
+	}
+
+	/***
+	 * This method is used to write a text to the log file, at the INFO level.
 	 * @param logText	Text to be appended to the log file.
 	 * @return			Returns true if write is successful else returns false
 	 */	
 	public boolean write(String logText) {
-		boolean isWriteSuccess = false;
+		return isEnabled(INFO) && logger.append(logText);
+	}
+
+	/***
+	 * This method is used to write a formatted text to the log file. The text is formatted only if its level is written.
+	 * @param lineLevel	DEBUG, INFO, WARN or ERROR
+	 * @param format	Format of the text, as in String.format(...)
+	 * @param args		Values of the format
+	 * @return			Returns true if write is successful else returns false
+	 */
+	public boolean write(int lineLevel, String format, Object... args) {
+		if (!isEnabled(lineLevel)) {
+			return false;
+		}
 		try {
-			String timeLog = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss").format(Calendar.getInstance().getTime());
-			if (writer != null) {
-				logText = String.format("%s => %s", timeLog, logText);
-				writer.write(logText);
-				String newline = System.getProperty("line.separator");
-				writer.write(newline);
-				isWriteSuccess = true;
-			}
+			return logger.append(String.format(format, args));
 		} catch (Exception e) {
 			e.printStackTrace();
+			return false;
 		}
-		return isWriteSuccess;
 	}
 	
 	/***
@@ -71,6 +100,9 @@ public class LogUtility {
 		File file = new File(logFile);
 		int charCount = 0;
 		
+		// Show the lines which are still in the buffer too
+		logger.flush(AsyncLogger.SYNC_INTERVAL);
+		
 		System.out.println("\nLOG");
 		System.out.println("=========================================================================");
 		
@@ -99,29 +131,10 @@ public class LogUtility {
 	}
 	
 	/***
-	 * This method closes the file stream so that the log file can be accessed by other methods.
+	 * This method ends the use of the log. The log file is shared by all the users of the log, so it stays open and its
+	 * lines are written to the disk in the background.
 	 */
 	public void close() {
-		try {
-			if (writer != null) {
-				String newline = System.getProperty("line.separator");
-				writer.write(newline);
-				writer.close();
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	/***
-	 * This method is called whenever the garbage collector is called. Acts as destructor.
-	 */
-	@Override
-	protected void finalize() throws Throwable {
-		if (writer != null) {
-			writer.close();
-		}
-		super.finalize();
 	}
 	
 	/*public static void main(String[] args) {
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * This class keeps a Merkle tree over the KEYS of a Hash Table so that two nodes can find which KEYS differ between their
+ * copies by exchanging a few hashes instead of the KEYS.
+ *
+ * The KEYS are split in LEAVES equal ranges of the positions of the consistent hash ring. The hash of a leaf combines the
+ * (KEY, version) pairs of its range and is updated every time a version changes, so the tree is always up to date without
+ * scanning the Hash Table.
+ * The hash of an inner node combines the hashes of its two children and is computed when the tree is compared.
+ * Nodes are numbered like a binary heap: the root is 1, the children of node i are 2i and 2i+1, and the leaves are LEAVES
+ * to 2 * LEAVES - 1.
+ */
+public class MerkleTree {
+	public static final int DEPTH = 10;
+	public static final int LEAVES = 1 << DEPTH; // 1024 ranges
+
+	private AtomicLongArray leaves = new AtomicLongArray(LEAVES);
+
+	/***
+	 * This method adds a (KEY, version) pair to the tree.
+	 * @param key		KEY which was written or deleted
+	 * @param version	Version of the VALUE or of the delete
+	 */
+	public void add(String key, long version) {
+		toggle(key, version);
+	}
+
+	/***
+	 * This method removes a (KEY, version) pair added before from the tree.
+	 * @param key		KEY which was written or deleted
+	 * @param version	Version of the VALUE or of the delete
+	 */
+	public void remove(String key, long version) {
+		toggle(key, version);
+	}
+
+	// The hash of a leaf is the XOR of the digests of its pairs, so adding and removing a pair are the same operation
+	private void toggle(String key, long version) {
+		long hash = HashRing.hash(key);
+		long digest = mix(hash ^ mix(version));
+		int leaf = (int) (hash >>> (32 - DEPTH));
+		while (true) {
+			long current = leaves.get(leaf);
+			if (leaves.compareAndSet(leaf, current, current ^ digest)) {
+				return;
+			}
+		}
+	}
+
+	/***
+	 * This method returns the hashes of all the nodes of the tree.
+	 * @return	Returns an array where the hash of node i is at index i (index 0 is not used).
+	 */
+	public long[] getHashes() {
+		long[] hashes = new long[2 * LEAVES];
+		for (int i = 0; i < LEAVES; i++) {
+			hashes[LEAVES + i] = leaves.get(i);
+		}
+		for (int i = LEAVES - 1; i >= 1; i--) {
+			hashes[i] = mix(hashes[2 * i] ^ Long.rotateLeft(mix(hashes[2 * i + 1]), 1));
+		}
+		return hashes;
+	}
+
+	/***
+	 * This method returns the leaf whose range contains the KEY.
+	 * @param key	KEY
+	 * @return		Returns the number of the leaf, between LEAVES and 2 * LEAVES - 1.
+	 */
+	public static int leafOf(String key) {
+		return LEAVES + (int) (HashRing.hash(key) >>> (32 - DEPTH));
+	}
+
+	public void clear() {
+		for (int i = 0; i < LEAVES; i++) {
+			leaves.set(i, 0);
+		}
+	}
+
+	// Spreads the bits of a 64 bit value (finalizer of SplitMix64)
+	private static long mix(long value) {
+		value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+		value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+		return value ^ (value >>> 31);
+	}
+}
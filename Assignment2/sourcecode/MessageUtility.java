@@ -0,0 +1,450 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class provides the wire protocol used to exchange Request/Response messages between peers.
+ * Every message is sent as a frame: a 4 byte length followed by a 1 byte version and the message.
+ *
+ * VERSION (binary) frames are encoded by hand:
+ * 		Request		= opcode (1 byte), request id (4 bytes), key, value, keys, values, versions, quorum (4 bytes), node address
+ * 		Response	= response code (4 bytes), request id (4 bytes), response data, other data, response codes, values, versions, keys
+ * where strings are sent as a 4 byte length (-1 for null) followed by their UTF-8 bytes and lists
+ * are sent as a 4 byte count (-1 for null) followed by their items. The lists carry batch operations.
+ *
+ * SERIALIZED frames contain the Request/Response written with Java serialization. They are sent
+ * when the program is started with -Dprotocol=java so that both protocols can be compared.
+ * Both kinds of frames are always accepted when reading.
+ */
+public class MessageUtility {
+
+	public static final byte SERIALIZED = 0;
+	public static final byte VERSION = 1;
+	public static final int MAX_MESSAGE_SIZE = 1024 * 1024 * 128; // 128 MegaBytes
+	public static final boolean JAVA_SERIALIZATION = "java".equalsIgnoreCase(System.getProperty("protocol"));
+
+	// Request types indexed by their opcode
+	private static final String[] REQUEST_TYPES = { null, "PUT", "PUT_FORCE", "GET", "DELETE", "R_PUT", "R_GET", "R_DELETE",
+			"GET_HASHTABLE", "GET_R_HASHTABLE", "MPUT", "MGET", "MDELETE", "R_MPUT", "R_MDELETE",
+			"JOIN", "NETWORK_MAP", "MIGRATE", "REBALANCE_DONE", "Q_PUT", "Q_PUT_FORCE", "Q_GET", "Q_DELETE",
+			"H_PUT", "H_PUT_FORCE", "H_DELETE", "HANDOFF", "AE_HASHES", "AE_KEYS", "SCAN", "R_SCAN" };
+	private static final HashMap<String, Byte> OPCODES = new HashMap<String, Byte>();
+
+	// Types of the other data of a Response
+	private static final byte NO_DATA = 0;
+	private static final byte HASH_MAP = 1;
+	private static final byte MAP_OF_MAPS = 2;
+
+	// Buffers reused by each thread to encode frames and decode strings
+	private static final ThreadLocal<FrameBuffer> frameBuffers = new ThreadLocal<FrameBuffer>() {
+		protected FrameBuffer initialValue() {
+			return new FrameBuffer();
+		}
+	};
+	private static final ThreadLocal<byte[][]> stringBuffers = new ThreadLocal<byte[][]>() {
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[1024] };
+		}
+	};
+
+	static {
+		for (byte i = 1; i < REQUEST_TYPES.length; i++) {
+			OPCODES.put(REQUEST_TYPES[i], i);
+		}
+	}
+
+	/***
+	 * This method writes the request as a single frame and flushes the stream.
+	 * @param out		Output stream of the socket
+	 * @param request	Request to be sent
+	 */
+	public static void writeRequest(DataOutputStream out, Request request) throws IOException {
+		Byte opcode = OPCODES.get(request.getRequestType());
+		if (JAVA_SERIALIZATION || opcode == null) {
+			writeSerialized(out, request);
+			return;
+		}
+
+		FrameBuffer frame = frameBuffers.get();
+		frame.reset();
+		DataOutputStream body = frame.data;
+		body.writeByte(VERSION);
+		body.writeByte(opcode);
+		body.writeInt(request.getRequestId());
+		writeString(body, request.getKey());
+		writeString(body, request.getValue());
+		writeList(body, request.getKeys());
+		writeList(body, request.getValues());
+		writeVersions(body, request.getVersions());
+		body.writeInt(request.getQuorum());
+		writeString(body, request.getNodeAddress());
+		frame.writeTo(out);
+	}
+
+	/***
+	 * This method reads a single frame containing a request.
+	 * @param in	Input stream of the socket
+	 * @return		Request received
+	 */
+	public static Request readRequest(DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = readLength(in);
+		byte version = in.readByte();
+		if (version == SERIALIZED) {
+			return (Request) readSerialized(in, length - 1);
+		} else if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+
+		int opcode = in.readUnsignedByte();
+		if (opcode == 0 || opcode >= REQUEST_TYPES.length) {
+			throw new StreamCorruptedException("Unknown opcode: " + opcode);
+		}
+		Request request = new Request();
+		request.setRequestType(REQUEST_TYPES[opcode]);
+		request.setRequestId(in.readInt());
+		request.setKey(readString(in));
+		request.setValue(readString(in));
+		request.setKeys(readList(in));
+		request.setValues(readList(in));
+		request.setVersions(readVersions(in));
+		request.setQuorum(in.readInt());
+		request.setNodeAddress(readString(in));
+		return request;
+	}
+
+	/***
+	 * This method writes the response as a single frame and flushes the stream.
+	 * @param out		Output stream of the socket
+	 * @param response	Response to be sent
+	 */
+	public static void writeResponse(DataOutputStream out, Response response) throws IOException {
+		Object otherData = response.getOtherData();
+		if (JAVA_SERIALIZATION || !(otherData == null || otherData instanceof HashMap || otherData instanceof ConcurrentHashMap)) {
+			writeSerialized(out, response);
+			return;
+		}
+
+		FrameBuffer frame = frameBuffers.get();
+		frame.reset();
+		DataOutputStream body = frame.data;
+		body.writeByte(VERSION);
+		body.writeInt(response.getResponseCode());
+		body.writeInt(response.getRequestId());
+		writeString(body, response.getResponseData());
+
+		if (otherData == null) {
+			body.writeByte(NO_DATA);
+		} else if (otherData instanceof HashMap) {
+			body.writeByte(HASH_MAP);
+			writeMap(frame, (Map<?, ?>) otherData);
+		} else {
+			ConcurrentHashMap<?, ?> maps = (ConcurrentHashMap<?, ?>) otherData;
+			body.writeByte(MAP_OF_MAPS);
+			int countPosition = frame.size();
+			body.writeInt(0);
+			int count = 0;
+			for (Map.Entry<?, ?> entry : maps.entrySet()) {
+				writeString(body, (String) entry.getKey());
+				writeMap(frame, (Map<?, ?>) entry.getValue());
+				count++;
+			}
+			frame.patchInt(countPosition, count);
+		}
+
+		int[] responseCodes = response.getResponseCodes();
+		if (responseCodes == null) {
+			body.writeInt(-1);
+		} else {
+			body.writeInt(responseCodes.length);
+			for (int code : responseCodes) {
+				body.writeInt(code);
+			}
+		}
+		writeList(body, response.getValues());
+		writeVersions(body, response.getVersions());
+		writeList(body, response.getKeys());
+		frame.writeTo(out);
+	}
+
+	/***
+	 * This method reads a single frame containing a response.
+	 * @param in	Input stream of the socket
+	 * @return		Response received
+	 */
+	public static Response readResponse(DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = readLength(in);
+		byte version = in.readByte();
+		if (version == SERIALIZED) {
+			return (Response) readSerialized(in, length - 1);
+		} else if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+
+		Response response = new Response();
+		response.setResponseCode(in.readInt());
+		response.setRequestId(in.readInt());
+		response.setResponseData(readString(in));
+
+		byte dataType = in.readByte();
+		if (dataType == HASH_MAP) {
+			response.setOtherData(readMap(in));
+		} else if (dataType == MAP_OF_MAPS) {
+			int size = in.readInt();
+			ConcurrentHashMap<String, HashMap<String, String>> maps = new ConcurrentHashMap<String, HashMap<String, String>>(Math.max(16, size * 2));
+			for (int i = 0; i < size; i++) {
+				String key = readString(in);
+				maps.put(key, readMap(in));
+			}
+			response.setOtherData(maps);
+		} else if (dataType != NO_DATA) {
+			throw new StreamCorruptedException("Unknown data type: " + dataType);
+		}
+
+		int codeCount = in.readInt();
+		if (codeCount > MAX_MESSAGE_SIZE / 4) {
+			throw new StreamCorruptedException("Invalid list length: " + codeCount);
+		} else if (codeCount >= 0) {
+			int[] responseCodes = new int[codeCount];
+			for (int i = 0; i < codeCount; i++) {
+				responseCodes[i] = in.readInt();
+			}
+			response.setResponseCodes(responseCodes);
+		}
+		response.setValues(readList(in));
+		response.setVersions(readVersions(in));
+		response.setKeys(readList(in));
+		return response;
+	}
+
+	// Writes the versions of the values with their count, or -1 if there are no versions
+	private static void writeVersions(DataOutputStream out, long[] versions) throws IOException {
+		if (versions == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(versions.length);
+			for (long version : versions) {
+				out.writeLong(version);
+			}
+		}
+	}
+
+	// Reads the versions written by writeVersions
+	private static long[] readVersions(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count > MAX_MESSAGE_SIZE / 8) {
+			throw new StreamCorruptedException("Invalid list length: " + count);
+		} else if (count < 0) {
+			return null;
+		}
+		long[] versions = new long[count];
+		for (int i = 0; i < count; i++) {
+			versions[i] = in.readLong();
+		}
+		return versions;
+	}
+
+	// Reads and validates the length of the frame
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 1 || length > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid message length: " + length);
+		}
+		return length;
+	}
+
+	// Writes the message using Java serialization
+	private static void writeSerialized(DataOutputStream out, Object message) throws IOException {
+		FrameBuffer frame = frameBuffers.get();
+		frame.reset();
+		frame.data.writeByte(SERIALIZED);
+		ObjectOutputStream objectOut = new ObjectOutputStream(frame);
+		objectOut.writeObject(message);
+		objectOut.flush();
+		frame.writeTo(out);
+	}
+
+	// Reads a message written using Java serialization
+	private static Object readSerialized(DataInputStream in, int length) throws IOException, ClassNotFoundException {
+		byte[] data = new byte[length];
+		in.readFully(data);
+		ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(data));
+		return objectIn.readObject();
+	}
+
+	// Writes the entries of a map. The count is written after the entries because the map may be changed concurrently.
+	private static void writeMap(FrameBuffer frame, Map<?, ?> map) throws IOException {
+		DataOutputStream out = frame.data;
+		if (map == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int countPosition = frame.size();
+		out.writeInt(0);
+		int count = 0;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			writeString(out, (String) entry.getKey());
+			writeString(out, (String) entry.getValue());
+			count++;
+		}
+		frame.patchInt(countPosition, count);
+	}
+
+	// Reads the entries of a map
+	private static HashMap<String, String> readMap(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) {
+			return null;
+		}
+		HashMap<String, String> map = new HashMap<String, String>(Math.max(16, size * 2));
+		for (int i = 0; i < size; i++) {
+			String key = readString(in);
+			map.put(key, readString(in));
+		}
+		return map;
+	}
+
+	// Writes a list of strings
+	private static void writeList(DataOutputStream out, ArrayList<String> list) throws IOException {
+		if (list == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int size = list.size();
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			writeString(out, list.get(i));
+		}
+	}
+
+	// Reads a list of strings
+	private static ArrayList<String> readList(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) {
+			return null;
+		} else if (size > MAX_MESSAGE_SIZE / 4) {
+			throw new StreamCorruptedException("Invalid list length: " + size);
+		}
+		ArrayList<String> list = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(readString(in));
+		}
+		return list;
+	}
+
+	/***
+	 * This method writes a string as its UTF-8 length followed by its UTF-8 bytes.
+	 * The bytes are written one by one so that no byte array is created for the string.
+	 * @param out		Stream to write to
+	 * @param value		String to be written or null
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		int length = value.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				utfLength++;
+			} else if (c < 0x800) {
+				utfLength += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				utfLength += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				utfLength++;
+			} else {
+				utfLength += 3;
+			}
+		}
+		out.writeInt(utfLength);
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				out.write(c);
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				out.write(0xF0 | (codePoint >> 18));
+				out.write(0x80 | ((codePoint >> 12) & 0x3F));
+				out.write(0x80 | ((codePoint >> 6) & 0x3F));
+				out.write(0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates are replaced with '?' like String.getBytes(...) does
+				out.write('?');
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/***
+	 * This method reads a string written by writeString(...).
+	 * @param in	Stream to read from
+	 * @return		String read or null
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		} else if (length > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid string length: " + length);
+		}
+
+		byte[][] holder = stringBuffers.get();
+		if (holder[0].length < length) {
+			holder[0] = new byte[Math.max(length, holder[0].length * 2)];
+		}
+		in.readFully(holder[0], 0, length);
+		return new String(holder[0], 0, length, StandardCharsets.UTF_8);
+	}
+
+	/***
+	 * A growable buffer in which a frame is encoded before its length is known.
+	 * Each thread reuses its own buffer, so encoding a frame doesn't create any buffer.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+		private DataOutputStream data = new DataOutputStream(this);
+
+		public FrameBuffer() {
+			super(1024);
+		}
+
+		// Overwrites the integer at the given position of the frame
+		public void patchInt(int position, int value) {
+			buf[position] = (byte) (value >>> 24);
+			buf[position + 1] = (byte) (value >>> 16);
+			buf[position + 2] = (byte) (value >>> 8);
+			buf[position + 3] = (byte) value;
+		}
+
+		// Writes the length of the frame followed by the frame and flushes the stream
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(count);
+			out.write(buf, 0, count);
+			out.flush();
+			if (buf.length > MAX_RETAINED_SIZE) {
+				buf = new byte[1024];
+			}
+		}
+	}
+}
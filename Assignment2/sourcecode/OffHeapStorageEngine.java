@@ -0,0 +1,524 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/***
+ * This class keeps the (KEY,VALUE) pairs of the hashTable in direct memory (ByteBuffer.allocateDirect), outside of the
+ * Java heap, so the garbage collector doesn't have to scan them and the memory used per pair is close to its size.
+ *
+ * The pairs are split in SEGMENTS by the hash of the KEY, each with its own lock. A segment is an open addressing table
+ * with linear probing whose slots have a fixed size: a KEY of at most MAX_KEY_LENGTH characters (24 bytes) is stored in
+ * the slot, and the VALUE is stored in UTF-8 in a block of the value arena of the segment. Blocks have power of two sizes
+ * from 16 to MAX_VALUE_SIZE bytes and the freed blocks of each size are reused.
+ *
+ * The version of the VALUE is stored in the slot too, and a deleted KEY keeps its slot and version without a block, so
+ * the versions don't add a heap object per KEY. The pairs which don't fit (a longer KEY or a bigger VALUE) are kept on
+ * the heap in an overflow HeapStorageEngine.
+ *
+ * Slot:	[int hash][short key length + 1, 0 = empty, -1 = removed][short value length, -1 = deleted KEY][12 chars key]
+ * 			[long value address][long version]
+ *
+ * The length of a KEY is stored plus one so that the empty KEY ("") is not taken for an empty slot.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+	public static final int MAX_KEY_LENGTH = 12; // Characters, 24 bytes
+	public static final int MAX_VALUE_SIZE = 2048; // Bytes of the biggest block, a VALUE of 500 characters fits in it
+	private static final int SEGMENTS = 64;
+	private static final int INITIAL_CAPACITY = 1024; // Slots per segment
+	private static final int MIN_CHUNK_SIZE = 64 * 1024; // 64 KiloBytes, the chunks of the value arena double up to MAX_CHUNK_SIZE
+	private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024; // 16 MegaBytes
+
+	// Slot layout
+	private static final int SLOT_SIZE = 48;
+	private static final int HASH = 0;
+	private static final int KEY_LENGTH = 4;
+	private static final int VALUE_LENGTH = 6;
+	private static final int KEY = 8;
+	private static final int VALUE_ADDRESS = 32;
+	private static final int VERSION = 40;
+	private static final short EMPTY = 0;
+	private static final short REMOVED = -1;
+	private static final short NO_VALUE = -1;
+
+	private static final int MIN_BLOCK_SHIFT = 4; // 16 bytes
+	private static final int BLOCK_SIZES = 8; // 16 to 2048 bytes
+
+	private Segment[] segments = new Segment[SEGMENTS];
+	private HeapStorageEngine overflow = new HeapStorageEngine();
+
+	// Buffer used to decode the VALUES
+	private static ThreadLocal<byte[]> valueBuffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[MAX_VALUE_SIZE];
+		}
+	};
+
+	public OffHeapStorageEngine() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	public String get(String key) {
+		return get(key, null);
+	}
+
+	public String get(String key, long[] version) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			return (version != null) ? overflow.get(key, version) : overflow.get(key);
+		}
+
+		int hash = hash(key);
+		Segment segment = segmentOf(hash);
+		segment.lock.readLock().lock();
+		try {
+			int slot = segment.find(key, hash);
+			if (slot >= 0) {
+				if (version != null) {
+					version[0] = segment.slots.getLong(slot * SLOT_SIZE + VERSION);
+				}
+				return segment.readValue(slot);
+			}
+		} finally {
+			segment.lock.readLock().unlock();
+		}
+		if (overflow.isEmpty()) {
+			if (version != null) {
+				version[0] = 0;
+			}
+			return null;
+		}
+		return (version != null) ? overflow.get(key, version) : overflow.get(key);
+	}
+
+	public long getVersion(String key) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			return overflow.getVersion(key);
+		}
+
+		int hash = hash(key);
+		Segment segment = segmentOf(hash);
+		segment.lock.readLock().lock();
+		try {
+			int slot = segment.find(key, hash);
+			if (slot >= 0) {
+				return segment.slots.getLong(slot * SLOT_SIZE + VERSION);
+			}
+		} finally {
+			segment.lock.readLock().unlock();
+		}
+		return overflow.isEmpty() ? 0 : overflow.getVersion(key);
+	}
+
+	public boolean containsKey(String key) {
+		return get(key) != null;
+	}
+
+	// Adds the pair to its segment, or to the overflow map if it doesn't fit in a slot and a block
+	public void put(String key, String value, long version) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			overflow.put(key, value, version);
+			return;
+		}
+
+		byte[] bytes = (value != null) ? value.getBytes(StandardCharsets.UTF_8) : null;
+		int hash = hash(key);
+		Segment segment = segmentOf(hash);
+		segment.lock.writeLock().lock();
+		try {
+			int slot = segment.find(key, hash);
+			if (bytes != null && bytes.length > MAX_VALUE_SIZE) {
+				// The KEY is only in one place, so the slot is removed when the KEY goes to the overflow map
+				if (slot >= 0) {
+					segment.delete(slot);
+				}
+				overflow.put(key, value, version);
+				return;
+			}
+
+			if (!overflow.isEmpty()) {
+				overflow.remove(key);
+			}
+			if (slot >= 0) {
+				segment.writeValue(slot, bytes, version);
+			} else {
+				segment.insert(key, hash, bytes, version);
+			}
+		} finally {
+			segment.lock.writeLock().unlock();
+		}
+	}
+
+	public boolean remove(String key) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			return overflow.remove(key);
+		}
+
+		int hash = hash(key);
+		Segment segment = segmentOf(hash);
+		segment.lock.writeLock().lock();
+		try {
+			int slot = segment.find(key, hash);
+			if (slot >= 0) {
+				segment.delete(slot);
+				return true;
+			}
+			return !overflow.isEmpty() && overflow.remove(key);
+		} finally {
+			segment.lock.writeLock().unlock();
+		}
+	}
+
+	public boolean remove(String key, String value) {
+		if (key.length() > MAX_KEY_LENGTH) {
+			return overflow.remove(key, value);
+		}
+
+		int hash = hash(key);
+		Segment segment = segmentOf(hash);
+		segment.lock.writeLock().lock();
+		try {
+			int slot = segment.find(key, hash);
+			if (slot >= 0) {
+				if (!value.equals(segment.readValue(slot))) {
+					return false;
+				}
+				segment.delete(slot);
+				return true;
+			}
+			return !overflow.isEmpty() && overflow.remove(key, value);
+		} finally {
+			segment.lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		int size = overflow.size();
+		for (Segment segment : segments) {
+			segment.lock.readLock().lock();
+			size += segment.size - segment.deletedKeys;
+			segment.lock.readLock().unlock();
+		}
+		return size;
+	}
+
+	// The pairs of a segment are copied to the heap when the iteration reaches the segment, so only one segment is copied at a time
+	public Iterable<Map.Entry<String, String>> entries() {
+		return new Iterable<Map.Entry<String, String>>() {
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new SegmentIterator<String>() {
+					Iterator<Map.Entry<String, String>> iteratorOf(int segment) {
+						return (segment == SEGMENTS) ? overflow.entries().iterator() : segments[segment].entries().iterator();
+					}
+				};
+			}
+		};
+	}
+
+	public Iterable<Map.Entry<String, Long>> versions() {
+		return new Iterable<Map.Entry<String, Long>>() {
+			public Iterator<Map.Entry<String, Long>> iterator() {
+				return new SegmentIterator<Long>() {
+					Iterator<Map.Entry<String, Long>> iteratorOf(int segment) {
+						return (segment == SEGMENTS) ? overflow.versions().iterator() : segments[segment].versions().iterator();
+					}
+				};
+			}
+		};
+	}
+
+	// Iterates over the entries of the segments and then of the overflow map
+	private abstract class SegmentIterator<T> implements Iterator<Map.Entry<String, T>> {
+		private int next = 0;
+		private Iterator<Map.Entry<String, T>> current = null;
+
+		abstract Iterator<Map.Entry<String, T>> iteratorOf(int segment);
+
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				if (next > SEGMENTS) {
+					return false;
+				}
+				current = iteratorOf(next);
+				next++;
+			}
+			return true;
+		}
+
+		public Map.Entry<String, T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public long offHeapSize() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			segment.lock.readLock().lock();
+			bytes += (long) segment.capacity * SLOT_SIZE + segment.arenaSize;
+			segment.lock.readLock().unlock();
+		}
+		return bytes;
+	}
+
+	// Spreads the bits of the hashCode of the KEY. The 6 high bits select the segment and the low bits the slot
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16) & 0x03FFFFFF;
+	}
+
+	private Segment segmentOf(int hash) {
+		return segments[hash >>> 26];
+	}
+
+	// Returns the index of the size of the smallest block which holds the bytes
+	private static int blockSizeOf(int length) {
+		int size = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+		return Math.max(0, size - MIN_BLOCK_SHIFT);
+	}
+
+	// A part of the table with its slots, its value arena and its lock
+	private static class Segment {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		ByteBuffer slots;
+		int capacity;
+		int size = 0; // Slots of a KEY, with a VALUE or deleted
+		int deletedKeys = 0; // Slots of a deleted KEY
+		int removed = 0; // Slots of a removed KEY, reused by insert(...) and dropped by resize(...)
+
+		// Value arena: chunks of direct memory cut in blocks. A block address is (chunk << 32) | offset
+		ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+		int chunkPosition = 0;
+		long arenaSize = 0;
+		long[][] freeBlocks = new long[BLOCK_SIZES][16];
+		int[] freeCounts = new int[BLOCK_SIZES];
+
+		Segment() {
+			capacity = INITIAL_CAPACITY;
+			slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+		}
+
+		// Returns the slot of the KEY, or -1 if the KEY doesn't exist
+		int find(String key, int hash) {
+			int mask = capacity - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int base = slot * SLOT_SIZE;
+				short keyLength = slots.getShort(base + KEY_LENGTH);
+				if (keyLength == EMPTY) {
+					return -1;
+				}
+				if (keyLength == key.length() + 1 && slots.getInt(base + HASH) == hash && keyEquals(base, key)) {
+					return slot;
+				}
+			}
+		}
+
+		boolean keyEquals(int base, String key) {
+			for (int i = 0; i < key.length(); i++) {
+				if (slots.getChar(base + KEY + 2 * i) != key.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		String readKey(int base) {
+			char[] key = new char[slots.getShort(base + KEY_LENGTH) - 1];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = slots.getChar(base + KEY + 2 * i);
+			}
+			return new String(key);
+		}
+
+		// Returns the VALUE of the slot, or null if the KEY is deleted
+		String readValue(int slot) {
+			int base = slot * SLOT_SIZE;
+			int length = slots.getShort(base + VALUE_LENGTH);
+			if (length == NO_VALUE) {
+				return null;
+			}
+			long address = slots.getLong(base + VALUE_ADDRESS);
+			ByteBuffer chunk = chunks.get((int) (address >>> 32)).duplicate();
+			chunk.position((int) address);
+			byte[] bytes = valueBuffers.get();
+			chunk.get(bytes, 0, length);
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+
+		// Writes the VALUE (null for a deleted KEY) in the block of the slot if it has the same size, or in a new block
+		void writeValue(int slot, byte[] bytes, long version) {
+			int base = slot * SLOT_SIZE;
+			long address = slots.getLong(base + VALUE_ADDRESS);
+			int oldLength = slots.getShort(base + VALUE_LENGTH);
+			if (oldLength == NO_VALUE) {
+				deletedKeys--;
+				if (bytes != null) {
+					address = allocate(bytes.length);
+				}
+			} else if (bytes == null || blockSizeOf(oldLength) != blockSizeOf(bytes.length)) {
+				free(address, oldLength);
+				if (bytes != null) {
+					address = allocate(bytes.length);
+				}
+			}
+
+			if (bytes != null) {
+				writeBytes(address, bytes);
+				slots.putShort(base + VALUE_LENGTH, (short) bytes.length);
+			} else {
+				slots.putShort(base + VALUE_LENGTH, NO_VALUE);
+				deletedKeys++;
+			}
+			slots.putLong(base + VALUE_ADDRESS, address);
+			slots.putLong(base + VERSION, version);
+		}
+
+		void writeBytes(long address, byte[] bytes) {
+			ByteBuffer chunk = chunks.get((int) (address >>> 32)).duplicate();
+			chunk.position((int) address);
+			chunk.put(bytes);
+		}
+
+		void insert(String key, int hash, byte[] bytes, long version) {
+			if ((size + removed + 1) * 4 > capacity * 3) {
+				// Grow if the table is more than half full, otherwise only drop the removed slots
+				resize(size * 2 >= capacity ? capacity * 2 : capacity);
+			}
+
+			int mask = capacity - 1;
+			int slot = hash & mask;
+			while (slots.getShort(slot * SLOT_SIZE + KEY_LENGTH) > 0) {
+				slot = (slot + 1) & mask;
+			}
+			int base = slot * SLOT_SIZE;
+			if (slots.getShort(base + KEY_LENGTH) == REMOVED) {
+				removed--;
+			}
+			slots.putInt(base + HASH, hash);
+			for (int i = 0; i < key.length(); i++) {
+				slots.putChar(base + KEY + 2 * i, key.charAt(i));
+			}
+			if (bytes != null) {
+				long address = allocate(bytes.length);
+				writeBytes(address, bytes);
+				slots.putShort(base + VALUE_LENGTH, (short) bytes.length);
+				slots.putLong(base + VALUE_ADDRESS, address);
+			} else {
+				slots.putShort(base + VALUE_LENGTH, NO_VALUE);
+				deletedKeys++;
+			}
+			slots.putLong(base + VERSION, version);
+			slots.putShort(base + KEY_LENGTH, (short) (key.length() + 1));
+			size++;
+		}
+
+		// Removes the KEY and its version from the slot
+		void delete(int slot) {
+			int base = slot * SLOT_SIZE;
+			int length = slots.getShort(base + VALUE_LENGTH);
+			if (length != NO_VALUE) {
+				free(slots.getLong(base + VALUE_ADDRESS), length);
+			} else {
+				deletedKeys--;
+			}
+			slots.putShort(base + KEY_LENGTH, REMOVED);
+			size--;
+			removed++;
+		}
+
+		// Copies the used slots to a new table
+		void resize(int newCapacity) {
+			ByteBuffer newSlots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+			int mask = newCapacity - 1;
+			for (int slot = 0; slot < capacity; slot++) {
+				int base = slot * SLOT_SIZE;
+				if (slots.getShort(base + KEY_LENGTH) <= 0) {
+					continue;
+				}
+				int newSlot = slots.getInt(base + HASH) & mask;
+				while (newSlots.getShort(newSlot * SLOT_SIZE + KEY_LENGTH) != EMPTY) {
+					newSlot = (newSlot + 1) & mask;
+				}
+				for (int i = 0; i < SLOT_SIZE; i += 8) {
+					newSlots.putLong(newSlot * SLOT_SIZE + i, slots.getLong(base + i));
+				}
+			}
+			slots = newSlots;
+			capacity = newCapacity;
+			removed = 0;
+		}
+
+		long allocate(int length) {
+			int sizeIndex = blockSizeOf(length);
+			if (freeCounts[sizeIndex] > 0) {
+				return freeBlocks[sizeIndex][--freeCounts[sizeIndex]];
+			}
+
+			int blockSize = 1 << (sizeIndex + MIN_BLOCK_SHIFT);
+			if (chunks.isEmpty() || chunkPosition + blockSize > chunks.get(chunks.size() - 1).capacity()) {
+				int chunkSize = chunks.isEmpty() ? MIN_CHUNK_SIZE : Math.min(chunks.get(chunks.size() - 1).capacity() * 2, MAX_CHUNK_SIZE);
+				chunks.add(ByteBuffer.allocateDirect(chunkSize));
+				arenaSize += chunkSize;
+				chunkPosition = 0;
+			}
+			long address = ((long) (chunks.size() - 1) << 32) | chunkPosition;
+			chunkPosition += blockSize;
+			return address;
+		}
+
+		void free(long address, int length) {
+			int sizeIndex = blockSizeOf(length);
+			if (freeCounts[sizeIndex] == freeBlocks[sizeIndex].length) {
+				long[] blocks = new long[freeBlocks[sizeIndex].length * 2];
+				System.arraycopy(freeBlocks[sizeIndex], 0, blocks, 0, freeCounts[sizeIndex]);
+				freeBlocks[sizeIndex] = blocks;
+			}
+			freeBlocks[sizeIndex][freeCounts[sizeIndex]++] = address;
+		}
+
+		// Returns a copy of the (KEY, VALUE) pairs of the segment
+		ArrayList<Map.Entry<String, String>> entries() {
+			lock.readLock().lock();
+			try {
+				ArrayList<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>(size);
+				for (int slot = 0; slot < capacity; slot++) {
+					int base = slot * SLOT_SIZE;
+					if (slots.getShort(base + KEY_LENGTH) > 0 && slots.getShort(base + VALUE_LENGTH) != NO_VALUE) {
+						entries.add(new AbstractMap.SimpleImmutableEntry<String, String>(readKey(base), readValue(slot)));
+					}
+				}
+				return entries;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		// Returns a copy of the (KEY, version) pairs of the segment, including the deleted KEYS
+		ArrayList<Map.Entry<String, Long>> versions() {
+			lock.readLock().lock();
+			try {
+				ArrayList<Map.Entry<String, Long>> versions = new ArrayList<Map.Entry<String, Long>>(size);
+				for (int slot = 0; slot < capacity; slot++) {
+					int base = slot * SLOT_SIZE;
+					if (slots.getShort(base + KEY_LENGTH) > 0) {
+						versions.add(new AbstractMap.SimpleImmutableEntry<String, Long>(readKey(base), slots.getLong(base + VERSION)));
+					}
+				}
+				return versions;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+}
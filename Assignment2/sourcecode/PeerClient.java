@@ -1,28 +1,36 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class PeerClient extends Thread {
 		
-	private HashMap<Integer, String> networkMap = null;
+	private static final long DOWN_RETRY_INTERVAL = 5 * 1000; // 5 seconds, a node found down is tried again after it
+	
 	private ArrayList<String> replicationNodes = null;
+	// Time at which each node was found down
+	private ConcurrentHashMap<String, Long> downNodes = new ConcurrentHashMap<String, Long>();
 	
 	private int portAddress = 0;
 	private String localAddress = null;
+	private ConnectionPool connectionPool = null;
+	private boolean join = false;
 	
-	// Initialize all the local data from the global data
-	public PeerClient() {
-		networkMap = DistributedHashTable.getNetworkMap();
+	// Initialize all the local data from the global data. The network map is read from DistributedHashTable on every request as it changes when nodes join or leave
+	public PeerClient(boolean join) {
+		this.join = join;
 		replicationNodes = DistributedHashTable.getReplicationNodes();
 		portAddress = DistributedHashTable.getPeerServerPort();
 		localAddress = DistributedHashTable.getLocalAddress();
+		connectionPool = new ConnectionPool(portAddress);
 	}
 	
 	// Thread implementation for Peer to serve as CLient
@@ -32,20 +40,29 @@ public class PeerClient extends Thread {
 		try {
 			input = new BufferedReader(new InputStreamReader(System.in));
 			
-			HashMap<String, String> hm = retrieveHashTable();
-			if (hm != null) {
-				for (Map.Entry e : hm.entrySet()) {
-					DistributedHashTable.putInHashTable(e.getKey().toString(), e.getValue().toString(), true);
+			// Join a running network. The nodes move the keys which belong to this peer in the background
+			if (join && !DistributedHashTable.getNetworkMap().containsValue(localAddress)) {
+				if (RebalanceService.joinNetwork()) {
+					System.out.println("Joined the network. Keys are being moved to this node.");
+				} else {
+					System.out.println("Could not join the network. None of the nodes of the configuration file is up.");
 				}
 			}
 			
-			if (replicationNodes.contains(localAddress)) {
-				ConcurrentHashMap<String, HashMap<String, String>> rHashTable = retrieveReplicationHashTable();
-				if (rHashTable != null) {
-					DistributedHashTable.setReplicatedHashTable(rHashTable);
+			// The hashTable is only retrieved from the replication nodes if it could not be recovered from the local disk.
+			// The KEYS can be read as soon as their page is applied
+			if (!DistributedHashTable.isRecovered()) {
+				long startTime = System.currentTimeMillis();
+				long keys = retrieveHashTable();
+				if (keys > 0) {
+					System.out.println(String.format("Retrieved %d keys from the replication nodes in %.3f seconds.", keys, (System.currentTimeMillis() - startTime) / 1000.0));
 				}
 			}
 			
+			if (replicationNodes.contains(localAddress)) {
+				retrieveReplicationHashTable();
+			}
+			
 			//System.out.println(DistributedHashTable.getHashTable());
 			//System.out.println(DistributedHashTable.getReplicatedHashTable());
 			
@@ -159,15 +176,22 @@ public class PeerClient extends Thread {
 				// Printing the download log
 				case 4:
 					(new LogUtility("peer")).print();
+					System.out.print(ReplicationService.getStatus());
+					System.out.print(HintedHandoff.getStatus());
+					System.out.print(AntiEntropyService.getStatus());
 					break;
 					
 				// Handling Peer exit functionality
 				case 5:
 					// Confirming user's exit request
-					System.out.print("\nExiting will delete all (KEY, VALUE) pairs stored on this node and will no longer be accessible by other nodes in this network. Are you sure you want to exit? (Y/N)?:");
+					System.out.print("\nExiting will move all (KEY, VALUE) pairs stored on this node to the other nodes in this network. Are you sure you want to exit? (Y/N)?:");
 					confirm = input.readLine();
 					
 					if (confirm.equalsIgnoreCase("Y")) {
+						System.out.println("Leaving the network...");
+						RebalanceService.leaveNetwork();
+						// Send the changes which are not replicated yet
+						ReplicationService.flush(10 * 1000);
 						System.out.println("Thanks for using this system.");
 						System.exit(0);
 					}
@@ -193,134 +217,103 @@ public class PeerClient extends Thread {
 	}
 	
 	/***
-	 * This method retrieves the Hash Table from one of the replication nodes after this peer was down so that it can re-gain its hashTable from the replication nodes.
-	 * @return	Returns the hashTable (if exists) of the calling peer from the replication nodes.
+	 * This method retrieves the Hash Table from the replication nodes after this peer was down so that it can re-gain its hashTable from the replication nodes.
+	 * The (KEY,VALUE) pairs are received in pages and each page is written to the hashTable as soon as it is received.
+	 * @return	Returns the number of (KEY,VALUE) pairs and deleted KEYS retrieved, or -1 if no replication node answered.
 	 */
-	private HashMap<String, String> retrieveHashTable() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		HashMap<String, String> hm = null;
+	private long retrieveHashTable() {
+		return retrievePages("SCAN", localAddress);
+	}
+	
+	/***
+	 * This method retrieves the Replication Hash Table from the replication nodes after this peer was down so that it can re-gain its replication data from the replication nodes.
+	 * The replicas of each peer of the network are received in pages like the hashTable.
+	 * @return	Returns the number of replicas retrieved.
+	 */
+	private long retrieveReplicationHashTable() {
+		long replicas = 0;
+		for (String nodeAddress : DistributedHashTable.getNetworkMap().values()) {
+			replicas += Math.max(0, retrievePages("R_SCAN", nodeAddress));
+		}
+		return replicas;
+	}
+	
+	// Requests the pages of the replicas of a peer until the last one. The next page is requested before a page is applied
+	// so that the replication node reads it meanwhile, but no more than one page is waiting. If a replication node fails,
+	// the pages which follow the last one applied are requested from the next replication node
+	private long retrievePages(String requestType, String nodeAddress) {
+		String cursor = null;
+		long received = 0;
+		boolean answered = false;
 		
-		for (String nodeAddress : replicationNodes) {
-			//System.out.println("Retrieving Hash Table from " + nodeAddress);
-			
-			if (nodeAddress.equalsIgnoreCase(localAddress)) {
+		for (String replicationNode : replicationNodes) {
+			if (replicationNode.equalsIgnoreCase(localAddress)) {
 				continue;
 			}
 			
+			ConnectionPool.Connection connection = null;
 			try {
+				connection = connectionPool.borrow(replicationNode);
+				MessageUtility.writeRequest(connection.getOutputStream(), pageRequest(requestType, nodeAddress, cursor));
 				
-				// Make connection with server using the specified Host Address and Port 10000
-				socket = new Socket(nodeAddress, portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_HASHTABLE");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (HashMap<String, String>) serverResponse.getOtherData();
-				} 
+				while (true) {
+					Response serverResponse = MessageUtility.readResponse(connection.getInputStream());
+					if (serverResponse.getResponseCode() != 200) {
+						break;
+					}
+					answered = true;
 					
-				socket.close();
-				break;
+					String nextCursor = serverResponse.getResponseData();
+					if (nextCursor != null) {
+						MessageUtility.writeRequest(connection.getOutputStream(), pageRequest(requestType, nodeAddress, nextCursor));
+					}
+					received += applyPage(requestType, nodeAddress, serverResponse);
+					
+					cursor = nextCursor;
+					if (cursor == null) {
+						connectionPool.release(connection);
+						return received;
+					}
+				}
+				connectionPool.release(connection);
 			} catch (Exception ex) {
 				//ex.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
+				if (connection != null) {
+					connection.close();
 				}
 			}
 		}
-		//System.out.println("hm = " + hm);
-		return hm;
+		return answered ? received : -1;
 	}
 	
-	/***
-	 * This method retrieves the Replication Hash Table from one of the replication nodes after this peer was down so that it can re-gain its replication data from the replication nodes.
-	 * @return	Returns the replicatedHashTable (if exists) of the calling peer from the replication nodes.
-	 */
-	private ConcurrentHashMap<String, HashMap<String, String>> retrieveReplicationHashTable() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		ConcurrentHashMap<String, HashMap<String, String>> hm = null;
-		
-		for (String nodeAddress : replicationNodes) {
-			//System.out.println("Retrieving Replication Hash Table from " + nodeAddress);
-			
-			if (nodeAddress.equalsIgnoreCase(localAddress)) {
-				continue;
-			}
-			
-			try {
-				// Make connection with server using the specified Host Address and Port 10000
-				socket = new Socket(nodeAddress, portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_R_HASHTABLE");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (ConcurrentHashMap<String, HashMap<String, String>>) serverResponse.getOtherData();
-				} 
-					
-				socket.close();
-				break;
-			} catch (Exception ex) {
-				//ex.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
+	private Request pageRequest(String requestType, String nodeAddress, String cursor) {
+		Request peerRequest = new Request();
+		peerRequest.setRequestType(requestType);
+		peerRequest.setKey(cursor);
+		peerRequest.setNodeAddress(nodeAddress);
+		return peerRequest;
+	}
+	
+	// Writes the (KEY,VALUE) pairs of a page to the hashTable (SCAN) or to the replicas of the peer (R_SCAN)
+	private int applyPage(String requestType, String nodeAddress, Response serverResponse) {
+		ArrayList<String> keys = serverResponse.getKeys();
+		for (int i = 0; i < keys.size(); i++) {
+			String value = serverResponse.getValues().get(i);
+			long version = serverResponse.getVersions()[i];
+			if (requestType.equals("SCAN")) {
+				if (version == 0) {
+					// The replica has no version, so it never replaces a VALUE written since this peer is up
+					DistributedHashTable.putInHashTable(keys.get(i), value, false);
+				} else {
+					DistributedHashTable.putVersionInHashTable(keys.get(i), value, version);
 				}
+			} else if (value != null) {
+				DistributedHashTable.putInReplicaHashTable(nodeAddress, keys.get(i), value, version);
+			} else {
+				DistributedHashTable.removeFromReplicaHashTable(nodeAddress, keys.get(i), version);
 			}
 		}
-		//System.out.println("replica hm = " + hm);
-		return hm;
+		return keys.size();
 	}
 	
 	/***
@@ -331,11 +324,13 @@ public class PeerClient extends Thread {
 	 */
 	private boolean put(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
+		String nodeAddress = null;
+		// Set once the request is written: the node may apply it even if its response never comes back
+		boolean sent = false;
 		
 		long startTime, endTime;
 	    double time;
@@ -344,7 +339,12 @@ public class PeerClient extends Thread {
 			startTime = System.currentTimeMillis();
 			
 			int node = hash(key);
-			String nodeAddress = networkMap.get(node);
+			nodeAddress = DistributedHashTable.getNetworkMap().get(node);
+			
+			// A node found down is not tried again for a while, its writes go straight to another node
+			if (isDown(nodeAddress)) {
+				return hintedWrite("H_PUT", key, value, nodeAddress);
+			}
 			
 			//System.out.println(String.format("\nADDING (%s,%s) at %d:%s", key, value, node, nodeAddress));
 			
@@ -352,20 +352,23 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
+			// With a write quorum the node of the KEY waits until W copies have stored it
 			peerRequest = new Request();
-			peerRequest.setRequestType("PUT");
-			peerRequest.setRequestData(data);
-			out.writeObject(peerRequest);
+			peerRequest.setRequestType(DistributedHashTable.getWriteQuorum() > 1 ? "Q_PUT" : "PUT");
+			peerRequest.setKey(key);
+			peerRequest.setValue(value);
+			peerRequest.setQuorum(DistributedHashTable.getWriteQuorum());
+			MessageUtility.writeRequest(out, peerRequest);
+			sent = true;
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        
 	        if (serverResponse.getResponseCode() == 200) {
 	        	endTime = System.currentTimeMillis();
@@ -381,12 +384,20 @@ public class PeerClient extends Thread {
 					return forcePut(key, value);
 				}
 			} else {
-				//System.out.println(serverResponse.getResponseData());
+				System.out.println(serverResponse.getResponseData());
 				return false;
 			}
 	        
 		} catch(Exception e) {
 			//e.printStackTrace();
+			if (sent) {
+				// A hint with a new version could overwrite a later write of the KEY if the node applied this one
+				System.out.println(String.format("%s failed before answering. The (KEY,VALUE) pair may or may not be added.", nodeAddress));
+			} else if (nodeAddress != null) {
+				// The node of the KEY is down: the next healthy node keeps the write until it is back
+				downNodes.put(nodeAddress, System.currentTimeMillis());
+				return hintedWrite("H_PUT", key, value, nodeAddress);
+			}
 		} finally {
 			try {
 				// Closing all streams. Close the stream only if it is initialized 
@@ -414,11 +425,13 @@ public class PeerClient extends Thread {
 	 */
 	private boolean forcePut(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
+		String nodeAddress = null;
+		// Set once the request is written: the node may apply it even if its response never comes back
+		boolean sent = false;
 		
 		long startTime, endTime;
 	    double time;
@@ -427,7 +440,12 @@ public class PeerClient extends Thread {
 			startTime = System.currentTimeMillis();
 			
 			int node = hash(key);
-			String nodeAddress = networkMap.get(node);
+			nodeAddress = DistributedHashTable.getNetworkMap().get(node);
+			
+			// A node found down is not tried again for a while, its writes go straight to another node
+			if (isDown(nodeAddress)) {
+				return hintedWrite("H_PUT_FORCE", key, value, nodeAddress);
+			}
 			
 			//System.out.println(String.format("\nADDING (%s,%s) at %d:%s", key, value, node, nodeAddress));
 			
@@ -435,20 +453,22 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
-			peerRequest.setRequestType("PUT_FORCE");
-			peerRequest.setRequestData(data);
-			out.writeObject(peerRequest);
+			peerRequest.setRequestType(DistributedHashTable.getWriteQuorum() > 1 ? "Q_PUT_FORCE" : "PUT_FORCE");
+			peerRequest.setKey(key);
+			peerRequest.setValue(value);
+			peerRequest.setQuorum(DistributedHashTable.getWriteQuorum());
+			MessageUtility.writeRequest(out, peerRequest);
+			sent = true;
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        
 	        if (serverResponse.getResponseCode() == 200) {
 	        	endTime = System.currentTimeMillis();
@@ -463,6 +483,14 @@ public class PeerClient extends Thread {
 	        
 		} catch(Exception e) {
 			//e.printStackTrace();
+			if (sent) {
+				// A hint with a new version could overwrite a later write of the KEY if the node applied this one
+				System.out.println(String.format("%s failed before answering. The (KEY,VALUE) pair may or may not be added.", nodeAddress));
+			} else if (nodeAddress != null) {
+				// The node of the KEY is down: the next healthy node keeps the write until it is back
+				downNodes.put(nodeAddress, System.currentTimeMillis());
+				return hintedWrite("H_PUT_FORCE", key, value, nodeAddress);
+			}
 		} finally {
 			try {
 				// Closing all streams. Close the stream only if it is initialized 
@@ -489,8 +517,8 @@ public class PeerClient extends Thread {
 	 */
 	private String get(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -498,7 +526,12 @@ public class PeerClient extends Thread {
 		
 		try {
 			int node = hash(key);
-			nodeAddress = networkMap.get(node);
+			nodeAddress = DistributedHashTable.getNetworkMap().get(node);
+			
+			// With a read quorum the node of the KEY returns the newest VALUE of R copies
+			if (DistributedHashTable.getReadQuorum() > 1) {
+				return quorumGet(key, DistributedHashTable.getReadQuorum());
+			}
 			
 			// Checking if the (KEY, VALUE) pair is on our own peer/node
 			if (nodeAddress.equals(localAddress)) {
@@ -511,23 +544,22 @@ public class PeerClient extends Thread {
 		        socket = new Socket(nodeAddress, portAddress);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("GET");
-				peerRequest.setRequestData(key);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
-					value = serverResponse.getResponseData().split(",")[1].trim();
+					value = serverResponse.getResponseData();
 				}
 			}
 		} catch(Exception e) {
@@ -559,8 +591,8 @@ public class PeerClient extends Thread {
 	 */
 	private String searchReplica(String key, String peerAddress) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -579,23 +611,22 @@ public class PeerClient extends Thread {
 			        socket = new Socket(nodeAddress, portAddress);
 			        
 			        // Initializing output stream using the socket's output stream
-			        out = new ObjectOutputStream(socket.getOutputStream());
-			        out.flush();
+			        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			        
 			        // Initializing input stream using the socket's input stream
-			        in = new ObjectInputStream(socket.getInputStream());
+			        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 					// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 					peerRequest = new Request();
 					peerRequest.setRequestType("R_GET");
-					peerRequest.setRequestData(key);
-					out.writeObject(peerRequest);
+					peerRequest.setKey(key);
+					MessageUtility.writeRequest(out, peerRequest);
 					
 			        // Read the response message from the server
-			        serverResponse = (Response) in.readObject();
+			        serverResponse = MessageUtility.readResponse(in);
 			        
 			        if (serverResponse.getResponseCode() == 200) {
-						value = serverResponse.getResponseData().split(",")[1].trim();
+						value = serverResponse.getResponseData();
 					}
 				}
 			} catch(Exception ex) {
@@ -630,43 +661,61 @@ public class PeerClient extends Thread {
 	 */
 	private boolean delete(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
+		String nodeAddress = null;
+		// Set once the request is written: the node may apply it even if its response never comes back
+		boolean sent = false;
 		
 		try {
 			int node = hash(key);
-			String nodeAddress = networkMap.get(node);
+			nodeAddress = DistributedHashTable.getNetworkMap().get(node);
+			
+			// A node found down is not tried again for a while, its writes go straight to another node
+			if (isDown(nodeAddress)) {
+				return hintedWrite("H_DELETE", key, null, nodeAddress);
+			}
 			
 			// Make connection with server using the specified Host Address and Port 10000
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
-			peerRequest.setRequestType("DELETE");
-			peerRequest.setRequestData(key);
-			out.writeObject(peerRequest);
+			peerRequest.setRequestType(DistributedHashTable.getWriteQuorum() > 1 ? "Q_DELETE" : "DELETE");
+			peerRequest.setKey(key);
+			peerRequest.setQuorum(DistributedHashTable.getWriteQuorum());
+			MessageUtility.writeRequest(out, peerRequest);
+			sent = true;
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        //System.out.print((String) serverResponse.getResponseData());
 	        
 	        if (serverResponse.getResponseCode() == 200) {
 				return true;
 			} else {
+				System.out.println(serverResponse.getResponseData());
 				return false;
 			}
 	        
 		} catch(Exception e) {
 			//e.printStackTrace();
+			if (sent) {
+				// A hint with a new version could overwrite a later write of the KEY if the node applied this one
+				System.out.println(String.format("%s failed before answering. The (KEY,VALUE) pair may or may not be deleted.", nodeAddress));
+			} else if (nodeAddress != null) {
+				// The node of the KEY is down: the next healthy node keeps the write until it is back
+				downNodes.put(nodeAddress, System.currentTimeMillis());
+				return hintedWrite("H_DELETE", key, null, nodeAddress);
+			}
 		} finally {
 			try {
 				// Closing all streams. Close the stream only if it is initialized 
@@ -687,25 +736,192 @@ public class PeerClient extends Thread {
 	}
 	
 	/***
-	 * This method performs a hash on the key and returns the node id where the key is located.
-	 * We get the hashCode of the input KEY string which is a number and then we perform MOD operation on that hashCode.
-	 * The hashCode for a given string will always be same for that string.
-	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
-	 * @return		Returns a node id (integer) where the key is located.
+	 * This method sends a write to the next healthy node when the node of the KEY is down. That node keeps the write as a hint
+	 * and hands it off to the node of the KEY when it is back.
+	 * @param requestType	H_PUT, H_PUT_FORCE or H_DELETE
+	 * @param key			KEY of the (KEY,VALUE) pair
+	 * @param value			VALUE of the (KEY,VALUE) pair, or null for H_DELETE
+	 * @param nodeAddress	IP address of the node of the KEY, which is down
+	 * @return				Returns true if a node stored the write else returns false.
 	 */
-	private int hash(String key) {
-		// Total number of servers = Total number of entries in networkMap
-		int totalServers = networkMap.size();
+	private boolean hintedWrite(String requestType, String key, String value, String nodeAddress) {
+		Request peerRequest = new Request();
+		peerRequest.setRequestType(requestType);
+		peerRequest.setKey(key);
+		peerRequest.setValue(value);
+		peerRequest.setNodeAddress(nodeAddress);
+		peerRequest.setQuorum(DistributedHashTable.getWriteQuorum());
+		
+		// The replication nodes are tried first as the reads of the KEY fall back to them while its node is down
+		LinkedHashSet<String> hintedNodes = new LinkedHashSet<String>(replicationNodes);
+		hintedNodes.addAll(DistributedHashTable.getNetworkMap().values());
+		hintedNodes.remove(nodeAddress);
+		
+		for (String hintedNode : hintedNodes) {
+			if (isDown(hintedNode)) {
+				continue;
+			}
+			
+			try {
+				Response serverResponse = connectionPool.send(hintedNode, peerRequest);
+				
+				if (serverResponse.getResponseCode() == 200) {
+					System.out.println(String.format("%s is down. %s", nodeAddress, serverResponse.getResponseData()));
+					return true;
+				} else if (serverResponse.getResponseCode() == 300) {
+					System.out.print("\nA VALUE with the specified KEY already exists in  the Distributed Hash Table. Would you like to overwrite it? (Y/N): ");
+					String confirm = (new BufferedReader(new InputStreamReader(System.in))).readLine();
+					
+					return confirm.equalsIgnoreCase("Y") && forcePut(key, value);
+				} else {
+					System.out.println(serverResponse.getResponseData());
+					return false;
+				}
+			} catch (Exception e) {
+				//e.printStackTrace();
+				downNodes.put(hintedNode, System.currentTimeMillis());
+			}
+		}
+		
+		return false;
+	}
+	
+	// Tells whether the node was found down less than DOWN_RETRY_INTERVAL ago
+	private boolean isDown(String nodeAddress) {
+		Long since = downNodes.get(nodeAddress);
+		if (since == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() - since > DOWN_RETRY_INTERVAL) {
+			downNodes.remove(nodeAddress, since);
+			return false;
+		}
+		return true;
+	}
+	
+	/***
+	 * This method adds many (KEY,VALUE) pairs in the Distributed Hash Table (DHT).
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys		KEYS to be added. Each KEY should be 24 bytes (12 characters) maximum.
+	 * @param values	VALUES of the keys. Each VALUE should be 1000 bytes (500 characters) maximum.
+	 * @return			Returns for each KEY true if it is added in the DHT successfully else false.
+	 */
+	public boolean[] mput(ArrayList<String> keys, ArrayList<String> values) {
+		boolean[] results = new boolean[keys.size()];
+		
+		try {
+			Response serverResponse = connectionPool.sendBatch("MPUT", keys, values, nodeAddresses(keys));
+			for (int i = 0; i < results.length; i++) {
+				results[i] = serverResponse.getResponseCodes()[i] == 200;
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
+		
+		return results;
+	}
+	
+	/***
+	 * This method searches for many KEYS in the Distributed Hash Table (DHT) and retrieves their values.
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys	KEYS which are to be searched in the DHT.
+	 * @return		Returns the VALUE of each KEY, or NULL for the KEYS which don't exist in the DHT.
+	 */
+	public ArrayList<String> mget(ArrayList<String> keys) {
+		try {
+			return connectionPool.sendBatch("MGET", keys, null, nodeAddresses(keys)).getValues();
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
 		
-		// Get hash value of string using JAVA's hashCode() method
-		long hashCode = key.hashCode();
+		return new ArrayList<String>(Collections.nCopies(keys.size(), (String) null));
+	}
+	
+	/***
+	 * This method deletes many (KEY,VALUE) pairs from the Distributed Hash Table (DHT).
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys	KEYS of the (KEY,VALUE) pairs which have to be deleted from the DHT.
+	 * @return		Returns for each KEY true if the (KEY,VALUE) pair is deleted from the DHT successfully else false.
+	 */
+	public boolean[] mdelete(ArrayList<String> keys) {
+		boolean[] results = new boolean[keys.size()];
 		
-		// hashCode may be negative. So, make it positive in case it's negative
-		hashCode = (hashCode < 0) ? -hashCode : hashCode;
+		try {
+			Response serverResponse = connectionPool.sendBatch("MDELETE", keys, null, nodeAddresses(keys));
+			for (int i = 0; i < results.length; i++) {
+				results[i] = serverResponse.getResponseCodes()[i] == 200;
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
 		
-		// Add 1 because MOD of hashCode and totalServers may be 0
-		int hash = (int) (hashCode % totalServers) + 1;
-		return hash;
+		return results;
+	}
+	
+	/***
+	 * This methods adds a (KEY,VALUE) pair in the Distributed Hash Table (DHT) and waits until W copies of the KEY have stored it.
+	 * The (KEY,VALUE) pair is inserted even if the KEY already exists.
+	 * @param key	KEY should be 24 bytes (12 characters) maximum.
+	 * @param value	VALUE should be 1000 bytes (500 characters) maximum.
+	 * @param w		Number of copies which have to store the (KEY,VALUE) pair, between 1 and REPLICATION_FACTOR.
+	 * @return		Returns true if W copies have stored the (KEY,VALUE) pair else returns false.
+	 */
+	public boolean quorumPut(String key, String value, int w) throws Exception {
+		return sendQuorum("Q_PUT_FORCE", key, value, w).getResponseCode() == 200;
+	}
+	
+	/***
+	 * This methods searches for a KEY in the Distributed Hash Table (DHT) and returns the newest VALUE of R copies of the KEY.
+	 * @param key	KEY which is to be searched in the DHT.
+	 * @param r		Number of copies which have to answer, between 1 and REPLICATION_FACTOR.
+	 * @return		Returns VALUE for the KEY specified if the KEY exist in the DHT else returns NULL.
+	 * @throws Exception	If less than R copies answered, or R is more than the copies of the KEY.
+	 */
+	public String quorumGet(String key, int r) throws Exception {
+		Response serverResponse = sendQuorum("Q_GET", key, null, r);
+		if (serverResponse.getResponseCode() == 503 || serverResponse.getResponseCode() == 400) {
+			throw new Exception(serverResponse.getResponseData());
+		}
+		return (serverResponse.getResponseCode() == 200) ? serverResponse.getResponseData() : null;
+	}
+	
+	/***
+	 * This methods deletes a (KEY,VALUE) pair from the Distributed Hash Table (DHT) and waits until W copies of the KEY have deleted it.
+	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the DHT.
+	 * @param w		Number of copies which have to delete the (KEY,VALUE) pair, between 1 and REPLICATION_FACTOR.
+	 * @return		Returns true if W copies have deleted the (KEY,VALUE) pair else returns false.
+	 */
+	public boolean quorumDelete(String key, int w) throws Exception {
+		return sendQuorum("Q_DELETE", key, null, w).getResponseCode() == 200;
+	}
+	
+	// Sends a quorum request to the node of the KEY, which coordinates the copies of the KEY
+	private Response sendQuorum(String requestType, String key, String value, int quorum) throws Exception {
+		Request request = new Request();
+		request.setRequestType(requestType);
+		request.setKey(key);
+		request.setValue(value);
+		request.setQuorum(quorum);
+		return connectionPool.send(DistributedHashTable.getNetworkMap().get(hash(key)), request);
+	}
+	
+	// Returns the address of the node where each key is located
+	private String[] nodeAddresses(ArrayList<String> keys) {
+		String[] nodeAddresses = new String[keys.size()];
+		for (int i = 0; i < nodeAddresses.length; i++) {
+			nodeAddresses[i] = DistributedHashTable.getNetworkMap().get(hash(keys.get(i)));
+		}
+		return nodeAddresses;
+	}
+	
+	/***
+	 * This method returns the node id where the key is located.
+	 * The key is placed on the consistent hash ring of the network, so adding or removing a node only moves the keys next to its tokens.
+	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
+	 * @return		Returns a node id (integer) where the key is located.
+	 */
+	private int hash(String key) {
+		return DistributedHashTable.getHashRing().getNode(key);
 	}
 	
 	/***
@@ -1,10 +1,18 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class PeerServer extends Thread {	
+public class PeerServer extends Thread {
+	private static final int IDLE_TIMEOUT = 2 * 60 * 1000; // 2 minutes
+	
 	private Socket socket;
 	private LogUtility log = null;
 	
@@ -13,166 +21,496 @@ public class PeerServer extends Thread {
 		this.socket = socket;
 		
 		log = new LogUtility("peer");
-		log.write("Connected with " + socket.getInetAddress() + ".");
+		log.write(LogUtility.DEBUG, "Connected with %s.", socket.getInetAddress());
 	}
     
     // Services this thread's peer client by sending the requested file.
 	public void run() {	
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
+		DataOutputStream out = null;
+		DataInputStream in = null;
 		Response response = null;
 		
 		try {
 			String clientIp = socket.getInetAddress().getHostAddress();
 			
-			in = new ObjectInputStream(socket.getInputStream());
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			
-			Request request = (Request) in.readObject();
+			// Serve requests until the peer closes the connection so that clients can reuse their connections
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			while (true) {
+				Request request;
+				try {
+					request = MessageUtility.readRequest(in);
+				} catch (EOFException e) {
+					break;
+				}
 			
-			if (request.getRequestType().startsWith("PUT")) {
-				String data = (String) request.getRequestData();
-				String key = data.split(",")[0];
-				String value = data.split(",")[1];
-				boolean result;
+				if (request.getRequestType().startsWith("PUT")) {
+					String key = request.getKey();
+					String value = request.getValue();
 				
-				log.write(String.format("Serving PUT(%s,%s) request of %s.", key, value, clientIp));
-				
-				if (request.getRequestType().endsWith("FORCE")) {
-					result = DistributedHashTable.putInHashTable(key, value, true);
-				} else {
-					result = DistributedHashTable.putInHashTable(key, value, false);
-				}
+					log.write(LogUtility.DEBUG, "Serving PUT(%s,%s) request of %s.", key, value, clientIp);
+					long version = put(key, value, request.getRequestType().endsWith("FORCE"));
 				
-				if (result) {
-					response = new Response();
-					response.setResponseCode(200);
-					response.setResponseData("(Key,Value) pair added successfully.");
-					out.writeObject(response);
+					if (version != 0) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setResponseData("(Key,Value) pair added successfully.");
+						reply(out, request, response);
 					
-					log.write(String.format("PUT(%s,%s) for %s completed successfully.", key, value, clientIp));
+						log.write(LogUtility.DEBUG, "PUT(%s,%s) for %s completed successfully.", key, value, clientIp);
 					
-					ReplicationService service = new ReplicationService(key, value, "PUT");
-					service.start();
-				} else {
-					response = new Response();
-					response.setResponseCode(300);
-					response.setResponseData("Value with this KEY already exist.");
-					out.writeObject(response);
+						ReplicationService.replicate(key, value, version);
+					} else {
+						response = new Response();
+						response.setResponseCode(300);
+						response.setResponseData("Value with this KEY already exist.");
+						reply(out, request, response);
 					
-					log.write(String.format("PUT(%s,%s) for %s failed. KEY already exist.", key, value, clientIp));
-				}
-			} else if (request.getRequestType().equalsIgnoreCase("GET")) {
-				String key = (String) request.getRequestData();
+						log.write(LogUtility.DEBUG, "PUT(%s,%s) for %s failed. KEY already exist.", key, value, clientIp);
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("GET")) {
+					String key = request.getKey();
+				
+					log.write(LogUtility.DEBUG, "Serving GET(%s) request of %s.", key, clientIp);
+					String value = lookup(key);
 				
-				log.write(String.format("Serving GET(%s) request of %s.", key, clientIp));
-				String value = DistributedHashTable.getFromHashTable(key);
+					if (value != null) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setResponseData(value);
+						reply(out, request, response);
+						log.write(LogUtility.DEBUG, "GET(%s) = %s for %s completed successfully.", key, value, clientIp);
+					} else {
+						response = new Response();
+						response.setResponseCode(404);
+						response.setResponseData("VALUE with this KEY does not exist.");
+						reply(out, request, response);
+						log.write(LogUtility.DEBUG, "GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp);
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("DELETE")) {					
+					String key = request.getKey();
 				
-				if (value != null) {
+					log.write(LogUtility.DEBUG, "Serving DELETE(%s) request of %s.", key, clientIp);
+					long version = DistributedHashTable.removeFromHashTable(key);
+
 					response = new Response();
 					response.setResponseCode(200);
-					response.setResponseData(key + "," + value);
-					out.writeObject(response);
-					log.write(String.format("GET(%s) = %s for %s completed successfully.", key, value, clientIp));
-				} else {
-					response = new Response();
-					response.setResponseCode(404);
-					response.setResponseData("VALUE with this KEY does not exist.");
-					out.writeObject(response);
-					log.write(String.format("GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
-				}
-			} else if (request.getRequestType().equalsIgnoreCase("DELETE")) {					
-				String key = (String) request.getRequestData();
+					reply(out, request, response);
 				
-				log.write(String.format("Serving DELETE(%s) request of %s.", key, clientIp));
-				DistributedHashTable.removeFromHashTable(key);
-
-				response = new Response();
-				response.setResponseCode(200);
-				out.writeObject(response);
-				
-				log.write(String.format("DELETE(%s) for %s completed successfully.", key, clientIp));
-				
-				ReplicationService service = new ReplicationService(key, null, "DELETE");
-				service.start();
-			} else if (request.getRequestType().equalsIgnoreCase("R_PUT")) {
-				String data = (String) request.getRequestData();
-				String key = data.split(",")[0];
-				String value = data.split(",")[1];
+					log.write(LogUtility.DEBUG, "DELETE(%s) for %s completed successfully.", key, clientIp);
+				
+					ReplicationService.replicate(key, null, version);
+				} else if (request.getRequestType().equalsIgnoreCase("R_PUT")) {
+					String key = request.getKey();
+					String value = request.getValue();
 		
-				//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
-				log.write(String.format("Serving REPLICATE - PUT(%s,%s) request of %s.", key, value, clientIp));
-				DistributedHashTable.putInReplicaHashTable(clientIp, key, value);
+					//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
+					log.write(LogUtility.DEBUG, "Serving REPLICATE - PUT(%s,%s) request of %s.", key, value, clientIp);
+					DistributedHashTable.putInReplicaHashTable(clientIp, key, value, versionOf(request, 0));
+				
+					//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseData("(Key,Value) pair added successfully.");
+					reply(out, request, response);
 				
-				//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
-				response = new Response();
-				response.setResponseCode(200);
-				response.setResponseData("(Key,Value) pair added successfully.");
-				out.writeObject(response);
+					log.write(LogUtility.DEBUG, "REPLICATE - PUT(%s,%s) for %s completed successfully.", key, value, clientIp);
+				} else if (request.getRequestType().equalsIgnoreCase("R_GET")) {
+					String key = request.getKey();
 				
-				log.write(String.format("REPLICATE - PUT(%s,%s) for %s completed successfully.", key, value, clientIp));
-			} else if (request.getRequestType().equalsIgnoreCase("R_GET")) {
-				String key = (String) request.getRequestData();
+					log.write(LogUtility.DEBUG, "Serving REPLICATE - GET(%s) request of %s.", key, clientIp);
+					String value = null;
+					long[] version = new long[1];
 				
-				log.write(String.format("Serving REPLICATE - GET(%s) request of %s.", key, clientIp));
-				String value = null;
+					value = DistributedHashTable.getFromReplicaHashTable(key, version);
 				
-				value = DistributedHashTable.getFromReplicaHashTable(key);
+					// The version is sent even if the KEY was deleted so that a quorum read knows which copy is the newest
+					if (value != null) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setResponseData(value);
+						response.setVersions(version);
+						reply(out, request, response);
+						log.write(LogUtility.DEBUG, "REPLICATE - GET(%s) = %s for %s completed successfully.", key, value, clientIp);
+					} else {
+						response = new Response();
+						response.setResponseCode(404);
+						response.setResponseData("VALUE with this KEY does not exist.");
+						response.setVersions(version);
+						reply(out, request, response);
+						log.write(LogUtility.DEBUG, "REPLICATE - GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp);
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("R_DELETE")) {					
+					String key = request.getKey();
 				
-				if (value != null) {
+					log.write(LogUtility.DEBUG, "Serving REPLICATE - DELETE(%s) request of %s.", key, clientIp);
+				
+					DistributedHashTable.removeFromReplicaHashTable(clientIp, key, versionOf(request, 0));
+
 					response = new Response();
 					response.setResponseCode(200);
-					response.setResponseData(key + "," + value);
-					out.writeObject(response);
-					log.write(String.format("REPLICATE - GET(%s) = %s for %s completed successfully.", key, value, clientIp));
-				} else {
-					response = new Response();
-					response.setResponseCode(404);
-					response.setResponseData("VALUE with this KEY does not exist.");
-					out.writeObject(response);
-					log.write(String.format("REPLICATE - GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
-				}
-			} else if (request.getRequestType().equalsIgnoreCase("R_DELETE")) {					
-				String key = (String) request.getRequestData();
+					reply(out, request, response);
 				
-				log.write(String.format("Serving REPLICATE - DELETE(%s) request of %s.", key, clientIp));
+					log.write(LogUtility.DEBUG, "REPLICATE - DELETE(%s) for %s completed successfully.", key, clientIp);
+				} else if (request.getRequestType().equalsIgnoreCase("GET_HASHTABLE")) {					
+					log.write(LogUtility.DEBUG, "Serving GET_HASHTABLE request of %s.", clientIp);
 				
-				DistributedHashTable.removeFromReplicaHashTable(clientIp, key);
-
-				response = new Response();
-				response.setResponseCode(200);
-				out.writeObject(response);
+					//System.out.println(DistributedHashTable.getReplicatedHashTable());
+					HashMap<String, String> innerMap = DistributedHashTable.getReplicatedHashTable(clientIp);
 				
-				log.write(String.format("REPLICATE - DELETE(%s) for %s completed successfully.", key, clientIp));
-			} else if (request.getRequestType().equalsIgnoreCase("GET_HASHTABLE")) {					
-				log.write(String.format("Serving GET_HASHTABLE request of %s.", clientIp));
+					if (innerMap != null) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setOtherData(innerMap);
+						reply(out, request, response);
+					} else {
+						response = new Response();
+						response.setResponseCode(404);
+						reply(out, request, response);
+					}
 				
-				//System.out.println(DistributedHashTable.getReplicatedHashTable());
-				HashMap<String, String> innerMap = DistributedHashTable.getReplicatedHashTable().get(clientIp);
+					log.write(LogUtility.DEBUG, "DATA of %s sent successfully. Request completed. %s", clientIp, innerMap);
+				} else if (request.getRequestType().equalsIgnoreCase("GET_R_HASHTABLE")) {					
+					log.write(LogUtility.DEBUG, "Serving GET_R_HASHTABLE request of %s.", clientIp);
+					//System.out.println("Sending Replication Hash Table = " + DistributedHashTable.getReplicatedHashTable());
+				
+					ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable = DistributedHashTable.getReplicatedHashTable();
+					response = new Response();
+					response.setResponseCode(200);
+					response.setOtherData(replicatedHashTable);
+					reply(out, request, response);
 				
-				if (innerMap != null) {
+					log.write(LogUtility.DEBUG, "REPLCATION DATA sent to %s successfully. Request completed. %s", clientIp, replicatedHashTable);
+				} else if (request.getRequestType().equalsIgnoreCase("SCAN") || request.getRequestType().equalsIgnoreCase("R_SCAN")) {
+					// SCAN pages the replicas of the hashTable of the peer, R_SCAN the replicas of the peer of the request
+					String nodeAddress = request.getRequestType().equalsIgnoreCase("SCAN") ? clientIp : request.getNodeAddress();
+					String cursor = request.getKey();
+
+					log.write(LogUtility.DEBUG, "Serving %s(%s) of the replicas of %s request of %s.", request.getRequestType(), cursor, nodeAddress, clientIp);
+					response = StateTransfer.getPage(clientIp, nodeAddress, cursor);
+					reply(out, request, response);
+
+					log.write(LogUtility.DEBUG, "%s(%s) for %s completed. %d keys sent.", request.getRequestType(), cursor, clientIp, response.getKeys().size());
+				} else if (request.getRequestType().equalsIgnoreCase("MPUT")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = request.getValues();
+					ArrayList<String> addedKeys = new ArrayList<String>();
+					ArrayList<String> addedValues = new ArrayList<String>();
+					long[] addedVersions = new long[keys.size()];
+					int[] responseCodes = new int[keys.size()];
+					
+					log.write(LogUtility.DEBUG, "Serving MPUT of %d keys request of %s.", keys.size(), clientIp);
+					
+					// Response code of each key is 200 if it was added or 300 if it already exist
+					for (int i = 0; i < keys.size(); i++) {
+						long version = put(keys.get(i), values.get(i), false);
+						if (version != 0) {
+							responseCodes[i] = 200;
+							addedVersions[addedKeys.size()] = version;
+							addedKeys.add(keys.get(i));
+							addedValues.add(values.get(i));
+						} else {
+							responseCodes[i] = 300;
+						}
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseCodes(responseCodes);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "MPUT of %d keys for %s completed. %d keys added.", keys.size(), clientIp, addedKeys.size());
+					
+					if (!addedKeys.isEmpty()) {
+						ReplicationService.replicate(addedKeys, addedValues, addedVersions);
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("MGET")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = new ArrayList<String>(keys.size());
+					int[] responseCodes = new int[keys.size()];
+					
+					log.write(LogUtility.DEBUG, "Serving MGET of %d keys request of %s.", keys.size(), clientIp);
+					
+					// Response code of each key is 200 if it was found or 404 if it does not exist
+					for (int i = 0; i < keys.size(); i++) {
+						String value = lookup(keys.get(i));
+						responseCodes[i] = (value != null) ? 200 : 404;
+						values.add(value);
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseCodes(responseCodes);
+					response.setValues(values);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "MGET of %d keys for %s completed successfully.", keys.size(), clientIp);
+				} else if (request.getRequestType().equalsIgnoreCase("MDELETE")) {
+					ArrayList<String> keys = request.getKeys();
+					int[] responseCodes = new int[keys.size()];
+					long[] versions = new long[keys.size()];
+					
+					log.write(LogUtility.DEBUG, "Serving MDELETE of %d keys request of %s.", keys.size(), clientIp);
+					
+					for (int i = 0; i < keys.size(); i++) {
+						versions[i] = DistributedHashTable.removeFromHashTable(keys.get(i));
+						responseCodes[i] = 200;
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseCodes(responseCodes);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "MDELETE of %d keys for %s completed successfully.", keys.size(), clientIp);
+					
+					ReplicationService.replicate(keys, null, versions);
+				} else if (request.getRequestType().equalsIgnoreCase("R_MPUT")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = request.getValues();
+					
+					log.write(LogUtility.DEBUG, "Serving REPLICATE - MPUT of %d keys request of %s.", keys.size(), clientIp);
+					for (int i = 0; i < keys.size(); i++) {
+						DistributedHashTable.putInReplicaHashTable(clientIp, keys.get(i), values.get(i), versionOf(request, i));
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "REPLICATE - MPUT of %d keys for %s completed successfully.", keys.size(), clientIp);
+				} else if (request.getRequestType().equalsIgnoreCase("R_MDELETE")) {
+					ArrayList<String> keys = request.getKeys();
+					
+					log.write(LogUtility.DEBUG, "Serving REPLICATE - MDELETE of %d keys request of %s.", keys.size(), clientIp);
+					for (int i = 0; i < keys.size(); i++) {
+						DistributedHashTable.removeFromReplicaHashTable(clientIp, keys.get(i), versionOf(request, i));
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "REPLICATE - MDELETE of %d keys for %s completed successfully.", keys.size(), clientIp);
+				} else if (request.getRequestType().equalsIgnoreCase("JOIN")) {
+					String nodeAddress = request.getKey();
+					
+					log.write(LogUtility.DEBUG, "Serving JOIN(%s) request of %s.", nodeAddress, clientIp);
+					long version = RebalanceService.addNode(nodeAddress);
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseData(String.valueOf(version));
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "JOIN(%s) for %s completed successfully. Network version %d.", nodeAddress, clientIp, version);
+				} else if (request.getRequestType().equalsIgnoreCase("NETWORK_MAP")) {
+					log.write(LogUtility.DEBUG, "Serving NETWORK_MAP(%s) request of %s.", request.getValues(), clientIp);
+					RebalanceService.updateNetworkMap(request.getKeys(), request.getValues(), Long.parseLong(request.getValue()));
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+				} else if (request.getRequestType().equalsIgnoreCase("MIGRATE")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = request.getValues();
+					ArrayList<String> addedKeys = new ArrayList<String>();
+					ArrayList<String> addedValues = new ArrayList<String>();
+					long[] addedVersions = new long[keys.size()];
+					
+					log.write(LogUtility.DEBUG, "Serving MIGRATE of %d keys request of %s.", keys.size(), clientIp);
+					for (int i = 0; i < keys.size(); i++) {
+						// The moved VALUES keep their version
+						long version = versionOf(request, i);
+						if (version == 0) {
+							version = DistributedHashTable.nextVersion();
+						}
+						if (DistributedHashTable.putMovedInHashTable(keys.get(i), values.get(i), version)) {
+							addedVersions[addedKeys.size()] = version;
+							addedKeys.add(keys.get(i));
+							addedValues.add(values.get(i));
+						}
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "MIGRATE of %d keys for %s completed. %d keys added.", keys.size(), clientIp, addedKeys.size());
+					
+					if (!addedKeys.isEmpty()) {
+						ReplicationService.replicate(addedKeys, addedValues, addedVersions);
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("REBALANCE_DONE")) {
+					log.write(LogUtility.DEBUG, "Serving REBALANCE_DONE(%s) request of %s.", request.getKey(), clientIp);
+					DistributedHashTable.rebalanceCompleted(request.getKey(), Long.parseLong(request.getValue()));
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+				} else if (request.getRequestType().startsWith("Q_") && (request.getQuorum() < 0 || request.getQuorum() > DistributedHashTable.getReplicationFactor())) {
+					log.write(LogUtility.DEBUG, "Rejecting %s(%s) with a quorum of %d copies of %s.", request.getRequestType(), request.getKey(), request.getQuorum(), clientIp);
+					
+					// A quorum can't be met by more copies than the KEY has
+					response = new Response();
+					response.setResponseCode(400);
+					response.setResponseData(String.format("The quorum must be between 1 and the %d copies of a KEY.", DistributedHashTable.getReplicationFactor()));
+					reply(out, request, response);
+				} else if (request.getRequestType().startsWith("Q_PUT") || request.getRequestType().equalsIgnoreCase("Q_DELETE")) {
+					String key = request.getKey();
+					String value = request.getValue();
+					int w = (request.getQuorum() > 0) ? request.getQuorum() : DistributedHashTable.getWriteQuorum();
+					long version;
+					
+					log.write(LogUtility.DEBUG, "Serving %s(%s,%s) W=%d request of %s.", request.getRequestType(), key, value, w, clientIp);
+					
+					// The change is stored here first and then on the replicas until W copies have stored it
+					if (request.getRequestType().equalsIgnoreCase("Q_DELETE")) {
+						value = null;
+						version = DistributedHashTable.removeFromHashTable(key);
+					} else {
+						version = put(key, value, request.getRequestType().endsWith("FORCE"));
+					}
+					
+					response = new Response();
+					if (version == 0) {
+						response.setResponseCode(300);
+						response.setResponseData("Value with this KEY already exist.");
+					} else {
+						int acknowledged = QuorumService.write(key, value, version, w);
+						if (acknowledged >= w) {
+							response.setResponseCode(200);
+							response.setResponseData(String.format("Stored on %d copies.", acknowledged));
+						} else {
+							// The copies which didn't store it yet will get it when they are back, but the write is not durable on W copies
+							response.setResponseCode(503);
+							response.setResponseData(String.format("Only %d of the %d copies required stored the change.", acknowledged, w));
+						}
+						response.setVersions(new long[] { version });
+					}
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "%s(%s,%s) W=%d for %s completed with code %d.", request.getRequestType(), key, value, w, clientIp, response.getResponseCode());
+				} else if (request.getRequestType().equalsIgnoreCase("Q_GET")) {
+					String key = request.getKey();
+					int r = (request.getQuorum() > 0) ? request.getQuorum() : DistributedHashTable.getReadQuorum();
+					String[] value = new String[1];
+					
+					log.write(LogUtility.DEBUG, "Serving Q_GET(%s) R=%d request of %s.", key, r, clientIp);
+					int answered = QuorumService.read(key, r, value);
+					
+					response = new Response();
+					if (answered < r) {
+						response.setResponseCode(503);
+						response.setResponseData(String.format("Only %d of the %d copies required answered.", answered, r));
+					} else if (value[0] != null) {
+						response.setResponseCode(200);
+						response.setResponseData(value[0]);
+					} else {
+						response.setResponseCode(404);
+						response.setResponseData("VALUE with this KEY does not exist.");
+					}
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "Q_GET(%s) = %s R=%d for %s completed with code %d.", key, value[0], r, clientIp, response.getResponseCode());
+				} else if (request.getRequestType().startsWith("H_")) {
+					String key = request.getKey();
+					String value = request.getRequestType().equalsIgnoreCase("H_DELETE") ? null : request.getValue();
+					String nodeAddress = request.getNodeAddress();
+					
+					log.write(LogUtility.DEBUG, "Serving %s(%s,%s) request of %s for %s which is down.", request.getRequestType(), key, value, clientIp, nodeAddress);
+					
+					response = new Response();
+					if (request.getRequestType().equalsIgnoreCase("H_PUT") && hintedExists(nodeAddress, key)) {
+						response.setResponseCode(300);
+						response.setResponseData("Value with this KEY already exist.");
+					} else {
+						// The write is kept here until the node of the KEY is back
+						long version = DistributedHashTable.nextVersion();
+						HintedHandoff.hint(nodeAddress, key, value, version);
+						
+						// The reads which fall back to the replicas see the write until it is delivered
+						if (DistributedHashTable.getReplicationNodes().contains(DistributedHashTable.getLocalAddress())) {
+							if (value != null) {
+								DistributedHashTable.putInReplicaHashTable(nodeAddress, key, value, version);
+							} else {
+								DistributedHashTable.removeFromReplicaHashTable(nodeAddress, key, version);
+							}
+						}
+						
+						if (request.getQuorum() > 1) {
+							response.setResponseCode(503);
+							response.setResponseData(String.format("Only stored as a hint until %s is back.", nodeAddress));
+						} else {
+							response.setResponseCode(200);
+							response.setResponseData(String.format("Stored as a hint until %s is back.", nodeAddress));
+						}
+						response.setVersions(new long[] { version });
+					}
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "%s(%s,%s) for %s completed with code %d.", request.getRequestType(), key, value, clientIp, response.getResponseCode());
+				} else if (request.getRequestType().equalsIgnoreCase("HANDOFF")) {
+					ArrayList<String> keys = request.getKeys();
+					
+					log.write(LogUtility.DEBUG, "Serving HANDOFF of %d hints request of %s.", keys.size(), clientIp);
+					int applied = HintedHandoff.apply(keys, request.getValues(), request.getVersions());
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+					
+					log.write(LogUtility.DEBUG, "HANDOFF of %d hints for %s completed. %d hints applied.", keys.size(), clientIp, applied);
+				} else if (request.getRequestType().equalsIgnoreCase("AE_HASHES")) {
+					// The versions of the request are nodes of the Merkle tree of the replicas of the peer
+					long[] nodes = request.getVersions();
+
+					log.write(LogUtility.DEBUG, "Serving AE_HASHES of %d nodes request of %s.", nodes.length, clientIp);
+					long[] hashes = DistributedHashTable.getReplicaTree(clientIp).getHashes();
+					long[] nodeHashes = new long[nodes.length];
+					for (int i = 0; i < nodes.length; i++) {
+						nodeHashes[i] = (nodes[i] > 0 && nodes[i] < hashes.length) ? hashes[(int) nodes[i]] : 0;
+					}
+
+					response = new Response();
+					response.setResponseCode(200);
+					response.setVersions(nodeHashes);
+					reply(out, request, response);
+
+					log.write(LogUtility.DEBUG, "AE_HASHES of %d nodes for %s completed successfully.", nodes.length, clientIp);
+				} else if (request.getRequestType().equalsIgnoreCase("AE_KEYS")) {
+					// The versions of the request are leaves of the Merkle tree of the replicas of the peer
+					BitSet leaves = new BitSet(2 * MerkleTree.LEAVES);
+					for (long leaf : request.getVersions()) {
+						leaves.set((int) leaf);
+					}
+
+					log.write(LogUtility.DEBUG, "Serving AE_KEYS of %d ranges request of %s.", request.getVersions().length, clientIp);
+					ArrayList<String> keys = new ArrayList<String>();
+					ArrayList<Long> keyVersions = new ArrayList<Long>();
+					DistributedHashTable.getReplicaVersions(clientIp, leaves, keys, keyVersions);
+					long[] versions = new long[keyVersions.size()];
+					for (int i = 0; i < versions.length; i++) {
+						versions[i] = keyVersions.get(i);
+					}
+
 					response = new Response();
 					response.setResponseCode(200);
-					response.setOtherData(innerMap);
-					out.writeObject(response);
+					response.setValues(keys);
+					response.setVersions(versions);
+					reply(out, request, response);
+
+					log.write(LogUtility.DEBUG, "AE_KEYS of %d ranges for %s completed. %d keys sent.", request.getVersions().length, clientIp, keys.size());
 				} else {
+					// Reply to unknown requests so that the peer doesn't wait for a response on this connection
 					response = new Response();
-					response.setResponseCode(404);
-					out.writeObject(response);
+					response.setResponseCode(400);
+					response.setResponseData("Unknown request type.");
+					reply(out, request, response);
 				}
-				
-				log.write(String.format("DATA of %s sent successfully. Request completed. " + innerMap, clientIp));
-			} else if (request.getRequestType().equalsIgnoreCase("GET_R_HASHTABLE")) {					
-				log.write(String.format("Serving GET_R_HASHTABLE request of %s.", clientIp));
-				//System.out.println("Sending Replication Hash Table = " + DistributedHashTable.getReplicatedHashTable());
-				
-				response = new Response();
-				response.setResponseCode(200);
-				response.setOtherData(DistributedHashTable.getReplicatedHashTable());
-				out.writeObject(response);
-				
-				log.write(String.format("REPLCATION DATA sent to %s successfully. Request completed. " + DistributedHashTable.getReplicatedHashTable(), clientIp));
 			}
 		} catch (Exception e) {
 			//log.write("ERROR:" + e);
@@ -191,8 +529,52 @@ public class PeerServer extends Thread {
 			} catch (IOException ioe) {
 				//ioe.printStackTrace();
 			}
-			Thread.currentThread().interrupt();
+			interrupt();
+		}
+	}
+
+	// Adds the (KEY,VALUE) pair to the hashTable and returns its version, or 0 if the KEY already exists and confirm is false
+	private long put(String key, String value, boolean confirm) {
+		if (!confirm && DistributedHashTable.getFromHashTable(key) == null && RebalanceService.getFromPreviousNode(key) != null) {
+			// The KEY exists on the node which had it before the network changed and is not moved to this node yet
+			return 0;
 		}
+		return DistributedHashTable.putVersionInHashTable(key, value, confirm);
+	}
+	
+	// Returns the version of the i-th KEY of the request, or 0 if the request has no versions
+	private long versionOf(Request request, int i) {
+		long[] versions = request.getVersions();
+		return (versions != null && i < versions.length) ? versions[i] : 0;
+	}
+	
+	// Returns the VALUE of the KEY, looking it up on the node which had it before the network changed if it is not moved here yet
+	private String lookup(String key) {
+		String value = DistributedHashTable.getFromHashTable(key);
+		if (value == null) {
+			value = RebalanceService.getFromPreviousNode(key);
+			if (value == null) {
+				// The KEY may have been moved here during the look up
+				value = DistributedHashTable.getFromHashTable(key);
+			}
+		}
+		return value;
+	}
+
+	// Tells whether the KEY of a node which is down exists, from its hint if it has one or else from the replicas
+	private boolean hintedExists(String nodeAddress, String key) {
+		long[] version = new long[1];
+		String value = HintedHandoff.getHint(nodeAddress, key, version);
+		return (version[0] != 0) ? value != null : DistributedHashTable.getFromReplicaHashTable(key) != null;
+	}
+
+	// Sends the response tagged with the id of the request it answers,
+	// after the changes of the hashTable and the hints done for the request are written to the disk
+	private void reply(DataOutputStream out, Request request, Response response) throws IOException {
+		DistributedHashTable.awaitDurable();
+		HintedHandoff.awaitDurable();
+		response.setRequestId(request.getRequestId());
+		MessageUtility.writeResponse(out, response);
 	}
 
 	@Override
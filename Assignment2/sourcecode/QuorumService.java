@@ -0,0 +1,231 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/***
+ * This class provides quorum reads and writes in the Distributed Hash Table.
+ * Every KEY has REPLICATION_FACTOR (N) copies: the copy of its node, which coordinates the reads and writes of the KEY,
+ * and the replicas of the first N - 1 replication nodes other than this node, so that each copy is on another machine.
+ * A write succeeds when W copies have stored it and a read returns
+ * the VALUE with the newest version among R copies, so a read sees the latest successful write whenever R + W > N.
+ *
+ * The copies which don't answer in time still get the write through the ReplicationService, and the copies found stale
+ * by a read are repaired with the newest VALUE (read repair).
+ */
+public class QuorumService {
+	public static final long QUORUM_TIMEOUT = 5 * 1000; // 5 seconds
+
+	private static ConnectionPool connectionPool = new ConnectionPool(DistributedHashTable.getPeerServerPort());
+	private static ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "QuorumService");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/***
+	 * This method writes a change, already stored in the hashTable of this peer, on the replicas of the KEY and waits until
+	 * W copies (including the copy of this peer) have stored it.
+	 * @param key		KEY which was changed
+	 * @param value		New VALUE of the KEY, or null if the KEY was deleted
+	 * @param version	Version of the change
+	 * @param w			Number of copies which have to store the change
+	 * @return			Returns the number of copies which have stored the change before W were reached or QUORUM_TIMEOUT expired.
+	 */
+	public static int write(final String key, final String value, final long version, int w) {
+		final ArrayList<String> keys = new ArrayList<String>(1);
+		keys.add(key);
+		final ArrayList<String> values = new ArrayList<String>(1);
+		values.add(value);
+		final long[] versions = new long[] { version };
+
+		List<String> replicas = getReplicas();
+		ArrayList<String> replicationNodes = DistributedHashTable.getReplicationNodes();
+		for (String nodeAddress : replicationNodes) {
+			if (!replicas.contains(nodeAddress)) {
+				// The nodes which don't hold one of the N copies get the change in the background
+				ReplicationService.replicateTo(nodeAddress, keys, values, versions);
+			}
+		}
+
+		final Quorum quorum = new Quorum(replicas.size() + 1, w);
+		quorum.acknowledge(true);
+		for (final String nodeAddress : replicas) {
+			executor.execute(new Runnable() {
+				public void run() {
+					boolean stored = false;
+					try {
+						Request request = new Request();
+						request.setRequestType((value != null) ? "R_MPUT" : "R_MDELETE");
+						request.setKeys(keys);
+						request.setValues((value != null) ? values : null);
+						request.setVersions(versions);
+						stored = connectionPool.send(nodeAddress, request).getResponseCode() == 200;
+					} catch (Exception e) {
+						//e.printStackTrace();
+					}
+
+					if (!stored) {
+						// The replica gets the change when it is back
+						ReplicationService.replicateTo(nodeAddress, keys, values, versions);
+					}
+					quorum.acknowledge(stored);
+				}
+			});
+		}
+
+		return quorum.await();
+	}
+
+	/***
+	 * This method reads a KEY from the hashTable of this peer and from the replicas of the KEY, and returns the VALUE with
+	 * the newest version once R copies (including the copy of this peer) have answered. The stale copies are repaired.
+	 * @param key	KEY which is to be searched.
+	 * @param r		Number of copies which have to answer
+	 * @param value	Array where the newest VALUE of the KEY is stored at index 0, NULL if the KEY doesn't exist or was deleted.
+	 * @return		Returns the number of copies which answered before R were reached or QUORUM_TIMEOUT expired.
+	 */
+	public static int read(final String key, int r, String[] value) {
+		List<String> replicas = getReplicas();
+		final Quorum quorum = new Quorum(replicas.size() + 1, r);
+
+		long[] version = new long[1];
+		String localValue = DistributedHashTable.getFromHashTable(key, version);
+		if (localValue == null && version[0] == 0) {
+			// The KEY may not be moved to this node yet
+			localValue = RebalanceService.getFromPreviousNode(key);
+		}
+		// The copy of the hashTable of this peer is answered by a null node address
+		quorum.answer(null, true, localValue, version[0]);
+
+		for (final String nodeAddress : replicas) {
+			executor.execute(new Runnable() {
+				public void run() {
+					String replicaValue = null;
+					long[] replicaVersion = new long[1];
+					boolean answered = false;
+					try {
+						Request request = new Request();
+						request.setRequestType("R_GET");
+						request.setKey(key);
+						Response response = connectionPool.send(nodeAddress, request);
+						if (response.getResponseCode() == 200) {
+							replicaValue = response.getResponseData();
+						}
+						if (response.getVersions() != null && response.getVersions().length > 0) {
+							replicaVersion[0] = response.getVersions()[0];
+						}
+						answered = true;
+					} catch (Exception e) {
+						//e.printStackTrace();
+					}
+					quorum.answer(nodeAddress, answered, replicaValue, replicaVersion[0]);
+				}
+			});
+		}
+
+		int answers = quorum.await();
+
+		// Read repair of the copies which answered with an older version
+		long newestVersion;
+		ArrayList<String> staleNodes;
+		synchronized (quorum) {
+			value[0] = quorum.newestValue;
+			newestVersion = quorum.newestVersion;
+			staleNodes = new ArrayList<String>(quorum.staleNodes);
+		}
+		if (newestVersion != 0) {
+			ArrayList<String> keys = new ArrayList<String>(1);
+			keys.add(key);
+			ArrayList<String> values = new ArrayList<String>(1);
+			values.add(value[0]);
+			for (String nodeAddress : staleNodes) {
+				if (nodeAddress == null) {
+					DistributedHashTable.putVersionInHashTable(key, value[0], newestVersion);
+				} else {
+					ReplicationService.replicateTo(nodeAddress, keys, values, new long[] { newestVersion });
+				}
+			}
+		}
+		return answers;
+	}
+
+	// Returns the replication nodes which hold a copy of the KEYS of this peer: the first N - 1 replication nodes other than
+	// this peer, whose replica would be a second copy on the same machine
+	private static List<String> getReplicas() {
+		ArrayList<String> replicas = new ArrayList<String>();
+		for (String nodeAddress : DistributedHashTable.getReplicationNodes()) {
+			if (replicas.size() < DistributedHashTable.getReplicationFactor() - 1 && !nodeAddress.equalsIgnoreCase(DistributedHashTable.getLocalAddress())) {
+				replicas.add(nodeAddress);
+			}
+		}
+		return replicas;
+	}
+
+	// Answers of the copies of a KEY to a quorum read or write
+	private static class Quorum {
+		int copies;
+		int required;
+		int answered = 0;
+		int successful = 0;
+
+		// Newest VALUE read, its version and the copies which answered with an older version
+		String newestValue = null;
+		long newestVersion = 0;
+		ArrayList<String> staleNodes = new ArrayList<String>();
+		ArrayList<String> answeredNodes = new ArrayList<String>();
+
+		Quorum(int copies, int required) {
+			this.copies = copies;
+			this.required = required;
+		}
+
+		synchronized void acknowledge(boolean success) {
+			answered++;
+			if (success) {
+				successful++;
+			}
+			notifyAll();
+		}
+
+		synchronized void answer(String nodeAddress, boolean success, String value, long version) {
+			if (success) {
+				if (version > newestVersion) {
+					// All the copies which answered before have an older version
+					staleNodes.clear();
+					staleNodes.addAll(answeredNodes);
+					newestValue = value;
+					newestVersion = version;
+				} else if (version < newestVersion) {
+					staleNodes.add(nodeAddress);
+				} else if (newestVersion == 0 && value != null) {
+					// Copies written without a version
+					newestValue = value;
+				}
+				answeredNodes.add(nodeAddress);
+			}
+			acknowledge(success);
+		}
+
+		// Waits until enough copies succeeded, all the copies answered or QUORUM_TIMEOUT expired
+		synchronized int await() {
+			long deadline = System.currentTimeMillis() + QUORUM_TIMEOUT;
+			while (successful < required && answered < copies) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			return successful;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * This class moves the (KEY,VALUE) pairs of this peer which belong to other nodes after a node joins or leaves the network.
+ * The pairs are sent in MIGRATE batches to their new nodes while this peer keeps serving requests, and the rate is limited
+ * to REBALANCE_RATE so that the requests of the clients are not slowed down. A pair is deleted from this peer only after
+ * its new node has stored it, so until then it can still be read here.
+ */
+public class RebalanceService extends Thread {
+	public static final int BATCH_SIZE = 100; // Keys per MIGRATE request
+
+	// Connections to the other peers used to move keys and to look up keys which are not moved yet
+	private static ConnectionPool connectionPool = new ConnectionPool(DistributedHashTable.getPeerServerPort());
+
+	private String localAddress = null;
+	private int rebalanceRate;
+	private long version;
+
+	private long startTime;
+	private long bytesSent = 0;
+	private int keysMoved = 0;
+
+	// Initialize all the local data from the global data
+	public RebalanceService(long version) {
+		localAddress = DistributedHashTable.getLocalAddress();
+		rebalanceRate = DistributedHashTable.getRebalanceRate();
+		this.version = version;
+	}
+
+	public void run() {
+		startTime = System.currentTimeMillis();
+
+		// Keys written with an older network map may arrive after they are checked, so check again until nothing moves
+		int moved;
+		do {
+			moved = keysMoved;
+			movePass();
+		} while (keysMoved > moved);
+
+		// Tell all the nodes that they don't need to look up the keys of this peer on it any more
+		Request request = new Request();
+		request.setRequestType("REBALANCE_DONE");
+		request.setKey(localAddress);
+		request.setValue(String.valueOf(version));
+		for (String nodeAddress : DistributedHashTable.getNetworkMap().values()) {
+			if (nodeAddress.equals(localAddress)) {
+				DistributedHashTable.rebalanceCompleted(localAddress, version);
+				continue;
+			}
+			try {
+				connectionPool.send(nodeAddress, request);
+			} catch (Exception e) {
+				//e.printStackTrace();
+			}
+		}
+
+		System.out.println(String.format("Rebalancing completed. %d keys moved in %.3f seconds.", keysMoved, (System.currentTimeMillis() - startTime) / 1000.0));
+	}
+
+	// Sends every key of the hashTable which belongs to another node to that node
+	private void movePass() {
+		HashMap<Integer, String> networkMap = DistributedHashTable.getNetworkMap();
+		HashRing hashRing = DistributedHashTable.getHashRing();
+		HashMap<String, ArrayList<String>> keysByNode = new HashMap<String, ArrayList<String>>();
+		HashMap<String, ArrayList<String>> valuesByNode = new HashMap<String, ArrayList<String>>();
+
+		for (Map.Entry<String, String> entry : DistributedHashTable.getHashTable().entries()) {
+			String nodeAddress = networkMap.get(hashRing.getNode(entry.getKey()));
+			if (nodeAddress == null || nodeAddress.equals(localAddress)) {
+				continue;
+			}
+
+			ArrayList<String> keys = keysByNode.get(nodeAddress);
+			if (keys == null) {
+				keys = new ArrayList<String>();
+				keysByNode.put(nodeAddress, keys);
+				valuesByNode.put(nodeAddress, new ArrayList<String>());
+			}
+			keys.add(entry.getKey());
+			valuesByNode.get(nodeAddress).add(entry.getValue());
+
+			if (keys.size() == BATCH_SIZE) {
+				move(nodeAddress, keys, valuesByNode.get(nodeAddress));
+				keysByNode.remove(nodeAddress);
+			}
+		}
+
+		for (Map.Entry<String, ArrayList<String>> entry : keysByNode.entrySet()) {
+			move(entry.getKey(), entry.getValue(), valuesByNode.get(entry.getKey()));
+		}
+	}
+
+	// Sends a batch of keys to their new node and deletes them from this peer once the node has stored them
+	private void move(String nodeAddress, ArrayList<String> keys, ArrayList<String> values) {
+		Request request = new Request();
+		request.setRequestType("MIGRATE");
+		request.setKeys(keys);
+		request.setValues(values);
+		// The VALUES keep their version on their new node
+		long[] versions = new long[keys.size()];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = DistributedHashTable.getVersion(keys.get(i));
+		}
+		request.setVersions(versions);
+
+		try {
+			Response response = connectionPool.send(nodeAddress, request);
+			if (response.getResponseCode() != 200) {
+				return;
+			}
+		} catch (Exception e) {
+			// The keys stay on this peer and are found from the replication nodes if their new node is down
+			return;
+		}
+
+		ArrayList<String> movedKeys = new ArrayList<String>();
+		int bytes = 0;
+		for (int i = 0; i < keys.size(); i++) {
+			if (DistributedHashTable.removeMovedFromHashTable(keys.get(i), values.get(i))) {
+				movedKeys.add(keys.get(i));
+			}
+			bytes += 2 * (keys.get(i).length() + values.get(i).length());
+		}
+		keysMoved += movedKeys.size();
+
+		if (!movedKeys.isEmpty()) {
+			ReplicationService.replicate(movedKeys, null, null);
+		}
+
+		throttle(bytes);
+	}
+
+	// Waits until the bytes sent so far are within REBALANCE_RATE bytes per second
+	private void throttle(int bytes) {
+		bytesSent += bytes;
+		long delay = startTime + bytesSent * 1000 / rebalanceRate - System.currentTimeMillis();
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/***
+	 * This method looks up a KEY on the node which had it before the network changed, if that node may not have moved it yet.
+	 * @param key	KEY which is to be searched.
+	 * @return		Returns VALUE of the KEY on its previous node, or NULL if the KEY is not moving to this node or doesn't exist.
+	 */
+	public static String getFromPreviousNode(String key) {
+		String nodeAddress = DistributedHashTable.getPreviousNode(key);
+		if (nodeAddress == null) {
+			return null;
+		}
+
+		try {
+			Request request = new Request();
+			request.setRequestType("GET");
+			request.setKey(key);
+			Response response = connectionPool.send(nodeAddress, request);
+			if (response.getResponseCode() == 200) {
+				return response.getResponseData();
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
+		return null;
+	}
+
+	/***
+	 * This method adds this peer to the network. It asks the first node of the configuration file which is up to add this peer
+	 * to the network map, and that node sends the new network map to all the nodes which then move the keys of this peer to it.
+	 * @return	Returns true if this peer has joined the network.
+	 */
+	public static boolean joinNetwork() {
+		Request request = new Request();
+		request.setRequestType("JOIN");
+		request.setKey(DistributedHashTable.getLocalAddress());
+
+		for (String nodeAddress : DistributedHashTable.getNetworkMap().values()) {
+			try {
+				Response response = connectionPool.send(nodeAddress, request);
+				return response.getResponseCode() == 200;
+			} catch (Exception e) {
+				// Try the next node
+			}
+		}
+		return false;
+	}
+
+	/***
+	 * This method adds a node to the network map and sends the new network map to all the nodes.
+	 * @param nodeAddress	IP address of the node which joins the network.
+	 * @return				Returns the version of the new network map.
+	 */
+	public static synchronized long addNode(String nodeAddress) {
+		HashMap<Integer, String> networkMap = new HashMap<Integer, String>(DistributedHashTable.getNetworkMap());
+		if (networkMap.containsValue(nodeAddress)) {
+			return DistributedHashTable.getNetworkVersion();
+		}
+
+		int nodeId = 0;
+		for (int id : networkMap.keySet()) {
+			nodeId = Math.max(nodeId, id);
+		}
+		networkMap.put(nodeId + 1, nodeAddress);
+
+		long version = DistributedHashTable.getNetworkVersion() + 1;
+		announce(networkMap, version);
+		return version;
+	}
+
+	/***
+	 * This method removes this peer from the network. The new network map is sent to all the other nodes and then all the
+	 * keys of this peer are moved to them. It returns when all the keys are moved.
+	 */
+	public static synchronized void leaveNetwork() {
+		HashMap<Integer, String> networkMap = new HashMap<Integer, String>(DistributedHashTable.getNetworkMap());
+		networkMap.values().remove(DistributedHashTable.getLocalAddress());
+		if (networkMap.isEmpty()) {
+			return;
+		}
+
+		long version = DistributedHashTable.getNetworkVersion() + 1;
+		announce(networkMap, version);
+
+		RebalanceService service = new RebalanceService(version);
+		service.start();
+		try {
+			service.join();
+		} catch (InterruptedException e) { }
+	}
+
+	// Sends the network map to all its nodes and to this peer, which then starts moving its keys
+	private static void announce(HashMap<Integer, String> networkMap, long version) {
+		ArrayList<String> ids = new ArrayList<String>();
+		ArrayList<String> addresses = new ArrayList<String>();
+		for (Map.Entry<Integer, String> entry : networkMap.entrySet()) {
+			ids.add(String.valueOf(entry.getKey()));
+			addresses.add(entry.getValue());
+		}
+
+		Request request = new Request();
+		request.setRequestType("NETWORK_MAP");
+		request.setValue(String.valueOf(version));
+		request.setKeys(ids);
+		request.setValues(addresses);
+
+		for (String nodeAddress : networkMap.values()) {
+			if (nodeAddress.equals(DistributedHashTable.getLocalAddress())) {
+				continue;
+			}
+			try {
+				connectionPool.send(nodeAddress, request);
+			} catch (Exception e) {
+				System.out.println("Could not send the network map to " + nodeAddress + ".");
+			}
+		}
+
+		// This peer moves its keys only after all the nodes know the new network map
+		if (networkMap.containsValue(DistributedHashTable.getLocalAddress())) {
+			updateNetworkMap(ids, addresses, version);
+		} else {
+			DistributedHashTable.updateNetworkMap(networkMap, version);
+		}
+	}
+
+	/***
+	 * This method replaces the network map of this peer with the network map received from another node, and starts moving
+	 * the keys of this peer which belong to other nodes in the new network.
+	 * @param ids		IDs of the nodes.
+	 * @param addresses	IP address of each node.
+	 * @param version	Version of the network map.
+	 */
+	public static void updateNetworkMap(ArrayList<String> ids, ArrayList<String> addresses, long version) {
+		HashMap<Integer, String> networkMap = new HashMap<Integer, String>();
+		for (int i = 0; i < ids.size(); i++) {
+			networkMap.put(Integer.parseInt(ids.get(i)), addresses.get(i));
+		}
+
+		if (DistributedHashTable.updateNetworkMap(networkMap, version)) {
+			System.out.println("Network changed: " + networkMap);
+			RebalanceService service = new RebalanceService(version);
+			service.start();
+		}
+	}
+}
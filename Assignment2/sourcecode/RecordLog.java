@@ -0,0 +1,346 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/***
+ * This class appends records to a file on the local disk with group commit. It is used by the write-ahead log of the
+ * hashTable (WriteAheadLog) and by the hint log (HintedHandoff).
+ *
+ * append(...) only adds the record to a buffer. A thread which needs its records on the disk calls awaitDurable(): the first
+ * waiting thread writes the records appended by all the threads with one FileChannel write and one force, while the
+ * others wait for it, so concurrent requests share the cost of flushing the disk. The records appended while a write is
+ * in progress are written by the next one.
+ *
+ * Record:	[int length][int CRC32 of the payload][payload]
+ */
+public class RecordLog {
+	private final Object lock = new Object();
+	private FileChannel channel = null;
+	private RecordBuffer pending;
+	private RecordBuffer writing;
+	private long appendedRecords = 0;
+	private long durableRecords = 0;
+	private long size = 0;
+	private boolean flushing = false;
+	private IOException failure = null;
+	private boolean closed = false;
+
+	// Number of the last record appended by each thread, which the thread waits for before replying
+	private ThreadLocal<long[]> lastRecord = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/***
+	 * @param channel		File where the records are appended
+	 * @param size			Size of the valid records already in the file
+	 * @param bufferSize	Initial size of the buffers of the appended records
+	 */
+	public RecordLog(FileChannel channel, long size, int bufferSize) {
+		this.channel = channel;
+		this.size = size;
+		this.pending = new RecordBuffer(bufferSize);
+		this.writing = new RecordBuffer(bufferSize);
+	}
+
+	/***
+	 * This method appends a record. It returns before the record is on the disk, awaitDurable() waits for it.
+	 * @param payload	Bytes of the record
+	 */
+	public void append(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		synchronized (lock) {
+			writeInt(pending, payload.length);
+			writeInt(pending, (int) crc.getValue());
+			pending.write(payload, 0, payload.length);
+			lastRecord.get()[0] = ++appendedRecords;
+		}
+	}
+
+	/***
+	 * This method waits until the records appended by the calling thread are written and forced to the disk.
+	 * It returns immediately if the thread has not appended any record since its previous call.
+	 */
+	public void awaitDurable() throws IOException {
+		long[] record = lastRecord.get();
+		if (record[0] == 0) {
+			return;
+		}
+		if (awaitRecords(record[0])) {
+			record[0] = 0;
+		}
+	}
+
+	/***
+	 * This method waits until all the records appended so far are written and forced to the disk.
+	 */
+	public void flush() throws IOException {
+		long records;
+		synchronized (lock) {
+			records = appendedRecords;
+		}
+		awaitRecords(records);
+	}
+
+	// Waits until the first records are on the disk, writing the appended records if no other thread is writing them.
+	// Returns false if the thread was interrupted.
+	private boolean awaitRecords(long records) throws IOException {
+		while (true) {
+			RecordBuffer buffer;
+			FileChannel target;
+			long appended;
+			synchronized (lock) {
+				while (durableRecords < records && flushing && failure == null) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+				if (durableRecords >= records || closed) {
+					return true;
+				}
+
+				flushing = true;
+				buffer = pending;
+				pending = writing;
+				writing = buffer;
+				target = channel;
+				appended = appendedRecords;
+			}
+
+			IOException error = null;
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(buffer.array(), 0, buffer.size());
+				while (bytes.hasRemaining()) {
+					target.write(bytes);
+				}
+				target.force(false);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			synchronized (lock) {
+				flushing = false;
+				if (error != null) {
+					failure = error;
+				} else {
+					size += buffer.size();
+					durableRecords = Math.max(durableRecords, appended);
+				}
+				buffer.reset();
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/***
+	 * This method appends the next records to another file. The records appended but not written yet go to the new file.
+	 * The previous file is closed.
+	 * @param newChannel	File where the records are appended from now on
+	 * @param newSize		Size of the valid records already in the new file
+	 */
+	public void setChannel(FileChannel newChannel, long newSize) throws IOException {
+		synchronized (lock) {
+			awaitWrite();
+			if (channel != null && channel != newChannel) {
+				channel.close();
+			}
+			channel = newChannel;
+			size = newSize;
+		}
+	}
+
+	/***
+	 * This method drops the records appended but not written yet, when the caller no longer needs them (e.g. it rewrote
+	 * the file). The threads waiting for them return as if they were written.
+	 */
+	public void discard() {
+		synchronized (lock) {
+			awaitWrite();
+			pending.reset();
+			durableRecords = appendedRecords;
+			lock.notifyAll();
+		}
+	}
+
+	/***
+	 * This method empties the file and drops the records appended but not written yet.
+	 */
+	public void truncate() throws IOException {
+		synchronized (lock) {
+			discard();
+			channel.truncate(0);
+			size = 0;
+		}
+	}
+
+	// Waits until the write in progress, if any, is completed. Called with lock held
+	private void awaitWrite() {
+		while (flushing) {
+			try {
+				lock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/***
+	 * @return	Returns the number of bytes written to the current file, including the records found when it was opened.
+	 */
+	public long size() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	/***
+	 * This method writes the remaining records and closes the file.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			synchronized (lock) {
+				closed = true;
+				lock.notifyAll();
+				channel.close();
+			}
+		}
+	}
+
+	/***
+	 * The reader of the records of a file.
+	 */
+	public interface Reader {
+		/***
+		 * This method is called for each valid record of the file, in the order of the file.
+		 * @param record	Payload of the record
+		 */
+		void read(DataInputStream record) throws IOException;
+	}
+
+	/***
+	 * This method reads the records of a file, stopping at the first incomplete or corrupted record (the process stopped
+	 * while writing it).
+	 * @param file			File of the records
+	 * @param reader		Reader called for each record
+	 * @param bufferSize	Size of the read buffer
+	 * @return				Returns the size of the valid records at the start of the file.
+	 */
+	public static long read(File file, Reader reader, int bufferSize) throws IOException {
+		FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		long validSize = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fileChannel), bufferSize));
+			byte[] payload = new byte[1024];
+			CRC32 crc = new CRC32();
+
+			while (true) {
+				int length, checksum;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length <= 0 || length > MessageUtility.MAX_MESSAGE_SIZE) {
+						break;
+					}
+					if (payload.length < length) {
+						payload = new byte[length];
+					}
+					in.readFully(payload, 0, length);
+				} catch (EOFException e) {
+					break;
+				}
+
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+
+				reader.read(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+				validSize += 8 + length;
+			}
+		} finally {
+			fileChannel.close();
+		}
+		return validSize;
+	}
+
+	/***
+	 * This method frames a record as it is written in a file, for the callers which write a whole file at once.
+	 * @param out		Buffer where the record is added
+	 * @param payload	Bytes of the record
+	 */
+	public static void writeRecord(ByteArrayOutputStream out, byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		writeInt(out, payload.length);
+		writeInt(out, (int) crc.getValue());
+		out.write(payload, 0, payload.length);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/***
+	 * This method writes a string of a record: its length in bytes, or -1 for null, followed by its UTF-8 bytes.
+	 */
+	public static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/***
+	 * This method reads a string written by writeString(...).
+	 */
+	public static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Buffer of records whose bytes are written to the channel without being copied
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+	}
+}
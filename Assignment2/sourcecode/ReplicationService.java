@@ -1,110 +1,298 @@
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /***
  * This class provides the Replication facility in the Distributed Hash Table.
- * Its serves the requests of peers to store their Hash Table data on the replication nodes.
+ * Each replication node has one long-lived ReplicationService thread which sends the changes of the hashTable of this peer
+ * to it. The changes waiting to be sent are kept in a bounded queue where a newer change of a KEY replaces the older one,
+ * and they are sent in R_MPUT/R_MDELETE batches on a pooled connection. A batch which fails is sent again after a delay
+ * which doubles after every failure, so the replica catches up when the node is back instead of silently diverging.
+ * Every change carries the version of the VALUE, so a replica never replaces a newer VALUE with an older one.
  */
 public class ReplicationService extends Thread {
-	private ArrayList<String> replicationNodes = null;
-	private int portAddress;
-	private String localAddress = null;
-
-	private String key = null;
-	private String value = null;
-	private String requestType = null;
-	
-	// Initialize all the local data from the global data
-	public ReplicationService(String key, String value, String requestType) {
-		replicationNodes = DistributedHashTable.getReplicationNodes();
-		portAddress = DistributedHashTable.getPeerServerPort();
-		localAddress = DistributedHashTable.getLocalAddress();
-		
-		this.key = key;
-		this.value = value;
-		this.requestType = requestType;
+	public static final int BATCH_SIZE = 500; // Keys per replication request
+	public static final int MAX_PENDING_KEYS = 100000; // Per replication node
+	public static final long ENQUEUE_TIMEOUT = 1000; // 1 second, a change is dropped if the queue is still full after it
+	public static final long MIN_RETRY_DELAY = 100; // 100 milliseconds
+	public static final long MAX_RETRY_DELAY = 30 * 1000; // 30 seconds
+
+	private static ConcurrentHashMap<String, ReplicationService> services = new ConcurrentHashMap<String, ReplicationService>();
+	private static ConnectionPool connectionPool = new ConnectionPool(DistributedHashTable.getPeerServerPort());
+
+	private String nodeAddress = null;
+
+	// Changes waiting to be sent, in the order of their first change. The VALUE of a deleted KEY is null
+	private LinkedHashMap<String, PendingChange> pending = new LinkedHashMap<String, PendingChange>();
+	private boolean sending = false;
+
+	// Metrics
+	private volatile long keysReplicated = 0;
+	private volatile long keysCoalesced = 0;
+	private volatile long keysDropped = 0;
+	private volatile long failures = 0;
+	private volatile long lastAcknowledged = 0;
+
+	private ReplicationService(String nodeAddress) {
+		super("ReplicationService-" + nodeAddress);
+		this.nodeAddress = nodeAddress;
+		setDaemon(true);
 	}
-	
-	public void run () {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		String data = key + "," + value;
-		
-		for (String nodeAddress : replicationNodes) {
-			try {
-				if (requestType.equalsIgnoreCase("PUT")) {
-					if (nodeAddress.equalsIgnoreCase(localAddress)) {
-						//System.out.println(String.format("\nREPLICATING If (%s,%s) at %s - %s", key, value, nodeAddress, localAddress));
-						DistributedHashTable.putInReplicaHashTable(nodeAddress, key, value);
+
+	/***
+	 * This method replicates a change of the hashTable of this peer on all the replication nodes.
+	 * @param key		KEY which was changed
+	 * @param value		New VALUE of the KEY, or null if the KEY was deleted
+	 * @param version	Version of the change
+	 */
+	public static void replicate(String key, String value, long version) {
+		ArrayList<String> keys = new ArrayList<String>(1);
+		keys.add(key);
+		ArrayList<String> values = new ArrayList<String>(1);
+		values.add(value);
+		replicate(keys, values, new long[] { version });
+	}
+
+	/***
+	 * This method replicates the changes of many KEYS of the hashTable of this peer on all the replication nodes.
+	 * It returns once the changes are queued, without waiting for the replication nodes.
+	 * @param keys		KEYS which were changed
+	 * @param values	New VALUE of each KEY (null if the KEY was deleted), or null if all the KEYS were deleted
+	 * @param versions	Version of each change, or null if the changes have no version and always replace the replicas
+	 */
+	public static void replicate(ArrayList<String> keys, ArrayList<String> values, long[] versions) {
+		for (String nodeAddress : DistributedHashTable.getReplicationNodes()) {
+			replicateTo(nodeAddress, keys, values, versions);
+		}
+	}
+
+	/***
+	 * This method replicates the changes of many KEYS of the hashTable of this peer on one replication node.
+	 * It returns once the changes are queued, without waiting for the replication node.
+	 * @param nodeAddress	IP address of the replication node
+	 * @param keys			KEYS which were changed
+	 * @param values		New VALUE of each KEY (null if the KEY was deleted), or null if all the KEYS were deleted
+	 * @param versions		Version of each change, or null if the changes have no version and always replace the replica
+	 */
+	public static void replicateTo(String nodeAddress, ArrayList<String> keys, ArrayList<String> values, long[] versions) {
+		if (nodeAddress.equalsIgnoreCase(DistributedHashTable.getLocalAddress())) {
+			// This peer is a replication node, so its own data is replicated without the network
+			for (int i = 0; i < keys.size(); i++) {
+				String value = (values == null) ? null : values.get(i);
+				long version = (versions == null) ? 0 : versions[i];
+				if (value != null) {
+					DistributedHashTable.putInReplicaHashTable(nodeAddress, keys.get(i), value, version);
+				} else {
+					DistributedHashTable.removeFromReplicaHashTable(nodeAddress, keys.get(i), version);
+				}
+			}
+			return;
+		}
+
+		ReplicationService service = services.get(nodeAddress);
+		if (service == null) {
+			synchronized (services) {
+				service = services.get(nodeAddress);
+				if (service == null) {
+					service = new ReplicationService(nodeAddress);
+					service.start();
+					services.put(nodeAddress, service);
+				}
+			}
+		}
+		service.enqueue(keys, values, versions);
+	}
+
+	// Adds the changes to the queue, waiting up to ENQUEUE_TIMEOUT for room if the queue is full
+	private synchronized void enqueue(ArrayList<String> keys, ArrayList<String> values, long[] versions) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < keys.size(); i++) {
+			String value = (values == null) ? null : values.get(i);
+			long version = (versions == null) ? 0 : versions[i];
+			PendingChange change = pending.get(keys.get(i));
+			if (change != null) {
+				// Only the latest VALUE of the KEY has to be sent
+				if (version == 0 || version > change.version) {
+					change.value = value;
+					change.version = version;
+				}
+				keysCoalesced++;
+				continue;
+			}
+
+			long deadline = now + ENQUEUE_TIMEOUT;
+			while (pending.size() >= MAX_PENDING_KEYS && System.currentTimeMillis() < deadline) {
+				try {
+					wait(Math.max(1, deadline - System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (pending.size() >= MAX_PENDING_KEYS) {
+				keysDropped++;
+				continue;
+			}
+			pending.put(keys.get(i), new PendingChange(value, version, now));
+		}
+		notifyAll();
+	}
+
+	public void run() {
+		long retryDelay = MIN_RETRY_DELAY;
+
+		while (true) {
+			ArrayList<String> putKeys = new ArrayList<String>();
+			ArrayList<String> putValues = new ArrayList<String>();
+			ArrayList<Long> putVersions = new ArrayList<Long>();
+			ArrayList<String> deleteKeys = new ArrayList<String>();
+			ArrayList<Long> deleteVersions = new ArrayList<Long>();
+			LinkedHashMap<String, PendingChange> batch = new LinkedHashMap<String, PendingChange>();
+
+			// Take the oldest changes from the queue
+			synchronized (this) {
+				while (pending.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				Iterator<Map.Entry<String, PendingChange>> iterator = pending.entrySet().iterator();
+				while (iterator.hasNext() && batch.size() < BATCH_SIZE) {
+					Map.Entry<String, PendingChange> entry = iterator.next();
+					batch.put(entry.getKey(), entry.getValue());
+					if (entry.getValue().value != null) {
+						putKeys.add(entry.getKey());
+						putValues.add(entry.getValue().value);
+						putVersions.add(entry.getValue().version);
 					} else {
-						//System.out.println(String.format("\nREPLICATING Else (%s,%s) at %s - %s", key, value, nodeAddress, localAddress));
-						
-						// Make connection with server using the specified Host Address and Port 10000
-						socket = new Socket(nodeAddress, portAddress);
-
-						// Initializing output stream using the socket's output stream
-						out = new ObjectOutputStream(socket.getOutputStream());
-						out.flush();
-
-						// Initializing input stream using the socket's input stream
-						in = new ObjectInputStream(socket.getInputStream());
-
-						// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-						peerRequest = new Request();
-						peerRequest.setRequestType("R_PUT");
-						peerRequest.setRequestData(data);
-						out.writeObject(peerRequest);
-
-						// Read the response message from the server
-						serverResponse = (Response) in.readObject();
-						socket.close();
+						deleteKeys.add(entry.getKey());
+						deleteVersions.add(entry.getValue().version);
 					}
-					//System.out.println(replicatedHashTable);
-				} else if (requestType.equalsIgnoreCase("DELETE")) {
-					// Make connection with server using the specified Host Address and Port 10000
-			        socket = new Socket(nodeAddress, portAddress);
-			        
-			        // Initializing output stream using the socket's output stream
-			        out = new ObjectOutputStream(socket.getOutputStream());
-			        out.flush();
-			        
-			        // Initializing input stream using the socket's input stream
-			        in = new ObjectInputStream(socket.getInputStream());
-
-					// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-					peerRequest = new Request();
-					peerRequest.setRequestType("R_DELETE");
-					peerRequest.setRequestData(key);
-					out.writeObject(peerRequest);
-					
-			        // Read the response message from the server
-			        serverResponse = (Response) in.readObject();
-			        socket.close();
+					iterator.remove();
+				}
+				sending = true;
+				notifyAll();
+			}
+
+			try {
+				if (!putKeys.isEmpty()) {
+					send("R_MPUT", putKeys, putValues, putVersions);
+				}
+				if (!deleteKeys.isEmpty()) {
+					send("R_MDELETE", deleteKeys, null, deleteVersions);
+				}
+
+				synchronized (this) {
+					keysReplicated += batch.size();
+					lastAcknowledged = System.currentTimeMillis();
+					sending = false;
+					notifyAll();
 				}
-			} catch (Exception ex) {
-				// e.printStackTrace();
-			} finally {
+				retryDelay = MIN_RETRY_DELAY;
+			} catch (Exception e) {
+				synchronized (this) {
+					failures++;
+					sending = false;
+
+					// Put the batch back in front of the queue unless the KEYS were changed again meanwhile
+					LinkedHashMap<String, PendingChange> requeued = new LinkedHashMap<String, PendingChange>(batch);
+					for (Map.Entry<String, PendingChange> entry : pending.entrySet()) {
+						requeued.put(entry.getKey(), entry.getValue());
+					}
+					pending = requeued;
+				}
+
 				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
+					Thread.sleep(retryDelay);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+			}
+		}
+	}
 
-					if (in != null)
-						in.close();
+	// Sends a batch of changes to the replication node and checks that it was applied
+	private void send(String requestType, ArrayList<String> keys, ArrayList<String> values, ArrayList<Long> versions) throws Exception {
+		long[] requestVersions = new long[versions.size()];
+		for (int i = 0; i < requestVersions.length; i++) {
+			requestVersions[i] = versions.get(i);
+		}
+
+		Request request = new Request();
+		request.setRequestType(requestType);
+		request.setKeys(keys);
+		request.setValues(values);
+		request.setVersions(requestVersions);
+
+		Response response = connectionPool.send(nodeAddress, request);
+		if (response.getResponseCode() != 200) {
+			throw new Exception("Replication on " + nodeAddress + " failed with code " + response.getResponseCode());
+		}
+	}
+
+	/***
+	 * This method waits until all the queued changes are sent to the replication nodes, for example before the peer exits.
+	 * @param timeout	Maximum time to wait in milliseconds
+	 * @return			Returns true if all the changes are sent.
+	 */
+	public static boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (ReplicationService service : services.values()) {
+			synchronized (service) {
+				while (!service.pending.isEmpty() || service.sending) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					try {
+						service.wait(remaining);
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
 
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
+	/***
+	 * This method returns the replication status of each replication node: the number of KEYS waiting to be sent, the age of
+	 * the oldest of them (how far the replica is behind this peer) and the counts of replicated, coalesced and dropped KEYS.
+	 * @return	Returns one line per replication node.
+	 */
+	public static String getStatus() {
+		StringBuilder status = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (ReplicationService service : services.values()) {
+			synchronized (service) {
+				long lag = 0;
+				if (!service.pending.isEmpty()) {
+					lag = now - service.pending.values().iterator().next().enqueued;
 				}
+				status.append(String.format("%s: %d keys pending, lag %d ms, %d replicated, %d coalesced, %d dropped, %d failures, last acknowledged %s%n",
+						service.nodeAddress, service.pending.size(), lag, service.keysReplicated, service.keysCoalesced, service.keysDropped, service.failures,
+						service.lastAcknowledged == 0 ? "never" : (now - service.lastAcknowledged) + " ms ago"));
 			}
 		}
-		this.interrupt();
+		return status.toString();
+	}
+
+	// A change waiting to be sent, its version and the time of the first change of its KEY since the KEY was last sent
+	private static class PendingChange {
+		String value;
+		long version;
+		long enqueued;
+
+		PendingChange(String value, long version, long enqueued) {
+			this.value = value;
+			this.version = version;
+			this.enqueued = enqueued;
+		}
 	}
-}
\ No newline at end of file
+}
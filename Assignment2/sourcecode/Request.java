@@ -1,9 +1,17 @@
 import java.io.Serializable;
+import java.util.ArrayList;
 
 public class Request implements Serializable {
 	
 	private String requestType;
-	private String requestData;
+	private int requestId;
+	private String key;
+	private String value;
+	private ArrayList<String> keys;
+	private ArrayList<String> values;
+	private long[] versions;
+	private int quorum;
+	private String nodeAddress;
 	
 	public String getRequestType() {
 		return requestType;
@@ -11,11 +19,53 @@ public class Request implements Serializable {
 	public void setRequestType(String requestType) {
 		this.requestType = requestType;
 	}
-	public String getRequestData() {
-		return requestData;
+	public int getRequestId() {
+		return requestId;
 	}
-	public void setRequestData(String requestData) {
-		this.requestData = requestData;
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+	public String getKey() {
+		return key;
+	}
+	public void setKey(String key) {
+		this.key = key;
+	}
+	public String getValue() {
+		return value;
+	}
+	public void setValue(String value) {
+		this.value = value;
+	}
+	public ArrayList<String> getKeys() {
+		return keys;
+	}
+	public void setKeys(ArrayList<String> keys) {
+		this.keys = keys;
+	}
+	public ArrayList<String> getValues() {
+		return values;
+	}
+	public void setValues(ArrayList<String> values) {
+		this.values = values;
+	}
+	public long[] getVersions() {
+		return versions;
+	}
+	public void setVersions(long[] versions) {
+		this.versions = versions;
+	}
+	public int getQuorum() {
+		return quorum;
+	}
+	public void setQuorum(int quorum) {
+		this.quorum = quorum;
+	}
+	public String getNodeAddress() {
+		return nodeAddress;
+	}
+	public void setNodeAddress(String nodeAddress) {
+		this.nodeAddress = nodeAddress;
 	}
 	
 }
@@ -1,10 +1,16 @@
 import java.io.Serializable;
+import java.util.ArrayList;
 
 public class Response implements Serializable {
 
 	private int responseCode;
+	private int requestId;
 	private String responseData;
 	private Object otherData;
+	private int[] responseCodes;
+	private ArrayList<String> values;
+	private long[] versions;
+	private ArrayList<String> keys;
 	
 	public int getResponseCode() {
 		return responseCode;
@@ -14,6 +20,14 @@ public class Response implements Serializable {
 		this.responseCode = responseCode;
 	}
 
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
 	public String getResponseData() {
 		return responseData;
 	}
@@ -30,4 +44,36 @@ public class Response implements Serializable {
 		this.otherData = otherData;
 	}
 
+	public int[] getResponseCodes() {
+		return responseCodes;
+	}
+
+	public void setResponseCodes(int[] responseCodes) {
+		this.responseCodes = responseCodes;
+	}
+
+	public ArrayList<String> getValues() {
+		return values;
+	}
+
+	public void setValues(ArrayList<String> values) {
+		this.values = values;
+	}
+
+	public long[] getVersions() {
+		return versions;
+	}
+
+	public void setVersions(long[] versions) {
+		this.versions = versions;
+	}
+
+	public ArrayList<String> getKeys() {
+		return keys;
+	}
+
+	public void setKeys(ArrayList<String> keys) {
+		this.keys = keys;
+	}
+
 }
@@ -0,0 +1,170 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ServerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		// Usage: java ServerBenchmark [number of short connections] [number of long connections] [requests per long connection]
+		int shortConnections = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int longConnections = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+		// Warm up both modes so that the first one measured doesn't pay for the JIT compilation
+		benchmark("thread", shortConnections / 10, longConnections / 10, requests, false);
+		benchmark("virtual", shortConnections / 10, longConnections / 10, requests, false);
+
+		benchmark("thread", shortConnections, longConnections, requests, true);
+		benchmark("virtual", shortConnections, longConnections, requests, true);
+	}
+
+	/***
+	 * This method starts a peer server in a mode and measures two workloads: short connections which send one request each,
+	 * and many connections kept open at the same time which send requests one after another.
+	 * @param mode				thread or virtual
+	 * @param shortConnections	Number of connections opened one after another by each client thread, one request each
+	 * @param longConnections	Number of connections open at the same time
+	 * @param requests			Number of requests sent on each long connection
+	 * @param print				false to only warm up
+	 */
+	private static void benchmark(String mode, int shortConnections, int longConnections, int requests, boolean print) throws Exception {
+		ServerSocket listener = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+		final ServerExecutor serverExecutor = new ServerExecutor(mode, ServerExecutor.DEFAULT_MAX_CONNECTIONS);
+		Thread server = new Thread() {
+			public void run() {
+				try {
+					serverExecutor.serve(listener);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		server.start();
+
+		int port = listener.getLocalPort();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if (print) {
+			System.out.println("**** " + serverExecutor.getMode() + " mode ****");
+		}
+
+		// Short connections: 8 clients open a connection, send one request and close it
+		threads.resetPeakThreadCount();
+		long[] latencies = new long[shortConnections];
+		long startTime = System.nanoTime();
+		runClients(8, shortConnections, port, 1, latencies);
+		if (print) {
+			report("Short connections", shortConnections, startTime, latencies, threads.getPeakThreadCount());
+		}
+
+		// Long connections: all the connections are open, each of them sends its requests one after another
+		threads.resetPeakThreadCount();
+		latencies = new long[longConnections * requests];
+		startTime = System.nanoTime();
+		runClients(longConnections, longConnections, port, requests, latencies);
+		if (print) {
+			report("Long connections", longConnections * requests, startTime, latencies, threads.getPeakThreadCount());
+		}
+
+		long shutdownTime = System.nanoTime();
+		boolean completed = serverExecutor.shutdown();
+		server.join();
+		if (print) {
+			System.out.println(String.format("  Shutdown            : %8.1f ms%s", (System.nanoTime() - shutdownTime) / 1e6,
+					completed ? "" : " (timed out)"));
+		}
+	}
+
+	// Each client thread opens its share of the connections one after another and sends the requests on them
+	private static void runClients(int clients, final int connections, final int port, final int requests, final long[] latencies) throws Exception {
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicLong next = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+
+		for (int c = 0; c < clients; c++) {
+			Thread client = new Thread() {
+				public void run() {
+					ready.countDown();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long connection;
+					while ((connection = next.getAndIncrement()) < connections) {
+						try {
+							send(port, connection, requests, latencies);
+						} catch (Exception e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			client.setDaemon(true);
+			client.start();
+			threads.add(client);
+		}
+		ready.await();
+		start.countDown();
+		for (Thread client : threads) {
+			client.join();
+		}
+		if (errors.get() > 0) {
+			System.out.println("  ERROR: " + errors.get() + " connections failed");
+		}
+	}
+
+	// Opens a connection and sends R_PUT requests on it, the latency of each request is kept
+	private static void send(int port, long connection, int requests, long[] latencies) throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			socket.setTcpNoDelay(true);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			for (int i = 0; i < requests; i++) {
+				Request request = new Request();
+				request.setRequestType("R_PUT");
+				request.setKey("bench" + (connection * requests + i));
+				request.setValue("value");
+
+				long startTime = System.nanoTime();
+				MessageUtility.writeRequest(out, request);
+				out.flush();
+				Response response = MessageUtility.readResponse(in);
+				latencies[(int) (connection * requests + i)] = System.nanoTime() - startTime;
+				if (response.getResponseCode() != 200) {
+					throw new Exception("R_PUT failed with code " + response.getResponseCode());
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void report(String phase, int operations, long startTime, long[] latencies, int peakThreads) {
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		Arrays.sort(latencies);
+		System.out.println(String.format("  %-20s: %8.0f requests/s, p50 %7.1f us, p99 %8.1f us, peak threads %5d", phase,
+				operations / seconds, percentile(latencies, 50) / 1e3, percentile(latencies, 99) / 1e3, peakThreads));
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * This class accepts the connections of the peers and serves each of them with a PeerServer.
+ *
+ * In the thread mode (default) every connection gets a new platform thread, as before. In the virtual mode the
+ * connections are served by an executor which starts one virtual thread per connection, so thousands of mostly idle
+ * connections don't cost thousands of platform threads and their context switches. Virtual threads need Java 21;
+ * on an older Java the virtual mode reuses the threads of a pool instead of creating one thread per connection.
+ *
+ * In both modes at most MAX_CONNECTIONS connections are served at the same time. When the limit is reached, the new
+ * connections wait in the backlog of the listener until a connection is closed.
+ *
+ * shutdown() stops accepting connections, lets the requests which are being served complete, closes the connections once
+ * they have replied and waits up to SHUTDOWN_TIMEOUT for them.
+ */
+public class ServerExecutor {
+	public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+	public static final long SHUTDOWN_TIMEOUT = 10 * 1000; // 10 seconds
+
+	private final String mode;
+	private final int maxConnections;
+	private final Semaphore permits;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<Socket, Boolean> connections = new ConcurrentHashMap<Socket, Boolean>();
+	private volatile ServerSocket listener = null;
+	private volatile boolean shutdown = false;
+
+	/***
+	 * @param mode				thread (one platform thread per connection) or virtual (one virtual thread per connection)
+	 * @param maxConnections	Maximum number of connections served at the same time
+	 */
+	public ServerExecutor(String mode, int maxConnections) {
+		this.maxConnections = maxConnections;
+		this.permits = new Semaphore(maxConnections);
+
+		if (mode.equalsIgnoreCase("virtual")) {
+			ExecutorService virtualExecutor = newVirtualThreadExecutor();
+			if (virtualExecutor != null) {
+				this.mode = "virtual";
+				this.executor = virtualExecutor;
+			} else {
+				System.out.println("Virtual threads need Java 21. The connections are served by a pool of threads.");
+				this.mode = "pool";
+				this.executor = Executors.newCachedThreadPool();
+			}
+		} else {
+			this.mode = "thread";
+			this.executor = null;
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() is looked up at run time so that the program still runs on Java 17
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/***
+	 * This method accepts the connections of the listener and serves them until shutdown() is called.
+	 * @param listener	Socket listening on the port of the peer server
+	 */
+	public void serve(ServerSocket listener) throws IOException {
+		this.listener = listener;
+		try {
+			while (!shutdown) {
+				permits.acquireUninterruptibly();
+				if (shutdown) {
+					permits.release();
+					break;
+				}
+				final Socket socket;
+				try {
+					socket = listener.accept();
+				} catch (IOException e) {
+					permits.release();
+					if (shutdown) {
+						break;
+					}
+					throw e;
+				}
+
+				connections.put(socket, Boolean.TRUE);
+				final PeerServer peerServer = new PeerServer(socket);
+				Runnable task = new Runnable() {
+					public void run() {
+						try {
+							peerServer.run();
+						} finally {
+							connections.remove(socket);
+							permits.release();
+						}
+					}
+				};
+
+				if (executor != null) {
+					executor.execute(task);
+				} else {
+					new Thread(task).start();
+				}
+			}
+		} finally {
+			listener.close();
+		}
+	}
+
+	/***
+	 * This method stops accepting connections and waits for the connections being served to complete their request.
+	 * @return	Returns true if all the connections were closed before SHUTDOWN_TIMEOUT.
+	 */
+	public boolean shutdown() {
+		shutdown = true;
+		try {
+			if (listener != null) {
+				listener.close();
+			}
+		} catch (IOException e) {
+			//e.printStackTrace();
+		}
+
+		// A PeerServer waiting for the next request reads the end of the stream and closes its connection,
+		// a PeerServer serving a request sends its response first
+		for (Socket socket : connections.keySet()) {
+			try {
+				socket.shutdownInput();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+		}
+
+		boolean completed = false;
+		try {
+			completed = permits.tryAcquire(maxConnections, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		for (Socket socket : connections.keySet()) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+		}
+		return completed;
+	}
+
+	/***
+	 * This method returns the number of connections being served.
+	 * @return	Returns the number of open connections.
+	 */
+	public int getConnections() {
+		return connections.size();
+	}
+
+	/***
+	 * This method returns how the connections are served.
+	 * @return	Returns thread, virtual or pool (virtual mode on a Java without virtual threads).
+	 */
+	public String getMode() {
+		return mode;
+	}
+}
@@ -0,0 +1,90 @@
+import java.util.Map;
+
+/***
+ * This interface defines how the (KEY,VALUE) pairs of the hashTable of a peer are stored.
+ * The STORAGE_ENGINE property of the configuration file selects the implementation: "heap" keeps the pairs in a
+ * ConcurrentHashMap (HeapStorageEngine) and "offheap" keeps them in direct memory (OffHeapStorageEngine).
+ *
+ * Each KEY has a version next to its VALUE. A deleted KEY can be kept with its version and no VALUE (a tombstone), so that
+ * an older VALUE on another node doesn't bring it back. The tombstones are not counted by size() nor returned by entries().
+ * All the methods are thread safe.
+ */
+public interface StorageEngine {
+
+	/***
+	 * This method returns the VALUE of the KEY.
+	 * @param key	KEY which is to be searched.
+	 * @return		Returns VALUE for the KEY specified if the KEY exist else returns NULL.
+	 */
+	String get(String key);
+
+	/***
+	 * This method returns the VALUE of the KEY together with its version.
+	 * @param key		KEY which is to be searched.
+	 * @param version	Array where the version of the VALUE (or of the delete of the KEY) is stored at index 0, 0 if the KEY is unknown.
+	 * @return			Returns VALUE for the KEY specified if the KEY exist else returns NULL.
+	 */
+	String get(String key, long[] version);
+
+	/***
+	 * This method returns the version of the KEY.
+	 * @param key	KEY whose version is returned
+	 * @return		Returns the version of the VALUE (or of the delete) of the KEY, or 0 if the KEY is unknown.
+	 */
+	long getVersion(String key);
+
+	/***
+	 * This method checks if the KEY exists.
+	 * @param key	KEY which is to be searched.
+	 * @return		Returns true if the KEY has a VALUE.
+	 */
+	boolean containsKey(String key);
+
+	/***
+	 * This method adds a (KEY,VALUE) pair, replacing the old VALUE and version of the KEY if it exists.
+	 * @param key		KEY of the pair
+	 * @param value		VALUE of the pair, or null to keep the KEY as deleted
+	 * @param version	Version of the VALUE (or of the delete)
+	 */
+	void put(String key, String value, long version);
+
+	/***
+	 * This method forgets a KEY: its VALUE and its version.
+	 * @param key	KEY which is to be deleted.
+	 * @return		Returns true if the KEY existed, with a VALUE or as deleted.
+	 */
+	boolean remove(String key);
+
+	/***
+	 * This method forgets a KEY only if it has the specified VALUE.
+	 * @param key	KEY which is to be deleted.
+	 * @param value	Expected VALUE of the KEY
+	 * @return		Returns true if the KEY is deleted.
+	 */
+	boolean remove(String key, String value);
+
+	/***
+	 * This method returns the number of (KEY,VALUE) pairs.
+	 * @return	Returns the number of pairs, without the deleted KEYS.
+	 */
+	int size();
+
+	/***
+	 * This method returns all the (KEY,VALUE) pairs. Like the iterators of a ConcurrentHashMap, the iteration doesn't fail
+	 * if the pairs are changed meanwhile, and it may or may not see these changes.
+	 * @return	Returns the pairs, without the deleted KEYS.
+	 */
+	Iterable<Map.Entry<String, String>> entries();
+
+	/***
+	 * This method returns the versions of all the KEYS, like entries().
+	 * @return	Returns the (KEY, version) pairs, including the deleted KEYS.
+	 */
+	Iterable<Map.Entry<String, Long>> versions();
+
+	/***
+	 * This method returns the memory used outside of the Java heap.
+	 * @return	Returns the number of bytes of direct memory used, 0 if the pairs are kept on the heap.
+	 */
+	long offHeapSize();
+}
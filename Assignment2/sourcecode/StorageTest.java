@@ -0,0 +1,113 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class StorageTest {
+
+	public static void main(String[] args) {
+		// Usage: java StorageTest [heap|offheap] [number of pairs] [VALUE length]
+		String engine = (args.length > 0) ? args[0] : "heap";
+		int pairs = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		int valueLength = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+		testStorage(engine, pairs, valueLength);
+	}
+
+	/***
+	 * This method loads (KEY,VALUE) pairs in the hashTable of this peer with a storage engine, then reads, overwrites and
+	 * deletes them, and prints the memory used on the heap and outside of it and the time spent by the garbage collector.
+	 * The pairs go through DistributedHashTable like the requests of the clients, so each write gives a version to its
+	 * KEY and updates the Merkle tree, and each delete keeps the version of the KEY.
+	 * @param engine		heap or offheap
+	 * @param pairs			Number of (KEY,VALUE) pairs
+	 * @param valueLength	Number of characters of each VALUE
+	 */
+	private static void testStorage(String engine, int pairs, int valueLength) {
+		long baseHeap = usedHeap();
+		StorageEngine hashTable = engine.equalsIgnoreCase("offheap") ? new OffHeapStorageEngine() : new HeapStorageEngine();
+		DistributedHashTable.setHashTable(hashTable);
+		Random random = new Random(1);
+
+		System.out.println("**** " + hashTable.getClass().getSimpleName() + " (" + pairs + " pairs, " + valueLength + " characters VALUES) ****");
+
+		// Load: every VALUE is a new String, as if it was received from a client
+		long[] gc = gcCounters();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < pairs; i++) {
+			DistributedHashTable.putInHashTable(key(i), value(random, valueLength), true);
+		}
+		report("Load", pairs, startTime, gc);
+
+		System.out.println(String.format("  Heap used      : %8.1f MB", (usedHeap() - baseHeap) / 1048576.0));
+		System.out.println(String.format("  Off-heap used  : %8.1f MB", hashTable.offHeapSize() / 1048576.0));
+
+		// Reads of random KEYS
+		gc = gcCounters();
+		startTime = System.nanoTime();
+		long found = 0;
+		for (int i = 0; i < pairs; i++) {
+			if (DistributedHashTable.getFromHashTable(key(random.nextInt(pairs))) != null) {
+				found++;
+			}
+		}
+		report("Get", pairs, startTime, gc);
+		if (found != pairs) {
+			System.out.println("  ERROR: " + (pairs - found) + " KEYS not found");
+		}
+
+		// Churn: overwrite and delete random KEYS, the VALUES which are replaced become garbage on the heap
+		gc = gcCounters();
+		startTime = System.nanoTime();
+		for (int i = 0; i < pairs; i++) {
+			String key = key(random.nextInt(pairs));
+			if (i % 4 == 0) {
+				DistributedHashTable.removeFromHashTable(key);
+			} else {
+				DistributedHashTable.putInHashTable(key, value(random, valueLength), true);
+			}
+		}
+		report("Put/Delete", pairs, startTime, gc);
+
+		System.out.println(String.format("  Heap used      : %8.1f MB", (usedHeap() - baseHeap) / 1048576.0));
+		System.out.println(String.format("  Off-heap used  : %8.1f MB", hashTable.offHeapSize() / 1048576.0));
+		System.out.println("  Pairs          : " + hashTable.size());
+	}
+
+	private static String key(int i) {
+		return "key" + i;
+	}
+
+	private static String value(Random random, int length) {
+		char[] value = new char[length];
+		for (int i = 0; i < length; i++) {
+			value[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(value);
+	}
+
+	// Prints the throughput of a phase and the collections done during the phase
+	private static void report(String phase, int operations, long startTime, long[] gc) {
+		double time = (System.nanoTime() - startTime) / 1e9;
+		long[] now = gcCounters();
+		System.out.println(String.format("  %-15s: %8.3f seconds, %10.0f ops/s, %5d collections, %6d ms of GC", phase, time, operations / time, now[0] - gc[0], now[1] - gc[1]));
+	}
+
+	// Returns the number of collections and the time spent in them since the JVM started
+	private static long[] gcCounters() {
+		long[] counters = new long[2];
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			counters[0] += Math.max(0, collector.getCollectionCount());
+			counters[1] += Math.max(0, collector.getCollectionTime());
+		}
+		return counters;
+	}
+
+	// Returns the heap used by live objects
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
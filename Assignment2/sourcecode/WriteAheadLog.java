@@ -0,0 +1,355 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/***
+ * This class keeps the hashTable of the peer on the local disk so that a restarted peer recovers its (KEY,VALUE) pairs
+ * without downloading them from the replication nodes.
+ *
+ * Every PUT and DELETE is appended to a write-ahead log (a RecordLog, which writes the records of concurrent requests
+ * with one FileChannel write and one force). Periodically the whole hashTable is written to a snapshot and the log
+ * segments older than the snapshot are deleted. Recovery loads the snapshot and replays the log segments written after it.
+ *
+ * The version of every KEY is logged with it, including the version of the deleted KEYS, so that a recovered peer
+ * still knows which of its VALUES are newer than the VALUES of the other copies.
+ *
+ * Log record:	[int length][int CRC32 of the payload][byte PUT or DELETE][int key length][key][int value length or -1][value][long version]
+ * Snapshot:	[int MAGIC][long first log segment to replay]([int key length][key][int value length or -1][value][long version])*[int -1][long CRC32]
+ */
+public class WriteAheadLog {
+	public static final long SNAPSHOT_INTERVAL = 5 * 60 * 1000; // 5 minutes
+	public static final long MAX_LOG_SIZE = 64 * 1024 * 1024; // 64 MegaBytes, a snapshot is written when the log is bigger
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int MAGIC = 0x44485453; // "DHTS"
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+
+	private File directory;
+	private RecordLog log = null;
+	private long segment = 0;
+	private volatile boolean closed = false;
+
+	private ThreadLocal<ByteArrayOutputStream> recordBuffers = new ThreadLocal<ByteArrayOutputStream>() {
+		protected ByteArrayOutputStream initialValue() {
+			return new ByteArrayOutputStream(1024);
+		}
+	};
+
+	/***
+	 * This method creates the write-ahead log in the specified directory. The log is not written until it is started.
+	 * @param location	Directory where the snapshot and the log segments are stored.
+	 */
+	public WriteAheadLog(String location) {
+		directory = new File(location);
+	}
+
+	/***
+	 * This method loads the snapshot and replays the log segments written after it into the hashTable.
+	 * A record which is not completely written (the peer stopped while writing it) ends the replay of its segment.
+	 * @param hashTable	Hash Table where the (KEY,VALUE) pairs and their versions are loaded.
+	 * @return			Returns true if a snapshot or a log segment was found.
+	 */
+	public boolean recover(StorageEngine hashTable) throws IOException {
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+
+		boolean found = false;
+		long firstSegment = 0;
+		File snapshot = new File(directory, "hashtable.snapshot");
+		if (snapshot.exists()) {
+			firstSegment = readSnapshot(snapshot, hashTable);
+			found = true;
+		}
+
+		long[] segments = listSegments();
+		for (long number : segments) {
+			if (number >= firstSegment) {
+				replay(segmentFile(number), hashTable);
+				found = true;
+			}
+			segment = Math.max(segment, number);
+		}
+		segment = Math.max(segment, firstSegment);
+		return found;
+	}
+
+	/***
+	 * This method starts a new log segment and the thread which writes the snapshots.
+	 */
+	public void start() throws IOException {
+		openSegment(segment + 1);
+
+		Thread snapshotWriter = new Thread("WriteAheadLog-snapshot") {
+			public void run() {
+				long lastSnapshot = System.currentTimeMillis();
+				while (!closed) {
+					try {
+						Thread.sleep(1000);
+						long logSize = log.size();
+						if (logSize > MAX_LOG_SIZE || (logSize > 0 && System.currentTimeMillis() - lastSnapshot > SNAPSHOT_INTERVAL)) {
+							snapshot(DistributedHashTable.getHashTable());
+							lastSnapshot = System.currentTimeMillis();
+						}
+					} catch (InterruptedException e) {
+						break;
+					} catch (IOException e) {
+						System.out.println("ERROR in writing the snapshot of the Hash Table: " + e.getMessage());
+					}
+				}
+			}
+		};
+		snapshotWriter.setDaemon(true);
+		snapshotWriter.start();
+	}
+
+	/***
+	 * This method appends a PUT of a (KEY,VALUE) pair to the log. It returns before the record is on the disk,
+	 * awaitDurable() waits for it.
+	 * @param key		KEY of the pair
+	 * @param value		VALUE of the pair
+	 * @param version	Version of the VALUE
+	 */
+	public void logPut(String key, String value, long version) {
+		append(PUT, key, value, version);
+	}
+
+	/***
+	 * This method appends a DELETE of a KEY to the log. It returns before the record is on the disk,
+	 * awaitDurable() waits for it.
+	 * @param key		KEY which was deleted
+	 * @param version	Version of the delete, or 0 if the version of the KEY is not kept (the KEY moved to another node)
+	 */
+	public void logDelete(String key, long version) {
+		append(DELETE, key, null, version);
+	}
+
+	// Encodes the record and adds it to the records to be written
+	private void append(byte operation, String key, String value, long version) {
+		ByteArrayOutputStream record = recordBuffers.get();
+		record.reset();
+		try {
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeByte(operation);
+			RecordLog.writeString(out, key);
+			RecordLog.writeString(out, value);
+			out.writeLong(version);
+		} catch (IOException e) {
+			// Not thrown by a ByteArrayOutputStream
+		}
+		log.append(record.toByteArray());
+	}
+
+	/***
+	 * This method waits until the records appended by the calling thread are written and forced to the disk.
+	 * It returns immediately if the thread has not appended any record since its previous call.
+	 */
+	public void awaitDurable() throws IOException {
+		log.awaitDurable();
+	}
+
+	/***
+	 * This method writes all the (KEY,VALUE) pairs of the hashTable and the versions of the deleted KEYS to a new snapshot. The records appended from now on
+	 * go to a new log segment, and the older segments are deleted once the snapshot is on the disk.
+	 * The pairs changed while the snapshot is written are also in the new segment, so replaying it after the snapshot
+	 * gives their latest value.
+	 * @param hashTable	Hash Table of the peer, with the versions of its KEYS
+	 */
+	public void snapshot(StorageEngine hashTable) throws IOException {
+		// Write the appended records to the current segment before starting a new one
+		log.flush();
+		openSegment(segment + 1);
+		long firstSegment = segment;
+
+		File temporary = new File(directory, "hashtable.snapshot.tmp");
+		FileChannel snapshotChannel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			CRC32 crc = new CRC32();
+			buffer.putInt(MAGIC);
+			buffer.putLong(firstSegment);
+
+			for (Map.Entry<String, String> entry : hashTable.entries()) {
+				buffer = putEntry(snapshotChannel, buffer, crc, entry.getKey(), entry.getValue(), hashTable.getVersion(entry.getKey()));
+			}
+			// Deleted KEYS
+			for (Map.Entry<String, Long> entry : hashTable.versions()) {
+				if (!hashTable.containsKey(entry.getKey())) {
+					buffer = putEntry(snapshotChannel, buffer, crc, entry.getKey(), null, entry.getValue());
+				}
+			}
+			if (buffer.remaining() < 4) {
+				flush(snapshotChannel, buffer, crc);
+			}
+			buffer.putInt(-1);
+			flush(snapshotChannel, buffer, crc);
+
+			buffer.putLong(crc.getValue());
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				snapshotChannel.write(buffer);
+			}
+			snapshotChannel.force(true);
+		} finally {
+			snapshotChannel.close();
+		}
+
+		Files.move(temporary.toPath(), new File(directory, "hashtable.snapshot").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for (long number : listSegments()) {
+			if (number < firstSegment) {
+				segmentFile(number).delete();
+			}
+		}
+	}
+
+	// Adds an entry to the snapshot, writing the buffered bytes first if there is no room for it, and returns the buffer to use
+	private ByteBuffer putEntry(FileChannel snapshotChannel, ByteBuffer buffer, CRC32 crc, String key, String value, long version) throws IOException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		byte[] valueBytes = (value != null) ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		int size = keyBytes.length + valueBytes.length + 16;
+		if (buffer.remaining() < size) {
+			flush(snapshotChannel, buffer, crc);
+			if (buffer.remaining() < size) {
+				buffer = ByteBuffer.allocateDirect(size);
+			}
+		}
+		buffer.putInt(keyBytes.length);
+		buffer.put(keyBytes);
+		buffer.putInt((value != null) ? valueBytes.length : -1);
+		buffer.put(valueBytes);
+		buffer.putLong(version);
+		return buffer;
+	}
+
+	// Writes the buffered bytes of the snapshot and adds them to its checksum
+	private void flush(FileChannel snapshotChannel, ByteBuffer buffer, CRC32 crc) throws IOException {
+		buffer.flip();
+		crc.update(buffer.duplicate());
+		while (buffer.hasRemaining()) {
+			snapshotChannel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	// Reads a snapshot into the hashTable and returns the first log segment written after it
+	private long readSnapshot(File snapshot, StorageEngine hashTable) throws IOException {
+		FileChannel snapshotChannel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+		try {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Channels.newInputStream(snapshotChannel), BUFFER_SIZE), new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Invalid snapshot " + snapshot);
+			}
+			long firstSegment = in.readLong();
+
+			while (true) {
+				String key = RecordLog.readString(in);
+				if (key == null) {
+					break;
+				}
+				String value = RecordLog.readString(in);
+				long version = in.readLong();
+				apply(hashTable, key, value, version);
+			}
+
+			long crc = checked.getChecksum().getValue();
+			if (in.readLong() != crc) {
+				throw new IOException("Invalid checksum of snapshot " + snapshot);
+			}
+			return firstSegment;
+		} finally {
+			snapshotChannel.close();
+		}
+	}
+
+	// Applies the records of a log segment to the hashTable, stopping at the first incomplete or corrupted record
+	private void replay(File file, final StorageEngine hashTable) throws IOException {
+		RecordLog.read(file, new RecordLog.Reader() {
+			public void read(DataInputStream record) throws IOException {
+				byte operation = record.readByte();
+				String key = RecordLog.readString(record);
+				String value = RecordLog.readString(record);
+				long version = record.readLong();
+				if (operation == PUT) {
+					apply(hashTable, key, value, version);
+				} else if (operation == DELETE) {
+					apply(hashTable, key, null, version);
+				}
+			}
+		}, BUFFER_SIZE);
+	}
+
+	// Applies a recovered PUT (or a DELETE if the VALUE is null) and its version. A DELETE without a version forgets the KEY
+	private static void apply(StorageEngine hashTable, String key, String value, long version) {
+		if (value != null || version != 0) {
+			hashTable.put(key, value, version);
+		} else {
+			hashTable.remove(key);
+		}
+	}
+
+	// Closes the current segment and appends the next records to a new one
+	private void openSegment(long number) throws IOException {
+		FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segment = number;
+		if (log == null) {
+			log = new RecordLog(channel, 0, BUFFER_SIZE);
+		} else {
+			log.setChannel(channel, 0);
+		}
+	}
+
+	// Returns the numbers of the log segments in the directory in increasing order
+	private long[] listSegments() {
+		String[] names = directory.list();
+		if (names == null) {
+			return new long[0];
+		}
+
+		long[] segments = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (name.startsWith("hashtable-") && name.endsWith(".log")) {
+				try {
+					segments[count++] = Long.parseLong(name.substring(10, name.length() - 4));
+				} catch (NumberFormatException e) { }
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private File segmentFile(long number) {
+		return new File(directory, String.format("hashtable-%010d.log", number));
+	}
+
+	/***
+	 * This method writes the remaining records and closes the log.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			if (log != null) {
+				log.close();
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
+	}
+}
@@ -13,13 +13,17 @@ import java.util.concurrent.ConcurrentHashMap;
 public class FileTransferSystem {
 	// <KEY, VALUE> i.e. <FILE NAME, PEER ADDRESS> Hash Table
 	private static ConcurrentHashMap<String, String> hashTable = new ConcurrentHashMap<String, String>();
-	// <PEER_IP, <KEY, VALUE>> i.e. <PEER_IP, <FILE NAME, PEER ADDRESS>> Hash Table
-	private static ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable = new ConcurrentHashMap<String, HashMap<String, String>>();
+	// <KEY, (PEER_IP, VALUE)> i.e. <FILE NAME, (PEER_IP, PEER ADDRESS)> Replicas of the Hash Tables of the other peers, indexed by KEY
+	private static ReplicaStore replicaStore = new ReplicaStore();
 	
 	private static HashMap<Integer, String> networkMap = new HashMap<Integer, String>();
+	private static HashRing hashRing = null;
 	private static ArrayList<String> replicationNodes = new ArrayList<String>();
 	private static String filesLocation = null;
 	private static String replicaLocation = null;
+	// How the connections of the peers are served: thread (one thread per connection) or virtual (one virtual thread per connection)
+	private static String serverMode = "thread";
+	private static int maxConnections = ServerExecutor.DEFAULT_MAX_CONNECTIONS;
 	
 	private static final int PEER_SERVER_PORT = 20000;
 	private static final String LOCAL_ADDRESS = NetworkUtility.getLocalAddress();
@@ -59,66 +63,76 @@ public class FileTransferSystem {
 	}
 	
 	/**
-	 * This methods adds a (KEY,VALUE) pair in the Replication Hash Table (replicatedHashTable).
-	 * @param nodeAddress	IP address of the peer(node) whose hashTable has to be replicated and kept the (KEY, VALUE) pairs in replicatedHashTable.
+	 * This methods adds a (KEY,VALUE) pair in the Replication Hash Table (replicaStore).
+	 * @param nodeAddress	IP address of the peer(node) whose hashTable has to be replicated and kept the (KEY, VALUE) pairs in replicaStore.
 	 * @param key		KEY should be 24 bytes (12 characters) maximum.
 	 * @param value		VALUE should be 1000 bytes (500 characters) maximum.
 	 */
 	public static void putInReplicaHashTable(String nodeAddress, String key, String value) {
-		if (replicatedHashTable.containsKey(nodeAddress)) {
-			HashMap<String, String> innerMap = replicatedHashTable.get(nodeAddress);
-			innerMap.put(key, value);
-		} else {
-			HashMap<String, String> innerMap = new HashMap<String, String>();
-			innerMap.put(key, value);
-			replicatedHashTable.put(nodeAddress, innerMap);
-		}
+		replicaStore.put(nodeAddress, key, value, 0);
 	}
 	
 	/***
-	 * This methods retrieves the VALUE of the KEY from the Replication Hash Table (replicatedHashTable).
-	 * @param key	KEY which is to be searched in the replicatedHashTable.
-	 * @return		Returns VALUE for the KEY specified if the KEY exist in the replicatedHashTable else returns NULL.
+	 * This methods retrieves the VALUE of the KEY from the Replication Hash Table (replicaStore).
+	 * @param key	KEY which is to be searched in the replicaStore.
+	 * @return		Returns VALUE for the KEY specified if the KEY exist in the replicaStore else returns NULL.
 	 */
 	public static String getFromReplicaHashTable(String key) {
-		String value = null;
-		
-		for (Map.Entry<String, HashMap<String, String>> record : replicatedHashTable.entrySet()) {
-			HashMap<String, String> innerMap = replicatedHashTable.get(record.getKey().toString());
-			value = innerMap.get(key);
-			if (value != null) {
-				break;
-			}
-		}
-		return value;
+		return replicaStore.get(key);
 	}
 	
 	/***
-	 * This methods deletes a (KEY,VALUE) pair from the Replication Hash Table (replicatedHashTable) using KEY. It does nothing if the KEY doesn't exist in the replicatedHashTable.
-	 * @nodeAddress	IP address of the peer(node) whose (KEY, VALUE) pair is to be deleted from the replicatedHashTable.
-	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the replicatedHashTable.
+	 * This methods retrieves the VALUE of the KEY from the Replication Hash Table (replicaStore) together with the peer whose hashTable has the KEY.
+	 * @param key			KEY which is to be searched in the replicaStore.
+	 * @param nodeAddress	Array where the IP address of the peer is stored at index 0.
+	 * @return				Returns VALUE for the KEY specified if the KEY exist in the replicaStore else returns NULL.
+	 */
+	public static String getFromReplicaHashTable(String key, String[] nodeAddress) {
+		return replicaStore.get(key, nodeAddress);
+	}
+	
+	/***
+	 * This method returns the KEYS of the replicas of a peer.
+	 * @param nodeAddress	IP address of the peer, or NULL for the replicas of all the peers
+	 * @return				Returns the list of the KEYS.
+	 */
+	public static ArrayList<String> getReplicaKeys(String nodeAddress) {
+		return replicaStore.getKeys(nodeAddress);
+	}
+	
+	/***
+	 * This methods deletes a (KEY,VALUE) pair from the Replication Hash Table (replicaStore) using KEY. It does nothing if the KEY doesn't exist in the replicaStore.
+	 * @nodeAddress	IP address of the peer(node) whose (KEY, VALUE) pair is to be deleted from the replicaStore.
+	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the replicaStore.
 	 */
 	public static void removeFromReplicaHashTable(String nodeAddress, String key) {
-		HashMap<String, String> innerMap = replicatedHashTable.get(nodeAddress);
-		if (innerMap != null) {
-			innerMap.remove(key);
-		}
+		replicaStore.remove(nodeAddress, key, 0);
+	}
+
+	/***
+	 * This method returns the replica of the Hash Table of one peer.
+	 * @param nodeAddress	IP address of the peer
+	 * @return				Returns the (KEY, VALUE) pairs of the peer, or NULL if there is no replica of the peer.
+	 */
+	public static HashMap<String, String> getReplicatedHashTable(String nodeAddress) {
+		return replicaStore.getAll(nodeAddress);
 	}
 
 	/***
-	 * This method returns the replicatedHashTable which has the replica of the Hash Tables of all the peers in the network.
-	 * @return	Returns replicatedHashTable of type ConcurrentHashMap
+	 * This method returns a copy of the replica of the Hash Tables of all the peers in the network.
+	 * @return	Returns the (KEY, VALUE) pairs of each peer
 	 */
 	public static ConcurrentHashMap<String, HashMap<String, String>> getReplicatedHashTable() {
-		return replicatedHashTable;
+		return replicaStore.getAll();
 	}
 
 	/***
-	 * This method sets the replicatedHashTable which has the replica of the Hash Tables of all the peers in the network.
+	 * This method replaces the replica of the Hash Tables of all the peers in the network.
 	 * @param replicatedHashTable	ConcurrentHashMap structure containing IP address and hash table of all the peers in the network.
 	 */
 	public static void setReplicatedHashTable(ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable) {
-		FileTransferSystem.replicatedHashTable = replicatedHashTable;
+		replicaStore.clear();
+		replicaStore.putAll(replicatedHashTable);
 	}
 
 	/***
@@ -152,6 +166,14 @@ public class FileTransferSystem {
 	public static HashMap<Integer, String> getNetworkMap() {
 		return networkMap;
 	}
+	
+	/***
+	 * This method returns the consistent hash ring which places the keys on the nodes of the network.
+	 * @return	Returns the HashRing built from the nodes of the configuration file.
+	 */
+	public static HashRing getHashRing() {
+		return hashRing;
+	}
 
 	/***
 	 * This method returns the PORT number on which this application runs.
@@ -204,6 +226,9 @@ public class FileTransferSystem {
 				System.exit(0);
 			}
 			
+			// Place the keys on the nodes using a consistent hash ring with VIRTUAL_NODES tokens per node
+			hashRing = new HashRing(networkMap, HashRing.parseVirtualNodes(configuration.getProperty("VIRTUAL_NODES")));
+			
 			// Loading replication nodes IP addresses from configuration file
 			peerList = configuration.getProperty("REPLICATION_NODES");
 			
@@ -234,6 +259,20 @@ public class FileTransferSystem {
 				replicaLocation = "replica/";
 			}
 			
+			// Serve the connections of the peers with one thread (default) or one virtual thread each, MAX_CONNECTIONS at a time
+			if (configuration.getProperty("SERVER_MODE") != null) {
+				serverMode = configuration.getProperty("SERVER_MODE").trim();
+			}
+			if (configuration.getProperty("MAX_CONNECTIONS") != null && Integer.parseInt(configuration.getProperty("MAX_CONNECTIONS").trim()) > 0) {
+				maxConnections = Integer.parseInt(configuration.getProperty("MAX_CONNECTIONS").trim());
+			}
+			
+			// Write the lines of the logs from LOG_LEVEL up, DEBUG writes a line for every request
+			if (configuration.getProperty("LOG_LEVEL") != null && !LogUtility.setLevel(configuration.getProperty("LOG_LEVEL"))) {
+				System.out.println("LOG_LEVEL must be DEBUG, INFO, WARN or ERROR. Cannot run program. Bye...");
+				System.exit(0);
+			}
+			
 			//System.out.println(networkMap);
 			//System.out.println(replicationNodes);
 		} catch (Exception e) {
@@ -259,14 +298,14 @@ public class FileTransferSystem {
 		 */
 		System.out.println("********** PEER SERVER STARTED **********");
 		ServerSocket listener = new ServerSocket(PEER_SERVER_PORT);
-        try {
-            while (true) {
-            	PeerServer peerServer = new PeerServer(listener.accept());
-               peerServer.start();
-            }
-        } finally {
-            listener.close();
-        }
+		final ServerExecutor serverExecutor = new ServerExecutor(serverMode, maxConnections);
+		// Let the requests being served complete when the peer is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				serverExecutor.shutdown();
+			}
+		});
+		serverExecutor.serve(listener);
 	}
 
 	public static String getFilesLocation() {
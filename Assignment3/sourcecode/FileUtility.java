@@ -1,9 +1,11 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.file.Files;
@@ -82,8 +84,8 @@ public class FileUtility {
 	 * @return				Returns true if the file is successfully downloaded else returns false
 	 */
 	public static boolean downloadFile(String hostAddress, int port, String fileName, boolean fromReplica) {
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Socket socket = null;
 		boolean isDownloaded = false;
 		
@@ -98,8 +100,7 @@ public class FileUtility {
 				file.mkdir();
 
 			// Create an output stream using the socket's output stream.
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
 			System.out.println("Requesting file.........");
 			// Setup a Request object with Request Type = DOWNLOAD and Request Data = name of the file to be downloaded
@@ -109,15 +110,15 @@ public class FileUtility {
 			} else {
 				request.setRequestType("DOWNLOAD");
 			}
-			request.setRequestData(fileName);
-			out.writeObject(request);
+			request.setKey(fileName);
+			MessageUtility.writeRequest(out, request);
 
 			// Download file from the output stream
 			System.out.println("Downloading file........");
-			in = new ObjectInputStream(socket.getInputStream());
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 			
 			file = new File(downloadLocation + fileName);
-			byte[] bytes = (byte[]) in.readObject();	
+			byte[] bytes = (byte[]) MessageUtility.readResponse(in).getResponseData();	
 			Files.write(file.toPath(), bytes);
 			
 			if((new File(downloadLocation + fileName)).length() == 0) {
@@ -163,8 +164,8 @@ public class FileUtility {
 	 * @return				Returns true if the file is successfully replicated else returns false
 	 */
 	public static boolean replicateFile(String hostAddress, int port, String fileName) {
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Socket socket = null;
 		boolean isReplicated = false;
 		LogUtility log = new LogUtility("replication");
@@ -181,22 +182,21 @@ public class FileUtility {
 				file.mkdir();
 
 			// Create an output stream using the socket's output stream.
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
 			log.write("Requesting file ... " + fileName);
 			// Setup a Request object with Request Type = DOWNLOAD and Request Data = name of the file to be downloaded
 			Request request = new Request();
 			request.setRequestType("DOWNLOAD");
-			request.setRequestData(fileName);
-			out.writeObject(request);
+			request.setKey(fileName);
+			MessageUtility.writeRequest(out, request);
 
 			// Download file from the output stream
 			log.write("Downloading file ... " + fileName);
-			in = new ObjectInputStream(socket.getInputStream());
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 			
 			file = new File(replicaLocation + fileName);
-			byte[] bytes = (byte[]) in.readObject();	
+			byte[] bytes = (byte[]) MessageUtility.readResponse(in).getResponseData();	
 			Files.write(file.toPath(), bytes);			
 			
 			long endTime = System.currentTimeMillis();
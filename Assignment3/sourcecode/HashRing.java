@@ -0,0 +1,128 @@
+import java.util.Arrays;
+import java.util.Map;
+
+/***
+ * This class places keys on the nodes of the Distributed Hash Table using consistent hashing.
+ * Every node owns VIRTUAL_NODES positions (tokens) on a ring of 2^32 positions and a key belongs to
+ * the node owning the first token at or after the hash of the key. When a node joins or leaves,
+ * only the keys between its tokens and the previous tokens move, instead of almost all the keys
+ * moving as with hashCode() % N.
+ *
+ * The tokens of a node are computed from its IP address, so they don't depend on the position of the
+ * node in the configuration file. Keys and tokens are hashed with the 32 bit MurmurHash3 function.
+ */
+public class HashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	// Sorted positions of the tokens on the ring and the node id owning each token
+	private long[] tokens;
+	private int[] owners;
+	private int virtualNodes;
+
+	/***
+	 * This method builds the ring for the nodes of the network.
+	 * @param networkMap	Node ids and IP addresses of the nodes
+	 * @param virtualNodes	Number of tokens of each node
+	 */
+	public HashRing(Map<Integer, String> networkMap, int virtualNodes) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+
+		int size = networkMap.size() * this.virtualNodes;
+		long[] entries = new long[size];
+		int index = 0;
+		for (Map.Entry<Integer, String> entry : networkMap.entrySet()) {
+			for (int i = 0; i < this.virtualNodes; i++) {
+				// Pack the token and the node id so that sorting the entries sorts the tokens.
+				// The sign bit is flipped so that tokens of 2^31 and more are sorted after the smaller ones.
+				long token = hash(entry.getValue() + "#" + i);
+				entries[index++] = ((token << 32) | (entry.getKey() & 0xFFFFFFFFL)) ^ Long.MIN_VALUE;
+			}
+		}
+		Arrays.sort(entries);
+
+		tokens = new long[size];
+		owners = new int[size];
+		for (int i = 0; i < size; i++) {
+			tokens[i] = (entries[i] ^ Long.MIN_VALUE) >>> 32;
+			owners[i] = (int) entries[i];
+		}
+	}
+
+	/***
+	 * This method reads the number of virtual nodes from the VIRTUAL_NODES property of the configuration.
+	 * @param value	Value of the property or null if it is not specified
+	 * @return		Number of virtual nodes of each node
+	 */
+	public static int parseVirtualNodes(String value) {
+		try {
+			if (value != null && Integer.parseInt(value.trim()) > 0)
+				return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) { }
+		return DEFAULT_VIRTUAL_NODES;
+	}
+
+	/***
+	 * This method returns the node id where the key is located.
+	 * The first token at or after the hash of the key is found with a binary search.
+	 * @param key	Key whose node has to be found
+	 * @return		Node id (as in networkMap) of the node owning the key
+	 */
+	public int getNode(String key) {
+		int position = Arrays.binarySearch(tokens, hash(key));
+		if (position < 0) {
+			position = -position - 1;
+		}
+		// Keys after the last token belong to the first token of the ring
+		if (position == tokens.length) {
+			position = 0;
+		}
+		return owners[position];
+	}
+
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	/***
+	 * This method computes the 32 bit MurmurHash3 of the characters of the string.
+	 * The UTF-16 characters are hashed directly, two characters per block, so no byte array is created.
+	 * @param key	String to be hashed
+	 * @return		Position of the string on the ring, between 0 and 2^32 - 1
+	 */
+	public static long hash(String key) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		int h = 0;
+		int length = key.length();
+
+		for (int i = 1; i < length; i += 2) {
+			int k = key.charAt(i - 1) | (key.charAt(i) << 16);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+
+		// Odd number of characters
+		if ((length & 1) == 1) {
+			int k = key.charAt(length - 1);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+		}
+
+		// Finalization mixes the bits so that similar keys are spread over the ring
+		h ^= length * 2;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0xFFFFFFFFL;
+	}
+}
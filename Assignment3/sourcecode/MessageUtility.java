@@ -0,0 +1,410 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class provides the wire protocol used to exchange Request/Response messages between peers.
+ * Every message is sent as a frame: a 4 byte length followed by a 1 byte version and the message.
+ *
+ * VERSION (binary) frames are encoded by hand:
+ * 		Request		= opcode (1 byte), request id (4 bytes), key, value
+ * 		Response	= response code (4 bytes), request id (4 bytes), cursor, data type (1 byte), response data
+ * where strings are sent as a 4 byte length (-1 for null) followed by their UTF-8 bytes. The response data
+ * can be a string, the bytes of a file or one of the hash tables, which are sent as lists of entries. The cursor is the
+ * last KEY of a page of a StateTransfer, or null.
+ *
+ * SERIALIZED frames contain the Request/Response written with Java serialization. They are sent
+ * when the program is started with -Dprotocol=java so that both protocols can be compared.
+ * Both kinds of frames are always accepted when reading.
+ */
+public class MessageUtility {
+
+	public static final byte SERIALIZED = 0;
+	public static final byte VERSION = 1;
+	public static final int MAX_MESSAGE_SIZE = 1024 * 1024 * 128; // 128 MegaBytes
+	public static final boolean JAVA_SERIALIZATION = "java".equalsIgnoreCase(System.getProperty("protocol"));
+
+	// Request types indexed by their opcode
+	private static final String[] REQUEST_TYPES = { null, "REGISTER", "REGISTER_FORCE", "LOOKUP", "UNREGISTER", "DOWNLOAD",
+			"R_DOWNLOAD", "R_REGISTER", "R_LOOKUP", "R_UNREGISTER", "GET_HASHTABLE", "GET_R_HASHTABLE", "GET_REPLICA",
+			"SCAN", "R_SCAN", "SCAN_REPLICA" };
+	private static final HashMap<String, Byte> OPCODES = new HashMap<String, Byte>();
+
+	// Types of the data of a Response
+	private static final byte NO_DATA = 0;
+	private static final byte STRING = 1;
+	private static final byte BYTES = 2;
+	private static final byte HASH_MAP = 3;
+	private static final byte CONCURRENT_MAP = 4;
+	private static final byte MAP_OF_MAPS = 5;
+
+	// Buffers reused by each thread to encode frames and decode strings
+	private static final ThreadLocal<FrameBuffer> frameBuffers = new ThreadLocal<FrameBuffer>() {
+		protected FrameBuffer initialValue() {
+			return new FrameBuffer();
+		}
+	};
+	private static final ThreadLocal<byte[][]> stringBuffers = new ThreadLocal<byte[][]>() {
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[1024] };
+		}
+	};
+
+	static {
+		for (byte i = 1; i < REQUEST_TYPES.length; i++) {
+			OPCODES.put(REQUEST_TYPES[i], i);
+		}
+	}
+
+	/***
+	 * This method writes the request as a single frame and flushes the stream.
+	 * @param out		Output stream of the socket
+	 * @param request	Request to be sent
+	 */
+	public static void writeRequest(DataOutputStream out, Request request) throws IOException {
+		Byte opcode = OPCODES.get(request.getRequestType());
+		if (JAVA_SERIALIZATION || opcode == null) {
+			writeSerialized(out, request);
+			return;
+		}
+
+		FrameBuffer frame = frameBuffers.get();
+		frame.reset();
+		DataOutputStream body = frame.data;
+		body.writeByte(VERSION);
+		body.writeByte(opcode);
+		body.writeInt(request.getRequestId());
+		writeString(body, request.getKey());
+		writeString(body, request.getValue());
+		frame.writeTo(out);
+	}
+
+	/***
+	 * This method reads a single frame containing a request.
+	 * @param in	Input stream of the socket
+	 * @return		Request received
+	 */
+	public static Request readRequest(DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = readLength(in);
+		byte version = in.readByte();
+		if (version == SERIALIZED) {
+			return (Request) readSerialized(in, length - 1);
+		} else if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+
+		int opcode = in.readUnsignedByte();
+		if (opcode == 0 || opcode >= REQUEST_TYPES.length) {
+			throw new StreamCorruptedException("Unknown opcode: " + opcode);
+		}
+		Request request = new Request();
+		request.setRequestType(REQUEST_TYPES[opcode]);
+		request.setRequestId(in.readInt());
+		request.setKey(readString(in));
+		request.setValue(readString(in));
+		return request;
+	}
+
+	/***
+	 * This method writes the response as a single frame and flushes the stream.
+	 * @param out		Output stream of the socket
+	 * @param response	Response to be sent
+	 */
+	public static void writeResponse(DataOutputStream out, Response response) throws IOException {
+		Object data = response.getResponseData();
+		byte dataType = dataType(data);
+		if (JAVA_SERIALIZATION || dataType < 0) {
+			writeSerialized(out, response);
+			return;
+		}
+
+		FrameBuffer frame = frameBuffers.get();
+		frame.reset();
+		DataOutputStream body = frame.data;
+		body.writeByte(VERSION);
+		body.writeInt(response.getResponseCode());
+		body.writeInt(response.getRequestId());
+		writeString(body, response.getCursor());
+		body.writeByte(dataType);
+
+		if (dataType == STRING) {
+			writeString(body, (String) data);
+		} else if (dataType == BYTES) {
+			// The file contents are written directly from the array instead of being copied into the frame
+			byte[] bytes = (byte[]) data;
+			body.writeInt(bytes.length);
+			frame.writeTo(out, bytes);
+			return;
+		} else if (dataType == HASH_MAP || dataType == CONCURRENT_MAP) {
+			writeMap(frame, (Map<?, ?>) data);
+		} else if (dataType == MAP_OF_MAPS) {
+			ConcurrentHashMap<?, ?> maps = (ConcurrentHashMap<?, ?>) data;
+			int countPosition = frame.size();
+			body.writeInt(0);
+			int count = 0;
+			for (Map.Entry<?, ?> entry : maps.entrySet()) {
+				writeString(body, (String) entry.getKey());
+				writeMap(frame, (Map<?, ?>) entry.getValue());
+				count++;
+			}
+			frame.patchInt(countPosition, count);
+		}
+		frame.writeTo(out);
+	}
+
+	/***
+	 * This method reads a single frame containing a response.
+	 * @param in	Input stream of the socket
+	 * @return		Response received
+	 */
+	public static Response readResponse(DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = readLength(in);
+		byte version = in.readByte();
+		if (version == SERIALIZED) {
+			return (Response) readSerialized(in, length - 1);
+		} else if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version: " + version);
+		}
+
+		Response response = new Response();
+		response.setResponseCode(in.readInt());
+		response.setRequestId(in.readInt());
+		response.setCursor(readString(in));
+
+		byte dataType = in.readByte();
+		if (dataType == STRING) {
+			response.setResponseData(readString(in));
+		} else if (dataType == BYTES) {
+			int size = in.readInt();
+			if (size < 0 || size > MAX_MESSAGE_SIZE) {
+				throw new StreamCorruptedException("Invalid data length: " + size);
+			}
+			byte[] bytes = new byte[size];
+			in.readFully(bytes);
+			response.setResponseData(bytes);
+		} else if (dataType == HASH_MAP) {
+			response.setResponseData(readMap(in));
+		} else if (dataType == CONCURRENT_MAP) {
+			HashMap<String, String> map = readMap(in);
+			response.setResponseData(map == null ? null : new ConcurrentHashMap<String, String>(map));
+		} else if (dataType == MAP_OF_MAPS) {
+			int size = in.readInt();
+			ConcurrentHashMap<String, HashMap<String, String>> maps = new ConcurrentHashMap<String, HashMap<String, String>>(Math.max(16, size * 2));
+			for (int i = 0; i < size; i++) {
+				String key = readString(in);
+				maps.put(key, readMap(in));
+			}
+			response.setResponseData(maps);
+		} else if (dataType != NO_DATA) {
+			throw new StreamCorruptedException("Unknown data type: " + dataType);
+		}
+		return response;
+	}
+
+	// Returns the type used to encode the response data or -1 if it can only be serialized
+	private static byte dataType(Object data) {
+		if (data == null) {
+			return NO_DATA;
+		} else if (data instanceof String) {
+			return STRING;
+		} else if (data instanceof byte[]) {
+			return BYTES;
+		} else if (data instanceof HashMap) {
+			return HASH_MAP;
+		} else if (data instanceof ConcurrentHashMap) {
+			// Only the first value is needed to know the type of the map
+			Iterator<?> values = ((ConcurrentHashMap<?, ?>) data).values().iterator();
+			if (!values.hasNext()) {
+				return CONCURRENT_MAP;
+			}
+			Object value = values.next();
+			return value instanceof HashMap ? MAP_OF_MAPS : value instanceof String ? CONCURRENT_MAP : -1;
+		}
+		return -1;
+	}
+
+	// Reads and validates the length of the frame
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 1 || length > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid message length: " + length);
+		}
+		return length;
+	}
+
+	// Writes the message using Java serialization
+	private static void writeSerialized(DataOutputStream out, Object message) throws IOException {
+		FrameBuffer frame = frameBuffers.get();
+		frame.reset();
+		frame.data.writeByte(SERIALIZED);
+		ObjectOutputStream objectOut = new ObjectOutputStream(frame);
+		objectOut.writeObject(message);
+		objectOut.flush();
+		frame.writeTo(out);
+	}
+
+	// Reads a message written using Java serialization
+	private static Object readSerialized(DataInputStream in, int length) throws IOException, ClassNotFoundException {
+		byte[] data = new byte[length];
+		in.readFully(data);
+		ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(data));
+		return objectIn.readObject();
+	}
+
+	// Writes the entries of a map. The count is written after the entries because the map may be changed concurrently.
+	private static void writeMap(FrameBuffer frame, Map<?, ?> map) throws IOException {
+		DataOutputStream out = frame.data;
+		if (map == null) {
+			out.writeInt(-1);
+			return;
+		}
+		int countPosition = frame.size();
+		out.writeInt(0);
+		int count = 0;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			writeString(out, (String) entry.getKey());
+			writeString(out, (String) entry.getValue());
+			count++;
+		}
+		frame.patchInt(countPosition, count);
+	}
+
+	// Reads the entries of a map
+	private static HashMap<String, String> readMap(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) {
+			return null;
+		}
+		HashMap<String, String> map = new HashMap<String, String>(Math.max(16, size * 2));
+		for (int i = 0; i < size; i++) {
+			String key = readString(in);
+			map.put(key, readString(in));
+		}
+		return map;
+	}
+
+	/***
+	 * This method writes a string as its UTF-8 length followed by its UTF-8 bytes.
+	 * The bytes are written one by one so that no byte array is created for the string.
+	 * @param out		Stream to write to
+	 * @param value		String to be written or null
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		int length = value.length();
+		int utfLength = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				utfLength++;
+			} else if (c < 0x800) {
+				utfLength += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				utfLength += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				utfLength++;
+			} else {
+				utfLength += 3;
+			}
+		}
+		out.writeInt(utfLength);
+
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				out.write(c);
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				out.write(0xF0 | (codePoint >> 18));
+				out.write(0x80 | ((codePoint >> 12) & 0x3F));
+				out.write(0x80 | ((codePoint >> 6) & 0x3F));
+				out.write(0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates are replaced with '?' like String.getBytes(...) does
+				out.write('?');
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/***
+	 * This method reads a string written by writeString(...).
+	 * @param in	Stream to read from
+	 * @return		String read or null
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		} else if (length > MAX_MESSAGE_SIZE) {
+			throw new StreamCorruptedException("Invalid string length: " + length);
+		}
+
+		byte[][] holder = stringBuffers.get();
+		if (holder[0].length < length) {
+			holder[0] = new byte[Math.max(length, holder[0].length * 2)];
+		}
+		in.readFully(holder[0], 0, length);
+		return new String(holder[0], 0, length, StandardCharsets.UTF_8);
+	}
+
+	/***
+	 * A growable buffer in which a frame is encoded before its length is known.
+	 * Each thread reuses its own buffer, so encoding a frame doesn't create any buffer.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+		private DataOutputStream data = new DataOutputStream(this);
+
+		public FrameBuffer() {
+			super(1024);
+		}
+
+		// Overwrites the integer at the given position of the frame
+		public void patchInt(int position, int value) {
+			buf[position] = (byte) (value >>> 24);
+			buf[position + 1] = (byte) (value >>> 16);
+			buf[position + 2] = (byte) (value >>> 8);
+			buf[position + 3] = (byte) value;
+		}
+
+		// Writes the length of the frame followed by the frame and flushes the stream
+		public void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(count);
+			out.write(buf, 0, count);
+			out.flush();
+			if (buf.length > MAX_RETAINED_SIZE) {
+				buf = new byte[1024];
+			}
+		}
+
+		// Writes the length of the frame followed by the frame and the given data, and flushes the stream
+		public void writeTo(DataOutputStream out, byte[] data) throws IOException {
+			out.writeInt(count + data.length);
+			out.write(buf, 0, count);
+			out.write(data);
+			out.flush();
+		}
+	}
+}
@@ -1,19 +1,21 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class PeerClient extends Thread {
 	
 	private HashMap<Integer, String> networkMap = null;
+	private HashRing hashRing = null;
 	private ArrayList<String> replicationNodes = null;
 	
 	private int portAddress = 0;
@@ -23,6 +25,7 @@ public class PeerClient extends Thread {
 	// Initialize all the local data from the global data
 	public PeerClient() {
 		networkMap = FileTransferSystem.getNetworkMap();
+		hashRing = FileTransferSystem.getHashRing();
 		replicationNodes = FileTransferSystem.getReplicationNodes();
 		portAddress = FileTransferSystem.getPeerServerPort();
 		localAddress = FileTransferSystem.getLocalAddress();
@@ -36,12 +39,7 @@ public class PeerClient extends Thread {
 		try {
 			input = new BufferedReader(new InputStreamReader(System.in));
 			
-			HashMap<String, String> hm = retrieveHashTable();
-			if (hm != null) {
-				for (Map.Entry e : hm.entrySet()) {
-					FileTransferSystem.putInHashTable(e.getKey().toString(), e.getValue().toString(), true);
-				}
-			}
+			retrieveHashTable();
 			
 			if (replicationNodes.contains(localAddress)) {
 				System.out.println("****** REPLICATION SERVICE STARTED ******");
@@ -248,69 +246,12 @@ public class PeerClient extends Thread {
 	}
 	
 	/***
-	 * This method retrieves the Hash Table from one of the replication nodes after this peer was down so that it can re-gain its hashTable from the replication nodes.
-	 * @return	Returns the hashTable (if exists) of the calling peer from the replication nodes.
+	 * This method retrieves the Hash Table from the replication nodes after this peer was down so that it can re-gain its hashTable from the replication nodes.
+	 * The (KEY,VALUE) pairs are received in pages and each page is written to the hashTable as soon as it is received.
+	 * @return	Returns the number of (KEY,VALUE) pairs retrieved, or -1 if no replication node answered.
 	 */
-	private HashMap<String, String> retrieveHashTable() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		HashMap<String, String> hm = null;
-		
-		for (String nodeAddress : replicationNodes) {
-			//System.out.println("Retrieving Hash Table from " + nodeAddress);
-			
-			if (nodeAddress.equalsIgnoreCase(localAddress)) {
-				continue;
-			}
-			
-			try {
-				
-				// Make connection with server using the specified Host Address and Port portAddress
-				socket = new Socket(nodeAddress, portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_R_HASHTABLE");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (HashMap<String, String>) serverResponse.getResponseData();
-				} 
-					
-				socket.close();
-				break;
-			} catch (Exception ex) {
-				//ex.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
-			}
-		}
-		//System.out.println("hm = " + hm);
-		return hm;
+	private long retrieveHashTable() {
+		return StateTransfer.retrieve(replicationNodes, "R_SCAN");
 	}
 	
 	/***
@@ -322,11 +263,10 @@ public class PeerClient extends Thread {
 	 */
 	private boolean put(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
 		
 		long startTime, endTime;
 	    double time;
@@ -366,20 +306,20 @@ public class PeerClient extends Thread {
 		        socket = new Socket(nodeAddress, portAddress);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 	
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("REGISTER");
-				peerRequest.setRequestData(data);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				peerRequest.setValue(value);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
 		        	/*endTime = System.currentTimeMillis();
@@ -428,11 +368,10 @@ public class PeerClient extends Thread {
 	 */
 	private boolean forcePut(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
 		
 		long startTime, endTime;
 	    double time;
@@ -449,20 +388,20 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
 			peerRequest.setRequestType("REGISTER_FORCE");
-			peerRequest.setRequestData(data);
-			out.writeObject(peerRequest);
+			peerRequest.setKey(key);
+			peerRequest.setValue(value);
+			MessageUtility.writeRequest(out, peerRequest);
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        
 	        if (serverResponse.getResponseCode() == 200) {
 	        	endTime = System.currentTimeMillis();
@@ -504,8 +443,8 @@ public class PeerClient extends Thread {
 	 */
 	private String get(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -526,23 +465,22 @@ public class PeerClient extends Thread {
 		        socket = new Socket(nodeAddress, portAddress);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("LOOKUP");
-				peerRequest.setRequestData(key);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
-					value = serverResponse.getResponseData().toString().split(",")[1].trim();
+					value = serverResponse.getResponseData().toString();
 				}
 			}
 		} catch(Exception e) {
@@ -575,8 +513,8 @@ public class PeerClient extends Thread {
 	 */
 	private String searchReplica(String key, String peerAddress) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -595,23 +533,22 @@ public class PeerClient extends Thread {
 			        socket = new Socket(nodeAddress, portAddress);
 			        
 			        // Initializing output stream using the socket's output stream
-			        out = new ObjectOutputStream(socket.getOutputStream());
-			        out.flush();
+			        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			        
 			        // Initializing input stream using the socket's input stream
-			        in = new ObjectInputStream(socket.getInputStream());
+			        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 					// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 					peerRequest = new Request();
 					peerRequest.setRequestType("R_LOOKUP");
-					peerRequest.setRequestData(key);
-					out.writeObject(peerRequest);
+					peerRequest.setKey(key);
+					MessageUtility.writeRequest(out, peerRequest);
 					
 			        // Read the response message from the server
-			        serverResponse = (Response) in.readObject();
+			        serverResponse = MessageUtility.readResponse(in);
 			        
 			        if (serverResponse.getResponseCode() == 200) {
-						value = serverResponse.getResponseData().toString().split(",")[1].trim();
+						value = serverResponse.getResponseData().toString();
 					}
 				}
 			} catch(Exception ex) {
@@ -647,8 +584,8 @@ public class PeerClient extends Thread {
 	 */
 	private boolean delete(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		
@@ -660,20 +597,19 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
 			peerRequest.setRequestType("UNREGISTER");
-			peerRequest.setRequestData(key);
-			out.writeObject(peerRequest);
+			peerRequest.setKey(key);
+			MessageUtility.writeRequest(out, peerRequest);
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        //System.out.print((String) serverResponse.getResponseData());
 	        
 	        if (serverResponse.getResponseCode() == 200) {
@@ -704,25 +640,13 @@ public class PeerClient extends Thread {
 	}
 	
 	/***
-	 * This method performs a hash on the key and returns the node id where the key is located.
-	 * We get the hashCode of the input KEY string which is a number and then we perform MOD operation on that hashCode.
-	 * The hashCode for a given string will always be same for that string.
+	 * This method returns the node id where the key is located.
+	 * The key is placed on the consistent hash ring of the network, so adding or removing a node only moves the keys next to its tokens.
 	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
 	 * @return		Returns a node id (integer) where the key is located.
 	 */
 	private int hash(String key) {
-		// Total number of servers = Total number of entries in networkMap
-		int totalServers = networkMap.size();
-		
-		// Get hash value of string using JAVA's hashCode() method
-		long hashCode = key.hashCode();
-		
-		// hashCode may be negative. So, make it positive in case it's negative
-		hashCode = (hashCode < 0) ? -hashCode : hashCode;
-		
-		// Add 1 because MOD of hashCode and totalServers may be 0
-		int hash = (int) (hashCode % totalServers) + 1;
-		return hash;
+		return hashRing.getNode(key);
 	}
 	
 	/***
@@ -1,10 +1,13 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PeerServer extends Thread {
 	
@@ -19,7 +22,7 @@ public class PeerServer extends Thread {
 		this.socket = socket;
 		
 		log = new LogUtility("peer");
-		log.write("Connected with " + socket.getInetAddress() + ".");
+		log.write(LogUtility.DEBUG, "Connected with %s.", socket.getInetAddress());
 		filesLocation = FileTransferSystem.getFilesLocation();
 		portAddress = FileTransferSystem.getPeerServerPort();
 		replicaLocation = FileTransferSystem.getReplicaLocation();
@@ -27,26 +30,24 @@ public class PeerServer extends Thread {
     
     // Services this thread's peer client by sending the requested file.
 	public void run() {	
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
+		DataOutputStream out = null;
+		DataInputStream in = null;
 		Response response = null;
 		
 		try {
 			String clientIp = socket.getInetAddress().getHostAddress();
 			
-			in = new ObjectInputStream(socket.getInputStream());
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			
-			Request request = (Request) in.readObject();
+			Request request = MessageUtility.readRequest(in);
 			
 			if (request.getRequestType().startsWith("REGISTER")) {
-				String data = (String) request.getRequestData();
-				String key = data.split(",")[0];
-				String value = data.split(",")[1];
+				String key = request.getKey();
+				String value = request.getValue();
 				boolean result;
 				
-				log.write(String.format("Serving REGISTER(%s,%s) request of %s.", key, value, clientIp));
+				log.write(LogUtility.DEBUG, "Serving REGISTER(%s,%s) request of %s.", key, value, clientIp);
 				
 				if (request.getRequestType().endsWith("FORCE")) {
 					result = FileTransferSystem.putInHashTable(key, value, true);
@@ -58,9 +59,9 @@ public class PeerServer extends Thread {
 					response = new Response();
 					response.setResponseCode(200);
 					response.setResponseData("(Key,Value) pair added successfully.");
-					out.writeObject(response);
+					reply(out, request, response);
 					
-					log.write(String.format("REGISTER(%s,%s) for %s completed successfully.", key, value, clientIp));
+					log.write(LogUtility.DEBUG, "REGISTER(%s,%s) for %s completed successfully.", key, value, clientIp);
 					
 					ReplicationService service = new ReplicationService(key, value, "REGISTER");
 					service.start();
@@ -68,84 +69,87 @@ public class PeerServer extends Thread {
 					response = new Response();
 					response.setResponseCode(300);
 					response.setResponseData("Value with this KEY already exist.");
-					out.writeObject(response);
+					reply(out, request, response);
 					
-					log.write(String.format("REGISTER(%s,%s) for %s failed. KEY already exist.", key, value, clientIp));
+					log.write(LogUtility.DEBUG, "REGISTER(%s,%s) for %s failed. KEY already exist.", key, value, clientIp);
 				}
 			} else if (request.getRequestType().equalsIgnoreCase("LOOKUP")) {
-				String key = (String) request.getRequestData();
+				String key = request.getKey();
 				
-				log.write(String.format("Serving LOOKUP(%s) request of %s.", key, clientIp));
+				log.write(LogUtility.DEBUG, "Serving LOOKUP(%s) request of %s.", key, clientIp);
 				String value = FileTransferSystem.getFromHashTable(key);
 				
 				if (value != null) {
 					response = new Response();
 					response.setResponseCode(200);
-					response.setResponseData(key + "," + value);
-					out.writeObject(response);
-					log.write(String.format("LOOKUP(%s) = %s for %s completed successfully.", key, value, clientIp));
+					response.setResponseData(value);
+					reply(out, request, response);
+					log.write(LogUtility.DEBUG, "LOOKUP(%s) = %s for %s completed successfully.", key, value, clientIp);
 				} else {
 					response = new Response();
 					response.setResponseCode(404);
 					response.setResponseData("VALUE with this KEY does not exist.");
-					out.writeObject(response);
-					log.write(String.format("LOOKUP(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
+					reply(out, request, response);
+					log.write(LogUtility.DEBUG, "LOOKUP(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp);
 				}
 			} else if (request.getRequestType().equalsIgnoreCase("UNREGISTER")) {					
-				String key = (String) request.getRequestData();
+				String key = request.getKey();
 				
-				log.write(String.format("Serving UNREGISTER(%s) request of %s.", key, clientIp));
+				log.write(LogUtility.DEBUG, "Serving UNREGISTER(%s) request of %s.", key, clientIp);
 				FileTransferSystem.removeFromHashTable(key);
 
 				response = new Response();
 				response.setResponseCode(200);
-				out.writeObject(response);
+				reply(out, request, response);
 				
-				log.write(String.format("UNREGISTER(%s) for %s completed successfully.", key, clientIp));
+				log.write(LogUtility.DEBUG, "UNREGISTER(%s) for %s completed successfully.", key, clientIp);
 				
 				ReplicationService service = new ReplicationService(key, null, "UNREGISTER");
 				service.start();
 			} else if (request.getRequestType().equalsIgnoreCase("DOWNLOAD")) {
-				String fileName = (String) request.getRequestData();
-				log.write("Uploding/Sending file " + fileName);
+				String fileName = request.getKey();
+				log.write(LogUtility.DEBUG, "Uploding/Sending file %s", fileName);
 				
 				File file = new File(filesLocation + fileName);
 				byte[] fileBytes = Files.readAllBytes(file.toPath());
-				out.writeObject(fileBytes);
-				out.flush();
-				log.write("File sent successfully.");
+				response = new Response();
+				response.setResponseCode(200);
+				response.setResponseData(fileBytes);
+				reply(out, request, response);
+				log.write(LogUtility.DEBUG, "File sent successfully.");
 			} else if (request.getRequestType().equalsIgnoreCase("R_DOWNLOAD")) {
-				String fileName = (String) request.getRequestData();
-				log.write("Uploding/Sending file " + fileName + " from Replica.");
+				String fileName = request.getKey();
+				log.write(LogUtility.DEBUG, "Uploding/Sending file %s from Replica.", fileName);
 				
 				File file = new File(replicaLocation + fileName);
 				byte[] fileBytes = Files.readAllBytes(file.toPath());
-				out.writeObject(fileBytes);
-				out.flush();
-				log.write("File sent successfully.");
+				response = new Response();
+				response.setResponseCode(200);
+				response.setResponseData(fileBytes);
+				reply(out, request, response);
+				log.write(LogUtility.DEBUG, "File sent successfully.");
 			} else if (request.getRequestType().equalsIgnoreCase("R_REGISTER")) {
-				String data = (String) request.getRequestData();
-				String key = data.split(",")[0];
-				String value = data.split(",")[1];
+				String key = request.getKey();
+				String value = request.getValue();
 		
 				//System.out.println("\nR_REGISTER replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
-				log.write(String.format("Serving REPLICATE - REGISTER(%s,%s) request of %s.", key, value, clientIp));
+				log.write(LogUtility.DEBUG, "Serving REPLICATE - REGISTER(%s,%s) request of %s.", key, value, clientIp);
 				FileTransferSystem.putInReplicaHashTable(clientIp, key, value);
 				
 				//System.out.println("\nR_REGISTER replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
 				response = new Response();
 				response.setResponseCode(200);
 				response.setResponseData("(Key,Value) pair added successfully.");
-				out.writeObject(response);
+				reply(out, request, response);
 				
 				//System.out.println(data + " " + clientIp);
 				FileUtility.replicateFile(value, portAddress, key);
 				
-				log.write(String.format("REPLICATE - REGISTER(%s,%s) for %s completed successfully.", key, value, clientIp));
+				log.write(LogUtility.DEBUG, "REPLICATE - REGISTER(%s,%s) for %s completed successfully.", key, value, clientIp);
 			} else if (request.getRequestType().equalsIgnoreCase("R_LOOKUP")) {
-				String key = (String) request.getRequestData();
+				String key = request.getKey();
 				
-				log.write(String.format("Serving REPLICATE - LOOKUP(%s) request of %s.", key, clientIp));
+				log.write(LogUtility.DEBUG, "Serving REPLICATE - LOOKUP(%s) request of %s.", key, clientIp);
 				String value = null;
 				
 				value = FileTransferSystem.getFromReplicaHashTable(key);
@@ -153,71 +157,92 @@ public class PeerServer extends Thread {
 				if (value != null) {
 					response = new Response();
 					response.setResponseCode(200);
-					response.setResponseData(key + "," + value);
-					out.writeObject(response);
-					log.write(String.format("REPLICATE - LOOKUP(%s) = %s for %s completed successfully.", key, value, clientIp));
+					response.setResponseData(value);
+					reply(out, request, response);
+					log.write(LogUtility.DEBUG, "REPLICATE - LOOKUP(%s) = %s for %s completed successfully.", key, value, clientIp);
 				} else {
 					response = new Response();
 					response.setResponseCode(404);
 					response.setResponseData("VALUE with this KEY does not exist.");
-					out.writeObject(response);
-					log.write(String.format("REPLICATE - LOOKUP(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
+					reply(out, request, response);
+					log.write(LogUtility.DEBUG, "REPLICATE - LOOKUP(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp);
 				}
 			} else if (request.getRequestType().equalsIgnoreCase("R_UNREGISTER")) {					
-				String key = (String) request.getRequestData();
+				String key = request.getKey();
 				
-				log.write(String.format("Serving REPLICATE - UNREGISTER(%s) request of %s.", key, clientIp));
+				log.write(LogUtility.DEBUG, "Serving REPLICATE - UNREGISTER(%s) request of %s.", key, clientIp);
 				
 				FileTransferSystem.removeFromReplicaHashTable(clientIp, key);
 
 				response = new Response();
 				response.setResponseCode(200);
-				out.writeObject(response);
+				reply(out, request, response);
 				
 				if (FileUtility.deleteFile(key)) {
-					log.write(String.format("File %s deleted.", key));
+					log.write(LogUtility.DEBUG, "File %s deleted.", key);
 				} else {
-					log.write(String.format("File %s could not be deleted.", key));
+					log.write(LogUtility.DEBUG, "File %s could not be deleted.", key);
 				}
 				
-				log.write(String.format("REPLICATE - UNREGISTER(%s) for %s completed successfully.", key, clientIp));
+				log.write(LogUtility.DEBUG, "REPLICATE - UNREGISTER(%s) for %s completed successfully.", key, clientIp);
 			} else if (request.getRequestType().equalsIgnoreCase("GET_R_HASHTABLE")) {					
-				log.write(String.format("Serving GET_R_HASHTABLE request of %s.", clientIp));
+				log.write(LogUtility.DEBUG, "Serving GET_R_HASHTABLE request of %s.", clientIp);
 				
 				//System.out.println(DistributedHashTable.getReplicatedHashTable());
-				HashMap<String, String> innerMap = FileTransferSystem.getReplicatedHashTable().get(clientIp);
+				HashMap<String, String> innerMap = FileTransferSystem.getReplicatedHashTable(clientIp);
 				
 				if (innerMap != null) {
 					response = new Response();
 					response.setResponseCode(200);
 					response.setResponseData(innerMap);
-					out.writeObject(response);
+					reply(out, request, response);
 				} else {
 					response = new Response();
 					response.setResponseCode(404);
-					out.writeObject(response);
+					reply(out, request, response);
 				}
 				
-				log.write(String.format("DATA of %s sent successfully. Request completed. " + innerMap, clientIp));
+				log.write(LogUtility.DEBUG, "DATA of %s sent successfully. Request completed. %s", clientIp, innerMap);
 			} else if (request.getRequestType().equalsIgnoreCase("GET_HASHTABLE")) {					
-				log.write(String.format("Serving GET_HASHTABLE request of %s.", clientIp));
+				log.write(LogUtility.DEBUG, "Serving GET_HASHTABLE request of %s.", clientIp);
 				//System.out.println("Sending Replication Hash Table = " + DistributedHashTable.getReplicatedHashTable());
 				
 				response = new Response();
 				response.setResponseCode(200);
 				response.setResponseData(FileTransferSystem.getHashTable());
-				out.writeObject(response);
+				reply(out, request, response);
+				
+				log.write(LogUtility.DEBUG, "HASH TABLE sent to %s successfully. Request completed. %s", clientIp, FileTransferSystem.getHashTable());
+			} else if (request.getRequestType().equalsIgnoreCase("SCAN") || request.getRequestType().equalsIgnoreCase("R_SCAN")
+					|| request.getRequestType().equalsIgnoreCase("SCAN_REPLICA")) {
+				String requestType = request.getRequestType();
 				
-				log.write(String.format("HASH TABLE sent to %s successfully. Request completed. " + FileTransferSystem.getReplicatedHashTable(), clientIp));
+				// The pages of a transfer are all requested on this connection, until the last page
+				while (true) {
+					log.write(LogUtility.DEBUG, "Serving %s(%s) request of %s.", requestType, request.getKey(), clientIp);
+					response = StateTransfer.getPage(clientIp, requestType, request.getKey());
+					reply(out, request, response);
+					
+					if (response.getCursor() == null) {
+						break;
+					}
+					request = MessageUtility.readRequest(in);
+					if (!request.getRequestType().equalsIgnoreCase(requestType)) {
+						break;
+					}
+				}
+				
+				log.write(LogUtility.DEBUG, "%s of %s completed.", requestType, clientIp);
 			} else if (request.getRequestType().equalsIgnoreCase("GET_REPLICA")) {					
-				log.write(String.format("Serving GET_REPLICA request of %s.", clientIp));
+				log.write(LogUtility.DEBUG, "Serving GET_REPLICA request of %s.", clientIp);
 				
+				ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable = FileTransferSystem.getReplicatedHashTable();
 				response = new Response();
 				response.setResponseCode(200);
-				response.setResponseData(FileTransferSystem.getReplicatedHashTable());
-				out.writeObject(response);
+				response.setResponseData(replicatedHashTable);
+				reply(out, request, response);
 				
-				log.write(String.format("REPLCATION DATA sent to %s successfully. Request completed. " + FileTransferSystem.getReplicatedHashTable(), clientIp));
+				log.write(LogUtility.DEBUG, "REPLCATION DATA sent to %s successfully. Request completed. %s", clientIp, replicatedHashTable);
 			}
 		} catch (Exception e) {
 			//log.write("ERROR:" + e);
@@ -236,10 +261,16 @@ public class PeerServer extends Thread {
 			} catch (IOException ioe) {
 				//ioe.printStackTrace();
 			}
-			Thread.currentThread().interrupt();
+			interrupt();
 		}
 	}
 
+	// Sends the response tagged with the id of the request it answers
+	private void reply(DataOutputStream out, Request request, Response response) throws IOException {
+		response.setRequestId(request.getRequestId());
+		MessageUtility.writeResponse(out, response);
+	}
+
 	@Override
 	public void interrupt() {
 		log.close();
@@ -0,0 +1,213 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class keeps the replicas of the Hash Tables of the other peers.
+ * The replicas are indexed by KEY, and each entry remembers the peer (owner) whose hashTable it replicates, so looking up
+ * a KEY when its peer is down costs one ConcurrentHashMap lookup instead of one lookup in the map of every peer.
+ * Entries are immutable and replaced atomically, so the replication threads and the readers don't need any lock.
+ *
+ * A change with a version replaces the replica only if it is newer. A deleted KEY keeps its version (tombstone) until
+ * it is purged, so an older VALUE received later doesn't bring the KEY back. A change without a version (0) always applies.
+ */
+public class ReplicaStore {
+
+	private ConcurrentHashMap<String, Replica> replicas = new ConcurrentHashMap<String, Replica>();
+
+	/***
+	 * This method stores the replica of a (KEY,VALUE) pair of a peer.
+	 * @param nodeAddress	IP address of the peer whose hashTable has the (KEY,VALUE) pair
+	 * @param key			KEY of the pair
+	 * @param value			VALUE of the pair
+	 * @param version		Version of the VALUE, or 0 if the VALUE has no version and always replaces the replica
+	 * @return				Returns true if the replica is written.
+	 */
+	public boolean put(String nodeAddress, String key, String value, long version) {
+		return apply(key, new Replica(nodeAddress, value, version));
+	}
+
+	/***
+	 * This method deletes the replica of a KEY of a peer.
+	 * @param nodeAddress	IP address of the peer whose hashTable had the KEY
+	 * @param key			KEY which was deleted
+	 * @param version		Version of the delete, or 0 if the delete has no version. A delete without version only deletes
+	 * 						the replica of the same peer and leaves no tombstone, as the KEY may have moved to another peer.
+	 * @return				Returns true if the replica is deleted.
+	 */
+	public boolean remove(String nodeAddress, String key, long version) {
+		if (version != 0) {
+			return apply(key, new Replica(nodeAddress, null, version));
+		}
+
+		while (true) {
+			Replica current = replicas.get(key);
+			if (current == null || !current.nodeAddress.equals(nodeAddress)) {
+				return false;
+			}
+			if (replicas.remove(key, current)) {
+				return true;
+			}
+		}
+	}
+
+	// Replaces the replica of the KEY unless it has a newer version
+	private boolean apply(String key, Replica replica) {
+		while (true) {
+			Replica current = replicas.get(key);
+			if (current == null) {
+				if (replicas.putIfAbsent(key, replica) == null) {
+					return true;
+				}
+				continue;
+			}
+
+			// The same version from another peer is the KEY moving to that peer
+			if (replica.version != 0 && (current.version > replica.version
+					|| (current.version == replica.version && current.nodeAddress.equals(replica.nodeAddress)))) {
+				return false;
+			}
+			if (replicas.replace(key, current, replica)) {
+				return true;
+			}
+		}
+	}
+
+	/***
+	 * This method returns the replica of a KEY.
+	 * @param key	KEY which is to be searched.
+	 * @return		Returns the VALUE of the KEY, or NULL if there is no replica of the KEY or it was deleted.
+	 */
+	public String get(String key) {
+		Replica replica = replicas.get(key);
+		return (replica != null) ? replica.value : null;
+	}
+
+	/***
+	 * This method returns the replica of a KEY together with its version.
+	 * @param key		KEY which is to be searched.
+	 * @param version	Array where the version of the replica (or of its delete) is stored at index 0, 0 if it is unknown.
+	 * @return			Returns the VALUE of the KEY, or NULL if there is no replica of the KEY or it was deleted.
+	 */
+	public String get(String key, long[] version) {
+		Replica replica = replicas.get(key);
+		version[0] = (replica != null) ? replica.version : 0;
+		return (replica != null) ? replica.value : null;
+	}
+
+	/***
+	 * This method returns the replica of a KEY together with the peer whose hashTable it replicates.
+	 * @param key			KEY which is to be searched.
+	 * @param nodeAddress	Array where the IP address of the peer is stored at index 0, NULL if there is no replica of the KEY.
+	 * @return				Returns the VALUE of the KEY, or NULL if there is no replica of the KEY or it was deleted.
+	 */
+	public String get(String key, String[] nodeAddress) {
+		Replica replica = replicas.get(key);
+		nodeAddress[0] = (replica != null) ? replica.nodeAddress : null;
+		return (replica != null) ? replica.value : null;
+	}
+
+	/***
+	 * This method returns the KEYS of the replicas of a peer, without the deleted KEYS.
+	 * @param nodeAddress	IP address of the peer, or NULL for the replicas of all the peers
+	 * @return				Returns the list of the KEYS.
+	 */
+	public ArrayList<String> getKeys(String nodeAddress) {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (Map.Entry<String, Replica> entry : replicas.entrySet()) {
+			Replica replica = entry.getValue();
+			if (replica.value != null && (nodeAddress == null || replica.nodeAddress.equals(nodeAddress))) {
+				keys.add(entry.getKey());
+			}
+		}
+		return keys;
+	}
+
+	/***
+	 * This method returns the replicas of the (KEY,VALUE) pairs of a peer.
+	 * @param nodeAddress	IP address of the peer
+	 * @return				Returns the (KEY,VALUE) pairs of the peer, or NULL if there is no replica of the peer.
+	 */
+	public HashMap<String, String> getAll(String nodeAddress) {
+		HashMap<String, String> map = null;
+		for (Map.Entry<String, Replica> entry : replicas.entrySet()) {
+			Replica replica = entry.getValue();
+			if (replica.value != null && replica.nodeAddress.equals(nodeAddress)) {
+				if (map == null) {
+					map = new HashMap<String, String>();
+				}
+				map.put(entry.getKey(), replica.value);
+			}
+		}
+		return map;
+	}
+
+	/***
+	 * This method returns the replicas of all the peers, e.g. to send them to a replication node which was down.
+	 * @return	Returns the (KEY,VALUE) pairs of each peer.
+	 */
+	public ConcurrentHashMap<String, HashMap<String, String>> getAll() {
+		ConcurrentHashMap<String, HashMap<String, String>> maps = new ConcurrentHashMap<String, HashMap<String, String>>();
+		for (Map.Entry<String, Replica> entry : replicas.entrySet()) {
+			Replica replica = entry.getValue();
+			if (replica.value != null) {
+				HashMap<String, String> map = maps.get(replica.nodeAddress);
+				if (map == null) {
+					map = new HashMap<String, String>();
+					maps.put(replica.nodeAddress, map);
+				}
+				map.put(entry.getKey(), replica.value);
+			}
+		}
+		return maps;
+	}
+
+	/***
+	 * This method adds the replicas of the (KEY,VALUE) pairs of many peers. The pairs have no version.
+	 * @param maps	(KEY,VALUE) pairs of each peer.
+	 */
+	public void putAll(Map<String, HashMap<String, String>> maps) {
+		for (Map.Entry<String, HashMap<String, String>> record : maps.entrySet()) {
+			for (Map.Entry<String, String> entry : record.getValue().entrySet()) {
+				put(record.getKey(), entry.getKey(), entry.getValue(), 0);
+			}
+		}
+	}
+
+	/***
+	 * This method deletes all the replicas.
+	 */
+	public void clear() {
+		replicas.clear();
+	}
+
+	/***
+	 * This method forgets the versions of the KEYS deleted before the specified version.
+	 * @param oldestVersion	Tombstones with a smaller version are purged.
+	 */
+	public void purgeTombstones(long oldestVersion) {
+		for (Map.Entry<String, Replica> entry : replicas.entrySet()) {
+			if (entry.getValue().value == null && entry.getValue().version < oldestVersion) {
+				replicas.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	public int size() {
+		return replicas.size();
+	}
+
+	// Replica of a KEY: the peer which has the KEY, its VALUE (null if the KEY was deleted) and its version
+	private static class Replica {
+		final String nodeAddress;
+		final String value;
+		final long version;
+
+		Replica(String nodeAddress, String value, long version) {
+			this.nodeAddress = nodeAddress;
+			this.value = value;
+			this.version = version;
+		}
+	}
+}
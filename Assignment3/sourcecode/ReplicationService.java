@@ -1,14 +1,16 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import javax.swing.plaf.synth.SynthSplitPaneUI;
 
+
 /***
  * This class provides the Replication facility in the Distributed Hash Table.
  * Its serves the requests of peers to store their Hash Table data on the replication nodes.
@@ -37,13 +39,11 @@ public class ReplicationService extends Thread {
 	
 	public void run () {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse = null;
 		
-		String data = key + "," + value;
-		
 		if (requestType.equalsIgnoreCase("REPLICATE")) {
 			replicateHashTables();
 			replicateFiles();
@@ -69,20 +69,20 @@ public class ReplicationService extends Thread {
 						socket = new Socket(nodeAddress, portAddress);
 
 						// Initializing output stream using the socket's output stream
-						out = new ObjectOutputStream(socket.getOutputStream());
-						out.flush();
+						out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
 						// Initializing input stream using the socket's input stream
-						in = new ObjectInputStream(socket.getInputStream());
+						in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 						// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 						peerRequest = new Request();
 						peerRequest.setRequestType("R_REGISTER");
-						peerRequest.setRequestData(data);
-						out.writeObject(peerRequest);
+						peerRequest.setKey(key);
+						peerRequest.setValue(value);
+						MessageUtility.writeRequest(out, peerRequest);
 
 						// Read the response message from the server
-						serverResponse = (Response) in.readObject();
+						serverResponse = MessageUtility.readResponse(in);
 						socket.close();
 					}
 					//System.out.println(replicatedHashTable);
@@ -91,20 +91,19 @@ public class ReplicationService extends Thread {
 			        socket = new Socket(nodeAddress, portAddress);
 			        
 			        // Initializing output stream using the socket's output stream
-			        out = new ObjectOutputStream(socket.getOutputStream());
-			        out.flush();
+			        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			        
 			        // Initializing input stream using the socket's input stream
-			        in = new ObjectInputStream(socket.getInputStream());
+			        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 					// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 					peerRequest = new Request();
 					peerRequest.setRequestType("R_UNREGISTER");
-					peerRequest.setRequestData(key);
-					out.writeObject(peerRequest);
+					peerRequest.setKey(key);
+					MessageUtility.writeRequest(out, peerRequest);
 					
 			        // Read the response message from the server
-			        serverResponse = (Response) in.readObject();
+			        serverResponse = MessageUtility.readResponse(in);
 			        socket.close();
 				}
 			} catch (Exception ex) {
@@ -130,23 +129,18 @@ public class ReplicationService extends Thread {
 	
 	/***
 	 * This method retrieves the Hash Table from all the peers in the network and adds it to its Replication Hash Table.
-	 * @return	Returns true if all Hash Tables were retrieved successfully.
+	 * @return	Returns true if any (KEY,VALUE) pair was retrieved.
 	 */
 	private boolean replicateHashTables() {
-		ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable = null;		
+		long received = 0;
 		if (replicationNodes.size() > 1) {
 			// If there is another replication node, get replication data from another data
-			replicatedHashTable = getReplicationData();
+			received = getReplicationData();
 		} else {
 			// If there is only one replication node. It gets data from all the peers in the network.
-			replicatedHashTable = getAllHashTables();
-		}
-		
-		if (replicatedHashTable != null && replicatedHashTable.size() > 0) {
-			FileTransferSystem.setReplicatedHashTable(replicatedHashTable);
-			return true;
+			received = getAllHashTables();
 		}
-		return false;
+		return received > 0;
 	}
 	
 	private void replicateFiles() {
@@ -176,136 +170,33 @@ public class ReplicationService extends Thread {
 	}
 	
 	/***
-	 * This method retrieves the Replication Hash Table from one of the replication nodes after this peer was down so that it can re-gain its replication data from the replication nodes.
-	 * @return	Returns the replicatedHashTable (if exists) of the calling peer from the replication nodes.
+	 * This method retrieves the Replication Hash Table from the replication nodes after this peer was down so that it can re-gain its replication data from the replication nodes.
+	 * The replicas are received in pages and each page is added to the Replication Hash Table as soon as it is received.
+	 * @return	Returns the number of replicas retrieved, or -1 if no replication node answered.
 	 */
-	private ConcurrentHashMap<String, HashMap<String, String>> getReplicationData() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		ConcurrentHashMap<String, HashMap<String, String>> hm = null;
-		
-		for (String nodeAddress : replicationNodes) {
-			//System.out.println("Retrieving Replication Hash Table from " + nodeAddress);
-			
-			if (nodeAddress.equalsIgnoreCase(localAddress)) {
-				continue;
-			}
-			
-			try {
-				// Make connection with server using the specified Host Address and Port 10000
-				socket = new Socket(nodeAddress, portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_REPLICA");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (ConcurrentHashMap<String, HashMap<String, String>>) serverResponse.getResponseData();
-				} 
-					
-				socket.close();
-				break;
-			} catch (Exception ex) {
-				//ex.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
-			}
-		}
-
-		return hm;
+	private long getReplicationData() {
+		return StateTransfer.retrieve(replicationNodes, "SCAN_REPLICA");
 	}
 
 	/***
-	 * This method requests all the peers in the network to send their hash tables.
-	 * @return Returns the combined hash table of all the peers in the network.
+	 * This method requests all the peers in the network to send their hash tables, in pages.
+	 * @return Returns the number of (KEY,VALUE) pairs added to the Replication Hash Table.
 	 */
-	private ConcurrentHashMap<String, HashMap<String, String>> getAllHashTables() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse = null;
-		ConcurrentHashMap<String, HashMap<String, String>> replicatedHashTable = new ConcurrentHashMap<String, HashMap<String, String>>();
-		ConcurrentHashMap<String, String> hm = null;
+	private long getAllHashTables() {
+		long received = 0;
 		
 		for (Map.Entry<Integer, String> peer : networkMap.entrySet()) {
 			if (peer.getValue().equalsIgnoreCase(localAddress)) {
-				if (FileTransferSystem.getHashTable().size() > 0) {
-					replicatedHashTable.put(peer.getValue(), new HashMap<String, String>(FileTransferSystem.getHashTable()));
+				for (Map.Entry<String, String> record : FileTransferSystem.getHashTable().entrySet()) {
+					FileTransferSystem.putInReplicaHashTable(localAddress, record.getKey(), record.getValue());
+					received++;
 				}
 				continue;
 			}
 			
-			try {
-				// Make connection with server using the specified Host Address and Port portAddress
-				socket = new Socket(peer.getValue(), portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_HASHTABLE");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (ConcurrentHashMap<String, String>) serverResponse.getResponseData();
-				}
-				socket.close();
-				socket = null;
-				
-			} catch (Exception e) {
-				//e.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
-			}
-			
-			if (hm != null && hm.size() > 0) {
-				replicatedHashTable.put(peer.getValue(), new HashMap<String, String>(hm));
-				hm = null;
-			}
+			received += Math.max(0, StateTransfer.retrieve(Collections.singletonList(peer.getValue()), "SCAN"));
 		}
 		
-		return replicatedHashTable;
+		return received;
 	}
-}
\ No newline at end of file
+}
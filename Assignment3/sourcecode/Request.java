@@ -3,7 +3,9 @@ import java.io.Serializable;
 public class Request implements Serializable {
 	
 	private String requestType;
-	private Object requestData;
+	private int requestId;
+	private String key;
+	private String value;
 	
 	public String getRequestType() {
 		return requestType;
@@ -11,11 +13,23 @@ public class Request implements Serializable {
 	public void setRequestType(String requestType) {
 		this.requestType = requestType;
 	}
-	public Object getRequestData() {
-		return requestData;
+	public int getRequestId() {
+		return requestId;
 	}
-	public void setRequestData(Object requestData) {
-		this.requestData = requestData;
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+	public String getKey() {
+		return key;
+	}
+	public void setKey(String key) {
+		this.key = key;
+	}
+	public String getValue() {
+		return value;
+	}
+	public void setValue(String value) {
+		this.value = value;
 	}
 	
 }
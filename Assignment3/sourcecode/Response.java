@@ -3,6 +3,8 @@ import java.io.Serializable;
 public class Response implements Serializable {
 
 	private int responseCode;
+	private int requestId;
+	private String cursor;
 	private Object responseData;
 	
 	public int getResponseCode() {
@@ -13,6 +15,22 @@ public class Response implements Serializable {
 		this.responseCode = responseCode;
 	}
 
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
 	public Object getResponseData() {
 		return responseData;
 	}
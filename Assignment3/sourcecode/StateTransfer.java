@@ -0,0 +1,267 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class sends the Hash Tables and their replicas in pages, so that a peer or a replication node which restarts gets
+ * its (KEY, VALUE) pairs back without either side holding a copy of the whole Hash Table in one message.
+ * There are three kinds of transfers:
+ * 		SCAN			the hashTable of the node which answers, kept as its replica by the requesting replication node
+ * 		R_SCAN			the replicas of the hashTable of the requesting peer, written back to its hashTable
+ * 		SCAN_REPLICA	the replicas of all the peers, kept by the requesting replication node
+ *
+ * The KEYS are sent in the order of their position on the consistent hash ring (then of the KEYS themselves), which is the
+ * same on every node. The cursor of a page is the last KEY it contains, so the transfer can go on from the same KEY on
+ * another replication node after a failure. All the pages of a transfer are requested on the same connection, and the
+ * next page is requested before a page is applied so that the node reads it meanwhile, but no more than one page is
+ * waiting.
+ *
+ * The KEYS to be sent are sorted when the transfer starts and kept for SNAPSHOT_TIMEOUT between two pages. Their VALUES
+ * are read when their page is sent.
+ */
+public class StateTransfer {
+	public static final int PAGE_SIZE = 1000; // (KEY, VALUE) pairs per page
+	public static final int MAX_PAGE_BYTES = 1024 * 1024; // 1 MegaByte
+	public static final long SNAPSHOT_TIMEOUT = 60 * 1000; // 1 minute
+
+	// Sorted KEYS of the transfers in progress, by requesting peer and kind of transfer
+	private static ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+	/***
+	 * This method returns the page of a transfer which follows the cursor.
+	 * The response has the (KEY, VALUE) pairs in its response data, in a HashMap for SCAN and R_SCAN or in a HashMap per
+	 * peer for SCAN_REPLICA, and the cursor of the next page, or null if it is the last page.
+	 * @param requester		IP address of the peer which gets the pairs
+	 * @param requestType	SCAN, R_SCAN or SCAN_REPLICA
+	 * @param cursor		Last KEY received, or null for the first page
+	 * @return				Returns the response to be sent.
+	 */
+	public static Response getPage(String requester, String requestType, String cursor) {
+		String id = requester + "/" + requestType;
+		long now = System.currentTimeMillis();
+		boolean hashTable = requestType.equalsIgnoreCase("SCAN");
+		String nodeAddress = requestType.equalsIgnoreCase("R_SCAN") ? requester : null;
+
+		// A new transfer, or one which was started on another node or paused for too long, sorts the KEYS again
+		Snapshot snapshot = snapshots.get(id);
+		if (cursor == null || snapshot == null || now - snapshot.lastUsed > SNAPSHOT_TIMEOUT) {
+			if (hashTable) {
+				snapshot = new Snapshot(new ArrayList<String>(FileTransferSystem.getHashTable().keySet()));
+			} else {
+				snapshot = new Snapshot(FileTransferSystem.getReplicaKeys(nodeAddress));
+			}
+			snapshots.put(id, snapshot);
+		}
+		snapshot.lastUsed = now;
+		removeExpired(now);
+
+		HashMap<String, String> pairs = new HashMap<String, String>();
+		ConcurrentHashMap<String, HashMap<String, String>> pairsByPeer = new ConcurrentHashMap<String, HashMap<String, String>>();
+		String[] owner = new String[1];
+		int count = 0;
+		int bytes = 0;
+		int position = (cursor == null) ? 0 : snapshot.after(cursor);
+
+		while (position < snapshot.keys.length && count < PAGE_SIZE && bytes < MAX_PAGE_BYTES) {
+			String key = snapshot.keys[position++];
+			String value = hashTable ? FileTransferSystem.getFromHashTable(key) : FileTransferSystem.getFromReplicaHashTable(key, owner);
+			// The KEY was unregistered or its replica moved to another peer since the transfer started
+			if (value == null || (nodeAddress != null && !nodeAddress.equals(owner[0]))) {
+				continue;
+			}
+
+			if (hashTable || nodeAddress != null) {
+				pairs.put(key, value);
+			} else {
+				HashMap<String, String> peerPairs = pairsByPeer.get(owner[0]);
+				if (peerPairs == null) {
+					peerPairs = new HashMap<String, String>();
+					pairsByPeer.put(owner[0], peerPairs);
+				}
+				peerPairs.put(key, value);
+			}
+			count++;
+			bytes += 2 * (key.length() + value.length()) + 16;
+		}
+
+		Response response = new Response();
+		response.setResponseCode(200);
+		if (hashTable || nodeAddress != null) {
+			response.setResponseData(pairs);
+		} else {
+			response.setResponseData(pairsByPeer);
+		}
+		if (position < snapshot.keys.length) {
+			response.setCursor(snapshot.keys[position - 1]);
+		} else {
+			snapshots.remove(id, snapshot);
+		}
+		return response;
+	}
+
+	/***
+	 * This method receives all the pages of a transfer and writes each page as soon as it is received: to the replicas of
+	 * the node which sends it for SCAN, to the hashTable for R_SCAN and to the replicas of their peers for SCAN_REPLICA.
+	 * If a node fails, the pages which follow the last one written are requested from the next node.
+	 * @param nodeAddresses	IP addresses of the nodes which can send the pages. The local address is skipped.
+	 * @param requestType	SCAN, R_SCAN or SCAN_REPLICA
+	 * @return				Returns the number of (KEY, VALUE) pairs received, or -1 if no node answered.
+	 */
+	public static long retrieve(List<String> nodeAddresses, String requestType) {
+		String localAddress = FileTransferSystem.getLocalAddress();
+		int portAddress = FileTransferSystem.getPeerServerPort();
+		String cursor = null;
+		long received = 0;
+		boolean answered = false;
+
+		for (String nodeAddress : nodeAddresses) {
+			if (nodeAddress.equalsIgnoreCase(localAddress)) {
+				continue;
+			}
+
+			Socket socket = null;
+			try {
+				// Make connection with server using the specified Host Address and Port portAddress
+				socket = new Socket(nodeAddress, portAddress);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				MessageUtility.writeRequest(out, pageRequest(requestType, cursor));
+
+				while (true) {
+					Response serverResponse = MessageUtility.readResponse(in);
+					if (serverResponse.getResponseCode() != 200) {
+						break;
+					}
+					answered = true;
+
+					String nextCursor = serverResponse.getCursor();
+					if (nextCursor != null) {
+						MessageUtility.writeRequest(out, pageRequest(requestType, nextCursor));
+					}
+					received += applyPage(nodeAddress, requestType, serverResponse);
+
+					cursor = nextCursor;
+					if (cursor == null) {
+						return received;
+					}
+				}
+			} catch (Exception ex) {
+				//ex.printStackTrace();
+			} finally {
+				try {
+					if (socket != null)
+						socket.close();
+				} catch (IOException ioe) {
+					//ioe.printStackTrace();
+				}
+			}
+		}
+		return answered ? received : -1;
+	}
+
+	private static Request pageRequest(String requestType, String cursor) {
+		Request peerRequest = new Request();
+		peerRequest.setRequestType(requestType);
+		peerRequest.setKey(cursor);
+		return peerRequest;
+	}
+
+	// Writes the (KEY, VALUE) pairs of a page and returns their number
+	private static int applyPage(String nodeAddress, String requestType, Response serverResponse) {
+		int count = 0;
+		Map<?, ?> data = (Map<?, ?>) serverResponse.getResponseData();
+		if (requestType.equalsIgnoreCase("SCAN_REPLICA")) {
+			for (Map.Entry<?, ?> peer : data.entrySet()) {
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) peer.getValue()).entrySet()) {
+					FileTransferSystem.putInReplicaHashTable((String) peer.getKey(), (String) entry.getKey(), (String) entry.getValue());
+					count++;
+				}
+			}
+		} else {
+			for (Map.Entry<?, ?> entry : data.entrySet()) {
+				if (requestType.equalsIgnoreCase("SCAN")) {
+					FileTransferSystem.putInReplicaHashTable(nodeAddress, (String) entry.getKey(), (String) entry.getValue());
+				} else {
+					FileTransferSystem.putInHashTable((String) entry.getKey(), (String) entry.getValue(), true);
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Forgets the snapshots of the transfers which were abandoned
+	private static void removeExpired(long now) {
+		for (Snapshot snapshot : snapshots.values()) {
+			if (now - snapshot.lastUsed > SNAPSHOT_TIMEOUT) {
+				snapshots.values().remove(snapshot);
+			}
+		}
+	}
+
+	// KEYS sorted in the order in which they are sent, with their position on the ring
+	private static class Snapshot {
+		final String[] keys;
+		final long[] positions;
+		volatile long lastUsed;
+
+		Snapshot(ArrayList<String> list) {
+			Entry[] entries = new Entry[list.size()];
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = new Entry(list.get(i));
+			}
+			Arrays.sort(entries);
+
+			keys = new String[entries.length];
+			positions = new long[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				keys[i] = entries[i].key;
+				positions[i] = entries[i].position;
+			}
+		}
+
+		// Returns the index of the first KEY sent after the cursor
+		int after(String cursor) {
+			long position = HashRing.hash(cursor);
+			int low = 0;
+			int high = keys.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				int order = Long.compare(positions[middle], position);
+				if (order == 0) {
+					order = keys[middle].compareTo(cursor);
+				}
+				if (order <= 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		final String key;
+		final long position;
+
+		Entry(String key) {
+			this.key = key;
+			this.position = HashRing.hash(key);
+		}
+
+		public int compareTo(Entry other) {
+			int order = Long.compare(position, other.position);
+			return (order != 0) ? order : key.compareTo(other.key);
+		}
+	}
+}
@@ -1,10 +1,12 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
@@ -13,6 +15,7 @@ import java.util.Properties;
 public class TestClient {
 
 	private static HashMap<Integer, String> networkMap = new HashMap<Integer, String>();
+	private static HashRing hashRing = null;
 	
 	private static int portAddress = 20000;
 	private static String localAddress = NetworkUtility.getLocalAddress();
@@ -50,6 +53,8 @@ public class TestClient {
 					System.out.println("No nodes(peers) present in Configuration File. No nodes... No Distributed Hash Table... Bye...");
 					System.exit(0);
 				}
+				
+				hashRing = new HashRing(networkMap, HashRing.parseVirtualNodes(configuration.getProperty("VIRTUAL_NODES")));
 			}
 						
 			input = new BufferedReader(new InputStreamReader(System.in));
@@ -248,25 +253,13 @@ public class TestClient {
 	}
 	
 	/***
-	 * This method performs a hash on the key and returns the node id where the key is located.
-	 * We get the hashCode of the input KEY string which is a number and then we perform MOD operation on that hashCode.
-	 * The hashCode for a given string will always be same for that string.
+	 * This method returns the node id where the key is located.
+	 * The key is placed on the consistent hash ring of the network, so adding or removing a node only moves the keys next to its tokens.
 	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
 	 * @return		Returns a node id (integer) where the key is located.
 	 */
 	private static int hash(String key) {
-		// Total number of servers = Total number of entries in networkMap
-		int totalServers = networkMap.size();
-		
-		// Get hash value of string using JAVA's hashCode() method
-		long hashCode = key.hashCode();
-		
-		// hashCode may be negative. So, make it positive in case it's negative
-		hashCode = (hashCode < 0) ? -hashCode : hashCode;
-		
-		// Add 1 because MOD of hashCode and totalServers may be 0
-		int hash = (int) (hashCode % totalServers) + 1;
-		return hash;
+		return hashRing.getNode(key);
 	}
 	
 	private static String getKey(String value) {
@@ -286,8 +279,8 @@ public class TestClient {
 	 */
 	private static String get(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -308,23 +301,22 @@ public class TestClient {
 		        socket = new Socket(nodeAddress, portAddress);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("GET");
-				peerRequest.setRequestData(key);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
-					value = serverResponse.getResponseData().toString().split(",")[1].trim();
+					value = serverResponse.getResponseData().toString();
 				}
 			}
 		} catch(Exception e) {
@@ -356,11 +348,10 @@ public class TestClient {
 	 */
 	private static boolean put(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
 	        
 		try {
 			//startTime = System.currentTimeMillis();
@@ -391,20 +382,20 @@ public class TestClient {
 		        socket = new Socket(nodeAddress, portAddress);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 	
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("PUT");
-				peerRequest.setRequestData(data);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				peerRequest.setValue(value);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {					
 					return true;
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/***
+ * This class provides the asynchronous and batch operations of a KeyValueStore whose client only has blocking calls.
+ *
+ * An asynchronous operation runs the blocking call in a thread of the store. A new thread is started when all the threads
+ * are busy, so an operation never waits in a queue and the store has as many threads as operations outstanding at the same
+ * time, e.g. threads * outstanding for the WorkloadDriver; the threads are stopped after ASYNC_KEEP_ALIVE without an
+ * operation. A batch runs the blocking calls of its KEYS one after another in one of these threads. The stores override
+ * the operations for which their client does better, e.g. one request for a whole batch or a pipelined connection.
+ */
+public abstract class AbstractKeyValueStore implements KeyValueStore {
+	public static final long ASYNC_KEEP_ALIVE = 60; // 60 seconds
+
+	private ExecutorService executor = null;
+
+	public CompletableFuture<Boolean> insertAsync(final String key, final String value) {
+		return supplyAsync(new Supplier<Boolean>() {
+			public Boolean get() {
+				try {
+					return insert(key, value);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> updateAsync(final String key, final String value) {
+		return supplyAsync(new Supplier<Boolean>() {
+			public Boolean get() {
+				try {
+					return update(key, value);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	public CompletableFuture<String> lookupAsync(final String key) {
+		return supplyAsync(new Supplier<String>() {
+			public String get() {
+				try {
+					return lookup(key);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> removeAsync(final String key) {
+		return supplyAsync(new Supplier<Boolean>() {
+			public Boolean get() {
+				try {
+					return remove(key);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	public CompletableFuture<boolean[]> insertAll(final List<String> keys, final List<String> values) {
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				boolean[] results = new boolean[keys.size()];
+				for (int i = 0; i < results.length; i++) {
+					try {
+						results[i] = insert(keys.get(i), values.get(i));
+					} catch (Exception e) {
+						results[i] = false;
+					}
+				}
+				return results;
+			}
+		});
+	}
+
+	public CompletableFuture<List<String>> lookupAll(final List<String> keys) {
+		return supplyAsync(new Supplier<List<String>>() {
+			public List<String> get() {
+				ArrayList<String> values = new ArrayList<String>(keys.size());
+				for (String key : keys) {
+					try {
+						values.add(lookup(key));
+					} catch (Exception e) {
+						values.add(null);
+					}
+				}
+				return values;
+			}
+		});
+	}
+
+	public CompletableFuture<boolean[]> removeAll(final List<String> keys) {
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				boolean[] results = new boolean[keys.size()];
+				for (int i = 0; i < results.length; i++) {
+					try {
+						results[i] = remove(keys.get(i));
+					} catch (Exception e) {
+						results[i] = false;
+					}
+				}
+				return results;
+			}
+		});
+	}
+
+	/***
+	 * This method runs a blocking call in a thread of the store.
+	 * @param call	Blocking call, which throws an unchecked exception if it fails
+	 * @return		Returns a future of the result of the call.
+	 */
+	protected <T> CompletableFuture<T> supplyAsync(Supplier<T> call) {
+		return CompletableFuture.supplyAsync(call, executor());
+	}
+
+	// Threads of the store, started on the first asynchronous operation
+	private synchronized ExecutorService executor() {
+		if (executor == null) {
+			final String name = getName();
+			executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, ASYNC_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, name + "-async-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/***
+	 * This method stops the threads of the asynchronous operations once their operations are completed. The stores call it
+	 * when they disconnect.
+	 */
+	protected synchronized void shutdownAsync() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+}
@@ -1,59 +1,263 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+
+/***
+ * Client of Cassandra. The statements are prepared once at connect() and only their KEY and VALUE are sent afterwards, so
+ * the nodes don't parse the CQL of every operation and a VALUE can't break the query.
+ *
+ * The driver routes each statement to a node which has a replica of its KEY (token-aware routing) instead of a coordinator
+ * chosen in turn, which saves a hop between the nodes. The asynchronous operations use the asynchronous calls of the driver,
+ * at most MAX_IN_FLIGHT of them sent and not answered at the same time. The batches of KEYS are sent as unlogged batches of
+ * the KEYS which have the same replicas, so each batch is applied by the nodes which receive it.
+ */
+public class Cassandra extends AbstractKeyValueStore {
+	public static final String KEYSPACE = "cs550";
+	public static final int MAX_IN_FLIGHT = 256; // Statements sent and not answered yet
+	public static final int BATCH_SIZE = 32; // Statements per unlogged batch, the nodes warn above 5 KiloBytes
+
+	// Completes the futures in the thread of the driver which receives the response
+	private static final Executor DIRECT = new Executor() {
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
 
-public class Cassandra {
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement insertStatement;
+	private PreparedStatement removeStatement;
+	private PreparedStatement lookupStatement;
+	private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
 
-	private static Cluster cluster;
-	private static Session session;
-	
-	public static void connect(String host) {
-		// Connect to the cluster and keyspace "hashtable"
-		cluster = Cluster.builder().addContactPoint(host).build();
-		session = cluster.connect("cs550");
+	public String getName() {
+		return "Cassandra";
 	}
-	
-	public static boolean insert(String key, String value) {
+
+	/***
+	 * This method connects to the cluster through one of its nodes and prepares the statements.
+	 * @param host	Address of a node of the cluster, the driver finds the other nodes
+	 * @param port	Not used, the driver uses the native port of Cassandra
+	 */
+	public void connect(String host, int port) {
+		// Connect to the cluster and keyspace "cs550", each statement is sent to a replica of its KEY
+		cluster = Cluster.builder().addContactPoint(host)
+				.withLoadBalancingPolicy(new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build())).build();
+		session = cluster.connect(KEYSPACE);
+
+		insertStatement = session.prepare("INSERT INTO hashtable (key, value) VALUES (?, ?)");
+		removeStatement = session.prepare("DELETE FROM hashtable WHERE key = ?");
+		lookupStatement = session.prepare("SELECT value FROM hashtable WHERE key = ?");
+		System.out.println("Cassandra Connection Successful. Statements are sent to the replicas of their key.");
+	}
+
+	public boolean insert(String key, String value) {
 		// Insert one record into the table
-		String query = String.format("INSERT INTO hashtable (key, value) VALUES ('%s', '%s')", key, value);
-		session.execute(query);
+		session.execute(insertStatement.bind(key, value));
 		return true;
 	}
-	
-	public static boolean remove(String key) {
-		// Delete one record into the table
-		String query = String.format("DELETE FROM hashtable WHERE key = '%s'", key);
-		session.execute(query);
+
+	public boolean remove(String key) {
+		// Delete one record from the table
+		session.execute(removeStatement.bind(key));
 		return true;
 	}
-	
-	public static String lookup(String key) {
-		// Delete one record into the table
-		String query = String.format("SELECT value FROM hashtable WHERE key = '%s'", key);
-		ResultSet results = session.execute(query);
-		for (Row row : results) {
-			return row.getString("value");
+
+	// An INSERT overwrites the VALUE of an existing KEY
+	public boolean update(String key, String value) {
+		return insert(key, value);
+	}
+
+	public String lookup(String key) {
+		// Read one record from the table
+		return valueOf(session.execute(lookupStatement.bind(key)));
+	}
+
+	public CompletableFuture<Boolean> insertAsync(String key, String value) {
+		return executeAsync(insertStatement.bind(key, value)).thenApply(APPLIED);
+	}
+
+	public CompletableFuture<Boolean> updateAsync(String key, String value) {
+		return insertAsync(key, value);
+	}
+
+	public CompletableFuture<String> lookupAsync(String key) {
+		return executeAsync(lookupStatement.bind(key)).thenApply(new Function<ResultSet, String>() {
+			public String apply(ResultSet results) {
+				return valueOf(results);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> removeAsync(String key) {
+		return executeAsync(removeStatement.bind(key)).thenApply(APPLIED);
+	}
+
+	public CompletableFuture<boolean[]> insertAll(List<String> keys, List<String> values) {
+		ArrayList<Statement> statements = new ArrayList<Statement>(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			statements.add(insertStatement.bind(keys.get(i), values.get(i)));
 		}
-		return null;
+		return executeBatches(keys, statements);
 	}
-	
-	public static void disconnect() {
+
+	public CompletableFuture<boolean[]> removeAll(List<String> keys) {
+		ArrayList<Statement> statements = new ArrayList<Statement>(keys.size());
+		for (String key : keys) {
+			statements.add(removeStatement.bind(key));
+		}
+		return executeBatches(keys, statements);
+	}
+
+	// The reads of a batch are sent together but one by one, a batch can only write
+	public CompletableFuture<List<String>> lookupAll(List<String> keys) {
+		final ArrayList<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(keys.size());
+		for (String key : keys) {
+			futures.add(lookupAsync(key));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(new Function<Void, List<String>>() {
+			public List<String> apply(Void done) {
+				ArrayList<String> values = new ArrayList<String>(futures.size());
+				for (CompletableFuture<String> future : futures) {
+					values.add(future.join());
+				}
+				return values;
+			}
+		});
+	}
+
+	/***
+	 * This method sends the statements of KEYS in unlogged batches of at most BATCH_SIZE statements whose KEYS have the same
+	 * replicas, so that no node has to forward the statements of a batch to other nodes.
+	 * @param keys			KEY of each statement
+	 * @param statements	Statements to be sent
+	 * @return				Returns a future of the result of each KEY, true if the batch of the KEY is applied.
+	 */
+	private CompletableFuture<boolean[]> executeBatches(List<String> keys, List<Statement> statements) {
+		// Group the statements by the replicas of their KEY
+		Metadata metadata = cluster.getMetadata();
+		HashMap<Set<Host>, ArrayList<Integer>> groups = new HashMap<Set<Host>, ArrayList<Integer>>();
+		for (int i = 0; i < keys.size(); i++) {
+			Set<Host> replicas = metadata.getReplicas(KEYSPACE, ByteBuffer.wrap(keys.get(i).getBytes(StandardCharsets.UTF_8)));
+			ArrayList<Integer> group = groups.get(replicas);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(replicas, group);
+			}
+			group.add(i);
+		}
+
+		final boolean[] results = new boolean[keys.size()];
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<Set<Host>, ArrayList<Integer>> group : groups.entrySet()) {
+			ArrayList<Integer> positions = group.getValue();
+			for (int start = 0; start < positions.size(); start += BATCH_SIZE) {
+				final List<Integer> batchPositions = positions.subList(start, Math.min(start + BATCH_SIZE, positions.size()));
+				BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+				for (int position : batchPositions) {
+					batch.add(statements.get(position));
+				}
+				futures.add(executeAsync(batch).handle(new BiFunction<ResultSet, Throwable, Void>() {
+					public Void apply(ResultSet batchResults, Throwable error) {
+						if (error == null) {
+							for (int position : batchPositions) {
+								results[position] = true;
+							}
+						}
+						return null;
+					}
+				}));
+			}
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(new Function<Void, boolean[]>() {
+			public boolean[] apply(Void done) {
+				return results;
+			}
+		});
+	}
+
+	/***
+	 * This method sends a statement without waiting for its response. When MAX_IN_FLIGHT statements are waiting for their
+	 * response, it waits until one of them is answered, so a client which sends faster than the cluster can serve is slowed
+	 * down instead of queuing requests without limit.
+	 * @param statement	Statement to be sent
+	 * @return			Returns a future of the results of the statement.
+	 */
+	private CompletableFuture<ResultSet> executeAsync(Statement statement) {
+		final CompletableFuture<ResultSet> result = new CompletableFuture<ResultSet>();
+		inFlight.acquireUninterruptibly();
+		final ResultSetFuture future;
+		try {
+			future = session.executeAsync(statement);
+		} catch (RuntimeException e) {
+			inFlight.release();
+			result.completeExceptionally(e);
+			return result;
+		}
+		future.addListener(new Runnable() {
+			public void run() {
+				inFlight.release();
+				try {
+					result.complete(future.getUninterruptibly());
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			}
+		}, DIRECT);
+		return result;
+	}
+
+	private static String valueOf(ResultSet results) {
+		Row row = results.one();
+		return (row != null) ? row.getString("value") : null;
+	}
+
+	private static final Function<ResultSet, Boolean> APPLIED = new Function<ResultSet, Boolean>() {
+		public Boolean apply(ResultSet results) {
+			return true;
+		}
+	};
+
+	public void disconnect() {
 		// Clean up the connection by closing it
 		cluster.close();
+		shutdownAsync();
 	}
-	
+
 	public static void main(String[] args) {
-		
-		connect("52.34.230.108");
-		//connect("127.0.0.1");
+
+		Cassandra cassandra = new Cassandra();
+		cassandra.connect("52.34.230.108", 0);
+		//cassandra.connect("127.0.0.1", 0);
 		for (int i = 1; i <= 500; i++) {
-			//insert(i + "", i + "");
+			//cassandra.insert(i + "", i + "");
 			//System.out.print(i + " ");
-			//System.out.println(lookup(i + ""));
-			remove(i + "");
+			//System.out.println(cassandra.lookup(i + ""));
+			cassandra.remove(i + "");
 		}
-		disconnect();
+		cassandra.disconnect();
 	}
 
 }
@@ -0,0 +1,576 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * This class keeps long-lived connections to the peers of the Distributed Hash Table so that every
+ * operation doesn't pay for a TCP handshake. Idle connections are kept per node address, checked
+ * before they are reused if they have been idle for a while and closed by a background thread once
+ * they have been idle for longer than IDLE_TIMEOUT.
+ */
+public class ConnectionPool {
+
+	public static final int MAX_IDLE_CONNECTIONS = 16; // Per node
+	public static final long IDLE_TIMEOUT = 60 * 1000; // 1 minute
+	public static final long HEALTH_CHECK_INTERVAL = 5 * 1000; // 5 seconds
+	public static final int CONNECT_TIMEOUT = 5 * 1000; // 5 seconds
+	public static final int READ_TIMEOUT = 30 * 1000; // 30 seconds
+	public static final int BATCH_SIZE = 100; // Keys per batch request
+	public static final int MAX_IN_FLIGHT = 4; // Batch requests sent on a connection before waiting for a response
+	public static final int ASYNC_CONNECTIONS = 4; // Per node, shared by the asynchronous requests of all the threads
+
+	// Requests which only read, so that sending them twice can't change the data or their response
+	private static final HashSet<String> READ_ONLY_REQUESTS = new HashSet<String>(Arrays.asList("GET", "R_GET", "GET_HASHTABLE", "GET_R_HASHTABLE", "MGET", "SCAN", "R_SCAN"));
+
+	private int port;
+	private ConcurrentHashMap<String, ConcurrentLinkedDeque<Connection>> idleConnections = new ConcurrentHashMap<String, ConcurrentLinkedDeque<Connection>>();
+	private ConcurrentHashMap<String, AsyncConnection[]> asyncConnections = new ConcurrentHashMap<String, AsyncConnection[]>();
+	private AtomicInteger nextAsyncConnection = new AtomicInteger();
+	private volatile boolean closed = false;
+	private Thread evictor = null;
+
+	private AtomicLong connectionsCreated = new AtomicLong();
+	private AtomicLong connectionsReused = new AtomicLong();
+
+	// Initializes the pool and starts the thread which closes idle connections
+	public ConnectionPool(int port) {
+		this.port = port;
+
+		evictor = new Thread("ConnectionPool-evictor") {
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(IDLE_TIMEOUT / 2);
+					} catch (InterruptedException e) {
+						break;
+					}
+					evictIdleConnections();
+				}
+			}
+		};
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/***
+	 * This method sends the request to the specified node on a pooled connection and returns its response.
+	 * If a reused connection turns out to be closed by the peer, the request is sent again on a new connection:
+	 * always if the request could not be written, and only for the requests which read if it was written but no
+	 * response came back, because the node may have applied it before closing the connection.
+	 * @param nodeAddress	IP Address of the node
+	 * @param request		Request to be sent
+	 * @return				Response of the node
+	 */
+	public Response send(String nodeAddress, Request request) throws IOException, ClassNotFoundException {
+		while (true) {
+			Connection connection = borrow(nodeAddress);
+			try {
+				MessageUtility.writeRequest(connection.out, request);
+			} catch (IOException e) {
+				connection.close();
+				// Only a reused connection may have been closed by the peer while it was idle
+				if (!connection.reused)
+					throw e;
+				continue;
+			}
+
+			try {
+				// Wait for the first byte of the response, a failure after it is never retried
+				connection.in.mark(1);
+				if (connection.in.read() < 0)
+					throw new EOFException("Connection closed by " + nodeAddress);
+				connection.in.reset();
+			} catch (IOException e) {
+				connection.close();
+				if (!connection.reused || e instanceof SocketTimeoutException || !READ_ONLY_REQUESTS.contains(request.getRequestType()))
+					throw e;
+				continue;
+			}
+
+			try {
+				Response response = MessageUtility.readResponse(connection.in);
+				release(connection);
+				return response;
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+	}
+
+	/***
+	 * This method sends the request to the specified node and returns at once, without waiting for its response.
+	 * The asynchronous requests of all the threads are pipelined on ASYNC_CONNECTIONS connections per node, used in turn:
+	 * a request is written as soon as it is sent, and a thread per connection reads the responses, which the node sends in
+	 * the order of the requests. A request is never sent twice: if its connection fails, its future completes with the
+	 * IOException whether or not the node applied it.
+	 * @param nodeAddress	IP Address of the node
+	 * @param request		Request to be sent, whose request id is set by its connection
+	 * @return				Returns a future of the response of the node.
+	 */
+	public CompletableFuture<Response> sendAsync(String nodeAddress, Request request) {
+		AsyncConnection[] connections = asyncConnections.get(nodeAddress);
+		if (connections == null) {
+			connections = new AsyncConnection[ASYNC_CONNECTIONS];
+			for (int i = 0; i < connections.length; i++) {
+				connections[i] = new AsyncConnection(nodeAddress);
+			}
+			AsyncConnection[] existing = asyncConnections.putIfAbsent(nodeAddress, connections);
+			if (existing != null)
+				connections = existing;
+		}
+
+		CompletableFuture<Response> future = new CompletableFuture<Response>();
+		int next = nextAsyncConnection.getAndIncrement() & Integer.MAX_VALUE;
+		connections[next % connections.length].send(request, future);
+		return future;
+	}
+
+	/***
+	 * This method performs a batch operation (MPUT, MGET or MDELETE) on keys which may belong to different nodes.
+	 * The keys are grouped by node and split into batches of BATCH_SIZE keys. The batches of all the nodes are
+	 * pipelined: up to MAX_IN_FLIGHT batches are sent on each connection before the first response is read, and a
+	 * new batch is sent whenever a response arrives. Limiting the batches in flight keeps both peers from blocking
+	 * on full socket buffers.
+	 * @param requestType	MPUT, MGET or MDELETE
+	 * @param keys			Keys of the operation
+	 * @param values		Values of the keys for MPUT, otherwise null
+	 * @param nodeAddresses	IP Address of the node of each key
+	 * @return				Response whose response codes and values are in the same order as the keys
+	 */
+	public Response sendBatch(String requestType, ArrayList<String> keys, ArrayList<String> values, String[] nodeAddresses) throws IOException, ClassNotFoundException {
+		// Group the positions of the keys by node
+		HashMap<String, ArrayList<Integer>> positionsByNode = new HashMap<String, ArrayList<Integer>>();
+		for (int i = 0; i < keys.size(); i++) {
+			ArrayList<Integer> positions = positionsByNode.get(nodeAddresses[i]);
+			if (positions == null) {
+				positions = new ArrayList<Integer>();
+				positionsByNode.put(nodeAddresses[i], positions);
+			}
+			positions.add(i);
+		}
+
+		int[] responseCodes = new int[keys.size()];
+		ArrayList<String> responseValues = new ArrayList<String>(Collections.nCopies(keys.size(), (String) null));
+		ArrayList<Pipeline> pipelines = new ArrayList<Pipeline>();
+		boolean completed = false;
+
+		try {
+			for (Map.Entry<String, ArrayList<Integer>> entry : positionsByNode.entrySet()) {
+				pipelines.add(new Pipeline(borrow(entry.getKey()), requestType, entry.getValue(), keys, values));
+			}
+			for (Pipeline pipeline : pipelines) {
+				while (pipeline.sent < pipeline.batches.size() && pipeline.sent < MAX_IN_FLIGHT) {
+					pipeline.sendNext();
+				}
+			}
+
+			// Read one response from each node in turn so that all the nodes work in parallel
+			boolean pending = true;
+			while (pending) {
+				pending = false;
+				for (Pipeline pipeline : pipelines) {
+					if (pipeline.received < pipeline.batches.size()) {
+						pipeline.receiveNext(responseCodes, responseValues);
+						if (pipeline.sent < pipeline.batches.size()) {
+							pipeline.sendNext();
+						}
+						pending = true;
+					}
+				}
+			}
+			completed = true;
+		} finally {
+			// A connection with responses left unread can't be reused
+			for (Pipeline pipeline : pipelines) {
+				if (completed)
+					release(pipeline.connection);
+				else
+					pipeline.connection.close();
+			}
+		}
+
+		Response response = new Response();
+		response.setResponseCode(200);
+		response.setResponseCodes(responseCodes);
+		response.setValues(responseValues);
+		return response;
+	}
+
+	/***
+	 * This method returns an idle connection to the specified node or opens a new one.
+	 * The connection must be given back using release(...) or closed if it is no longer usable.
+	 * @param nodeAddress	IP Address of the node
+	 * @return				Connection to the node
+	 */
+	public Connection borrow(String nodeAddress) throws IOException {
+		if (closed)
+			throw new IOException("Connection pool is closed.");
+
+		ConcurrentLinkedDeque<Connection> connections = idleConnections.get(nodeAddress);
+		if (connections != null) {
+			Connection connection;
+			while ((connection = connections.pollFirst()) != null) {
+				long idleTime = System.currentTimeMillis() - connection.lastUsed;
+				if (idleTime < IDLE_TIMEOUT && (idleTime < HEALTH_CHECK_INTERVAL || connection.isHealthy())) {
+					connection.reused = true;
+					connectionsReused.incrementAndGet();
+					return connection;
+				}
+				connection.close();
+			}
+		}
+
+		connectionsCreated.incrementAndGet();
+		return new Connection(nodeAddress, port);
+	}
+
+	/***
+	 * This method gives back a connection to the pool so that it can be reused.
+	 * @param connection	Connection which was returned by borrow(...)
+	 */
+	public void release(Connection connection) {
+		ConcurrentLinkedDeque<Connection> connections = idleConnections.get(connection.nodeAddress);
+		if (connections == null) {
+			idleConnections.putIfAbsent(connection.nodeAddress, new ConcurrentLinkedDeque<Connection>());
+			connections = idleConnections.get(connection.nodeAddress);
+		}
+
+		if (closed || connections.size() >= MAX_IDLE_CONNECTIONS) {
+			connection.close();
+		} else {
+			connection.lastUsed = System.currentTimeMillis();
+			// The most recently used connection is reused first so that the others can expire
+			connections.offerFirst(connection);
+		}
+	}
+
+	// Closes all the connections which have been idle for longer than IDLE_TIMEOUT
+	private void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (ConcurrentLinkedDeque<Connection> connections : idleConnections.values()) {
+			Iterator<Connection> iterator = connections.iterator();
+			while (iterator.hasNext()) {
+				Connection connection = iterator.next();
+				if (now - connection.lastUsed >= IDLE_TIMEOUT && connections.remove(connection)) {
+					connection.close();
+				}
+			}
+		}
+	}
+
+	// Closes all the idle connections and the connections of the asynchronous requests, and stops the pool
+	public void close() {
+		closed = true;
+		evictor.interrupt();
+		for (Map.Entry<String, ConcurrentLinkedDeque<Connection>> entry : idleConnections.entrySet()) {
+			Connection connection;
+			while ((connection = entry.getValue().pollFirst()) != null) {
+				connection.close();
+			}
+		}
+		for (AsyncConnection[] connections : asyncConnections.values()) {
+			for (AsyncConnection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+
+	/***
+	 * The batches of a batch operation which are sent to one node on one connection.
+	 */
+	private static class Pipeline {
+		private Connection connection;
+		private String requestType;
+		private ArrayList<ArrayList<Integer>> batches = new ArrayList<ArrayList<Integer>>();
+		private ArrayList<String> keys;
+		private ArrayList<String> values;
+		private int sent = 0;
+		private int received = 0;
+
+		public Pipeline(Connection connection, String requestType, ArrayList<Integer> positions, ArrayList<String> keys, ArrayList<String> values) {
+			this.connection = connection;
+			this.requestType = requestType;
+			this.keys = keys;
+			this.values = values;
+
+			for (int i = 0; i < positions.size(); i += BATCH_SIZE) {
+				batches.add(new ArrayList<Integer>(positions.subList(i, Math.min(i + BATCH_SIZE, positions.size()))));
+			}
+		}
+
+		// Sends the next batch. The request id is the number of the batch.
+		public void sendNext() throws IOException {
+			ArrayList<Integer> batch = batches.get(sent);
+			ArrayList<String> batchKeys = new ArrayList<String>(batch.size());
+			ArrayList<String> batchValues = values == null ? null : new ArrayList<String>(batch.size());
+			for (int position : batch) {
+				batchKeys.add(keys.get(position));
+				if (batchValues != null)
+					batchValues.add(values.get(position));
+			}
+
+			Request request = new Request();
+			request.setRequestType(requestType);
+			request.setRequestId(sent);
+			request.setKeys(batchKeys);
+			request.setValues(batchValues);
+			MessageUtility.writeRequest(connection.out, request);
+			sent++;
+		}
+
+		// Reads the response of the oldest batch in flight and copies its results to the positions of its keys
+		public void receiveNext(int[] responseCodes, ArrayList<String> responseValues) throws IOException, ClassNotFoundException {
+			Response response = MessageUtility.readResponse(connection.in);
+			ArrayList<Integer> batch = batches.get(received);
+			if (response.getRequestId() != received || response.getResponseCodes() == null || response.getResponseCodes().length != batch.size()) {
+				throw new StreamCorruptedException("Unexpected response to batch " + received + " from " + connection.nodeAddress);
+			}
+
+			for (int i = 0; i < batch.size(); i++) {
+				responseCodes[batch.get(i)] = response.getResponseCodes()[i];
+				if (response.getValues() != null)
+					responseValues.set(batch.get(i), response.getValues().get(i));
+			}
+			received++;
+		}
+	}
+
+	/***
+	 * A connection on which asynchronous requests are pipelined. It is opened by the first request, and again by the next
+	 * request after it fails or is closed for being idle for IDLE_TIMEOUT. The requests written and not answered yet are
+	 * kept in their order, which is the order of the responses.
+	 */
+	private class AsyncConnection {
+		private String nodeAddress;
+		private Connection connection = null;
+		private ArrayDeque<PendingRequest> pending = new ArrayDeque<PendingRequest>();
+		private int nextRequestId = 0;
+		// Held while a request is written, but not by the reader, so that it can go on reading the responses meanwhile
+		private Object writeLock = new Object();
+
+		public AsyncConnection(String nodeAddress) {
+			this.nodeAddress = nodeAddress;
+		}
+
+		// Writes the request, opening the connection and starting its reader if needed
+		public void send(Request request, CompletableFuture<Response> future) {
+			Connection writing = null;
+			try {
+				synchronized (writeLock) {
+					synchronized (this) {
+						if (closed)
+							throw new IOException("Connection pool is closed.");
+						if (connection == null) {
+							connection = new Connection(nodeAddress, port);
+							connectionsCreated.incrementAndGet();
+							startReader(connection);
+						}
+						writing = connection;
+						request.setRequestId(nextRequestId++);
+						// The request is pending before it is written so that a failure of the write also fails it
+						pending.add(new PendingRequest(request.getRequestId(), future));
+						writing.lastUsed = System.currentTimeMillis();
+					}
+					MessageUtility.writeRequest(writing.out, request);
+				}
+			} catch (IOException e) {
+				if (writing == null)
+					future.completeExceptionally(e);
+				else
+					fail(writing, e);
+			}
+		}
+
+		// Starts the thread which reads the responses of the connection until it fails or is closed
+		private void startReader(final Connection reading) {
+			Thread reader = new Thread("ConnectionPool-reader-" + nodeAddress) {
+				public void run() {
+					try {
+						while (receiveNext(reading)) { }
+					} catch (IOException e) {
+						fail(reading, e);
+					} catch (ClassNotFoundException e) {
+						fail(reading, new StreamCorruptedException(e.getMessage()));
+					}
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		// Reads the next response and completes the oldest request with it. Returns false once the connection is closed
+		// for being idle.
+		private boolean receiveNext(Connection reading) throws IOException, ClassNotFoundException {
+			try {
+				// Wait for the first byte of the response, the read timeout only matters while a request is pending
+				reading.in.mark(1);
+				if (reading.in.read() < 0)
+					throw new EOFException("Connection closed by " + nodeAddress);
+				reading.in.reset();
+			} catch (SocketTimeoutException e) {
+				synchronized (this) {
+					long now = System.currentTimeMillis();
+					PendingRequest oldest = pending.peek();
+					if (oldest != null && now - oldest.sentTime >= READ_TIMEOUT)
+						throw e;
+					if (oldest == null && now - reading.lastUsed >= IDLE_TIMEOUT && connection == reading) {
+						// Closed before the peer closes it, so that no request is written meanwhile
+						reading.close();
+						connection = null;
+						return false;
+					}
+				}
+				return true;
+			}
+
+			Response response = MessageUtility.readResponse(reading.in);
+			PendingRequest request;
+			synchronized (this) {
+				request = pending.peek();
+				if (request == null || response.getRequestId() != request.requestId)
+					throw new StreamCorruptedException("Unexpected response " + response.getRequestId() + " from " + nodeAddress);
+				pending.poll();
+			}
+			request.future.complete(response);
+			return true;
+		}
+
+		// Closes the connection and fails the requests which wait for its responses
+		private void fail(Connection failed, IOException e) {
+			ArrayList<PendingRequest> failedRequests;
+			synchronized (this) {
+				failed.close();
+				if (connection != failed)
+					return;
+				connection = null;
+				failedRequests = new ArrayList<PendingRequest>(pending);
+				pending.clear();
+			}
+			for (PendingRequest request : failedRequests) {
+				request.future.completeExceptionally(e);
+			}
+		}
+
+		public void close() {
+			Connection current;
+			synchronized (this) {
+				current = connection;
+			}
+			if (current != null)
+				fail(current, new IOException("Connection pool is closed."));
+		}
+	}
+
+	/***
+	 * An asynchronous request which waits for its response.
+	 */
+	private static class PendingRequest {
+		private int requestId;
+		private CompletableFuture<Response> future;
+		private long sentTime = System.currentTimeMillis();
+
+		public PendingRequest(int requestId, CompletableFuture<Response> future) {
+			this.requestId = requestId;
+			this.future = future;
+		}
+	}
+
+	/***
+	 * A connection to a node along with its streams.
+	 */
+	public static class Connection {
+		private String nodeAddress;
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+		private long lastUsed;
+		private boolean reused = false;
+
+		public Connection(String nodeAddress, int port) throws IOException {
+			this.nodeAddress = nodeAddress;
+
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.setKeepAlive(true);
+				socket.connect(new InetSocketAddress(nodeAddress, port), CONNECT_TIMEOUT);
+				socket.setSoTimeout(READ_TIMEOUT);
+
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			lastUsed = System.currentTimeMillis();
+		}
+
+		public DataInputStream getInputStream() {
+			return in;
+		}
+
+		public DataOutputStream getOutputStream() {
+			return out;
+		}
+
+		/***
+		 * This method checks whether the peer has closed the connection while it was idle.
+		 * It waits 1 millisecond for data: end of stream or unexpected data means that the connection can't be used.
+		 * @return	Returns true if the connection can be reused else returns false
+		 */
+		public boolean isHealthy() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+				return false;
+
+			try {
+				socket.setSoTimeout(1);
+				in.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				try {
+					socket.setSoTimeout(READ_TIMEOUT);
+				} catch (IOException e) { }
+			}
+		}
+
+		// Closing the socket also closes its streams
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) { }
+		}
+	}
+}
@@ -1,428 +1,267 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.HashSet;
 import java.util.Random;
-import java.util.Set;
-
-import redis.clients.jedis.HostAndPort;
 
 public class Evaluation {
 
 	private static String localhost = NetworkUtility.getLocalAddress();
 	private static final int KEY_SIZE = 10;
 	private static final int VALUE_SIZE = 90;
+	// Skewed lookups: HOT_LOOKUPS percent of the lookups read HOT_KEYS percent of the keys
+	private static final int HOT_LOOKUPS = 90;
+	private static final int HOT_KEYS = 10;
+	private static final long NEAR_CACHE_TTL = 10 * 1000; // 10 seconds
+	// Client threads, closed or open loop and warmup of the phases, set by the arguments of main
+	private static WorkloadDriver driver = new WorkloadDriver(1, false, 0, 0, 1);
+	private static final int WARMUP_PERCENT = 10; // Warmup operations per 100 measured operations
+
+	// KEYS and VALUES of the phases: the number of the KEY padded to KEY_SIZE and VALUE_SIZE characters
+	private static final WorkloadDriver.KeyBuilder KEYS = new WorkloadDriver.KeyBuilder() {
+		public String key(long i) {
+			return padString(Long.toString(i), KEY_SIZE);
+		}
+
+		public String value(long i) {
+			return padString(Long.toString(i), VALUE_SIZE);
+		}
+	};
 
 	public static void main(String[] args) {
+		// Usage: java Evaluation host port system numOperations [operations per second, 0 for a closed loop] [threads] [virtual|platform]
+		//        [workload: phases, a, b, c, d or a workload file] [outstanding operations per thread]
 		String host = (args.length > 0 && args[0] != null) ? args[0] : "172.31.15.38";
 		String system = (args.length > 0 && args[2] != null) ? args[2] : "all";
 		int port = (args.length > 0 && args[1] != null) ? Integer.parseInt(args[1]) : 27020;
 		int numOperations = (args.length > 0 && args[3] != null) ? Integer.parseInt(args[3]) : 10000;
+		int targetRate = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+		int threads = (args.length > 5) ? Integer.parseInt(args[5]) : 1;
+		boolean virtualThreads = (args.length > 6) && args[6].equalsIgnoreCase("virtual");
+		String workload = (args.length > 7) ? args[7] : "phases";
+		int outstanding = (args.length > 8) ? Integer.parseInt(args[8]) : 1;
+		driver = new WorkloadDriver(threads, virtualThreads, targetRate, numOperations * WARMUP_PERCENT / 100, outstanding);
 		
-		if (system.equalsIgnoreCase("mongodb")) {
-			evaluateMongoDB(host, port, numOperations);
-		} else if (system.equalsIgnoreCase("cassandra")) {
-			evaluateCassandra(localhost, numOperations);
-		} else if (system.equalsIgnoreCase("redis")) {
-			evaluateRedis(host, port, numOperations);
-		} else if (system.equalsIgnoreCase("mydht")) {
-			evaluateMyDHT(host, numOperations);
-		} else if (system.equalsIgnoreCase("riak")) {
-			evaluateRiak(host, port, numOperations);
-		}
-	}
-
-	private static void evaluateMongoDB(String host, int port, int numOperations) {
-
-		System.out.println("Evaluating MongoDB.");
-		int id = Integer.parseInt(localhost.substring(localhost.lastIndexOf(".") + 1, localhost.length())) + new Random().nextInt(50);
-
-		long startKey = id * numOperations;
-		long endKey = (id * numOperations) + numOperations - 1;
-
-		long startTime, endTime, totalTime = 0;
-		double time, throughput;
-
-		// Connecting to Host i.e. MongoDB Query Router (Server)
-		MongoDB.connect(host, port);
-
-		System.out.println("Connected to MongoDB Query Router.");
-
-		// Evaluating INSERT operation
-		System.out.println("Evaluating MongoDB's INSERT Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-			String value = padString(Long.toString(i), VALUE_SIZE);
-
-			startTime = System.currentTimeMillis();
-			MongoDB.insert(key, value);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+		KeyValueStore store = newStore(system);
+		if (store == null) {
+			System.out.println("Unknown system " + system + ".");
+			return;
 		}
+		System.out.println(String.format("Evaluating %s.", store.getName()));
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
+		// Connecting to the store: MongoDB Query Router, Cassandra node of this client, Redis server or cluster file,
+		// MyDHT network file, Riak cluster file
+		store.connect(system.equalsIgnoreCase("cassandra") ? localhost : host, port);
 
-		System.out.printf("\nMongoDB INSERT operation test results:");
-		System.out.printf("\nTotal time to execute %d INSERT operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per INSERT operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of INSERT operations per second = %f", throughput);
+		System.out.println(String.format("Connected to %s.", store.getName()));
 
-		// Evaluating LOOKUP operation
-		System.out.println("\n\nEvaluating MongoDB's LOOKUP Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			MongoDB.lookup(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+		if (workload.equalsIgnoreCase("phases")) {
+			evaluate(store, numOperations);
+		} else {
+			evaluateWorkload(store, workload, numOperations);
 		}
+		
+		store.disconnect();
+	}
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nMongoDB LOOKUP operation test results:");
-		System.out.printf("\nTotal time to execute %d LOOKUP operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per LOOKUP operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of LOOKUP operations per second = %f", throughput);
-
-		// Evaluating REMOVE operation
-		System.out.println("\n\nEvaluating MongoDB's REMOVE Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			MongoDB.remove(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+	// Returns the client of a system, or NULL if the system is unknown
+	private static KeyValueStore newStore(String system) {
+		if (system.equalsIgnoreCase("mongodb")) {
+			return new MongoDB();
+		} else if (system.equalsIgnoreCase("cassandra")) {
+			return new Cassandra();
+		} else if (system.equalsIgnoreCase("redis")) {
+			return new Redis();
+		} else if (system.equalsIgnoreCase("mydht")) {
+			return new MyDHT();
+		} else if (system.equalsIgnoreCase("riak")) {
+			return new Riak();
 		}
-
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nMongoDB REMOVE operation test results:");
-		System.out.printf("\nTotal time to execute %d REMOVE operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per REMOVE operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of REMOVE operations per second = %f", throughput);
-		System.out.println("\n");
+		return null;
 	}
 
-	private static void evaluateCassandra(String host, int numOperations) {
-
-		System.out.println("Evaluating Cassandra.");
+	// Runs the INSERT, LOOKUP and REMOVE operations on numOperations KEYS of this client
+	private static void evaluate(KeyValueStore store, int numOperations) {
 		int id = Integer.parseInt(localhost.substring(localhost.lastIndexOf(".") + 1, localhost.length())) + new Random().nextInt(50);
 
 		long startKey = id * numOperations;
-		long endKey = (id * numOperations) + numOperations - 1;
-
-		long startTime, endTime, totalTime = 0;
-		double time, throughput;
-
-		// Connecting to Cassandra Cluster
-		Cassandra.connect(host);
-
-		System.out.println("Connected to Cassandra Cluster.");
 
 		// Evaluating INSERT operation
-		System.out.println("Evaluating Cassandra's INSERT Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-			String value = padString(Long.toString(i), VALUE_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Cassandra.insert(key, value);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
-		}
-
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nCassandra INSERT operation test results:");
-		System.out.printf("\nTotal time to execute %d INSERT operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per INSERT operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of INSERT operations per second = %f", throughput);
+		runPhase(store, "INSERT", Workload.INSERT, startKey, numOperations);
 
 		// Evaluating LOOKUP operation
-		System.out.println("\n\nEvaluating Cassandra's LOOKUP Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Cassandra.lookup(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
-		}
-
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nCassandra LOOKUP operation test results:");
-		System.out.printf("\nTotal time to execute %d LOOKUP operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per LOOKUP operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of LOOKUP operations per second = %f", throughput);
+		runPhase(store, "LOOKUP", Workload.READ, startKey, numOperations);
 
-		// Evaluating REMOVE operation
-		System.out.println("\n\nEvaluating Cassandra's REMOVE Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Cassandra.remove(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+		// Evaluating LOOKUP operation on hot keys, without and with the near cache
+		if (store instanceof MyDHT) {
+			evaluateMyDHTHotLookups((MyDHT) store, startKey, numOperations);
 		}
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nCassandra REMOVE operation test results:");
-		System.out.printf("\nTotal time to execute %d REMOVE operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per REMOVE operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of REMOVE operations per second = %f", throughput);
+		// Evaluating REMOVE operation
+		runPhase(store, "REMOVE", Workload.DELETE, startKey, numOperations);
 		System.out.println("\n");
-
-		Cassandra.disconnect();
 	}
 	
-	private static void evaluateRedis(String host, int port, int numOperations) {
-
-		System.out.println("Evaluating Redis.");
-		int id = Integer.parseInt(localhost.substring(localhost.lastIndexOf(".") + 1, localhost.length())) + new Random().nextInt(50);
-
-		long startKey = id * numOperations;
-		long endKey = (id * numOperations) + numOperations - 1;
-
-		long startTime, endTime, totalTime = 0;
-		double time, throughput;
-
-		// Connecting to Redis Cluster
-		if (NetworkUtility.validate(host)) {
-			Redis.connect(host, port);
-		} else {
-			Redis.connect(getClusterNodes(host));
-		}
-
-		System.out.println("Connected to Redis Cluster.");
-
-		// Evaluating INSERT operation
-		System.out.println("Evaluating Redis INSERT Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-			String value = padString(Long.toString(i), VALUE_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Redis.insert(key, value);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
-		}
-
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nRedis INSERT operation test results:");
-		System.out.printf("\nTotal time to execute %d INSERT operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per INSERT operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of INSERT operations per second = %f", throughput);
+	// Looks up the keys with a skewed distribution, first from their nodes and then through the near cache of MyDHT
+	private static void evaluateMyDHTHotLookups(MyDHT myDHT, long startKey, int numOperations) {
+		NearCache configuredCache = myDHT.getCache();
+		int hotKeys = Math.max(1, numOperations * HOT_KEYS / 100);
+
+		for (int pass = 0; pass < 2; pass++) {
+			String mode = (pass == 0) ? "near cache off" : "near cache on";
+			if (pass == 0) {
+				myDHT.disableCache();
+			} else if (configuredCache == null) {
+				myDHT.enableCache(hotKeys, NEAR_CACHE_TTL);
+			} else {
+				myDHT.enableCache(configuredCache);
+			}
+			NearCache cache = myDHT.getCache();
+			long hits = (cache != null) ? cache.getHits() : 0;
+			long misses = (cache != null) ? cache.getMisses() : 0;
+
+			System.out.println(String.format("\n\nEvaluating MyDHT's HOT LOOKUP Operation (%s).", mode));
+			Random random = new Random(1);
+			LatencyHistogram latencies = new LatencyHistogram();
+			long errors = 0;
+			long phaseStart = System.nanoTime();
+			for (int i = 0; i < numOperations; i++) {
+				long offset = (random.nextInt(100) < HOT_LOOKUPS) ? random.nextInt(hotKeys) : random.nextInt(numOperations);
+				String key = padString(Long.toString(startKey + offset), KEY_SIZE);
+
+				long startTime = System.nanoTime();
+				try {
+					myDHT.lookup(key);
+				} catch (Exception e) {
+					errors++;
+				}
+				latencies.record(System.nanoTime() - startTime);
+			}
 
-		// Evaluating LOOKUP operation
-		System.out.println("\n\nEvaluating Redis LOOKUP Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Redis.lookup(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+			report("MyDHT", String.format("HOT LOOKUP (%s, %d%% of the lookups on %d keys)", mode, HOT_LOOKUPS, hotKeys), "HOT LOOKUP",
+					latencies, System.nanoTime() - phaseStart);
+			if (errors > 0) {
+				System.out.printf("\nERRORS - %d HOT LOOKUP operations failed", errors);
+			}
+			if (cache != null) {
+				System.out.printf("\nNEAR CACHE - %d hits, %d misses", cache.getHits() - hits, cache.getMisses() - misses);
+			}
 		}
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nRedis LOOKUP operation test results:");
-		System.out.printf("\nTotal time to execute %d LOOKUP operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per LOOKUP operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of LOOKUP operations per second = %f", throughput);
-
-		// Evaluating REMOVE operation
-		System.out.println("\n\nEvaluating Redis REMOVE Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Redis.remove(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+		// Leave the near cache as it was configured
+		if (configuredCache == null) {
+			myDHT.disableCache();
 		}
-
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nRedis REMOVE operation test results:");
-		System.out.printf("\nTotal time to execute %d REMOVE operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per REMOVE operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of REMOVE operations per second = %f", throughput);
-		System.out.println("\n");
-		
-		Redis.disconnect();
 	}
 
-	private static void evaluateMyDHT(String host, int numOperations) {
-
-		System.out.println("Evaluating MyDHT.");
-		int id = Integer.parseInt(localhost.substring(localhost.lastIndexOf(".") + 1, localhost.length())) + new Random().nextInt(50);
-
-		long startKey = id * numOperations;
-		long endKey = (id * numOperations) + numOperations - 1;
-
-		long startTime, endTime, totalTime = 0;
-		double time, throughput;
-
-		// Connecting to MyDHT (Server)
-		MyDHT.connect(host);
-
-		System.out.println("Connected to MyDHT Query Router.");
-
-		// Evaluating INSERT operation
-		System.out.println("Evaluating MyDHT's INSERT Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-			String value = padString(Long.toString(i), VALUE_SIZE);
-
-			startTime = System.currentTimeMillis();
-			MyDHT.insert(key, value);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+	/***
+	 * This method loads the KEYS of a workload in a system, runs its mix of operations and prints the latencies of each type
+	 * of operation. The KEYS are chosen with the request distribution of the workload, so the skew shows in the results, e.g.
+	 * in the hits of the near cache of MyDHT or in the latencies of the nodes which own the hot KEYS.
+	 * @param store			Store on which the workload is run
+	 * @param workloadName	a, b, c, d or the path of a workload file
+	 * @param numOperations	Number of KEYS and of operations when the workload doesn't set them
+	 */
+	private static void evaluateWorkload(KeyValueStore store, String workloadName, int numOperations) {
+		Workload workload = Workload.load(workloadName, numOperations);
+		if (workload == null) {
+			return;
 		}
+		int id = Integer.parseInt(localhost.substring(localhost.lastIndexOf(".") + 1, localhost.length())) + new Random().nextInt(50);
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nMyDHT INSERT operation test results:");
-		System.out.printf("\nTotal time to execute %d INSERT operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per INSERT operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of INSERT operations per second = %f", throughput);
-
-		// Evaluating LOOKUP operation
-		System.out.println("\n\nEvaluating MyDHT's LOOKUP Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			MyDHT.lookup(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
-		}
+		// Room for the KEYS inserted by the run and its warmup after the loaded ones
+		workload.setFirstKey(id * (workload.getRecordCount() + 2 * workload.getOperationCount()));
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
+		System.out.println(String.format("Workload %s: %s.", workload.getName(), workload.getSummary()));
 
-		System.out.printf("\nMyDHT LOOKUP operation test results:");
-		System.out.printf("\nTotal time to execute %d LOOKUP operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per LOOKUP operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of LOOKUP operations per second = %f", throughput);
+		try {
+			// Loading the KEYS of the workload
+			System.out.println(String.format("\n\nLoading %d keys in %s (%d client threads, batches of %d keys).", workload.getRecordCount(),
+					store.getName(), driver.getThreads(), WorkloadDriver.LOAD_BATCH_SIZE));
+			WorkloadDriver.Result result = driver.load(workload, store);
+			report(store.getName(), "LOAD", "INSERT", result.serviceTimes, result.elapsedTime);
+			if (result.errors.get() > 0) {
+				System.out.printf("\nERRORS - %d INSERT operations failed", result.errors.get());
+			}
 
-		// Evaluating REMOVE operation
-		System.out.println("\n\nEvaluating MyDHT's REMOVE Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			MyDHT.remove(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+			// Running the operations of the workload
+			String phase = "WORKLOAD " + workload.getName();
+			System.out.println(String.format("\n\nEvaluating %s's %s (%d client threads, %d outstanding operations each).", store.getName(),
+					phase, driver.getThreads(), driver.getOutstanding()));
+			result = driver.run(workload, store);
+			report(store.getName(), phase, "workload", result.serviceTimes, result.elapsedTime);
+			for (int i = 0; i < result.operations.length; i++) {
+				LatencyHistogram latencies = result.operationTimes[i];
+				if (latencies.getCount() > 0) {
+					System.out.printf("\n%-6s - %d operations, %s", result.operations[i], latencies.getCount(), latencies.getSummary());
+				}
+			}
+			if (result.misses.get() > 0) {
+				System.out.printf("\nMISSES - %d READ operations found no value", result.misses.get());
+			}
+			reportErrorsAndRate(store.getName(), "workload", result);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nMyDHT REMOVE operation test results:");
-		System.out.printf("\nTotal time to execute %d REMOVE operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per REMOVE operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of REMOVE operations per second = %f", throughput);
 		System.out.println("\n");
 	}
-	
-	private static void evaluateRiak(String host, int port, int numOperations) {
-
-		System.out.println("Evaluating Riak.");
-		int id = Integer.parseInt(localhost.substring(localhost.lastIndexOf(".") + 1, localhost.length())) + new Random().nextInt(50);
-
-		long startKey = id * numOperations;
-		long endKey = (id * numOperations) + numOperations - 1;
 
-		long startTime, endTime, totalTime = 0;
-		double time, throughput;
-
-		// Connecting to Riak (Server)
-		Riak.connect(host, port);
-
-		System.out.println("Connected to Riak Query Router.");
-
-		// Evaluating INSERT operation
-		System.out.println("Evaluating Riak's INSERT Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-			String value = padString(Long.toString(i), VALUE_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Riak.insert(key, value);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+	/***
+	 * This method runs an operation on numOperations KEYS from startKey and prints its latency percentiles and throughput.
+	 * 
+	 * The operations are split between the threads of the driver, after a warmup. In the open loop, an operation which is
+	 * late because the previous ones were slow is measured from its scheduled time, so a stall counts for all the operations
+	 * which should have been sent during it and not only for the one which was waiting (coordinated omission).
+	 * @param store			Store on which the operation is run
+	 * @param operation		Name of the operation
+	 * @param type			Workload.INSERT, READ or DELETE
+	 * @param startKey		Number of the first KEY
+	 * @param numOperations	Number of operations
+	 */
+	private static void runPhase(KeyValueStore store, String operation, int type, long startKey, int numOperations) {
+		String system = store.getName();
+		System.out.println(String.format("\n\nEvaluating %s's %s Operation (%d client threads, %d outstanding operations each).", system,
+				operation, driver.getThreads(), driver.getOutstanding()));
+
+		WorkloadDriver.Result result;
+		try {
+			result = driver.run(startKey, numOperations, KEYS, store, type);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
 		}
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nRiak INSERT operation test results:");
-		System.out.printf("\nTotal time to execute %d INSERT operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per INSERT operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of INSERT operations per second = %f", throughput);
-
-		// Evaluating LOOKUP operation
-		System.out.println("\n\nEvaluating Riak's LOOKUP Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Riak.lookup(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+		report(system, operation, operation, result.serviceTimes, result.elapsedTime);
+		if (result.misses.get() > 0) {
+			System.out.printf("\nMISSES - %d %s operations found no value", result.misses.get(), operation);
 		}
+		reportErrorsAndRate(system, operation, result);
+	}
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nRiak LOOKUP operation test results:");
-		System.out.printf("\nTotal time to execute %d LOOKUP operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per LOOKUP operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of LOOKUP operations per second = %f", throughput);
-
-		// Evaluating REMOVE operation
-		System.out.println("\n\nEvaluating Riak's REMOVE Operation.");
-		for (long i = startKey; i <= endKey; i++) {
-			String key = padString(Long.toString(i), KEY_SIZE);
-
-			startTime = System.currentTimeMillis();
-			Riak.remove(key);
-			endTime = System.currentTimeMillis();
-			totalTime += (endTime - startTime);
+	// Prints the failed operations and, in the open loop, the response times and whether the target rate was kept
+	private static void reportErrorsAndRate(String system, String operation, WorkloadDriver.Result result) {
+		if (result.errors.get() > 0) {
+			System.out.printf("\nERRORS - %d %s operations failed", result.errors.get(), operation);
 		}
+		int targetRate = driver.getTargetRate();
+		if (targetRate > 0) {
+			System.out.printf("\nRESPONSE TIME - From the scheduled start at %d operations per second: %s", targetRate, result.responseTimes.getSummary());
+			if (result.getThroughput() < 0.95 * targetRate
+					|| result.responseTimes.getValueAtPercentile(50) > 10 * result.serviceTimes.getValueAtPercentile(50)) {
+				System.out.printf("\nSATURATED - %s cannot serve %d %s operations per second", system, targetRate, operation);
+			}
+		}
+	}
 
-		time = totalTime / 1000.0;
-		throughput = numOperations / time;
-
-		System.out.printf("\nRiak REMOVE operation test results:");
-		System.out.printf("\nTotal time to execute %d REMOVE operations = %f seconds", numOperations, time);
-		System.out.printf("\nLATENCY - Average time per REMOVE operation = %f milliseconds", totalTime / (double) numOperations);
-		System.out.printf("\nTHROUGHPUT - Number of REMOVE operations per second = %f", throughput);
-		System.out.println("\n");
-		
-		Riak.disconnect();
+	// Prints the results of a phase
+	private static void report(String system, String phase, String operation, LatencyHistogram latencies, long elapsedTime) {
+		double time = elapsedTime / 1e9;
+		long numOperations = latencies.getCount();
+
+		System.out.printf("\n%s %s operation test results:", system, phase);
+		System.out.printf("\nTotal time to execute %d %s operations = %f seconds", numOperations, operation, time);
+		System.out.printf("\nLATENCY - Average time per %s operation = %f milliseconds", operation, latencies.getMean() / 1e6);
+		System.out.printf("\nLATENCY - p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f milliseconds", latencies.getValueAtPercentile(50) / 1e6,
+				latencies.getValueAtPercentile(99) / 1e6, latencies.getValueAtPercentile(99.9) / 1e6, latencies.getMax() / 1e6);
+		System.out.printf("\nTHROUGHPUT - Number of %s operations per second = %f", operation, numOperations / time);
 	}
-	
+
 	private static String padString(String string, int length) {
 		StringBuffer paddedString = new StringBuffer();
 		paddedString.append(string);
@@ -432,35 +271,4 @@ public class Evaluation {
 		}
 		return paddedString.toString();
 	}
-	
-	private static Set<HostAndPort> getClusterNodes(String fileName) {
-		File file = new File(fileName);
-		if (file.exists()) {
-			BufferedReader br = null;
-			try {
-				Set<HostAndPort> clusterNodes = new HashSet<HostAndPort>();
-				br = new BufferedReader(new FileReader(fileName));
-				String line = null;
-				
-				System.out.println("\nCluster Details:");
-				while ((line = br.readLine()) != null) {
-					clusterNodes.add(new HostAndPort(line.split(" ")[0], Integer.parseInt(line.split(" ")[1])));
-					System.out.println(line);
-				}
-				return clusterNodes;
-			} catch (Exception e) {
-				System.out.println("Error Reading File:" + e);
-			} finally {
-				try {
-					if (br != null)
-						br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		} else {
-			System.out.println("Unable to read cluster nodes file.");
-		}
-		return null;
-	}
 }
@@ -0,0 +1,186 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/***
+ * This class chooses which of the existing KEYS an operation works on, like the request distributions of YCSB:
+ *
+ * uniform	every KEY is chosen as often.
+ * zipfian	a few KEYS are chosen most of the time: the KEY of rank r is chosen in proportion to 1 / r^ZIPFIAN_CONSTANT. The
+ * 			ranks are scattered over the KEYS with a hash, so the hot KEYS are spread over the nodes instead of being
+ * 			the first KEYS inserted.
+ * hotspot	hotDataFraction of the KEYS (the hot set) are chosen by hotOperationFraction of the operations, uniformly
+ * 			inside and outside of the hot set.
+ * latest	the KEYS inserted last are chosen most of the time, with a Zipfian distribution on their age.
+ *
+ * The number of KEYS is given on each call since it grows with the inserts of the workload. The methods are called by
+ * several client threads at the same time, each of them with its own random numbers.
+ */
+public abstract class KeyDistribution {
+	public static final double ZIPFIAN_CONSTANT = 0.99;
+
+	/***
+	 * This method chooses a KEY.
+	 * @param items	Number of KEYS, numbered from 0
+	 * @return		Returns the number of the KEY, between 0 and items - 1.
+	 */
+	public abstract long next(long items);
+
+	/***
+	 * This method returns a distribution from its name.
+	 * @param name					uniform, zipfian, hotspot or latest
+	 * @param hotDataFraction		Fraction of the KEYS in the hot set of the hotspot distribution
+	 * @param hotOperationFraction	Fraction of the operations on the hot set of the hotspot distribution
+	 * @return						Returns the distribution, or NULL if the name is unknown.
+	 */
+	public static KeyDistribution create(String name, double hotDataFraction, double hotOperationFraction) {
+		if (name.equalsIgnoreCase("uniform")) {
+			return new Uniform();
+		} else if (name.equalsIgnoreCase("zipfian")) {
+			return new Zipfian(ZIPFIAN_CONSTANT, true);
+		} else if (name.equalsIgnoreCase("hotspot")) {
+			return new Hotspot(hotDataFraction, hotOperationFraction);
+		} else if (name.equalsIgnoreCase("latest")) {
+			return new Latest();
+		}
+		return null;
+	}
+
+	public static class Uniform extends KeyDistribution {
+		public long next(long items) {
+			return ThreadLocalRandom.current().nextLong(items);
+		}
+
+		public String toString() {
+			return "uniform";
+		}
+	}
+
+	/***
+	 * Zipfian distribution of "Quickly Generating Billion-Record Synthetic Databases" (Gray et al.), as in YCSB. The sum
+	 * zeta(n) of 1 / i^theta takes O(n) to compute, so it is kept and only the terms of the new KEYS are added when the
+	 * number of KEYS grows.
+	 */
+	public static class Zipfian extends KeyDistribution {
+		private final double theta;
+		private final boolean scrambled;
+		private final double alpha;
+		private final double zeta2;
+		private volatile State state = null;
+
+		// Constants of a number of KEYS, replaced together when it grows
+		private static class State {
+			final long items;
+			final double zetan;
+			final double eta;
+
+			State(long items, double zetan, double eta) {
+				this.items = items;
+				this.zetan = zetan;
+				this.eta = eta;
+			}
+		}
+
+		/***
+		 * @param theta		Skew of the distribution, 0.99 in YCSB
+		 * @param scrambled	true to scatter the ranks over the KEYS, false to choose the KEY of rank 0 most often
+		 */
+		public Zipfian(double theta, boolean scrambled) {
+			this.theta = theta;
+			this.scrambled = scrambled;
+			this.alpha = 1.0 / (1.0 - theta);
+			this.zeta2 = 1.0 + Math.pow(0.5, theta);
+		}
+
+		public long next(long items) {
+			long rank = rank(items);
+			return scrambled ? Long.remainderUnsigned(hash(rank), items) : rank;
+		}
+
+		// Rank of the KEY chosen, 0 being the most frequent one
+		long rank(long items) {
+			State current = state;
+			if (current == null || current.items < items) {
+				current = grow(items);
+			}
+			double u = ThreadLocalRandom.current().nextDouble();
+			double uz = u * current.zetan;
+			if (uz < 1.0) {
+				return 0;
+			}
+			if (uz < zeta2) {
+				return Math.min(1, items - 1);
+			}
+			// The KEYS inserted while current.items was computed are not chosen yet
+			long rank = (long) (current.items * Math.pow(current.eta * u - current.eta + 1, alpha));
+			return Math.min(rank, Math.min(current.items, items) - 1);
+		}
+
+		private synchronized State grow(long items) {
+			State current = state;
+			if (current != null && current.items >= items) {
+				return current;
+			}
+			long from = (current == null) ? 0 : current.items;
+			double zetan = (current == null) ? 0 : current.zetan;
+			for (long i = from + 1; i <= items; i++) {
+				zetan += 1.0 / Math.pow(i, theta);
+			}
+			double eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+			state = new State(items, zetan, eta);
+			return state;
+		}
+
+		public String toString() {
+			return "zipfian";
+		}
+	}
+
+	public static class Hotspot extends KeyDistribution {
+		private final double hotDataFraction;
+		private final double hotOperationFraction;
+
+		public Hotspot(double hotDataFraction, double hotOperationFraction) {
+			this.hotDataFraction = hotDataFraction;
+			this.hotOperationFraction = hotOperationFraction;
+		}
+
+		public long next(long items) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long hotItems = Math.max(1, Math.min(items, (long) (items * hotDataFraction)));
+			if (hotItems == items || random.nextDouble() < hotOperationFraction) {
+				return random.nextLong(hotItems);
+			}
+			return hotItems + random.nextLong(items - hotItems);
+		}
+
+		public String toString() {
+			return String.format("hotspot (%.0f%% of the operations on %.0f%% of the keys)", hotOperationFraction * 100, hotDataFraction * 100);
+		}
+	}
+
+	public static class Latest extends KeyDistribution {
+		private final Zipfian age = new Zipfian(ZIPFIAN_CONSTANT, false);
+
+		public long next(long items) {
+			return items - 1 - age.rank(items);
+		}
+
+		public String toString() {
+			return "latest";
+		}
+	}
+
+	/***
+	 * This method scatters numbers: close numbers get unrelated hashes.
+	 * @param value	Number to be hashed
+	 * @return		Returns the 64 bits FNV-1a hash of the bytes of the number.
+	 */
+	static long hash(long value) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < 8; i++) {
+			hash ^= value & 0xFF;
+			hash *= 0x100000001B3L;
+			value >>>= 8;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,89 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/***
+ * This interface is the common shape of the stores which are evaluated (MyDHT, MongoDB, Cassandra, Redis, Riak), so that
+ * the same phases and workloads can be run on any of them. Its methods are called by several client threads at the same
+ * time.
+ *
+ * Each operation exists in three forms: a blocking call, an asynchronous call which returns at once with a future of its
+ * result, so that a client can keep several requests outstanding, and a batch of KEYS sent together. A failed asynchronous
+ * operation completes its future exceptionally. AbstractKeyValueStore runs the asynchronous and batch forms on top of the
+ * blocking calls for the stores which have no better way.
+ */
+public interface KeyValueStore {
+
+	/***
+	 * @return	Returns the name of the store, as printed in the results.
+	 */
+	String getName();
+
+	/***
+	 * This method connects to the store.
+	 * @param host	Address of the store, or the file which lists its nodes (see each store)
+	 * @param port	Port of the store, if it isn't in the file
+	 */
+	void connect(String host, int port);
+
+	void disconnect();
+
+	/***
+	 * This method adds a (KEY,VALUE) pair.
+	 * @param key	KEY to be added
+	 * @param value	VALUE of the KEY
+	 * @return		Returns true if the pair is added.
+	 */
+	boolean insert(String key, String value) throws Exception;
+
+	/***
+	 * This method replaces the VALUE of a KEY, or adds the KEY if it doesn't exist.
+	 * @param key	KEY whose VALUE is replaced
+	 * @param value	New VALUE of the KEY
+	 * @return		Returns true if the VALUE is written.
+	 */
+	boolean update(String key, String value) throws Exception;
+
+	/***
+	 * This method reads the VALUE of a KEY.
+	 * @param key	KEY which is to be searched
+	 * @return		Returns the VALUE of the KEY, or NULL if the KEY doesn't exist.
+	 */
+	String lookup(String key) throws Exception;
+
+	/***
+	 * This method deletes a (KEY,VALUE) pair. It does nothing if the KEY doesn't exist.
+	 * @param key	KEY of the pair to be deleted
+	 * @return		Returns true if the pair is deleted.
+	 */
+	boolean remove(String key) throws Exception;
+
+	CompletableFuture<Boolean> insertAsync(String key, String value);
+
+	CompletableFuture<Boolean> updateAsync(String key, String value);
+
+	CompletableFuture<String> lookupAsync(String key);
+
+	CompletableFuture<Boolean> removeAsync(String key);
+
+	/***
+	 * This method adds many (KEY,VALUE) pairs together.
+	 * @param keys		KEYS to be added
+	 * @param values	VALUE of each KEY
+	 * @return			Returns a future of the result of each KEY, true if it is added.
+	 */
+	CompletableFuture<boolean[]> insertAll(List<String> keys, List<String> values);
+
+	/***
+	 * This method reads the VALUES of many KEYS together.
+	 * @param keys	KEYS which are to be searched
+	 * @return		Returns a future of the VALUE of each KEY, NULL for the KEYS which don't exist.
+	 */
+	CompletableFuture<List<String>> lookupAll(List<String> keys);
+
+	/***
+	 * This method deletes many (KEY,VALUE) pairs together.
+	 * @param keys	KEYS of the pairs to be deleted
+	 * @return		Returns a future of the result of each KEY, true if it is deleted.
+	 */
+	CompletableFuture<boolean[]> removeAll(List<String> keys);
+}
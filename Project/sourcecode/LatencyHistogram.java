@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/***
+ * This class counts latencies in nanoseconds in buckets whose width grows with the latency, like an HDR histogram, so that
+ * the percentiles of millions of operations are known within 1% without keeping every latency.
+ *
+ * The latencies between 2^k and 2^(k+1) nanoseconds are split in SUB_BUCKETS buckets of the same width, so a latency is
+ * counted in a bucket which is at most 1/SUB_BUCKETS of its value wide. The latencies below SUB_BUCKETS nanoseconds are
+ * counted exactly. A histogram takes about 60 KiloBytes whatever the number of latencies.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128 buckets per power of 2, i.e. < 1% error
+
+	private final long[] counts = new long[(64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS];
+	private long count = 0;
+	private long total = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/***
+	 * This method counts a latency.
+	 * @param nanos	Latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[indexOf(nanos)]++;
+		count++;
+		total += nanos;
+		min = Math.min(min, nanos);
+		max = Math.max(max, nanos);
+	}
+
+	/***
+	 * This method counts the same latency several times, e.g. for each KEY of a batch.
+	 * @param nanos	Latency in nanoseconds
+	 * @param times	Number of times the latency is counted
+	 */
+	public void record(long nanos, long times) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[indexOf(nanos)] += times;
+		count += times;
+		total += nanos * times;
+		min = Math.min(min, nanos);
+		max = Math.max(max, nanos);
+	}
+
+	/***
+	 * This method adds the latencies counted by another histogram, e.g. by another client thread.
+	 * @param other	Histogram whose latencies are added
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		total += other.total;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		total = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/***
+	 * This method returns the latency below which a percentage of the latencies are.
+	 * @param percentile	Percentage of the latencies, e.g. 99.9
+	 * @return				Returns the highest latency of the bucket of the percentile, in nanoseconds, at most the maximum.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, highestValueOf(i));
+			}
+		}
+		return max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMin() {
+		return (count == 0) ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return (count == 0) ? 0 : total / (double) count;
+	}
+
+	/***
+	 * This method returns the percentiles of the latencies.
+	 * @return	Returns one line with the mean, p50, p99, p99.9 and maximum latencies in milliseconds.
+	 */
+	public String getSummary() {
+		return String.format("mean %.3f, p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f milliseconds", getMean() / 1e6,
+				getValueAtPercentile(50) / 1e6, getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, getMax() / 1e6);
+	}
+
+	// Bucket of a latency: SUB_BUCKETS buckets for each power of 2 above SUB_BUCKETS
+	private static int indexOf(long nanos) {
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos | SUB_BUCKETS);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (nanos >>> shift);
+	}
+
+	// Highest latency counted in a bucket
+	private static long highestValueOf(int index) {
+		int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+		long mantissa = index - ((long) shift << SUB_BUCKET_BITS);
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -1,19 +1,30 @@
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
 
-public class MongoDB {
+public class MongoDB extends AbstractKeyValueStore {
 
-	private static MongoClient mongo = null;
-	private static DB db = null;
-	private static DBCollection table = null;
+	private MongoClient mongo = null;
+	private DB db = null;
+	private DBCollection table = null;
 
-	public static void connect(String host, int port) {
+	public String getName() {
+		return "MongoDB";
+	}
+
+	public void connect(String host, int port) {
 		try {
 
 			/**** Connect to MongoDB ****/
@@ -34,7 +45,7 @@ public class MongoDB {
 		}
 	}
 
-	public static boolean insert(String key, String value) {
+	public boolean insert(String key, String value) {
 		try {
 			// create a document to store key and value
 			BasicDBObject query = new BasicDBObject();
@@ -48,7 +59,23 @@ public class MongoDB {
 		return true;
 	}
 
-	public static boolean remove(String key) {
+	public boolean update(String key, String value) {
+		try {
+			// replace the document of the key, or create it if it doesn't exist (upsert)
+			BasicDBObject query = new BasicDBObject();
+			query.put("key", key);
+			BasicDBObject document = new BasicDBObject();
+			document.put("key", key);
+			document.put("value", value);
+			table.update(query, document, true, false);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	public boolean remove(String key) {
 		try {
 			BasicDBObject query = new BasicDBObject();
 			query.put("key", key);
@@ -60,7 +87,7 @@ public class MongoDB {
 		return false;
 	}
 
-	public static String lookup(String key) {
+	public String lookup(String key) {
 		try {
 			/**** Find and display ****/
 			BasicDBObject query = new BasicDBObject();
@@ -77,6 +104,78 @@ public class MongoDB {
 		return null;
 	}
 
+	public CompletableFuture<boolean[]> insertAll(final List<String> keys, final List<String> values) {
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				// insert the documents of all the keys with one request
+				ArrayList<DBObject> documents = new ArrayList<DBObject>(keys.size());
+				for (int i = 0; i < keys.size(); i++) {
+					BasicDBObject document = new BasicDBObject();
+					document.put("key", keys.get(i));
+					document.put("value", values.get(i));
+					documents.add(document);
+				}
+				boolean[] results = new boolean[keys.size()];
+				try {
+					table.insert(documents);
+					Arrays.fill(results, true);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				return results;
+			}
+		});
+	}
+
+	public CompletableFuture<List<String>> lookupAll(final List<String> keys) {
+		return supplyAsync(new Supplier<List<String>>() {
+			public List<String> get() {
+				// find the documents of all the keys with one query
+				HashMap<String, String> documents = new HashMap<String, String>();
+				try {
+					DBCursor cursor = table.find(new BasicDBObject("key", new BasicDBObject("$in", keys)));
+					while (cursor.hasNext()) {
+						DBObject document = cursor.next();
+						String key = (String) document.get("key");
+						if (!documents.containsKey(key)) {
+							documents.put(key, document.toString());
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				ArrayList<String> values = new ArrayList<String>(keys.size());
+				for (String key : keys) {
+					values.add(documents.get(key));
+				}
+				return values;
+			}
+		});
+	}
+
+	public CompletableFuture<boolean[]> removeAll(final List<String> keys) {
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				boolean[] results = new boolean[keys.size()];
+				try {
+					table.remove(new BasicDBObject("key", new BasicDBObject("$in", keys)));
+					Arrays.fill(results, true);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				return results;
+			}
+		});
+	}
+
+	public void disconnect() {
+		if (mongo != null) {
+			mongo.close();
+			mongo = null;
+		}
+		shutdownAsync();
+	}
+
 	/*public static void main(String[] args) {
 
 		MongoDB.connect("52.34.230.149", 27020);
@@ -1,17 +1,45 @@
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
-public class MyDHT {
+/***
+ * Client library of MyDHT: each KEY is sent to the node which owns it on the consistent hash ring, on a pooled connection.
+ * The batches are grouped by node and pipelined, and so are the asynchronous operations of all the threads (see
+ * ConnectionPool).
+ */
+public class MyDHT extends AbstractKeyValueStore {
 	
-	private static HashMap<Integer, String> networkMap = null;
-	private static int portNumber;
+	private HashMap<Integer, String> networkMap = null;
+	private HashRing hashRing = null;
+	private int portNumber;
+	private ConnectionPool connectionPool = null;
+	private volatile NearCache nearCache = null;
+	private static final long DEFAULT_NEAR_CACHE_TTL = 1000; // 1 second
 	
-	public static void connect(String fileName) {
+	private static final Function<Response, Boolean> SUCCEEDED = new Function<Response, Boolean>() {
+		public Boolean apply(Response response) {
+			return response.getResponseCode() == 200;
+		}
+	};
+	
+	public String getName() {
+		return "MyDHT";
+	}
+	
+	/***
+	 * This method reads the nodes of the network from its configuration file.
+	 * @param fileName	Path of the network configuration file
+	 * @param port		Not used, the port of the peer servers is the one of DistributedHashTable
+	 */
+	public void connect(String fileName, int port) {
 		// networkMap = DistributedHashTable.getNetworkMap();
 		portNumber = DistributedHashTable.getPeerServerPort();
 
@@ -39,232 +67,381 @@ public class MyDHT {
 			}
 
 			System.out.println(networkMap);
+			hashRing = new HashRing(networkMap, HashRing.parseVirtualNodes(configuration.getProperty("VIRTUAL_NODES")));
+			
+			// Connections to the nodes are opened on first use and kept open for the next operations
+			connectionPool = new ConnectionPool(portNumber);
+			
+			// Keep the VALUES read recently in a near cache if NEAR_CACHE_SIZE is set
+			String cacheSize = configuration.getProperty("NEAR_CACHE_SIZE");
+			String cacheTtl = configuration.getProperty("NEAR_CACHE_TTL");
+			if (cacheSize != null && Integer.parseInt(cacheSize.trim()) > 0) {
+				enableCache(Integer.parseInt(cacheSize.trim()), (cacheTtl != null) ? Long.parseLong(cacheTtl.trim()) : DEFAULT_NEAR_CACHE_TTL);
+			}
+		}
+	}
+	
+	/***
+	 * This method keeps the VALUES read from now on in a near cache, so that reading them again doesn't go over the network.
+	 * The KEYS inserted or removed by this client are removed from the cache, the changes of other clients are seen after ttl.
+	 * @param maxEntries	Maximum number of KEYS in the cache, the least recently used KEY is evicted first
+	 * @param ttl			Time in milliseconds after which a VALUE is read again from its node
+	 */
+	public void enableCache(int maxEntries, long ttl) {
+		nearCache = new NearCache(maxEntries, ttl);
+	}
+	
+	public void enableCache(NearCache cache) {
+		nearCache = cache;
+	}
+	
+	public void disableCache() {
+		nearCache = null;
+	}
+	
+	/***
+	 * This method returns the near cache, e.g. to read its hits and misses.
+	 * @return	Returns the near cache, or NULL if it is disabled.
+	 */
+	public NearCache getCache() {
+		return nearCache;
+	}
+	
+	public void disconnect() {
+		if (nearCache != null) {
+			System.out.println(nearCache.getStatus());
+		}
+		if (connectionPool != null) {
+			System.out.println(String.format("Connections opened: %d, reused: %d", connectionPool.getConnectionsCreated(), connectionPool.getConnectionsReused()));
+			connectionPool.close();
+			connectionPool = null;
+		}
+		shutdownAsync();
+	}
+	
+	public boolean insert(String key, String value) throws IOException, ClassNotFoundException {
+		try {
+			return put(key, value, "PUT");
+		} finally {
+			invalidate(key);
+		}
+	}
+	
+	/***
+	 * This method replaces the VALUE of a KEY. Unlike insert(), which keeps the VALUE of a KEY which already exists,
+	 * the KEY is added if it doesn't exist and its VALUE is overwritten if it does.
+	 * @param key	KEY whose VALUE is replaced
+	 * @param value	New VALUE of the KEY
+	 * @return		Returns true if the VALUE is written in the DHT.
+	 */
+	public boolean update(String key, String value) throws IOException, ClassNotFoundException {
+		try {
+			return put(key, value, "PUT_FORCE");
+		} finally {
+			invalidate(key);
+		}
+	}
+	
+	public String lookup(String key) throws IOException, ClassNotFoundException {
+		NearCache cache = nearCache;
+		if (cache == null) {
+			return get(key);
+		}
+		
+		String value = cache.get(key);
+		if (value == null) {
+			long stamp = cache.stamp();
+			value = get(key);
+			cache.put(key, value, stamp);
+		}
+		return value;
+	}
+	
+	public boolean remove(String key) throws IOException, ClassNotFoundException {
+		try {
+			return delete(key);
+		} finally {
+			invalidate(key);
 		}
 	}
 	
-	public static boolean insert(String key, String value) {
-		put(key, value);
-		return true;
+	public CompletableFuture<Boolean> insertAsync(String key, String value) {
+		return sendAsync(key, request("PUT", key, value), true).thenApply(SUCCEEDED);
+	}
+	
+	public CompletableFuture<Boolean> updateAsync(String key, String value) {
+		return sendAsync(key, request("PUT_FORCE", key, value), true).thenApply(SUCCEEDED);
+	}
+	
+	public CompletableFuture<String> lookupAsync(final String key) {
+		final NearCache cache = nearCache;
+		if (cache != null) {
+			String value = cache.get(key);
+			if (value != null) {
+				return CompletableFuture.completedFuture(value);
+			}
+		}
+		
+		final long stamp = (cache != null) ? cache.stamp() : 0;
+		return sendAsync(key, request("GET", key, null), false).thenApply(new Function<Response, String>() {
+			public String apply(Response response) {
+				String value = (response.getResponseCode() == 200) ? response.getResponseData() : null;
+				if (cache != null) {
+					cache.put(key, value, stamp);
+				}
+				return value;
+			}
+		});
+	}
+	
+	public CompletableFuture<Boolean> removeAsync(String key) {
+		return sendAsync(key, request("DELETE", key, null), true).thenApply(SUCCEEDED);
+	}
+	
+	public CompletableFuture<boolean[]> insertAll(List<String> keys, List<String> values) {
+		final ArrayList<String> batchKeys = new ArrayList<String>(keys);
+		final ArrayList<String> batchValues = new ArrayList<String>(values);
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				boolean[] results = mput(batchKeys, batchValues);
+				invalidate(batchKeys);
+				return results;
+			}
+		});
+	}
+	
+	public CompletableFuture<List<String>> lookupAll(List<String> keys) {
+		final ArrayList<String> batchKeys = new ArrayList<String>(keys);
+		return supplyAsync(new Supplier<List<String>>() {
+			public List<String> get() {
+				return lookupBatch(batchKeys);
+			}
+		});
+	}
+	
+	public CompletableFuture<boolean[]> removeAll(List<String> keys) {
+		final ArrayList<String> batchKeys = new ArrayList<String>(keys);
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				boolean[] results = mdelete(batchKeys);
+				invalidate(batchKeys);
+				return results;
+			}
+		});
+	}
+	
+	// Reads the KEYS which are not in the near cache with one pipelined batch
+	private ArrayList<String> lookupBatch(ArrayList<String> keys) {
+		NearCache cache = nearCache;
+		if (cache == null) {
+			return mget(keys);
+		}
+		
+		// Only the KEYS which are not in the cache are read from their nodes
+		ArrayList<String> values = new ArrayList<String>(keys.size());
+		ArrayList<String> missingKeys = new ArrayList<String>();
+		ArrayList<Integer> positions = new ArrayList<Integer>();
+		for (int i = 0; i < keys.size(); i++) {
+			String value = cache.get(keys.get(i));
+			values.add(value);
+			if (value == null) {
+				missingKeys.add(keys.get(i));
+				positions.add(i);
+			}
+		}
+		
+		if (!missingKeys.isEmpty()) {
+			long stamp = cache.stamp();
+			ArrayList<String> missingValues = mget(missingKeys);
+			for (int i = 0; i < missingKeys.size(); i++) {
+				values.set(positions.get(i), missingValues.get(i));
+				cache.put(missingKeys.get(i), missingValues.get(i), stamp);
+			}
+		}
+		return values;
 	}
 	
-	public static String lookup(String key) {
-		return get(key);
+	// Removes the KEYS changed by this client from the near cache once their nodes have applied the change (or may have,
+	// if the request failed), which also drops the VALUES of these KEYS read meanwhile
+	private void invalidate(String key) {
+		NearCache cache = nearCache;
+		if (cache != null) {
+			cache.invalidate(key);
+		}
 	}
 	
-	public static boolean remove(String key) {
-		delete(key);
-		return true;
+	private void invalidate(ArrayList<String> keys) {
+		NearCache cache = nearCache;
+		if (cache != null) {
+			for (String key : keys) {
+				cache.invalidate(key);
+			}
+		}
 	}
 	
 	/***
 	 * This methods adds a (KEY,VALUE) pair in the Distributed Hash Table (DHT).
 	 * @param key	KEY should be 24 bytes (12 characters) maximum.
 	 * @param value	VALUE should be 1000 bytes (500 characters) maximum.
+	 * @param type	PUT to keep the VALUE of an existing KEY, PUT_FORCE to overwrite it.
 	 * @return	Returns true if key is added in the DHT successfully else returns false.
+	 * @throws IOException	If the node can't be reached or closes the connection, the KEY may or may not be added
 	 */
-	private static boolean put(String key, String value) {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		String data = key + "," + value;
+	private boolean put(String key, String value, String type) throws IOException, ClassNotFoundException {
+		int node = hash(key);
+		String nodeAddress = networkMap.get(node);
 		
-		try {
-			int node = hash(key);
-			String nodeAddress = networkMap.get(node);
-			
-			//System.out.println(String.format("\nADDING (%s,%s) at %d:%s", key, value, node, nodeAddress));
-			
-			// Make connection with server using the specified Host Address and Port 10000
-	        socket = new Socket(nodeAddress, portNumber);
-	        
-	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
-	        
-	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+		//System.out.println(String.format("\nADDING (%s,%s) at %d:%s", key, value, node, nodeAddress));
 
-			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-			peerRequest = new Request();
-			peerRequest.setRequestType("PUT");
-			peerRequest.setRequestData(data);
-			out.writeObject(peerRequest);
-			
-	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
-	        
-	        if (serverResponse.getResponseCode() == 200) {
-				return true;
-			} else {
-				return false;
-			}
-	        
-		} catch(Exception e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				// Closing all streams. Close the stream only if it is initialized 
-				if (out != null)
-					out.close();
-				
-				if (in != null)
-					in.close();
-				
-				if (socket != null)
-					socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		// Setup a Request object with Request Type = PUT or PUT_FORCE and the KEY,VALUE
+		Request peerRequest = new Request();
+		peerRequest.setRequestType(type);
+		peerRequest.setKey(key);
+		peerRequest.setValue(value);
 		
-		return false;
+		// Send the request on a pooled connection and read the response message from the server
+		Response serverResponse = connectionPool.send(nodeAddress, peerRequest);
+		return serverResponse.getResponseCode() == 200;
+	}
+	
+	// Builds the request of a single KEY operation
+	private static Request request(String type, String key, String value) {
+		Request peerRequest = new Request();
+		peerRequest.setRequestType(type);
+		peerRequest.setKey(key);
+		peerRequest.setValue(value);
+		return peerRequest;
+	}
+	
+	// Sends the request of a KEY to its node without waiting for the response. A request which changes the KEY removes it
+	// from the near cache once it completes, even if it fails.
+	private CompletableFuture<Response> sendAsync(final String key, Request peerRequest, boolean changes) {
+		CompletableFuture<Response> response = connectionPool.sendAsync(networkMap.get(hash(key)), peerRequest);
+		if (!changes) {
+			return response;
+		}
+		return response.whenComplete(new BiConsumer<Response, Throwable>() {
+			public void accept(Response serverResponse, Throwable error) {
+				invalidate(key);
+			}
+		});
 	}
 	
 	/***
 	 * This methods searches for a KEY in the Distributed Hash Table (DHT) and retrieves its value if the specified KEY exist.
 	 * @param key	KEY which is to be searched in the DHT.
 	 * @return		Returns VALUE for the KEY specified if the KEY exist in the DHT else returns NULL.
+	 * @throws IOException	If the node can't be reached or closes the connection
 	 */
-	private static String get(String key) {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		String value = null;
-		String nodeAddress = null;
-		
-		try {
-			int node = hash(key);
-			nodeAddress = networkMap.get(node);
-			
-			// Make connection with server using the specified Host Address and Port 10000
-	        socket = new Socket(nodeAddress, portNumber);
-	        
-	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
-	        
-	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	private String get(String key) throws IOException, ClassNotFoundException {
+		int node = hash(key);
+		String nodeAddress = networkMap.get(node);
 
-			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-			peerRequest = new Request();
-			peerRequest.setRequestType("GET");
-			peerRequest.setRequestData(key);
-			out.writeObject(peerRequest);
-			
-	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
-	        
-	        if (serverResponse.getResponseCode() == 200) {
-				value = serverResponse.getResponseData().split(",")[1].trim();
-			}
-		} catch(Exception e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				// Closing all streams. Close the stream only if it is initialized 
-				if (out != null)
-					out.close();
-				
-				if (in != null)
-					in.close();
-				
-				if (socket != null)
-					socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		// Setup a Request object with Request Type = GET and the KEY
+		Request peerRequest = new Request();
+		peerRequest.setRequestType("GET");
+		peerRequest.setKey(key);
 		
-		return value;
+		// Send the request on a pooled connection and read the response message from the server
+		Response serverResponse = connectionPool.send(nodeAddress, peerRequest);
+		return (serverResponse.getResponseCode() == 200) ? serverResponse.getResponseData() : null;
 	}
 	
 	/***
 	 * This methods deletes a (KEY,VALUE) pair from the Distributed Hash Table (DHT) using KEY. It does nothing if the KEY doesn't exist in the DHT.
 	 * @param key	KEY of the (KEY,VALUE) pair which has to be deleted from the DHT.
 	 * @return		Returns true if the (KEY,VALUE) pair is successfully deleted from the DHT else returns false.
+	 * @throws IOException	If the node can't be reached or closes the connection, the KEY may or may not be deleted
+	 */
+	private boolean delete(String key) throws IOException, ClassNotFoundException {
+		int node = hash(key);
+		String nodeAddress = networkMap.get(node);
+
+		// Setup a Request object with Request Type = DELETE and the KEY
+		Request peerRequest = new Request();
+		peerRequest.setRequestType("DELETE");
+		peerRequest.setKey(key);
+		
+		// Send the request on a pooled connection and read the response message from the server
+		Response serverResponse = connectionPool.send(nodeAddress, peerRequest);
+		return serverResponse.getResponseCode() == 200;
+	}
+	
+	/***
+	 * This method adds many (KEY,VALUE) pairs in the Distributed Hash Table (DHT).
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys		KEYS to be added. Each KEY should be 24 bytes (12 characters) maximum.
+	 * @param values	VALUES of the keys. Each VALUE should be 1000 bytes (500 characters) maximum.
+	 * @return			Returns for each KEY true if it is added in the DHT successfully else false.
 	 */
-	private static boolean delete(String key) {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
+	private boolean[] mput(ArrayList<String> keys, ArrayList<String> values) {
+		boolean[] results = new boolean[keys.size()];
 		
 		try {
-			int node = hash(key);
-			String nodeAddress = networkMap.get(node);
-			
-			// Make connection with server using the specified Host Address and Port 10000
-	        socket = new Socket(nodeAddress, portNumber);
-	        
-	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
-	        
-	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
-
-			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-			peerRequest = new Request();
-			peerRequest.setRequestType("DELETE");
-			peerRequest.setRequestData(key);
-			out.writeObject(peerRequest);
-			
-	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
-	        //System.out.print((String) serverResponse.getResponseData());
-	        
-	        if (serverResponse.getResponseCode() == 200) {
-				return true;
-			} else {
-				return false;
+			Response serverResponse = connectionPool.sendBatch("MPUT", keys, values, nodeAddresses(keys));
+			for (int i = 0; i < results.length; i++) {
+				results[i] = serverResponse.getResponseCodes()[i] == 200;
 			}
-	        
-		} catch(Exception e) {
+		} catch (Exception e) {
 			e.printStackTrace();
-		} finally {
-			try {
-				// Closing all streams. Close the stream only if it is initialized 
-				if (out != null)
-					out.close();
-				
-				if (in != null)
-					in.close();
-				
-				if (socket != null)
-					socket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
 		}
 		
-		return false;
+		return results;
 	}
 	
 	/***
-	 * This method performs a hash on the key and returns the node id where the key is located.
-	 * We get the hashCode of the input KEY string which is a number and then we perform MOD operation on that hashCode.
-	 * The hashCode for a given string will always be same for that string.
-	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
-	 * @return		Returns a node id (integer) where the key is located.
+	 * This method searches for many KEYS in the Distributed Hash Table (DHT) and retrieves their values.
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys	KEYS which are to be searched in the DHT.
+	 * @return		Returns the VALUE of each KEY, or NULL for the KEYS which don't exist in the DHT.
 	 */
-	private static int hash(String key) {
-		// Total number of servers = Total number of entries in networkMap
-		int totalServers = networkMap.size();
+	private ArrayList<String> mget(ArrayList<String> keys) {
+		try {
+			return connectionPool.sendBatch("MGET", keys, null, nodeAddresses(keys)).getValues();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 		
-		// Get hash value of string using JAVA's hashCode() method
-		long hashCode = key.hashCode();
+		return new ArrayList<String>(Collections.nCopies(keys.size(), (String) null));
+	}
+	
+	/***
+	 * This method deletes many (KEY,VALUE) pairs from the Distributed Hash Table (DHT).
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys	KEYS of the (KEY,VALUE) pairs which have to be deleted from the DHT.
+	 * @return		Returns for each KEY true if the (KEY,VALUE) pair is deleted from the DHT successfully else false.
+	 */
+	private boolean[] mdelete(ArrayList<String> keys) {
+		boolean[] results = new boolean[keys.size()];
 		
-		// hashCode may be negative. So, make it positive in case it's negative
-		hashCode = (hashCode < 0) ? -hashCode : hashCode;
+		try {
+			Response serverResponse = connectionPool.sendBatch("MDELETE", keys, null, nodeAddresses(keys));
+			for (int i = 0; i < results.length; i++) {
+				results[i] = serverResponse.getResponseCodes()[i] == 200;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
 		
-		// Add 1 because MOD of hashCode and totalServers may be 0
-		int hash = (int) (hashCode % totalServers) + 1;
-		return hash;
+		return results;
+	}
+	
+	// Returns the address of the node where each key is located
+	private String[] nodeAddresses(ArrayList<String> keys) {
+		String[] nodeAddresses = new String[keys.size()];
+		for (int i = 0; i < nodeAddresses.length; i++) {
+			nodeAddresses[i] = networkMap.get(hash(keys.get(i)));
+		}
+		return nodeAddresses;
+	}
+	
+	/***
+	 * This method returns the node id where the key is located.
+	 * The key is placed on the consistent hash ring of the network, so adding or removing a node only moves the keys next to its tokens.
+	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
+	 * @return		Returns a node id (integer) where the key is located.
+	 */
+	private int hash(String key) {
+		return hashRing.getNode(key);
 	}
 }
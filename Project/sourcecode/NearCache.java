@@ -0,0 +1,154 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * This class keeps the VALUES of the KEYS read recently by the client so that the reads of the hot KEYS of a skewed workload
+ * don't go over the network.
+ *
+ * The cache holds at most maxEntries KEYS and forgets the least recently used one when it is full. A VALUE is kept for
+ * ttl milliseconds, so a change done by another client is seen at most ttl milliseconds later. The changes done by this
+ * client remove the KEY from the cache. A read which started before a change of its KEY doesn't put its VALUE in the
+ * cache, the reads of the other KEYS do.
+ *
+ * The changes are numbered. The number of the last change of the maxEntries KEYS changed last is kept, so a read knows
+ * whether its KEY was changed since it started. When an older change is forgotten, the reads which started before it
+ * can't tell and don't put their VALUES in the cache.
+ */
+public class NearCache {
+	private final int maxEntries;
+	private final long ttl;
+	private final LinkedHashMap<String, Entry> entries;
+
+	// Number of the last change done by this client
+	private long changeNumber = 0;
+	// Number of the last change of the KEYS changed last, in the order of the changes
+	private final LinkedHashMap<String, Long> changes;
+	// Number of the last change which is no longer in changes
+	private long forgottenChange = 0;
+
+	// Metrics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long expirations = 0;
+
+	/***
+	 * @param maxEntries	Maximum number of KEYS in the cache
+	 * @param ttl			Time in milliseconds after which a VALUE is read again from its node
+	 */
+	public NearCache(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		// Access order: the first entry is the least recently used one
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > NearCache.this.maxEntries) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+		this.changes = new LinkedHashMap<String, Long>() {
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				if (size() > NearCache.this.maxEntries) {
+					forgottenChange = eldest.getValue();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/***
+	 * This method returns the VALUE of a KEY if it is in the cache and not expired.
+	 * @param key	KEY which is searched
+	 * @return		Returns the VALUE of the KEY, or NULL if the VALUE has to be read from its node.
+	 */
+	public synchronized String get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+			entries.remove(key);
+			expirations++;
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	/***
+	 * This method returns a stamp to be given to put(...) with the VALUE read after the call.
+	 * @return	Returns the number of the last change done by this client.
+	 */
+	public synchronized long stamp() {
+		return changeNumber;
+	}
+
+	/***
+	 * This method adds the VALUE of a KEY read from its node, unless this client changed the KEY since the read started.
+	 * @param key	KEY which was read
+	 * @param value	VALUE of the KEY
+	 * @param stamp	Value returned by stamp() before the read
+	 */
+	public synchronized void put(String key, String value, long stamp) {
+		if (value == null || stamp < forgottenChange) {
+			return;
+		}
+		Long change = changes.get(key);
+		if (change == null || change <= stamp) {
+			entries.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/***
+	 * This method removes a KEY which this client is changing.
+	 * @param key	KEY which is written or deleted
+	 */
+	public synchronized void invalidate(String key) {
+		changeNumber++;
+		// Removed first so that the KEY moves to the end of the order of the changes
+		changes.remove(key);
+		changes.put(key, changeNumber);
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		changeNumber++;
+		forgottenChange = changeNumber;
+		changes.clear();
+		entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/***
+	 * This method returns the cache statistics.
+	 * @return	Returns one line with the size, the hits and misses and the KEYS evicted and expired.
+	 */
+	public synchronized String getStatus() {
+		long reads = hits + misses;
+		return String.format("Near cache: %d/%d keys, %d hits, %d misses (%.1f%% hit ratio), %d evicted, %d expired",
+				entries.size(), maxEntries, hits, misses, (reads == 0) ? 0.0 : 100.0 * hits / reads, evictions, expirations);
+	}
+
+	// VALUE of a KEY and the time until which it can be used
+	private static class Entry {
+		final String value;
+		final long expiresAt;
+
+		Entry(String value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -1,10 +1,13 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,17 +15,21 @@ import java.util.concurrent.ConcurrentHashMap;
 public class PeerClient extends Thread {
 		
 	private HashMap<Integer, String> networkMap = null;
+	private HashRing hashRing = null;
 	private ArrayList<String> replicationNodes = null;
 	
 	private int portAddress = 0;
 	private String localAddress = null;
+	private ConnectionPool connectionPool = null;
 	
 	// Initialize all the local data from the global data
 	public PeerClient() {
 		networkMap = DistributedHashTable.getNetworkMap();
+		hashRing = DistributedHashTable.getHashRing();
 		replicationNodes = DistributedHashTable.getReplicationNodes();
 		portAddress = DistributedHashTable.getPeerServerPort();
 		localAddress = DistributedHashTable.getLocalAddress();
+		connectionPool = new ConnectionPool(portAddress);
 	}
 	
 	// Thread implementation for Peer to serve as CLient
@@ -32,18 +39,10 @@ public class PeerClient extends Thread {
 		try {
 			input = new BufferedReader(new InputStreamReader(System.in));
 			
-			HashMap<String, String> hm = retrieveHashTable();
-			if (hm != null) {
-				for (Map.Entry e : hm.entrySet()) {
-					DistributedHashTable.putInHashTable(e.getKey().toString(), e.getValue().toString(), true);
-				}
-			}
+			retrieveHashTable();
 			
 			if (replicationNodes.contains(localAddress)) {
-				ConcurrentHashMap<String, HashMap<String, String>> rHashTable = retrieveReplicationHashTable();
-				if (rHashTable != null) {
-					DistributedHashTable.setReplicatedHashTable(rHashTable);
-				}
+				retrieveReplicationHashTable();
 			}
 			
 			//System.out.println(DistributedHashTable.getHashTable());
@@ -187,134 +186,97 @@ public class PeerClient extends Thread {
 	}
 	
 	/***
-	 * This method retrieves the Hash Table from one of the replication nodes after this peer was down so that it can re-gain its hashTable from the replication nodes.
-	 * @return	Returns the hashTable (if exists) of the calling peer from the replication nodes.
+	 * This method retrieves the Hash Table from the replication nodes after this peer was down so that it can re-gain its hashTable from the replication nodes.
+	 * The (KEY,VALUE) pairs are received in pages and each page is written to the hashTable as soon as it is received.
+	 * @return	Returns the number of (KEY,VALUE) pairs retrieved, or -1 if no replication node answered.
 	 */
-	private HashMap<String, String> retrieveHashTable() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		HashMap<String, String> hm = null;
+	private long retrieveHashTable() {
+		return retrievePages("SCAN");
+	}
+	
+	/***
+	 * This method retrieves the Replication Hash Table from the replication nodes after this peer was down so that it can re-gain its replication data from the replication nodes.
+	 * The replicas of all the peers of the network are received in pages like the hashTable.
+	 * @return	Returns the number of replicas retrieved, or -1 if no replication node answered.
+	 */
+	private long retrieveReplicationHashTable() {
+		return retrievePages("R_SCAN");
+	}
+	
+	// Requests the pages of the replicas until the last one. The next page is requested before a page is applied so that
+	// the replication node reads it meanwhile, but no more than one page is waiting. If a replication node fails, the pages
+	// which follow the last one applied are requested from the next replication node
+	private long retrievePages(String requestType) {
+		String cursor = null;
+		long received = 0;
+		boolean answered = false;
 		
 		for (String nodeAddress : replicationNodes) {
-			//System.out.println("Retrieving Hash Table from " + nodeAddress);
-			
 			if (nodeAddress.equalsIgnoreCase(localAddress)) {
 				continue;
 			}
 			
+			ConnectionPool.Connection connection = null;
 			try {
+				connection = connectionPool.borrow(nodeAddress);
+				MessageUtility.writeRequest(connection.getOutputStream(), pageRequest(requestType, cursor));
 				
-				// Make connection with server using the specified Host Address and Port 10000
-				socket = new Socket(nodeAddress, portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_HASHTABLE");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (HashMap<String, String>) serverResponse.getOtherData();
-				} 
+				while (true) {
+					Response serverResponse = MessageUtility.readResponse(connection.getInputStream());
+					if (serverResponse.getResponseCode() != 200) {
+						break;
+					}
+					answered = true;
 					
-				socket.close();
-				break;
+					String nextCursor = serverResponse.getResponseData();
+					if (nextCursor != null) {
+						MessageUtility.writeRequest(connection.getOutputStream(), pageRequest(requestType, nextCursor));
+					}
+					received += applyPage(requestType, serverResponse);
+					
+					cursor = nextCursor;
+					if (cursor == null) {
+						connectionPool.release(connection);
+						return received;
+					}
+				}
+				connectionPool.release(connection);
 			} catch (Exception ex) {
 				//ex.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
+				if (connection != null) {
+					connection.close();
 				}
 			}
 		}
-		//System.out.println("hm = " + hm);
-		return hm;
+		return answered ? received : -1;
 	}
 	
-	/***
-	 * This method retrieves the Replication Hash Table from one of the replication nodes after this peer was down so that it can re-gain its replication data from the replication nodes.
-	 * @return	Returns the replicatedHashTable (if exists) of the calling peer from the replication nodes.
-	 */
-	private ConcurrentHashMap<String, HashMap<String, String>> retrieveReplicationHashTable() {
-		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
-		Request peerRequest = null;
-		Response serverResponse	= null;
-		ConcurrentHashMap<String, HashMap<String, String>> hm = null;
-		
-		for (String nodeAddress : replicationNodes) {
-			//System.out.println("Retrieving Replication Hash Table from " + nodeAddress);
-			
-			if (nodeAddress.equalsIgnoreCase(localAddress)) {
-				continue;
+	private Request pageRequest(String requestType, String cursor) {
+		Request peerRequest = new Request();
+		peerRequest.setRequestType(requestType);
+		peerRequest.setKey(cursor);
+		return peerRequest;
+	}
+	
+	// Writes the (KEY,VALUE) pairs of a page to the hashTable (SCAN) or to the replicas of their peer (R_SCAN)
+	private int applyPage(String requestType, Response serverResponse) {
+		int count = 0;
+		if (requestType.equals("SCAN")) {
+			HashMap<?, ?> pairs = (HashMap<?, ?>) serverResponse.getOtherData();
+			for (Map.Entry<?, ?> entry : pairs.entrySet()) {
+				DistributedHashTable.putInHashTable((String) entry.getKey(), (String) entry.getValue(), true);
+				count++;
 			}
-			
-			try {
-				// Make connection with server using the specified Host Address and Port 10000
-				socket = new Socket(nodeAddress, portAddress);
-
-				// Initializing output stream using the socket's output stream
-				out = new ObjectOutputStream(socket.getOutputStream());
-				out.flush();
-
-				// Initializing input stream using the socket's input stream
-				in = new ObjectInputStream(socket.getInputStream());
-
-				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-				peerRequest = new Request();
-				peerRequest.setRequestType("GET_R_HASHTABLE");
-				out.writeObject(peerRequest);
-
-				// Read the response message from the server
-				serverResponse = (Response) in.readObject();
-				if (serverResponse != null && serverResponse.getResponseCode() == 200) {
-					hm = (ConcurrentHashMap<String, HashMap<String, String>>) serverResponse.getOtherData();
-				} 
-					
-				socket.close();
-				break;
-			} catch (Exception ex) {
-				//ex.printStackTrace();
-			} finally {
-				try {
-					// Closing all streams. Close the stream only if it is initialized
-					if (out != null)
-						out.close();
-
-					if (in != null)
-						in.close();
-
-					if (socket != null)
-						socket.close();
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
+		} else {
+			ConcurrentHashMap<?, ?> pairsByPeer = (ConcurrentHashMap<?, ?>) serverResponse.getOtherData();
+			for (Map.Entry<?, ?> peer : pairsByPeer.entrySet()) {
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) peer.getValue()).entrySet()) {
+					DistributedHashTable.putInReplicaHashTable((String) peer.getKey(), (String) entry.getKey(), (String) entry.getValue());
+					count++;
 				}
 			}
 		}
-		//System.out.println("replica hm = " + hm);
-		return hm;
+		return count;
 	}
 	
 	/***
@@ -325,11 +287,10 @@ public class PeerClient extends Thread {
 	 */
 	public boolean put(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
 		
 		try {		
 			int node = hash(key);
@@ -341,20 +302,20 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
 			peerRequest.setRequestType("PUT");
-			peerRequest.setRequestData(data);
-			out.writeObject(peerRequest);
+			peerRequest.setKey(key);
+			peerRequest.setValue(value);
+			MessageUtility.writeRequest(out, peerRequest);
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        
 	        if (serverResponse.getResponseCode() == 200) {
 				return true;
@@ -388,11 +349,10 @@ public class PeerClient extends Thread {
 	 */
 	private boolean forcePut(String key, String value) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
 		
 		long startTime, endTime;
 	    double time;
@@ -409,20 +369,20 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
 			peerRequest.setRequestType("PUT_FORCE");
-			peerRequest.setRequestData(data);
-			out.writeObject(peerRequest);
+			peerRequest.setKey(key);
+			peerRequest.setValue(value);
+			MessageUtility.writeRequest(out, peerRequest);
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        
 	        if (serverResponse.getResponseCode() == 200) {
 	        	endTime = System.currentTimeMillis();
@@ -463,8 +423,8 @@ public class PeerClient extends Thread {
 	 */
 	public String get(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -485,23 +445,22 @@ public class PeerClient extends Thread {
 		        socket = new Socket(nodeAddress, portAddress);
 		        
 		        // Initializing output stream using the socket's output stream
-		        out = new ObjectOutputStream(socket.getOutputStream());
-		        out.flush();
+		        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 		        
 		        // Initializing input stream using the socket's input stream
-		        in = new ObjectInputStream(socket.getInputStream());
+		        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 				// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 				peerRequest = new Request();
 				peerRequest.setRequestType("GET");
-				peerRequest.setRequestData(key);
-				out.writeObject(peerRequest);
+				peerRequest.setKey(key);
+				MessageUtility.writeRequest(out, peerRequest);
 				
 		        // Read the response message from the server
-		        serverResponse = (Response) in.readObject();
+		        serverResponse = MessageUtility.readResponse(in);
 		        
 		        if (serverResponse.getResponseCode() == 200) {
-					value = serverResponse.getResponseData().split(",")[1].trim();
+					value = serverResponse.getResponseData();
 				}
 			}
 		} catch(Exception e) {
@@ -533,8 +492,8 @@ public class PeerClient extends Thread {
 	 */
 	private String searchReplica(String key, String peerAddress) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		String value = null;
@@ -553,23 +512,22 @@ public class PeerClient extends Thread {
 			        socket = new Socket(nodeAddress, portAddress);
 			        
 			        // Initializing output stream using the socket's output stream
-			        out = new ObjectOutputStream(socket.getOutputStream());
-			        out.flush();
+			        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			        
 			        // Initializing input stream using the socket's input stream
-			        in = new ObjectInputStream(socket.getInputStream());
+			        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 					// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 					peerRequest = new Request();
 					peerRequest.setRequestType("R_GET");
-					peerRequest.setRequestData(key);
-					out.writeObject(peerRequest);
+					peerRequest.setKey(key);
+					MessageUtility.writeRequest(out, peerRequest);
 					
 			        // Read the response message from the server
-			        serverResponse = (Response) in.readObject();
+			        serverResponse = MessageUtility.readResponse(in);
 			        
 			        if (serverResponse.getResponseCode() == 200) {
-						value = serverResponse.getResponseData().split(",")[1].trim();
+						value = serverResponse.getResponseData();
 					}
 				}
 			} catch(Exception ex) {
@@ -604,8 +562,8 @@ public class PeerClient extends Thread {
 	 */
 	public boolean delete(String key) {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
 		
@@ -617,20 +575,19 @@ public class PeerClient extends Thread {
 	        socket = new Socket(nodeAddress, portAddress);
 	        
 	        // Initializing output stream using the socket's output stream
-	        out = new ObjectOutputStream(socket.getOutputStream());
-	        out.flush();
+	        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 	        
 	        // Initializing input stream using the socket's input stream
-	        in = new ObjectInputStream(socket.getInputStream());
+	        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
 			// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
 			peerRequest = new Request();
 			peerRequest.setRequestType("DELETE");
-			peerRequest.setRequestData(key);
-			out.writeObject(peerRequest);
+			peerRequest.setKey(key);
+			MessageUtility.writeRequest(out, peerRequest);
 			
 	        // Read the response message from the server
-	        serverResponse = (Response) in.readObject();
+	        serverResponse = MessageUtility.readResponse(in);
 	        //System.out.print((String) serverResponse.getResponseData());
 	        
 	        if (serverResponse.getResponseCode() == 200) {
@@ -658,25 +615,81 @@ public class PeerClient extends Thread {
 	}
 	
 	/***
-	 * This method performs a hash on the key and returns the node id where the key is located.
-	 * We get the hashCode of the input KEY string which is a number and then we perform MOD operation on that hashCode.
-	 * The hashCode for a given string will always be same for that string.
-	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
-	 * @return		Returns a node id (integer) where the key is located.
+	 * This method adds many (KEY,VALUE) pairs in the Distributed Hash Table (DHT).
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys		KEYS to be added. Each KEY should be 24 bytes (12 characters) maximum.
+	 * @param values	VALUES of the keys. Each VALUE should be 1000 bytes (500 characters) maximum.
+	 * @return			Returns for each KEY true if it is added in the DHT successfully else false.
 	 */
-	private int hash(String key) {
-		// Total number of servers = Total number of entries in networkMap
-		int totalServers = networkMap.size();
+	public boolean[] mput(ArrayList<String> keys, ArrayList<String> values) {
+		boolean[] results = new boolean[keys.size()];
+		
+		try {
+			Response serverResponse = connectionPool.sendBatch("MPUT", keys, values, nodeAddresses(keys));
+			for (int i = 0; i < results.length; i++) {
+				results[i] = serverResponse.getResponseCodes()[i] == 200;
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
 		
-		// Get hash value of string using JAVA's hashCode() method
-		long hashCode = key.hashCode();
+		return results;
+	}
+	
+	/***
+	 * This method searches for many KEYS in the Distributed Hash Table (DHT) and retrieves their values.
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys	KEYS which are to be searched in the DHT.
+	 * @return		Returns the VALUE of each KEY, or NULL for the KEYS which don't exist in the DHT.
+	 */
+	public ArrayList<String> mget(ArrayList<String> keys) {
+		try {
+			return connectionPool.sendBatch("MGET", keys, null, nodeAddresses(keys)).getValues();
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
 		
-		// hashCode may be negative. So, make it positive in case it's negative
-		hashCode = (hashCode < 0) ? -hashCode : hashCode;
+		return new ArrayList<String>(Collections.nCopies(keys.size(), (String) null));
+	}
+	
+	/***
+	 * This method deletes many (KEY,VALUE) pairs from the Distributed Hash Table (DHT).
+	 * The keys are grouped by the node where they are located and sent in pipelined batches.
+	 * @param keys	KEYS of the (KEY,VALUE) pairs which have to be deleted from the DHT.
+	 * @return		Returns for each KEY true if the (KEY,VALUE) pair is deleted from the DHT successfully else false.
+	 */
+	public boolean[] mdelete(ArrayList<String> keys) {
+		boolean[] results = new boolean[keys.size()];
 		
-		// Add 1 because MOD of hashCode and totalServers may be 0
-		int hash = (int) (hashCode % totalServers) + 1;
-		return hash;
+		try {
+			Response serverResponse = connectionPool.sendBatch("MDELETE", keys, null, nodeAddresses(keys));
+			for (int i = 0; i < results.length; i++) {
+				results[i] = serverResponse.getResponseCodes()[i] == 200;
+			}
+		} catch (Exception e) {
+			//e.printStackTrace();
+		}
+		
+		return results;
+	}
+	
+	// Returns the address of the node where each key is located
+	private String[] nodeAddresses(ArrayList<String> keys) {
+		String[] nodeAddresses = new String[keys.size()];
+		for (int i = 0; i < nodeAddresses.length; i++) {
+			nodeAddresses[i] = networkMap.get(hash(keys.get(i)));
+		}
+		return nodeAddresses;
+	}
+	
+	/***
+	 * This method returns the node id where the key is located.
+	 * The key is placed on the consistent hash ring of the network, so adding or removing a node only moves the keys next to its tokens.
+	 * @param key	Key on which hash to be performed i.e. whose node has to be found.
+	 * @return		Returns a node id (integer) where the key is located.
+	 */
+	private int hash(String key) {
+		return hashRing.getNode(key);
 	}
 	
 	/***
@@ -1,10 +1,16 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 
-public class PeerServer extends Thread {	
+public class PeerServer extends Thread {
+	private static final int IDLE_TIMEOUT = 2 * 60 * 1000; // 2 minutes
+	
 	private Socket socket;
 	//private LogUtility log = null;
 	
@@ -18,161 +24,281 @@ public class PeerServer extends Thread {
     
     // Services this thread's peer client by sending the requested file.
 	public void run() {	
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
+		DataOutputStream out = null;
+		DataInputStream in = null;
 		Response response = null;
 		
 		try {
 			String clientIp = socket.getInetAddress().getHostAddress();
 			
-			in = new ObjectInputStream(socket.getInputStream());
-			out = new ObjectOutputStream(socket.getOutputStream());
-			out.flush();
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			
-			Request request = (Request) in.readObject();
+			// Serve requests until the peer closes the connection so that clients can reuse their connections
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			while (true) {
+				Request request;
+				try {
+					request = MessageUtility.readRequest(in);
+				} catch (EOFException e) {
+					break;
+				}
 			
-			if (request.getRequestType().startsWith("PUT")) {
-				String data = (String) request.getRequestData();
-				String key = data.split(",")[0];
-				String value = data.split(",")[1];
-				boolean result;
+				if (request.getRequestType().startsWith("PUT")) {
+					String key = request.getKey();
+					String value = request.getValue();
+					boolean result;
 				
-				////log.write(String.format("Serving PUT(%s,%s) request of %s.", key, value, clientIp));
+					////log.write(String.format("Serving PUT(%s,%s) request of %s.", key, value, clientIp));
 				
-				if (request.getRequestType().endsWith("FORCE")) {
-					result = DistributedHashTable.putInHashTable(key, value, true);
-				} else {
-					result = DistributedHashTable.putInHashTable(key, value, false);
-				}
+					if (request.getRequestType().endsWith("FORCE")) {
+						result = DistributedHashTable.putInHashTable(key, value, true);
+					} else {
+						result = DistributedHashTable.putInHashTable(key, value, false);
+					}
 				
-				if (result) {
-					response = new Response();
-					response.setResponseCode(200);
-					response.setResponseData("(Key,Value) pair added successfully.");
-					out.writeObject(response);
+					if (result) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setResponseData("(Key,Value) pair added successfully.");
+						reply(out, request, response);
 					
-					//log.write(String.format("PUT(%s,%s) for %s completed successfully.", key, value, clientIp));
+						//log.write(String.format("PUT(%s,%s) for %s completed successfully.", key, value, clientIp));
 					
-					ReplicationService service = new ReplicationService(key, value, "PUT");
-					service.start();
-				} else {
-					response = new Response();
-					response.setResponseCode(300);
-					response.setResponseData("Value with this KEY already exist.");
-					out.writeObject(response);
+						ReplicationService service = new ReplicationService(key, value, "PUT");
+						service.start();
+					} else {
+						response = new Response();
+						response.setResponseCode(300);
+						response.setResponseData("Value with this KEY already exist.");
+						reply(out, request, response);
 					
-					//log.write(String.format("PUT(%s,%s) for %s failed. KEY already exist.", key, value, clientIp));
-				}
-			} else if (request.getRequestType().equalsIgnoreCase("GET")) {
-				String key = (String) request.getRequestData();
+						//log.write(String.format("PUT(%s,%s) for %s failed. KEY already exist.", key, value, clientIp));
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("GET")) {
+					String key = request.getKey();
 				
-				//log.write(String.format("Serving GET(%s) request of %s.", key, clientIp));
-				String value = DistributedHashTable.getFromHashTable(key);
+					//log.write(String.format("Serving GET(%s) request of %s.", key, clientIp));
+					String value = DistributedHashTable.getFromHashTable(key);
 				
-				if (value != null) {
+					if (value != null) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setResponseData(value);
+						reply(out, request, response);
+						//log.write(String.format("GET(%s) = %s for %s completed successfully.", key, value, clientIp));
+					} else {
+						response = new Response();
+						response.setResponseCode(404);
+						response.setResponseData("VALUE with this KEY does not exist.");
+						reply(out, request, response);
+						//log.write(String.format("GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("DELETE")) {					
+					String key = request.getKey();
+				
+					//log.write(String.format("Serving DELETE(%s) request of %s.", key, clientIp));
+					DistributedHashTable.removeFromHashTable(key);
+
 					response = new Response();
 					response.setResponseCode(200);
-					response.setResponseData(key + "," + value);
-					out.writeObject(response);
-					//log.write(String.format("GET(%s) = %s for %s completed successfully.", key, value, clientIp));
-				} else {
-					response = new Response();
-					response.setResponseCode(404);
-					response.setResponseData("VALUE with this KEY does not exist.");
-					out.writeObject(response);
-					//log.write(String.format("GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
-				}
-			} else if (request.getRequestType().equalsIgnoreCase("DELETE")) {					
-				String key = (String) request.getRequestData();
+					reply(out, request, response);
 				
-				//log.write(String.format("Serving DELETE(%s) request of %s.", key, clientIp));
-				DistributedHashTable.removeFromHashTable(key);
-
-				response = new Response();
-				response.setResponseCode(200);
-				out.writeObject(response);
-				
-				//log.write(String.format("DELETE(%s) for %s completed successfully.", key, clientIp));
-				
-				ReplicationService service = new ReplicationService(key, null, "DELETE");
-				service.start();
-			} else if (request.getRequestType().equalsIgnoreCase("R_PUT")) {
-				String data = (String) request.getRequestData();
-				String key = data.split(",")[0];
-				String value = data.split(",")[1];
+					//log.write(String.format("DELETE(%s) for %s completed successfully.", key, clientIp));
+				
+					ReplicationService service = new ReplicationService(key, null, "DELETE");
+					service.start();
+				} else if (request.getRequestType().equalsIgnoreCase("R_PUT")) {
+					String key = request.getKey();
+					String value = request.getValue();
 		
-				//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
-				//log.write(String.format("Serving REPLICATE - PUT(%s,%s) request of %s.", key, value, clientIp));
-				DistributedHashTable.putInReplicaHashTable(clientIp, key, value);
+					//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
+					//log.write(String.format("Serving REPLICATE - PUT(%s,%s) request of %s.", key, value, clientIp));
+					DistributedHashTable.putInReplicaHashTable(clientIp, key, value);
 				
-				//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
-				response = new Response();
-				response.setResponseCode(200);
-				response.setResponseData("(Key,Value) pair added successfully.");
-				out.writeObject(response);
+					//System.out.println("\nR_PUT replicatedHashTable = " + DistributedHashTable.getReplicatedHashTable());
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseData("(Key,Value) pair added successfully.");
+					reply(out, request, response);
 				
-				//log.write(String.format("REPLICATE - PUT(%s,%s) for %s completed successfully.", key, value, clientIp));
-			} else if (request.getRequestType().equalsIgnoreCase("R_GET")) {
-				String key = (String) request.getRequestData();
+					//log.write(String.format("REPLICATE - PUT(%s,%s) for %s completed successfully.", key, value, clientIp));
+				} else if (request.getRequestType().equalsIgnoreCase("R_GET")) {
+					String key = request.getKey();
 				
-				//log.write(String.format("Serving REPLICATE - GET(%s) request of %s.", key, clientIp));
-				String value = null;
+					//log.write(String.format("Serving REPLICATE - GET(%s) request of %s.", key, clientIp));
+					String value = null;
 				
-				value = DistributedHashTable.getFromReplicaHashTable(key);
+					value = DistributedHashTable.getFromReplicaHashTable(key);
 				
-				if (value != null) {
+					if (value != null) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setResponseData(value);
+						reply(out, request, response);
+						//log.write(String.format("REPLICATE - GET(%s) = %s for %s completed successfully.", key, value, clientIp));
+					} else {
+						response = new Response();
+						response.setResponseCode(404);
+						response.setResponseData("VALUE with this KEY does not exist.");
+						reply(out, request, response);
+						//log.write(String.format("REPLICATE - GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("R_DELETE")) {					
+					String key = request.getKey();
+				
+					//log.write(String.format("Serving REPLICATE - DELETE(%s) request of %s.", key, clientIp));
+				
+					DistributedHashTable.removeFromReplicaHashTable(clientIp, key);
+
 					response = new Response();
 					response.setResponseCode(200);
-					response.setResponseData(key + "," + value);
-					out.writeObject(response);
-					//log.write(String.format("REPLICATE - GET(%s) = %s for %s completed successfully.", key, value, clientIp));
-				} else {
-					response = new Response();
-					response.setResponseCode(404);
-					response.setResponseData("VALUE with this KEY does not exist.");
-					out.writeObject(response);
-					//log.write(String.format("REPLICATE - GET(%s) = %s for %s completed successfully. Key not found.", key, value, clientIp));
-				}
-			} else if (request.getRequestType().equalsIgnoreCase("R_DELETE")) {					
-				String key = (String) request.getRequestData();
+					reply(out, request, response);
 				
-				//log.write(String.format("Serving REPLICATE - DELETE(%s) request of %s.", key, clientIp));
+					//log.write(String.format("REPLICATE - DELETE(%s) for %s completed successfully.", key, clientIp));
+				} else if (request.getRequestType().equalsIgnoreCase("GET_HASHTABLE")) {					
+					//log.write(String.format("Serving GET_HASHTABLE request of %s.", clientIp));
 				
-				DistributedHashTable.removeFromReplicaHashTable(clientIp, key);
-
-				response = new Response();
-				response.setResponseCode(200);
-				out.writeObject(response);
+					//System.out.println(DistributedHashTable.getReplicatedHashTable());
+					HashMap<String, String> innerMap = DistributedHashTable.getReplicatedHashTable(clientIp);
 				
-				//log.write(String.format("REPLICATE - DELETE(%s) for %s completed successfully.", key, clientIp));
-			} else if (request.getRequestType().equalsIgnoreCase("GET_HASHTABLE")) {					
-				//log.write(String.format("Serving GET_HASHTABLE request of %s.", clientIp));
+					if (innerMap != null) {
+						response = new Response();
+						response.setResponseCode(200);
+						response.setOtherData(innerMap);
+						reply(out, request, response);
+					} else {
+						response = new Response();
+						response.setResponseCode(404);
+						reply(out, request, response);
+					}
 				
-				//System.out.println(DistributedHashTable.getReplicatedHashTable());
-				HashMap<String, String> innerMap = DistributedHashTable.getReplicatedHashTable().get(clientIp);
+					//log.write(String.format("DATA of %s sent successfully. Request completed. " + innerMap, clientIp));
+				} else if (request.getRequestType().equalsIgnoreCase("GET_R_HASHTABLE")) {					
+					//log.write(String.format("Serving GET_R_HASHTABLE request of %s.", clientIp));
+					//System.out.println("Sending Replication Hash Table = " + DistributedHashTable.getReplicatedHashTable());
 				
-				if (innerMap != null) {
 					response = new Response();
 					response.setResponseCode(200);
-					response.setOtherData(innerMap);
-					out.writeObject(response);
+					response.setOtherData(DistributedHashTable.getReplicatedHashTable());
+					reply(out, request, response);
+				
+					//log.write(String.format("REPLCATION DATA sent to %s successfully. Request completed. " + DistributedHashTable.getReplicatedHashTable(), clientIp));
+				} else if (request.getRequestType().equalsIgnoreCase("SCAN") || request.getRequestType().equalsIgnoreCase("R_SCAN")) {
+					// SCAN pages the replicas of the hashTable of the peer, R_SCAN the replicas of all the peers
+					String nodeAddress = request.getRequestType().equalsIgnoreCase("SCAN") ? clientIp : null;
+					String cursor = request.getKey();
+					
+					//log.write(String.format("Serving %s(%s) request of %s.", request.getRequestType(), cursor, clientIp));
+					response = StateTransfer.getPage(clientIp, nodeAddress, cursor);
+					reply(out, request, response);
+				} else if (request.getRequestType().equalsIgnoreCase("MPUT")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = request.getValues();
+					ArrayList<String> addedKeys = new ArrayList<String>();
+					ArrayList<String> addedValues = new ArrayList<String>();
+					int[] responseCodes = new int[keys.size()];
+					
+					//log.write(String.format("Serving MPUT of %d keys request of %s.", keys.size(), clientIp));
+					
+					// Response code of each key is 200 if it was added or 300 if it already exist
+					for (int i = 0; i < keys.size(); i++) {
+						if (DistributedHashTable.putInHashTable(keys.get(i), values.get(i), false)) {
+							responseCodes[i] = 200;
+							addedKeys.add(keys.get(i));
+							addedValues.add(values.get(i));
+						} else {
+							responseCodes[i] = 300;
+						}
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseCodes(responseCodes);
+					reply(out, request, response);
+					
+					//log.write(String.format("MPUT of %d keys for %s completed. %d keys added.", keys.size(), clientIp, addedKeys.size()));
+					
+					if (!addedKeys.isEmpty()) {
+						ReplicationService service = new ReplicationService(addedKeys, addedValues, "PUT");
+						service.start();
+					}
+				} else if (request.getRequestType().equalsIgnoreCase("MGET")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = new ArrayList<String>(keys.size());
+					int[] responseCodes = new int[keys.size()];
+					
+					//log.write(String.format("Serving MGET of %d keys request of %s.", keys.size(), clientIp));
+					
+					// Response code of each key is 200 if it was found or 404 if it does not exist
+					for (int i = 0; i < keys.size(); i++) {
+						String value = DistributedHashTable.getFromHashTable(keys.get(i));
+						responseCodes[i] = (value != null) ? 200 : 404;
+						values.add(value);
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseCodes(responseCodes);
+					response.setValues(values);
+					reply(out, request, response);
+					
+					//log.write(String.format("MGET of %d keys for %s completed successfully.", keys.size(), clientIp));
+				} else if (request.getRequestType().equalsIgnoreCase("MDELETE")) {
+					ArrayList<String> keys = request.getKeys();
+					int[] responseCodes = new int[keys.size()];
+					
+					//log.write(String.format("Serving MDELETE of %d keys request of %s.", keys.size(), clientIp));
+					
+					for (int i = 0; i < keys.size(); i++) {
+						DistributedHashTable.removeFromHashTable(keys.get(i));
+						responseCodes[i] = 200;
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					response.setResponseCodes(responseCodes);
+					reply(out, request, response);
+					
+					//log.write(String.format("MDELETE of %d keys for %s completed successfully.", keys.size(), clientIp));
+					
+					ReplicationService service = new ReplicationService(keys, null, "DELETE");
+					service.start();
+				} else if (request.getRequestType().equalsIgnoreCase("R_MPUT")) {
+					ArrayList<String> keys = request.getKeys();
+					ArrayList<String> values = request.getValues();
+					
+					//log.write(String.format("Serving REPLICATE - MPUT of %d keys request of %s.", keys.size(), clientIp));
+					for (int i = 0; i < keys.size(); i++) {
+						DistributedHashTable.putInReplicaHashTable(clientIp, keys.get(i), values.get(i));
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+					
+					//log.write(String.format("REPLICATE - MPUT of %d keys for %s completed successfully.", keys.size(), clientIp));
+				} else if (request.getRequestType().equalsIgnoreCase("R_MDELETE")) {
+					ArrayList<String> keys = request.getKeys();
+					
+					//log.write(String.format("Serving REPLICATE - MDELETE of %d keys request of %s.", keys.size(), clientIp));
+					for (String key : keys) {
+						DistributedHashTable.removeFromReplicaHashTable(clientIp, key);
+					}
+					
+					response = new Response();
+					response.setResponseCode(200);
+					reply(out, request, response);
+					
+					//log.write(String.format("REPLICATE - MDELETE of %d keys for %s completed successfully.", keys.size(), clientIp));
 				} else {
+					// Reply to unknown requests so that the peer doesn't wait for a response on this connection
 					response = new Response();
-					response.setResponseCode(404);
-					out.writeObject(response);
+					response.setResponseCode(400);
+					response.setResponseData("Unknown request type.");
+					reply(out, request, response);
 				}
-				
-				//log.write(String.format("DATA of %s sent successfully. Request completed. " + innerMap, clientIp));
-			} else if (request.getRequestType().equalsIgnoreCase("GET_R_HASHTABLE")) {					
-				//log.write(String.format("Serving GET_R_HASHTABLE request of %s.", clientIp));
-				//System.out.println("Sending Replication Hash Table = " + DistributedHashTable.getReplicatedHashTable());
-				
-				response = new Response();
-				response.setResponseCode(200);
-				response.setOtherData(DistributedHashTable.getReplicatedHashTable());
-				out.writeObject(response);
-				
-				//log.write(String.format("REPLCATION DATA sent to %s successfully. Request completed. " + DistributedHashTable.getReplicatedHashTable(), clientIp));
 			}
 		} catch (Exception e) {
 			////log.write("ERROR:" + e);
@@ -195,6 +321,12 @@ public class PeerServer extends Thread {
 		}
 	}
 
+	// Sends the response tagged with the id of the request it answers
+	private void reply(DataOutputStream out, Request request, Response response) throws IOException {
+		response.setRequestId(request.getRequestId());
+		MessageUtility.writeResponse(out, response);
+	}
+
 	@Override
 	public void interrupt() {
 		//log.close();
@@ -1,24 +1,96 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
 
 import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisCluster;
 
-public class Redis {
+public class Redis extends AbstractKeyValueStore {
 
-	private static Jedis redis = null;
-	private static JedisCluster redisCluster = null;
+	// A Jedis connection can't be shared by threads, so each thread opens its own connection on first use
+	private String host = null;
+	private int port = 0;
+	private ThreadLocal<Jedis> redis = null;
+	private ConcurrentLinkedQueue<Jedis> connections = new ConcurrentLinkedQueue<Jedis>();
+	private JedisCluster redisCluster = null;
 	
-	public static void connect(String host, int port) {
+	public String getName() {
+		return "Redis";
+	}
+	
+	/***
+	 * This method connects to a Redis server, or to a Redis cluster whose nodes are listed in a file.
+	 * @param host	IP Address of the server, or the file which has the "host port" of a node of the cluster on each line
+	 * @param port	Port of the server
+	 */
+	public void connect(String host, int port) {
+		if (!NetworkUtility.validate(host)) {
+			connect(getClusterNodes(host));
+			return;
+		}
+		this.host = host;
+		this.port = port;
+		redis = new ThreadLocal<Jedis>();
 		try {
-			redis = new Jedis(host, port);
+			connection();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		System.out.println("Redis Connection Successful.");
 	}
 	
-	public static void connect(Set<HostAndPort> clusterNodes) {
+	// Connection of the calling thread
+	private Jedis connection() {
+		Jedis jedis = redis.get();
+		if (jedis == null) {
+			jedis = new Jedis(host, port);
+			redis.set(jedis);
+			connections.add(jedis);
+		}
+		return jedis;
+	}
+	
+	private static Set<HostAndPort> getClusterNodes(String fileName) {
+		File file = new File(fileName);
+		if (file.exists()) {
+			BufferedReader br = null;
+			try {
+				Set<HostAndPort> clusterNodes = new HashSet<HostAndPort>();
+				br = new BufferedReader(new FileReader(fileName));
+				String line = null;
+				
+				System.out.println("\nCluster Details:");
+				while ((line = br.readLine()) != null) {
+					clusterNodes.add(new HostAndPort(line.split(" ")[0], Integer.parseInt(line.split(" ")[1])));
+					System.out.println(line);
+				}
+				return clusterNodes;
+			} catch (Exception e) {
+				System.out.println("Error Reading File:" + e);
+			} finally {
+				try {
+					if (br != null)
+						br.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} else {
+			System.out.println("Unable to read cluster nodes file.");
+		}
+		return null;
+	}
+
+	public void connect(Set<HostAndPort> clusterNodes) {
 		try {
 			redisCluster = new JedisCluster(clusterNodes);
 		} catch (Exception e) {
@@ -27,40 +99,97 @@ public class Redis {
 		System.out.println("Redis Connection Successful.");
 	}
 
-	public static boolean insert(String key, String value) {
+	public boolean insert(String key, String value) {
 		if (redis != null) {
-			redis.set(key, value);
+			connection().set(key, value);
 		} else {
 			redisCluster.set(key, value);
 		}
 		return true;
 	}
 
-	public static boolean remove(String key) {
+	public boolean remove(String key) {
 		if (redis != null) {
-			redis.del(key);
+			connection().del(key);
 		} else {
 			redisCluster.del(key);
 		}
 		return true;
 	}
 
-	public static String lookup(String key) {
+	// SET overwrites the VALUE of an existing KEY
+	public boolean update(String key, String value) {
+		return insert(key, value);
+	}
+
+	public String lookup(String key) {
 		if (redis != null) {
-			return redis.get(key);
+			return connection().get(key);
 		} else {
 			return redisCluster.get(key);
 		}
 	}
 	
-	public static void disconnect() {
+	public void disconnect() {
 		if (redis != null) {
-			redis.close();
+			Jedis jedis;
+			while ((jedis = connections.poll()) != null) {
+				jedis.close();
+			}
+			redis = null;
 		} else {
 			redisCluster.close();
 		}
+		shutdownAsync();
+	}
+
+	// A single server reads and writes a batch with one command (MSET, MGET, DEL); the KEYS of a batch can be on different
+	// nodes of a cluster, so a cluster runs one command per KEY
+	public CompletableFuture<boolean[]> insertAll(final List<String> keys, final List<String> values) {
+		if (redis == null) {
+			return super.insertAll(keys, values);
+		}
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				String[] keysValues = new String[keys.size() * 2];
+				for (int i = 0; i < keys.size(); i++) {
+					keysValues[2 * i] = keys.get(i);
+					keysValues[2 * i + 1] = values.get(i);
+				}
+				connection().mset(keysValues);
+				boolean[] results = new boolean[keys.size()];
+				Arrays.fill(results, true);
+				return results;
+			}
+		});
 	}
 
+	public CompletableFuture<List<String>> lookupAll(final List<String> keys) {
+		if (redis == null) {
+			return super.lookupAll(keys);
+		}
+		return supplyAsync(new Supplier<List<String>>() {
+			public List<String> get() {
+				return connection().mget(keys.toArray(new String[keys.size()]));
+			}
+		});
+	}
+
+	public CompletableFuture<boolean[]> removeAll(final List<String> keys) {
+		if (redis == null) {
+			return super.removeAll(keys);
+		}
+		return supplyAsync(new Supplier<boolean[]>() {
+			public boolean[] get() {
+				connection().del(keys.toArray(new String[keys.size()]));
+				boolean[] results = new boolean[keys.size()];
+				Arrays.fill(results, true);
+				return results;
+			}
+		});
+	}
+
+
 	/*public static void main(String[] args) {
 
 		Set<HostAndPort> jedisClusterNodes = new HashSet<HostAndPort>();
@@ -1,8 +1,11 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 
 /***
  * This class provides the Replication facility in the Distributed Hash Table.
@@ -13,78 +16,70 @@ public class ReplicationService extends Thread {
 	private int portAddress;
 	private String localAddress = null;
 
-	private String key = null;
-	private String value = null;
+	private ArrayList<String> keys = null;
+	private ArrayList<String> values = null;
 	private String requestType = null;
 	
 	// Initialize all the local data from the global data
 	public ReplicationService(String key, String value, String requestType) {
+		this(new ArrayList<String>(Collections.singletonList(key)), new ArrayList<String>(Collections.singletonList(value)), requestType);
+	}
+	
+	// Replicates all the (KEY,VALUE) pairs of a batch operation with one request per replication node
+	public ReplicationService(ArrayList<String> keys, ArrayList<String> values, String requestType) {
 		replicationNodes = DistributedHashTable.getReplicationNodes();
 		portAddress = DistributedHashTable.getPeerServerPort();
 		localAddress = DistributedHashTable.getLocalAddress();
 		
-		this.key = key;
-		this.value = value;
+		this.keys = keys;
+		this.values = values;
 		this.requestType = requestType;
 	}
 	
 	public void run () {
 		Socket socket = null;
-		ObjectInputStream in = null;
-		ObjectOutputStream out = null;
+		DataInputStream in = null;
+		DataOutputStream out = null;
 		Request peerRequest = null;
 		Response serverResponse	= null;
-		String data = key + "," + value;
+		boolean isBatch = keys.size() > 1;
 		
 		for (String nodeAddress : replicationNodes) {
 			try {
-				if (requestType.equalsIgnoreCase("PUT")) {
-					if (nodeAddress.equalsIgnoreCase(localAddress)) {
-						//System.out.println(String.format("\nREPLICATING If (%s,%s) at %s - %s", key, value, nodeAddress, localAddress));
-						DistributedHashTable.putInReplicaHashTable(nodeAddress, key, value);
-					} else {
-						//System.out.println(String.format("\nREPLICATING Else (%s,%s) at %s - %s", key, value, nodeAddress, localAddress));
-						
-						// Make connection with server using the specified Host Address and Port 10000
-						socket = new Socket(nodeAddress, portAddress);
-
-						// Initializing output stream using the socket's output stream
-						out = new ObjectOutputStream(socket.getOutputStream());
-						out.flush();
-
-						// Initializing input stream using the socket's input stream
-						in = new ObjectInputStream(socket.getInputStream());
-
-						// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
-						peerRequest = new Request();
-						peerRequest.setRequestType("R_PUT");
-						peerRequest.setRequestData(data);
-						out.writeObject(peerRequest);
-
-						// Read the response message from the server
-						serverResponse = (Response) in.readObject();
-						socket.close();
+				if (requestType.equalsIgnoreCase("PUT") && nodeAddress.equalsIgnoreCase(localAddress)) {
+					//System.out.println(String.format("\nREPLICATING If (%s,%s) at %s - %s", key, value, nodeAddress, localAddress));
+					for (int i = 0; i < keys.size(); i++) {
+						DistributedHashTable.putInReplicaHashTable(nodeAddress, keys.get(i), values.get(i));
 					}
-					//System.out.println(replicatedHashTable);
-				} else if (requestType.equalsIgnoreCase("DELETE")) {
+				} else {
 					// Make connection with server using the specified Host Address and Port 10000
 			        socket = new Socket(nodeAddress, portAddress);
 			        
 			        // Initializing output stream using the socket's output stream
-			        out = new ObjectOutputStream(socket.getOutputStream());
-			        out.flush();
+			        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 			        
 			        // Initializing input stream using the socket's input stream
-			        in = new ObjectInputStream(socket.getInputStream());
+			        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
-					// Setup a Request object with Request Type = PUT and Request Data = KEY,VALUE
+					// Setup a Request object with Request Type = R_PUT/R_DELETE and the KEY,VALUE or R_MPUT/R_MDELETE and all the KEYS,VALUES
 					peerRequest = new Request();
-					peerRequest.setRequestType("R_DELETE");
-					peerRequest.setRequestData(key);
-					out.writeObject(peerRequest);
+					if (requestType.equalsIgnoreCase("PUT")) {
+						peerRequest.setRequestType(isBatch ? "R_MPUT" : "R_PUT");
+					} else {
+						peerRequest.setRequestType(isBatch ? "R_MDELETE" : "R_DELETE");
+					}
+					
+					if (isBatch) {
+						peerRequest.setKeys(keys);
+						peerRequest.setValues(requestType.equalsIgnoreCase("PUT") ? values : null);
+					} else {
+						peerRequest.setKey(keys.get(0));
+						peerRequest.setValue(requestType.equalsIgnoreCase("PUT") ? values.get(0) : null);
+					}
+					MessageUtility.writeRequest(out, peerRequest);
 					
 			        // Read the response message from the server
-			        serverResponse = (Response) in.readObject();
+			        serverResponse = MessageUtility.readResponse(in);
 			        socket.close();
 				}
 			} catch (Exception ex) {
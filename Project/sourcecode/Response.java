@@ -1,10 +1,14 @@
 import java.io.Serializable;
+import java.util.ArrayList;
 
 public class Response implements Serializable {
 
 	private int responseCode;
+	private int requestId;
 	private String responseData;
 	private Object otherData;
+	private int[] responseCodes;
+	private ArrayList<String> values;
 	
 	public int getResponseCode() {
 		return responseCode;
@@ -14,6 +18,14 @@ public class Response implements Serializable {
 		this.responseCode = responseCode;
 	}
 
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
 	public String getResponseData() {
 		return responseData;
 	}
@@ -30,4 +42,20 @@ public class Response implements Serializable {
 		this.otherData = otherData;
 	}
 
+	public int[] getResponseCodes() {
+		return responseCodes;
+	}
+
+	public void setResponseCodes(int[] responseCodes) {
+		this.responseCodes = responseCodes;
+	}
+
+	public ArrayList<String> getValues() {
+		return values;
+	}
+
+	public void setValues(ArrayList<String> values) {
+		this.values = values;
+	}
+
 }
@@ -16,11 +16,15 @@ import com.basho.riak.client.core.query.Namespace;
 import com.basho.riak.client.core.query.RiakObject;
 import com.basho.riak.client.core.util.BinaryValue;
 
-public class Riak {
+public class Riak extends AbstractKeyValueStore {
 
-	private static RiakCluster cluster = null;
-	private static RiakClient client = null;
-	private static Namespace bucket = null;
+	private RiakCluster cluster = null;
+	private RiakClient client = null;
+	private Namespace bucket = null;
+
+	public String getName() {
+		return "Riak";
+	}
 
 	private static List<RiakNode> getClusterNodes(String fileName, int port) {
 		File file = new File(fileName);
@@ -57,7 +61,7 @@ public class Riak {
 		return null;
 	}
 
-	public static void connect(String fileName, int port) {
+	public void connect(String fileName, int port) {
 		// And now we can use our setUpCluster() function to create a cluster
 		// object which we can then use to create a client object and then
 		// execute our storage operation
@@ -85,7 +89,7 @@ public class Riak {
 		}
 	}
 
-	public static boolean insert(String key, String value) {
+	public boolean insert(String key, String value) {
 		// First, we'll create a basic object storing a movie quote
 		RiakObject quoteObject = new RiakObject()
 				// We tell Riak that we're storing plaintext, not JSON, HTML,
@@ -111,7 +115,12 @@ public class Riak {
 		return true;
 	}
 
-	public static String lookup(String key) {
+	// Storing a VALUE replaces the VALUE of an existing KEY
+	public boolean update(String key, String value) {
+		return insert(key, value);
+	}
+
+	public String lookup(String key) {
 		Location quoteObjectLocation = new Location(bucket, key);
 		// Now we can verify that the object has been stored properly by
 		// creating and executing a FetchValue operation
@@ -130,7 +139,7 @@ public class Riak {
 		return null;
 	}
 
-	public static boolean remove(String key) {
+	public boolean remove(String key) {
 		Location quoteObjectLocation = new Location(bucket, key);
 		DeleteValue deleteOp = new DeleteValue.Builder(quoteObjectLocation).build();
 
@@ -143,9 +152,10 @@ public class Riak {
 		return true;
 	}
 
-	public static void disconnect() {
+	public void disconnect() {
 		//cluster.shutdown();
 		client.shutdown();
+		shutdownAsync();
 	}
 
 	/*public static void main(String[] args) {
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * This class sends the replicas kept by a replication node in pages, so that a peer which restarts gets its (KEY, VALUE)
+ * pairs back without either side holding a copy of the whole Hash Table in one message.
+ *
+ * The KEYS are sent in the order of their position on the consistent hash ring (then of the KEYS themselves), which is the
+ * same on every node. The cursor of a page is the last KEY it contains, so the transfer can go on from the same KEY on
+ * another replication node after a failure. The peer asks for the next page as soon as it receives a page, before it
+ * applies it, so the replication node reads the next page meanwhile but is never more than one page ahead of the peer.
+ *
+ * The KEYS to be sent are sorted when the transfer starts and kept for SNAPSHOT_TIMEOUT between two pages. Their VALUES
+ * are read when their page is sent.
+ */
+public class StateTransfer {
+	public static final int PAGE_SIZE = 1000; // (KEY, VALUE) pairs per page
+	public static final int MAX_PAGE_BYTES = 1024 * 1024; // 1 MegaByte
+	public static final long SNAPSHOT_TIMEOUT = 60 * 1000; // 1 minute
+
+	// Sorted KEYS of the transfers in progress, by requesting peer and peer of the replicas
+	private static ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+	/***
+	 * This method returns the page of the replicas which follows the cursor.
+	 * The response has the (KEY, VALUE) pairs in its other data, in a HashMap for the replicas of one peer or in a HashMap
+	 * per peer for the replicas of all the peers, and the cursor of the next page in its response data, or null if it is
+	 * the last page.
+	 * @param requester		IP address of the peer which gets the replicas
+	 * @param nodeAddress	IP address of the peer whose replicas are sent, or null for the replicas of all the peers
+	 * @param cursor		Last KEY received, or null for the first page
+	 * @return				Returns the response to be sent.
+	 */
+	public static Response getPage(String requester, String nodeAddress, String cursor) {
+		String id = requester + "/" + nodeAddress;
+		long now = System.currentTimeMillis();
+
+		// A new transfer, or one which was started on another node or paused for too long, sorts the KEYS again
+		Snapshot snapshot = snapshots.get(id);
+		if (cursor == null || snapshot == null || now - snapshot.lastUsed > SNAPSHOT_TIMEOUT) {
+			snapshot = new Snapshot(DistributedHashTable.getReplicaKeys(nodeAddress));
+			snapshots.put(id, snapshot);
+		}
+		snapshot.lastUsed = now;
+		removeExpired(now);
+
+		HashMap<String, String> pairs = new HashMap<String, String>();
+		ConcurrentHashMap<String, HashMap<String, String>> pairsByPeer = new ConcurrentHashMap<String, HashMap<String, String>>();
+		String[] owner = new String[1];
+		int count = 0;
+		int bytes = 0;
+		int position = (cursor == null) ? 0 : snapshot.after(cursor);
+
+		while (position < snapshot.keys.length && count < PAGE_SIZE && bytes < MAX_PAGE_BYTES) {
+			String key = snapshot.keys[position++];
+			String value = DistributedHashTable.getFromReplicaHashTable(key, owner);
+			// The replica was deleted or moved to another peer since the transfer started
+			if (value == null || (nodeAddress != null && !nodeAddress.equals(owner[0]))) {
+				continue;
+			}
+
+			if (nodeAddress != null) {
+				pairs.put(key, value);
+			} else {
+				HashMap<String, String> peerPairs = pairsByPeer.get(owner[0]);
+				if (peerPairs == null) {
+					peerPairs = new HashMap<String, String>();
+					pairsByPeer.put(owner[0], peerPairs);
+				}
+				peerPairs.put(key, value);
+			}
+			count++;
+			bytes += 2 * (key.length() + value.length()) + 16;
+		}
+
+		Response response = new Response();
+		response.setResponseCode(200);
+		if (nodeAddress != null) {
+			response.setOtherData(pairs);
+		} else {
+			response.setOtherData(pairsByPeer);
+		}
+		if (position < snapshot.keys.length) {
+			response.setResponseData(snapshot.keys[position - 1]);
+		} else {
+			snapshots.remove(id, snapshot);
+		}
+		return response;
+	}
+
+	// Forgets the snapshots of the transfers which were abandoned
+	private static void removeExpired(long now) {
+		for (Snapshot snapshot : snapshots.values()) {
+			if (now - snapshot.lastUsed > SNAPSHOT_TIMEOUT) {
+				snapshots.values().remove(snapshot);
+			}
+		}
+	}
+
+	// KEYS sorted in the order in which they are sent, with their position on the ring
+	private static class Snapshot {
+		final String[] keys;
+		final long[] positions;
+		volatile long lastUsed;
+
+		Snapshot(ArrayList<String> list) {
+			Entry[] entries = new Entry[list.size()];
+			for (int i = 0; i < entries.length; i++) {
+				entries[i] = new Entry(list.get(i));
+			}
+			Arrays.sort(entries);
+
+			keys = new String[entries.length];
+			positions = new long[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				keys[i] = entries[i].key;
+				positions[i] = entries[i].position;
+			}
+		}
+
+		// Returns the index of the first KEY sent after the cursor
+		int after(String cursor) {
+			long position = HashRing.hash(cursor);
+			int low = 0;
+			int high = keys.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				int order = Long.compare(positions[middle], position);
+				if (order == 0) {
+					order = keys[middle].compareTo(cursor);
+				}
+				if (order <= 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		final String key;
+		final long position;
+
+		Entry(String key) {
+			this.key = key;
+			this.position = HashRing.hash(key);
+		}
+
+		public int compareTo(Entry other) {
+			int order = Long.compare(position, other.position);
+			return (order != 0) ? order : key.compareTo(other.key);
+		}
+	}
+}
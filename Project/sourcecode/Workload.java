@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * This class describes a mix of operations in the style of the core workloads of YCSB: RECORD_COUNT KEYS are inserted
+ * first (load), then OPERATION_COUNT operations are run, each of them a READ, UPDATE, INSERT or DELETE chosen with the
+ * proportions of the workload. READ, UPDATE and DELETE work on an existing KEY chosen with the request distribution
+ * (see KeyDistribution), INSERT adds a new KEY after the last one.
+ *
+ * The sizes of the KEYS and of the VALUES are either fixed or drawn from a range. The size of a KEY depends only on its
+ * number, so a KEY is always built the same way. The VALUES are slices of a random text.
+ *
+ * A workload is one of the predefined workloads a, b, c, d (YCSB core workloads A to D) or a properties file:
+ *
+ * RECORD_COUNT				KEYS inserted by the load, default the number of operations of Evaluation
+ * OPERATION_COUNT			Operations of the run, default the number of operations of Evaluation
+ * READ_PROPORTION, UPDATE_PROPORTION, INSERT_PROPORTION, DELETE_PROPORTION
+ * REQUEST_DISTRIBUTION		uniform, zipfian, hotspot or latest
+ * HOTSPOT_DATA_FRACTION	Fraction of the KEYS in the hot set, default 0.2
+ * HOTSPOT_OPERATION_FRACTION	Fraction of the operations on the hot set, default 0.8
+ * KEY_SIZE					Characters of a KEY, e.g. 10 or 10-24
+ * VALUE_SIZE				Characters of a VALUE, e.g. 90 or 10-1000
+ * VALUE_SIZE_DISTRIBUTION	uniform or zipfian (small VALUES most often) when VALUE_SIZE is a range
+ */
+public class Workload {
+	public static final int READ = 0;
+	public static final int UPDATE = 1;
+	public static final int INSERT = 2;
+	public static final int DELETE = 3;
+	public static final String[] OPERATIONS = { "READ", "UPDATE", "INSERT", "DELETE" };
+
+	public static final int DEFAULT_KEY_SIZE = 10;
+	public static final int DEFAULT_VALUE_SIZE = 90;
+
+	private static final int VALUE_OFFSETS = 1024; // Different starts of the VALUES in the random text
+
+	private final String name;
+	private final long recordCount;
+	private final long operationCount;
+	private final double[] proportions;
+	private final KeyDistribution requestDistribution;
+	private final int minKeySize;
+	private final int maxKeySize;
+	private final int minValueSize;
+	private final int maxValueSize;
+	private final KeyDistribution valueSizeDistribution;
+	private final String valueText;
+
+	// Number of the first KEY, so that the clients don't work on the same KEYS
+	private long firstKey = 0;
+	// KEYS inserted so far by the load and the INSERT operations
+	private final AtomicLong insertedKeys = new AtomicLong();
+
+	private Workload(String name, long recordCount, long operationCount, double[] proportions, KeyDistribution requestDistribution,
+			String keySize, String valueSize, String valueSizeDistribution) {
+		this.name = name;
+		this.recordCount = recordCount;
+		this.operationCount = operationCount;
+		this.proportions = proportions;
+		this.requestDistribution = requestDistribution;
+
+		int[] keySizes = parseRange(keySize, DEFAULT_KEY_SIZE);
+		this.minKeySize = keySizes[0];
+		this.maxKeySize = keySizes[1];
+		int[] valueSizes = parseRange(valueSize, DEFAULT_VALUE_SIZE);
+		this.minValueSize = valueSizes[0];
+		this.maxValueSize = valueSizes[1];
+		this.valueSizeDistribution = (valueSizeDistribution != null && valueSizeDistribution.equalsIgnoreCase("zipfian"))
+				? new KeyDistribution.Zipfian(KeyDistribution.ZIPFIAN_CONSTANT, false) : new KeyDistribution.Uniform();
+
+		// Random letters and digits from which the VALUES are cut
+		Random random = new Random(1);
+		String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+		StringBuilder text = new StringBuilder(maxValueSize + VALUE_OFFSETS);
+		for (int i = 0; i < maxValueSize + VALUE_OFFSETS; i++) {
+			text.append(characters.charAt(random.nextInt(characters.length())));
+		}
+		this.valueText = text.toString();
+		this.insertedKeys.set(recordCount);
+	}
+
+	/***
+	 * This method returns a predefined workload or reads a workload file.
+	 * @param name			a (50% READ, 50% UPDATE), b (95% READ, 5% UPDATE), c (100% READ), d (95% READ, 5% INSERT,
+	 * 						latest KEYS), or the path of a workload file
+	 * @param defaultCount	Number of KEYS and of operations when the workload doesn't set them
+	 * @return				Returns the workload, or NULL if it can't be read.
+	 */
+	public static Workload load(String name, long defaultCount) {
+		if (name.equalsIgnoreCase("a")) {
+			return new Workload("A (update heavy)", defaultCount, defaultCount, new double[] { 0.5, 0.5, 0, 0 },
+					KeyDistribution.create("zipfian", 0, 0), null, null, null);
+		} else if (name.equalsIgnoreCase("b")) {
+			return new Workload("B (read mostly)", defaultCount, defaultCount, new double[] { 0.95, 0.05, 0, 0 },
+					KeyDistribution.create("zipfian", 0, 0), null, null, null);
+		} else if (name.equalsIgnoreCase("c")) {
+			return new Workload("C (read only)", defaultCount, defaultCount, new double[] { 1, 0, 0, 0 },
+					KeyDistribution.create("zipfian", 0, 0), null, null, null);
+		} else if (name.equalsIgnoreCase("d")) {
+			return new Workload("D (read latest)", defaultCount, defaultCount, new double[] { 0.95, 0, 0.05, 0 },
+					KeyDistribution.create("latest", 0, 0), null, null, null);
+		}
+
+		// Load the workload from its file
+		Properties configuration = new Properties();
+		try {
+			FileInputStream fileStream = new FileInputStream(name);
+			configuration.load(fileStream);
+			fileStream.close();
+		} catch (Exception e) {
+			System.out.println("Workload " + name + " could not be loaded: " + e);
+			return null;
+		}
+
+		double[] proportions = new double[OPERATIONS.length];
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			proportions[i] = Double.parseDouble(configuration.getProperty(OPERATIONS[i] + "_PROPORTION", "0").trim());
+		}
+		String distribution = configuration.getProperty("REQUEST_DISTRIBUTION", "zipfian").trim();
+		KeyDistribution requestDistribution = KeyDistribution.create(distribution,
+				Double.parseDouble(configuration.getProperty("HOTSPOT_DATA_FRACTION", "0.2").trim()),
+				Double.parseDouble(configuration.getProperty("HOTSPOT_OPERATION_FRACTION", "0.8").trim()));
+		if (requestDistribution == null) {
+			System.out.println("Unknown request distribution " + distribution + " in " + name + ".");
+			return null;
+		}
+
+		return new Workload(new File(name).getName(),
+				Long.parseLong(configuration.getProperty("RECORD_COUNT", Long.toString(defaultCount)).trim()),
+				Long.parseLong(configuration.getProperty("OPERATION_COUNT", Long.toString(defaultCount)).trim()),
+				proportions, requestDistribution, configuration.getProperty("KEY_SIZE"), configuration.getProperty("VALUE_SIZE"),
+				configuration.getProperty("VALUE_SIZE_DISTRIBUTION"));
+	}
+
+	// "10" is a fixed size, "10-1000" a range
+	private static int[] parseRange(String range, int defaultSize) {
+		if (range == null || range.trim().isEmpty()) {
+			return new int[] { defaultSize, defaultSize };
+		}
+		String[] sizes = range.split("-");
+		int min = Integer.parseInt(sizes[0].trim());
+		int max = (sizes.length > 1) ? Integer.parseInt(sizes[1].trim()) : min;
+		return new int[] { Math.min(min, max), Math.max(min, max) };
+	}
+
+	/***
+	 * This method chooses the type of the next operation with the proportions of the workload.
+	 * @return	Returns READ, UPDATE, INSERT or DELETE.
+	 */
+	public int nextOperation() {
+		double total = 0;
+		for (double proportion : proportions) {
+			total += proportion;
+		}
+		double choice = ThreadLocalRandom.current().nextDouble() * total;
+		for (int i = 0; i < proportions.length; i++) {
+			choice -= proportions[i];
+			if (choice < 0) {
+				return i;
+			}
+		}
+		return READ;
+	}
+
+	/***
+	 * This method chooses an existing KEY with the request distribution.
+	 * @return	Returns the number of the KEY.
+	 */
+	public long nextKey() {
+		return requestDistribution.next(insertedKeys.get());
+	}
+
+	/***
+	 * This method reserves the number of a new KEY. The KEY is chosen by nextKey() from now on, even if its INSERT is not
+	 * completed yet, so a READ can miss it.
+	 * @return	Returns the number of the KEY.
+	 */
+	public long nextInsertKey() {
+		return insertedKeys.getAndIncrement();
+	}
+
+	/***
+	 * This method builds a KEY: its number padded to its size, which depends only on the number.
+	 * @param i	Number of the KEY
+	 * @return	Returns the KEY.
+	 */
+	public String key(long i) {
+		int size = minKeySize;
+		if (maxKeySize > minKeySize) {
+			size += (int) Long.remainderUnsigned(KeyDistribution.hash(i), maxKeySize - minKeySize + 1);
+		}
+		String number = Long.toString(firstKey + i);
+		StringBuilder key = new StringBuilder(Math.max(size, number.length()));
+		key.append(number);
+		while (key.length() < size) {
+			key.append('#');
+		}
+		return key.toString();
+	}
+
+	/***
+	 * This method builds a VALUE whose size is drawn from the VALUE size distribution.
+	 * @return	Returns the VALUE.
+	 */
+	public String value() {
+		int size = minValueSize + (int) valueSizeDistribution.next(maxValueSize - minValueSize + 1);
+		int offset = ThreadLocalRandom.current().nextInt(VALUE_OFFSETS);
+		return valueText.substring(offset, offset + size);
+	}
+
+	public void setFirstKey(long firstKey) {
+		this.firstKey = firstKey;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getOperationCount() {
+		return operationCount;
+	}
+
+	/***
+	 * This method describes the workload.
+	 * @return	Returns one line with the proportions of the operations, the request distribution and the sizes.
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			if (proportions[i] > 0) {
+				summary.append(String.format("%s %.0f%%, ", OPERATIONS[i], proportions[i] * 100));
+			}
+		}
+		summary.append(String.format("%s keys, key size %s, value size %s", requestDistribution, range(minKeySize, maxKeySize),
+				range(minValueSize, maxValueSize)));
+		if (maxValueSize > minValueSize) {
+			summary.append(" (").append(valueSizeDistribution).append(")");
+		}
+		return summary.toString();
+	}
+
+	private static String range(int min, int max) {
+		return (min == max) ? Integer.toString(min) : min + "-" + max;
+	}
+}
@@ -0,0 +1,484 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/***
+ * This class runs an operation on a range of KEYS, or the mix of operations of a Workload, from several client threads at
+ * the same time, to measure how a store scales with the number of clients.
+ *
+ * The KEYS of an operation are split in one contiguous part per thread, so the threads never work on the same KEY. The
+ * threads of a workload choose their KEYS with its request distribution, so they share the hot KEYS. Each thread first runs
+ * the operation on its part of the warmup KEYS, which follow the measured KEYS, without measuring it. The measure starts
+ * when all the threads are warmed up. Each thread counts its latencies in its own histogram, which are added at the end.
+ *
+ * The threads are platform threads, or virtual threads on a Java which has them. The clients of the stores use one
+ * connection per thread (MyDHT, Redis) or a pool of connections shared by the threads (MongoDB, Cassandra, Riak).
+ *
+ * With outstanding = 1 each thread makes blocking calls to the store. With more, each thread uses the asynchronous
+ * operations of the store and keeps up to outstanding operations sent and not completed, like a client which pipelines its
+ * requests; the latency of an operation is measured from when it is sent until its future completes. The stores don't
+ * queue the operations on the client side: MyDHT pipelines them on a few connections per node, Cassandra uses the
+ * asynchronous calls of its driver and the other stores start as many threads as there are operations outstanding (see
+ * AbstractKeyValueStore).
+ *
+ * In the closed loop (targetRate = 0) each thread sends an operation when its previous one completes. In the open loop
+ * each thread sends targetRate / threads operations per second at fixed times, and the response time of an operation is
+ * measured from the time at which it should have been sent (coordinated omission).
+ */
+public class WorkloadDriver {
+	private static final long SPIN_TIME = 100 * 1000; // 100 microseconds, in nanoseconds
+	// Executors.newVirtualThreadPerTaskExecutor() is looked up at run time so that the program still runs on Java 17
+	private static final Method newVirtualThreadExecutor = findVirtualThreadExecutor();
+
+	private final int threads;
+	private final boolean virtualThreads;
+	private final int targetRate;
+	private final int warmupOperations;
+	private final int outstanding;
+
+	public static final int LOAD_BATCH_SIZE = 100; // KEYS inserted together by load()
+
+	/***
+	 * @param threads			Number of client threads
+	 * @param virtualThreads	true to run the clients in virtual threads if this Java has them
+	 * @param targetRate		Operations per second of all the threads together, 0 for a closed loop
+	 * @param warmupOperations	Operations run before the measure, by all the threads together
+	 * @param outstanding		Operations each thread sends before waiting for a response, 1 for blocking calls
+	 */
+	public WorkloadDriver(int threads, boolean virtualThreads, int targetRate, int warmupOperations, int outstanding) {
+		this.threads = Math.max(1, threads);
+		if (virtualThreads && newVirtualThreadExecutor == null) {
+			System.out.println("Virtual threads need Java 21. The clients run in platform threads.");
+		}
+		this.virtualThreads = virtualThreads && newVirtualThreadExecutor != null;
+		this.targetRate = targetRate;
+		this.warmupOperations = warmupOperations;
+		this.outstanding = Math.max(1, outstanding);
+	}
+
+	/***
+	 * This method runs an operation on numOperations KEYS from startKey, split between the threads.
+	 * @param startKey		Number of the first KEY
+	 * @param numOperations	Number of measured operations of all the threads together
+	 * @param keyOf			Builds the KEY and the VALUE of a number
+	 * @param store			Store on which the operations are run
+	 * @param operationType	Workload.READ, UPDATE, INSERT or DELETE
+	 * @return				Returns the latencies, the duration and the number of failed operations.
+	 */
+	public Result run(final long startKey, final int numOperations, final KeyBuilder keyOf, final KeyValueStore store,
+			final int operationType) throws InterruptedException {
+		final Result result = new Result(Workload.OPERATIONS);
+		return execute(result, warmupOperations, numOperations, targetRate, new TaskFactory() {
+			public Task create(final int thread, boolean warmup) {
+				// Warmup KEYS after the measured ones
+				final long firstKey = warmup ? startKey + numOperations + partStart(warmupOperations, thread)
+						: startKey + partStart(numOperations, thread);
+				return new StoreTask(store, warmup ? null : result) {
+					public int prepare(long n) {
+						type = operationType;
+						key = keyOf.key(firstKey + n);
+						value = keyOf.value(firstKey + n);
+						return type;
+					}
+				};
+			}
+		});
+	}
+
+	/***
+	 * This method inserts the RECORD_COUNT KEYS of a workload in batches of LOAD_BATCH_SIZE KEYS, split between the threads,
+	 * as fast as the store can.
+	 * @param workload	Workload whose KEYS are inserted
+	 * @param store		Store in which the KEYS are inserted
+	 * @return			Returns the latencies of the INSERT operations, i.e. of their batches.
+	 */
+	public Result load(final Workload workload, final KeyValueStore store) throws InterruptedException {
+		final Result result = new Result(Workload.OPERATIONS);
+		final long recordCount = workload.getRecordCount();
+		final long batches = (recordCount + LOAD_BATCH_SIZE - 1) / LOAD_BATCH_SIZE;
+		return execute(result, 0, batches, 0, new TaskFactory() {
+			public Task create(final int thread, boolean warmup) {
+				final long firstBatch = partStart(batches, thread);
+				return new Task() {
+					// New lists for each batch, the previous batches may still be outstanding
+					ArrayList<String> batchKeys;
+					ArrayList<String> batchValues;
+
+					public int prepare(long n) {
+						batchKeys = new ArrayList<String>(LOAD_BATCH_SIZE);
+						batchValues = new ArrayList<String>(LOAD_BATCH_SIZE);
+						long first = (firstBatch + n) * LOAD_BATCH_SIZE;
+						for (long i = first; i < Math.min(first + LOAD_BATCH_SIZE, recordCount); i++) {
+							batchKeys.add(workload.key(i));
+							batchValues.add(workload.value());
+						}
+						keys = batchKeys.size();
+						return Workload.INSERT;
+					}
+
+					public int execute() throws Exception {
+						return countFailed(store.insertAll(batchKeys, batchValues).get());
+					}
+
+					public CompletableFuture<Integer> executeAsync() {
+						return store.insertAll(batchKeys, batchValues).thenApply(new Function<boolean[], Integer>() {
+							public Integer apply(boolean[] results) {
+								return countFailed(results);
+							}
+						});
+					}
+				};
+			}
+		});
+	}
+
+	/***
+	 * This method runs the OPERATION_COUNT operations of a workload on the KEYS inserted by load(), split between the
+	 * threads, after a warmup with the same mix of operations.
+	 * @param workload	Workload which chooses the operations and their KEYS
+	 * @param store		Store on which the operations are run
+	 * @return			Returns the latencies of all the operations and of each type of operation, and the READ misses.
+	 */
+	public Result run(final Workload workload, final KeyValueStore store) throws InterruptedException {
+		final Result result = new Result(Workload.OPERATIONS);
+		return execute(result, warmupOperations, workload.getOperationCount(), targetRate, new TaskFactory() {
+			public Task create(int thread, boolean warmup) {
+				return new StoreTask(store, warmup ? null : result) {
+					public int prepare(long n) {
+						type = workload.nextOperation();
+						key = workload.key((type == Workload.INSERT) ? workload.nextInsertKey() : workload.nextKey());
+						value = (type == Workload.INSERT || type == Workload.UPDATE) ? workload.value() : null;
+						return type;
+					}
+				};
+			}
+		});
+	}
+
+	/***
+	 * Operations of one client thread: prepare() chooses the operation number n of the thread and builds its KEYS and
+	 * VALUES outside of the measure, execute() or executeAsync() runs it.
+	 */
+	private abstract static class Task {
+		int keys = 1; // KEYS of the operation, more than 1 for a batch
+
+		// Returns the type of the operation, i.e. its index in the operations of the Result
+		abstract int prepare(long n);
+
+		// Returns the number of KEYS which the store didn't apply
+		abstract int execute() throws Exception;
+
+		abstract CompletableFuture<Integer> executeAsync();
+	}
+
+	private interface TaskFactory {
+		Task create(int thread, boolean warmup);
+	}
+
+	// Runs the operation of one KEY on a store. A READ which finds no VALUE is a miss, not an error; the misses of the
+	// warmup (result NULL) are not counted.
+	private abstract static class StoreTask extends Task {
+		private final KeyValueStore store;
+		private final Result result;
+		int type;
+		String key;
+		String value;
+
+		StoreTask(KeyValueStore store, Result result) {
+			this.store = store;
+			this.result = result;
+		}
+
+		int execute() throws Exception {
+			if (type == Workload.READ) {
+				if (store.lookup(key) == null && result != null) {
+					result.misses.incrementAndGet();
+				}
+				return 0;
+			} else if (type == Workload.UPDATE) {
+				return store.update(key, value) ? 0 : 1;
+			} else if (type == Workload.INSERT) {
+				return store.insert(key, value) ? 0 : 1;
+			} else {
+				return store.remove(key) ? 0 : 1;
+			}
+		}
+
+		CompletableFuture<Integer> executeAsync() {
+			if (type == Workload.READ) {
+				return store.lookupAsync(key).thenApply(new Function<String, Integer>() {
+					public Integer apply(String value) {
+						if (value == null && result != null) {
+							result.misses.incrementAndGet();
+						}
+						return 0;
+					}
+				});
+			} else if (type == Workload.UPDATE) {
+				return store.updateAsync(key, value).thenApply(FAILED_IF_FALSE);
+			} else if (type == Workload.INSERT) {
+				return store.insertAsync(key, value).thenApply(FAILED_IF_FALSE);
+			} else {
+				return store.removeAsync(key).thenApply(FAILED_IF_FALSE);
+			}
+		}
+	}
+
+	private static final Function<Boolean, Integer> FAILED_IF_FALSE = new Function<Boolean, Integer>() {
+		public Integer apply(Boolean applied) {
+			return applied ? 0 : 1;
+		}
+	};
+
+	private static int countFailed(boolean[] results) {
+		int failed = 0;
+		for (boolean applied : results) {
+			if (!applied) {
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	// Runs the tasks of the threads: first warmupCount operations without measuring them, then count operations
+	private Result execute(final Result result, final long warmupCount, final long count, int rate, final TaskFactory factory)
+			throws InterruptedException {
+		final int types = result.operations.length;
+		final AtomicLong startTime = new AtomicLong();
+		final LatencyHistogram[] serviceTimes = new LatencyHistogram[threads];
+		final LatencyHistogram[] responseTimes = new LatencyHistogram[threads];
+		final LatencyHistogram[][] operationTimes = new LatencyHistogram[threads][types];
+		// In the open loop the threads send their operations in turn, interval / threads apart
+		final long interval = (rate > 0) ? 1000000000L * threads / rate : 0;
+
+		// The measure starts when the last thread is warmed up
+		final CyclicBarrier warmedUp = new CyclicBarrier(threads, new Runnable() {
+			public void run() {
+				startTime.set(System.nanoTime());
+			}
+		});
+
+		ExecutorService executor = newExecutor();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			serviceTimes[t] = new LatencyHistogram();
+			responseTimes[t] = new LatencyHistogram();
+			for (int type = 0; type < types; type++) {
+				operationTimes[t][type] = new LatencyHistogram();
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					Task warmup = factory.create(thread, true);
+					for (long n = 0, size = partSize(warmupCount, thread); n < size; n++) {
+						try {
+							warmup.prepare(n);
+							warmup.execute();
+						} catch (Exception e) {
+							//e.printStackTrace();
+						}
+					}
+					try {
+						warmedUp.await();
+					} catch (InterruptedException e) {
+						return;
+					} catch (BrokenBarrierException e) {
+						return;
+					}
+					long errors = runPart(factory.create(thread, false), partSize(count, thread), startTime.get() + thread * interval / threads,
+							interval, serviceTimes[thread], responseTimes[thread], operationTimes[thread]);
+					result.errors.addAndGet(errors);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		result.elapsedTime = System.nanoTime() - startTime.get();
+
+		for (int t = 0; t < threads; t++) {
+			result.serviceTimes.add(serviceTimes[t]);
+			result.responseTimes.add(responseTimes[t]);
+			for (int type = 0; type < types; type++) {
+				result.operationTimes[type].add(operationTimes[t][type]);
+			}
+		}
+		return result;
+	}
+
+	// Runs the operations of a thread, returns the number of KEYS which failed
+	private long runPart(Task task, long count, long firstTime, long interval, LatencyHistogram serviceTimes,
+			LatencyHistogram responseTimes, LatencyHistogram[] operationTimes) {
+		if (outstanding > 1) {
+			return runPartAsync(task, count, firstTime, interval, serviceTimes, responseTimes, operationTimes);
+		}
+		long errors = 0;
+
+		for (long n = 0; n < count; n++) {
+			int type = task.prepare(n);
+
+			long scheduledTime = firstTime + n * interval;
+			if (interval > 0) {
+				waitUntil(scheduledTime);
+			}
+			long startTime = System.nanoTime();
+			try {
+				errors += task.execute();
+			} catch (Exception e) {
+				errors += task.keys;
+			}
+			long endTime = System.nanoTime();
+			serviceTimes.record(endTime - startTime, task.keys);
+			operationTimes[type].record(endTime - startTime, task.keys);
+			if (interval > 0) {
+				responseTimes.record(endTime - scheduledTime, task.keys);
+			}
+		}
+		return errors;
+	}
+
+	// Same as runPart, with up to outstanding operations sent and not completed yet. The latencies are counted when the
+	// operations complete, in the threads of the store, so the histograms of the thread are locked.
+	private long runPartAsync(Task task, long count, long firstTime, final long interval, final LatencyHistogram serviceTimes,
+			final LatencyHistogram responseTimes, final LatencyHistogram[] operationTimes) {
+		final Semaphore inFlight = new Semaphore(outstanding);
+		final AtomicLong errors = new AtomicLong();
+
+		for (long n = 0; n < count; n++) {
+			final int type = task.prepare(n);
+			final int keys = task.keys;
+
+			final long scheduledTime = firstTime + n * interval;
+			if (interval > 0) {
+				waitUntil(scheduledTime);
+			}
+			inFlight.acquireUninterruptibly();
+			final long startTime = System.nanoTime();
+			CompletableFuture<Integer> future;
+			try {
+				future = task.executeAsync();
+			} catch (Exception e) {
+				future = new CompletableFuture<Integer>();
+				future.completeExceptionally(e);
+			}
+			future.whenComplete(new BiConsumer<Integer, Throwable>() {
+				public void accept(Integer failed, Throwable error) {
+					long endTime = System.nanoTime();
+					errors.addAndGet((error != null) ? keys : failed);
+					synchronized (serviceTimes) {
+						serviceTimes.record(endTime - startTime, keys);
+						operationTimes[type].record(endTime - startTime, keys);
+						if (interval > 0) {
+							responseTimes.record(endTime - scheduledTime, keys);
+						}
+					}
+					inFlight.release();
+				}
+			});
+		}
+		// Wait for the last operations
+		inFlight.acquireUninterruptibly(outstanding);
+		return errors.get();
+	}
+
+	// First operation of the part of a thread
+	private long partStart(long operations, int thread) {
+		return thread * (operations / threads) + Math.min(thread, operations % threads);
+	}
+
+	// Number of operations of the part of a thread
+	private long partSize(long operations, int thread) {
+		return operations / threads + ((thread < operations % threads) ? 1 : 0);
+	}
+
+	// Sleeps until shortly before the time, then spins so that the operation starts on time
+	private static void waitUntil(long time) {
+		long now;
+		while ((now = System.nanoTime()) < time) {
+			if (time - now > SPIN_TIME) {
+				LockSupport.parkNanos(time - now - SPIN_TIME);
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	// One thread per client, all of them started at once
+	private ExecutorService newExecutor() {
+		if (virtualThreads) {
+			try {
+				return (ExecutorService) newVirtualThreadExecutor.invoke(null);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	private static Method findVirtualThreadExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getTargetRate() {
+		return targetRate;
+	}
+
+	public int getOutstanding() {
+		return outstanding;
+	}
+
+	/***
+	 * Builds the KEY and the VALUE of the operation number i.
+	 */
+	public interface KeyBuilder {
+		String key(long i);
+
+		String value(long i);
+	}
+
+	/***
+	 * Latencies of a phase: the time of each operation (service time) and, in the open loop, the time from when it should
+	 * have been sent (response time).
+	 */
+	public static class Result {
+		public final LatencyHistogram serviceTimes = new LatencyHistogram();
+		public final LatencyHistogram responseTimes = new LatencyHistogram();
+		public final AtomicLong errors = new AtomicLong();
+		public final AtomicLong misses = new AtomicLong(); // READ operations of a workload which found no VALUE
+		public long elapsedTime = 0;
+		// Service times of each type of operation of a workload
+		public final String[] operations;
+		public final LatencyHistogram[] operationTimes;
+
+		public Result(String[] operations) {
+			this.operations = operations;
+			this.operationTimes = new LatencyHistogram[operations.length];
+			for (int i = 0; i < operations.length; i++) {
+				operationTimes[i] = new LatencyHistogram();
+			}
+		}
+
+		/***
+		 * @return	Returns the number of operations per second of all the threads together.
+		 */
+		public double getThroughput() {
+			return serviceTimes.getCount() / (elapsedTime / 1e9);
+		}
+	}
+}